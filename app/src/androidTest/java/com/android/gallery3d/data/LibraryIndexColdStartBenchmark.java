@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.android.gallery3d.app.GalleryApp;
+import com.android.gallery3d.data.BucketHelper.BucketEntry;
+import com.android.gallery3d.util.ThreadPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+// Measures the time to the first album grid on a cold start: the album
+// list query on MediaStore that the album set page waits for without a
+// saved store, against reading the album list from LibraryIndexStore.
+// The results are logged.
+@RunWith(AndroidJUnit4.class)
+public class LibraryIndexColdStartBenchmark {
+    private static final String TAG = "LibraryIndexColdStartBenchmark";
+    private static final int ROUNDS = 5;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void firstAlbumList() throws Exception {
+        GalleryApp app = (GalleryApp) InstrumentationRegistry.getTargetContext()
+                .getApplicationContext();
+        int type = MediaObject.MEDIA_TYPE_IMAGE | MediaObject.MEDIA_TYPE_VIDEO;
+        BucketEntry[] entries = BucketHelper.loadBucketEntries(ThreadPool.JOB_CONTEXT_STUB,
+                app.getContentResolver(), type);
+        assumeTrue("needs local media", entries != null && entries.length > 0);
+
+        LibraryIndex.Snapshot snapshot = new LibraryIndex(app).getSnapshot();
+        assertNotNull(snapshot);
+        HashMap<Integer, BucketEntry[]> albums = new HashMap<Integer, BucketEntry[]>();
+        albums.put(type, entries);
+        File file = new File(mFolder.getRoot(), "library_index");
+        new LibraryIndexStore(file).write(snapshot, 0, albums);
+
+        long query = Long.MAX_VALUE;
+        long stored = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long t0 = SystemClock.elapsedRealtimeNanos();
+            BucketHelper.loadBucketEntries(ThreadPool.JOB_CONTEXT_STUB,
+                    app.getContentResolver(), type);
+            query = Math.min(query, SystemClock.elapsedRealtimeNanos() - t0);
+
+            t0 = SystemClock.elapsedRealtimeNanos();
+            LibraryIndexStore.Content content = new LibraryIndexStore(file).read();
+            stored = Math.min(stored, SystemClock.elapsedRealtimeNanos() - t0);
+            assertEquals(entries.length, content.albums.get(type).length);
+        }
+        Log.i(TAG, snapshot.size() + " items, " + entries.length + " albums: MediaStore "
+                + query / 1000 + " us, store " + stored / 1000 + " us, file "
+                + file.length() / 1024 + " KB");
+    }
+}
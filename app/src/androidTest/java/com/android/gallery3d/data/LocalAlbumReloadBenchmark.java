@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.provider.MediaStore.Images;
+import android.provider.MediaStore.Images.ImageColumns;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import com.android.gallery3d.app.GalleryApp;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeTrue;
+
+// Pages through the largest local image album twice: once with no cached
+// items, and once more with nothing changed, when every row should be
+// served from its cached item without taking DataManager.LOCK. It needs a
+// device with an album of at least MIN_ITEMS images; the results are
+// logged.
+@RunWith(AndroidJUnit4.class)
+public class LocalAlbumReloadBenchmark {
+    private static final String TAG = "LocalAlbumReloadBenchmark";
+    private static final int PAGE_SIZE = 64;
+    private static final int MIN_ITEMS = 1000;
+
+    private static int findLargestBucket(ContentResolver resolver) {
+        Cursor cursor = resolver.query(Images.Media.EXTERNAL_CONTENT_URI,
+                new String[] {ImageColumns.BUCKET_ID}, null, null, null);
+        if (cursor == null) return 0;
+        SparseIntArray counts = new SparseIntArray();
+        int best = 0;
+        int bestCount = 0;
+        try {
+            while (cursor.moveToNext()) {
+                int bucketId = cursor.getInt(0);
+                int count = counts.get(bucketId) + 1;
+                counts.put(bucketId, count);
+                if (count > bestCount) {
+                    best = bucketId;
+                    bestCount = count;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return bestCount >= MIN_ITEMS ? best : 0;
+    }
+
+    // Returns {elapsed ms, allocated bytes} for one pass over the album.
+    // The items are kept in "keep" so the second pass can find them.
+    @SuppressWarnings("deprecation")
+    private static long[] readAll(MediaSet album, int count, ArrayList<MediaItem> keep) {
+        keep.clear();
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        long t0 = SystemClock.elapsedRealtimeNanos();
+        for (int start = 0; start < count; start += PAGE_SIZE) {
+            keep.addAll(album.getMediaItem(start, PAGE_SIZE));
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - t0;
+        long allocated = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+        return new long[] {elapsed / 1000000, allocated};
+    }
+
+    @Test
+    public void reloadUnchangedAlbum() {
+        GalleryApp app = (GalleryApp) InstrumentationRegistry.getTargetContext()
+                .getApplicationContext();
+        int bucketId = findLargestBucket(app.getContentResolver());
+        assumeTrue("needs an album of " + MIN_ITEMS + " images", bucketId != 0);
+
+        MediaSet album = app.getDataManager().getMediaSet(
+                Path.fromString("/local/image/" + bucketId));
+        album.reload();
+        int count = album.getMediaItemCount();
+        ArrayList<MediaItem> keep = new ArrayList<MediaItem>(count);
+
+        long[] cold = readAll(album, count, keep);
+        ArrayList<MediaItem> first = new ArrayList<MediaItem>(keep);
+        long[] warm = readAll(album, count, keep);
+
+        // Unchanged rows must give back the very same objects.
+        assertEquals(first.size(), keep.size());
+        for (int i = 0; i < keep.size(); i++) {
+            assertSame(first.get(i), keep.get(i));
+        }
+        Log.i(TAG, count + " items: first load " + cold[0] + " ms, "
+                + cold[1] / 1024 + " KB allocated; unchanged reload " + warm[0] + " ms, "
+                + warm[1] / 1024 + " KB allocated");
+    }
+}
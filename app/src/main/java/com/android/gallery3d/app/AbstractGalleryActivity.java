@@ -348,6 +348,14 @@ public class AbstractGalleryActivity extends Activity implements GalleryContext
         }
     }
 
+    public ThreadPool getBatchServiceParallelThreadPoolIfAvailable() {
+        if (mBatchServiceIsBound && mBatchService != null) {
+            return mBatchService.getParallelThreadPool();
+        } else {
+            throw new RuntimeException("Batch service unavailable");
+        }
+    }
+
     public void printSelectedImage(Uri uri) {
         if (uri == null) {
             return;
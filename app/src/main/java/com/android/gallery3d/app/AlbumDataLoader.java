@@ -24,6 +24,7 @@ import android.view.View;
 
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.ContentListener;
+import com.android.gallery3d.data.ItemDiff;
 import com.android.gallery3d.data.MediaItem;
 import com.android.gallery3d.data.MediaObject;
 import com.android.gallery3d.data.MediaSet;
@@ -49,6 +50,9 @@ public class AlbumDataLoader {
     private static final int MIN_LOAD_COUNT = 32;
     private static final int MAX_LOAD_COUNT = 64;
 
+    // With more changes than this, the content window is reloaded instead.
+    private static final int MAX_DIFF_EDITS = 256;
+
     private final MediaItem[] mData;
     private final long[] mItemVersion;
     private final long[] mSetVersion;
@@ -115,6 +119,8 @@ public class AlbumDataLoader {
 
     public void resume() {
         mSource.addContentListener(mSourceListener);
+        // The photo page opened from this album looks items up by path.
+        mSource.prepareItemIndex();
         mReloadTask = new ReloadTask();
         mReloadTask.start();
     }
@@ -329,6 +335,70 @@ public class AlbumDataLoader {
         }
     }
 
+    // Moves the cached items of the previous data version to their positions
+    // in the new version, so only the inserted items have to be loaded.
+    private class ApplyDiff implements Callable<Void> {
+        private final long mPreviousVersion;
+        private final long mVersion;
+        private final int mNewSize;
+        private final ItemDiff mDiff;
+
+        public ApplyDiff(long previousVersion, long version, int size, ItemDiff diff) {
+            mPreviousVersion = previousVersion;
+            mVersion = version;
+            mNewSize = size;
+            mDiff = diff;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            if (mSourceVersion != mPreviousVersion) return null;
+
+            int oldStart = mContentStart;
+            int oldEnd = mContentEnd;
+            MediaItem[] shown = new MediaItem[oldEnd - oldStart];
+            MediaItem[] valid = new MediaItem[oldEnd - oldStart];
+            long[] validVersion = new long[oldEnd - oldStart];
+            for (int i = oldStart; i < oldEnd; ++i) {
+                int index = i % DATA_CACHE_SIZE;
+                shown[i - oldStart] = mData[index];
+                if (mSetVersion[index] == mPreviousVersion) {
+                    valid[i - oldStart] = mData[index];
+                    validVersion[i - oldStart] = mItemVersion[index];
+                }
+                clearSlot(index);
+            }
+
+            mSourceVersion = mVersion;
+            if (mSize != mNewSize) {
+                mSize = mNewSize;
+                if (mDataListener != null) mDataListener.onSizeChanged(mSize);
+                if (mContentEnd > mSize) mContentEnd = mSize;
+                if (mActiveEnd > mSize) mActiveEnd = mSize;
+            }
+
+            for (int i = mContentStart, n = mContentEnd; i < n; ++i) {
+                int index = i % DATA_CACHE_SIZE;
+                int from = mDiff.getOldPosition(i);
+                // Inserted items, and items not loaded yet, are left empty
+                // for UpdateContent to fill in.
+                if (from >= oldStart && from < oldEnd && valid[from - oldStart] != null) {
+                    mData[index] = valid[from - oldStart];
+                    mItemVersion[index] = validVersion[from - oldStart];
+                    mSetVersion[index] = mVersion;
+                }
+                // Slots that now hold another item, or none, are redrawn;
+                // like UpdateContent, only the active ones are reported.
+                MediaItem wasShown = i >= oldStart && i < oldEnd ? shown[i - oldStart] : null;
+                if (mData[index] != wasShown && mDataListener != null
+                        && i >= mActiveStart && i < mActiveEnd) {
+                    mDataListener.onContentChanged(i);
+                }
+            }
+            return null;
+        }
+    }
+
     /*
      * The thread model of ReloadTask
      *      *
@@ -350,6 +420,11 @@ public class AlbumDataLoader {
         private volatile boolean mDirty = true;
         private boolean mIsLoading = false;
 
+        // The item signatures of the last data version seen, for diffing.
+        private MediaSet mSignatureSource;
+        private long mSignatureVersion = MediaObject.INVALID_DATA_VERSION;
+        private long[] mSignatures;
+
         private void updateLoading(boolean loading) {
             if (mIsLoading == loading) return;
             mIsLoading = loading;
@@ -378,6 +453,7 @@ public class AlbumDataLoader {
                 }
                 updateLoading(true);
                 long version = mSource.reload();
+                if (version != mSignatureVersion) applyItemDiff(version);
                 UpdateInfo info = executeAndWait(new GetUpdateInfo(version));
                 updateComplete = info == null;
                 if (updateComplete) continue;
@@ -393,6 +469,30 @@ public class AlbumDataLoader {
             updateLoading(false);
         }
 
+        // Diffs the items of the new data version against the previous one.
+        // If the change is small, the cached items are kept and moved to
+        // their new positions; otherwise the window is reloaded as usual.
+        private void applyItemDiff(long version) {
+            MediaSet source = mSource;
+            long[] signatures = source.getItemSignatures();
+            int size = 0;
+            if (signatures != null) {
+                size = source.getMediaItemCount();
+                // The set changed again in between; do a full reload.
+                if (signatures.length != size) signatures = null;
+            }
+            long[] previous = mSignatureSource == source ? mSignatures : null;
+            long previousVersion = mSignatureVersion;
+            mSignatureSource = source;
+            mSignatureVersion = version;
+            mSignatures = signatures;
+            if (previous == null || signatures == null) return;
+
+            ItemDiff diff = ItemDiff.compute(previous, signatures, MAX_DIFF_EDITS);
+            if (diff == null) return;
+            executeAndWait(new ApplyDiff(previousVersion, version, size, diff));
+        }
+
         public synchronized void notifyDirty() {
             mDirty = true;
             notifyAll();
@@ -29,6 +29,7 @@ import com.android.gallery3d.data.Path;
 import com.android.gallery3d.ui.SynchronizedHandler;
 
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
@@ -314,6 +315,78 @@ public class AlbumSetDataLoader {
         }
     }
 
+    // Moves the cached entries of the previous data version to the new
+    // positions of their sets. Only sets that are new, or whose own data
+    // version changed, have their cover and count loaded again, so a change
+    // to one album does not reload every album in the window.
+    private class ApplyDiff implements Callable<Void> {
+        private final long mVersion;
+        private final MediaSet[] mSets;
+        private final long[] mSetDataVersions;
+
+        public ApplyDiff(long version, MediaSet[] sets, long[] setDataVersions) {
+            mVersion = version;
+            mSets = sets;
+            mSetDataVersions = setDataVersions;
+        }
+
+        @Override
+        public Void call() {
+            if (mReloadTask == null || mSourceVersion == mVersion
+                    || mSourceVersion == MediaObject.INVALID_DATA_VERSION) {
+                return null;
+            }
+            int length = mCoverItem.length;
+            int oldStart = mContentStart;
+            int oldEnd = mContentEnd;
+            int n = oldEnd - oldStart;
+            MediaSet[] shown = new MediaSet[n];
+            MediaItem[] covers = new MediaItem[n];
+            int[] totalCounts = new int[n];
+            long[] itemVersions = new long[n];
+            IdentityHashMap<MediaSet, Integer> oldPositions =
+                    new IdentityHashMap<MediaSet, Integer>();
+            for (int i = oldStart; i < oldEnd; ++i) {
+                int pos = i % length;
+                shown[i - oldStart] = mData[pos];
+                covers[i - oldStart] = mCoverItem[pos];
+                totalCounts[i - oldStart] = mTotalCount[pos];
+                itemVersions[i - oldStart] = mItemVersion[pos];
+                if (mData[pos] != null && mSetVersion[pos] == mSourceVersion) {
+                    oldPositions.put(mData[pos], i);
+                }
+                clearSlot(pos);
+            }
+
+            mSourceVersion = mVersion;
+            if (mSize != mSets.length) {
+                mSize = mSets.length;
+                if (mDataListener != null) mDataListener.onSizeChanged(mSize);
+                if (mContentEnd > mSize) mContentEnd = mSize;
+                if (mActiveEnd > mSize) mActiveEnd = mSize;
+            }
+
+            for (int i = mContentStart, end = mContentEnd; i < end; ++i) {
+                int pos = i % length;
+                Integer from = oldPositions.get(mSets[i]);
+                // New and changed sets are left empty for UpdateContent.
+                if (from != null && itemVersions[from - oldStart] == mSetDataVersions[i]) {
+                    mData[pos] = mSets[i];
+                    mCoverItem[pos] = covers[from - oldStart];
+                    mTotalCount[pos] = totalCounts[from - oldStart];
+                    mItemVersion[pos] = itemVersions[from - oldStart];
+                    mSetVersion[pos] = mVersion;
+                }
+                MediaSet wasShown = i >= oldStart && i < oldEnd ? shown[i - oldStart] : null;
+                if (mData[pos] != wasShown && mDataListener != null
+                        && i >= mActiveStart && i < mActiveEnd) {
+                    mDataListener.onContentChanged(i);
+                }
+            }
+            return null;
+        }
+    }
+
     private <T> T executeAndWait(Callable<T> callable) {
         FutureTask<T> task = new FutureTask<T>(callable);
         mMainHandler.sendMessage(
@@ -332,6 +405,8 @@ public class AlbumSetDataLoader {
         private volatile boolean mActive = true;
         private volatile boolean mDirty = true;
         private volatile boolean mIsLoading = false;
+        // The data version last diffed against the cached entries.
+        private long mDiffVersion = MediaObject.INVALID_DATA_VERSION;
 
         private void updateLoading(boolean loading) {
             if (mIsLoading == loading) return;
@@ -356,6 +431,10 @@ public class AlbumSetDataLoader {
                 updateLoading(true);
 
                 long version = mSource.reload();
+                if (version != mDiffVersion) {
+                    mDiffVersion = version;
+                    applyDiff(version);
+                }
                 UpdateInfo info = executeAndWait(new GetUpdateInfo(version));
                 updateComplete = info == null;
                 if (updateComplete) continue;
@@ -382,6 +461,18 @@ public class AlbumSetDataLoader {
             updateLoading(false);
         }
 
+        private void applyDiff(long version) {
+            int size = mSource.getSubMediaSetCount();
+            MediaSet[] sets = new MediaSet[size];
+            long[] versions = new long[size];
+            for (int i = 0; i < size; ++i) {
+                sets[i] = mSource.getSubMediaSet(i);
+                if (sets[i] == null) return; // changed again; reload as usual
+                versions[i] = sets[i].getDataVersion();
+            }
+            executeAndWait(new ApplyDiff(version, sets, versions));
+        }
+
         public synchronized void notifyDirty() {
             mDirty = true;
             notifyAll();
@@ -34,6 +34,13 @@ public class BatchService extends Service {
     private final IBinder mBinder = new LocalBinder();
     private ThreadPool mThreadPool = new ThreadPool(1, 1);
 
+    // Number of items a batch job may process at once, including the
+    // thread the job itself runs on.
+    public static final int BATCH_PARALLELISM = Math.max(2,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private ThreadPool mParallelThreadPool =
+            new ThreadPool(BATCH_PARALLELISM - 1, BATCH_PARALLELISM - 1);
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -45,4 +52,11 @@ public class BatchService extends Service {
     public ThreadPool getThreadPool() {
         return mThreadPool;
     }
+
+    // Helper threads for a job running on getThreadPool() to spread
+    // independent per-item work over. The job still owns the batch: it
+    // waits for its helpers, so jobs stay serial relative to each other.
+    public ThreadPool getParallelThreadPool() {
+        return mParallelThreadPool;
+    }
 }
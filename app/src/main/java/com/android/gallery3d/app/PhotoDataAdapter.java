@@ -367,6 +367,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
         TiledTexture.prepareResources();
 
         mSource.addContentListener(mSourceListener);
+        mSource.prepareItemIndex();
         updateImageCache();
         updateImageRequests();
 
@@ -16,21 +16,35 @@
 
 package com.android.gallery3d.common;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * MD5-based digest Wrapper.
+ *
+ * There are two kinds of fingerprints. The MD5 of the whole content
+ * ({@link #fromInputStream}) is computed sequentially and uses the "cs_01_"
+ * stream id. The tree fingerprint ({@link #fromFile}, {@link TreeHasher})
+ * is the MD5 of the MD5s of fixed-size chunks followed by the content
+ * length; the chunks are hashed in parallel. It uses the "ct_01_" stream id.
  */
 public class Fingerprint {
-    // Instance of the MessageDigest using our specified digest algorithm.
-    private static final MessageDigest DIGESTER;
-
     /**
      * Name of the digest algorithm we use in {@link MessageDigest}
      */
@@ -40,6 +54,20 @@ public class Fingerprint {
     // Hard coded stream id length limit is 40-chars. Don't ask!
     private static final String STREAM_ID_CS_PREFIX = "cs_01_";
 
+    // Tree fingerprint streamId prefix, same length as the one above.
+    private static final String STREAM_ID_CT_PREFIX = "ct_01_";
+
+    // Size of the leaves of the tree fingerprint.
+    private static final int TREE_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    // Chunks a TreeHasher may buffer per hashing thread.
+    private static final int MAX_PENDING_CHUNKS_PER_THREAD = 2;
+
+    private static final int HASH_THREAD_COUNT =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static ExecutorService sHashExecutor;
+
     // 16 bytes for 128-bit fingerprint
     private static final int FINGERPRINT_BYTE_LENGTH;
 
@@ -47,28 +75,54 @@ public class Fingerprint {
     private static final int STREAM_ID_CS_01_LENGTH;
 
     static {
-        try {
-            DIGESTER = MessageDigest.getInstance(DIGEST_MD5);
-            FINGERPRINT_BYTE_LENGTH = DIGESTER.getDigestLength();
-            STREAM_ID_CS_01_LENGTH = STREAM_ID_CS_PREFIX.length()
-                    + (FINGERPRINT_BYTE_LENGTH * 2);
-        } catch (NoSuchAlgorithmException e) {
-            // can't continue, but really shouldn't happen
-            throw new IllegalStateException(e);
-        }
+        FINGERPRINT_BYTE_LENGTH = newDigest().getDigestLength();
+        STREAM_ID_CS_01_LENGTH = STREAM_ID_CS_PREFIX.length()
+                + (FINGERPRINT_BYTE_LENGTH * 2);
     }
 
     // md5 digest bytes.
     private final byte[] mMd5Digest;
+    private final String mStreamIdPrefix;
 
     /**
      * Creates a new Fingerprint.
      */
     public Fingerprint(byte[] bytes) {
+        this(bytes, STREAM_ID_CS_PREFIX);
+    }
+
+    private Fingerprint(byte[] bytes, String streamIdPrefix) {
         if ((bytes == null) || (bytes.length != FINGERPRINT_BYTE_LENGTH)) {
             throw new IllegalArgumentException();
         }
         mMd5Digest = bytes;
+        mStreamIdPrefix = streamIdPrefix;
+    }
+
+    // MessageDigest is not thread-safe, so each computation gets its own.
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_MD5);
+        } catch (NoSuchAlgorithmException e) {
+            // can't continue, but really shouldn't happen
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static synchronized ExecutorService getHashExecutor() {
+        if (sHashExecutor == null) {
+            sHashExecutor = Executors.newFixedThreadPool(HASH_THREAD_COUNT,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "fingerprint");
+                            t.setDaemon(true);
+                            t.setPriority(Thread.MIN_PRIORITY);
+                            return t;
+                        }
+                    });
+        }
+        return sHashExecutor;
     }
 
     /**
@@ -83,7 +137,7 @@ public class Fingerprint {
         DigestInputStream in = null;
         long count = 0;
         try {
-            in = new DigestInputStream(stream, DIGESTER);
+            in = new DigestInputStream(stream, newDigest());
             byte[] bytes = new byte[8192];
             while (true) {
                 // scan through file to compute a fingerprint.
@@ -98,13 +152,124 @@ public class Fingerprint {
         return new Fingerprint(in.getMessageDigest().digest());
     }
 
+    /**
+     * Creates a tree fingerprint of a file. The file is memory-mapped one
+     * chunk at a time and the chunks are hashed in parallel, with at most
+     * a few chunks per hash thread in flight.
+     */
+    public static Fingerprint fromFile(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            long length = channel.size();
+            ArrayList<Future<byte[]>> chunks = new ArrayList<Future<byte[]>>();
+            ExecutorService executor = getHashExecutor();
+            for (long offset = 0; offset < length; offset += TREE_CHUNK_SIZE) {
+                // Bound the chunks mapped and waiting to be hashed, as
+                // TreeHasher does.
+                int pending = chunks.size() - HASH_THREAD_COUNT * MAX_PENDING_CHUNKS_PER_THREAD;
+                if (pending >= 0) getChunkDigest(chunks.get(pending));
+                long size = Math.min(TREE_CHUNK_SIZE, length - offset);
+                chunks.add(executor.submit(new ChunkHash(
+                        channel.map(FileChannel.MapMode.READ_ONLY, offset, size))));
+            }
+            return treeFingerprint(chunks, length);
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Computes a tree fingerprint of content that arrives in pieces, for
+     * example while a file is being copied. Full chunks are hashed in the
+     * background as soon as they are complete, so {@link #finish} only has
+     * to wait for the last ones. The result equals {@link #fromFile} of the
+     * same content.
+     */
+    public static class TreeHasher {
+        private final ExecutorService mExecutor = getHashExecutor();
+        private final ArrayList<Future<byte[]>> mChunks = new ArrayList<Future<byte[]>>();
+        private byte[] mBuffer = new byte[TREE_CHUNK_SIZE];
+        private int mBufferLength;
+        private long mLength;
+
+        public void update(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                int n = Math.min(length, TREE_CHUNK_SIZE - mBufferLength);
+                System.arraycopy(data, offset, mBuffer, mBufferLength, n);
+                mBufferLength += n;
+                mLength += n;
+                offset += n;
+                length -= n;
+                if (mBufferLength == TREE_CHUNK_SIZE) submitChunk();
+            }
+        }
+
+        public Fingerprint finish() throws IOException {
+            if (mBufferLength > 0) submitChunk();
+            mBuffer = null;
+            return treeFingerprint(mChunks, mLength);
+        }
+
+        private void submitChunk() throws IOException {
+            // Bound the memory held by chunks waiting to be hashed.
+            int pending = mChunks.size() - HASH_THREAD_COUNT * MAX_PENDING_CHUNKS_PER_THREAD;
+            if (pending >= 0) getChunkDigest(mChunks.get(pending));
+            mChunks.add(mExecutor.submit(new ChunkHash(
+                    ByteBuffer.wrap(mBuffer, 0, mBufferLength))));
+            mBuffer = new byte[TREE_CHUNK_SIZE];
+            mBufferLength = 0;
+        }
+    }
+
+    private static class ChunkHash implements Callable<byte[]> {
+        private final ByteBuffer mChunk;
+
+        ChunkHash(ByteBuffer chunk) {
+            mChunk = chunk;
+        }
+
+        @Override
+        public byte[] call() {
+            MessageDigest digest = newDigest();
+            digest.update(mChunk);
+            return digest.digest();
+        }
+    }
+
+    private static Fingerprint treeFingerprint(List<Future<byte[]>> chunks, long length)
+            throws IOException {
+        MessageDigest digest = newDigest();
+        for (Future<byte[]> chunk : chunks) {
+            digest.update(getChunkDigest(chunk));
+        }
+        digest.update(ByteBuffer.allocate(8).putLong(length).array());
+        return new Fingerprint(digest.digest(), STREAM_ID_CT_PREFIX);
+    }
+
+    private static byte[] getChunkDigest(Future<byte[]> chunk) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
     /**
      * Decodes a string stream id to a 128-bit fingerprint.
      */
     public static Fingerprint fromStreamId(String streamId) {
-        if ((streamId == null)
-                || !streamId.startsWith(STREAM_ID_CS_PREFIX)
-                || (streamId.length() != STREAM_ID_CS_01_LENGTH)) {
+        String prefix = null;
+        if (streamId != null && streamId.length() == STREAM_ID_CS_01_LENGTH) {
+            if (streamId.startsWith(STREAM_ID_CS_PREFIX)) {
+                prefix = STREAM_ID_CS_PREFIX;
+            } else if (streamId.startsWith(STREAM_ID_CT_PREFIX)) {
+                prefix = STREAM_ID_CT_PREFIX;
+            }
+        }
+        if (prefix == null) {
             throw new IllegalArgumentException("bad streamId: " + streamId);
         }
 
@@ -116,7 +281,7 @@ public class Fingerprint {
             int value = (toDigit(streamId, idx) << 4) | toDigit(streamId, idx + 1);
             bytes[byteIdx++] = (byte) (value & 0xff);
         }
-        return new Fingerprint(bytes);
+        return new Fingerprint(bytes, prefix);
     }
 
     /**
@@ -127,7 +292,8 @@ public class Fingerprint {
      */
     public static Fingerprint extractFingerprint(List<String> streamIdList) {
         for (String streamId : streamIdList) {
-            if (streamId.startsWith(STREAM_ID_CS_PREFIX)) {
+            if (streamId.startsWith(STREAM_ID_CS_PREFIX)
+                    || streamId.startsWith(STREAM_ID_CT_PREFIX)) {
                 return fromStreamId(streamId);
             }
         }
@@ -141,7 +307,7 @@ public class Fingerprint {
      * underscores.
      */
     public String toStreamId() {
-        StringBuilder streamId = new StringBuilder(STREAM_ID_CS_PREFIX);
+        StringBuilder streamId = new StringBuilder(mStreamIdPrefix);
         appendHexFingerprint(streamId, mMd5Digest);
         return streamId.toString();
     }
@@ -155,7 +321,8 @@ public class Fingerprint {
         if (this == obj) return true;
         if (!(obj instanceof Fingerprint)) return false;
         Fingerprint other = (Fingerprint) obj;
-        return Arrays.equals(mMd5Digest, other.mMd5Digest);
+        return mStreamIdPrefix.equals(other.mStreamIdPrefix)
+                && Arrays.equals(mMd5Digest, other.mMd5Digest);
     }
 
     public boolean equals(byte[] md5Digest) {
@@ -0,0 +1,518 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.common;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Renders the frames of an animated GIF onto an ARGB canvas.
+ *
+ * parse() makes one pass over the data and records where each frame is,
+ * without decompressing anything. renderFrame() then LZW-decodes the frames
+ * it needs into a buffer of color indices and composites them onto the
+ * canvas, applying transparency and the disposal methods in place. Every
+ * working buffer is sized during parse() and allocated by the first
+ * renderFrame(), so playback allocates nothing per frame.
+ *
+ * Pixels are non-premultiplied ARGB ints, as taken by Bitmap.setPixels().
+ * This class has no Android dependencies and is not thread-safe.
+ */
+public class GifRenderer {
+    private static final int DISPOSE_BACKGROUND = 2;
+    private static final int DISPOSE_PREVIOUS = 3;
+
+    private static final int MAX_CODES = 4096;
+    // Refuse canvases and frames bigger than this many pixels.
+    private static final int MAX_PIXELS = 16 * 1024 * 1024;
+
+    // Row order of the four passes of an interlaced frame.
+    private static final int[] INTERLACE_START = {0, 4, 2, 1};
+    private static final int[] INTERLACE_STEP = {8, 8, 4, 2};
+
+    private static class Frame {
+        int x, y, width, height;
+        int delay;  // in milliseconds
+        int dispose;
+        boolean interlace;
+        int transIndex = -1;  // -1 if none
+        int lctOffset = -1;  // local color table, or -1 if none
+        int lctSize;
+        int dataOffset;  // LZW minimum code size byte
+        int dataLength;  // total size of the data sub-blocks
+    }
+
+    private final ByteBuffer mData;
+    private final ArrayList<Frame> mFrames = new ArrayList<Frame>();
+    private int mWidth;
+    private int mHeight;
+    private int mLoopCount = 1;  // 0 = repeat forever
+    private int mGctOffset = -1;
+    private int mGctSize;
+    private int mBgColor;
+    private int mMaxFramePixels;
+    private int mMaxDataLength;
+    private boolean mHasDisposePrevious;
+
+    // Graphic control extension for the next frame.
+    private int mDelay;
+    private int mDispose;
+    private int mTransIndex = -1;
+
+    // The canvas holds frames 0 to mNextFrame - 1, before the disposal of
+    // the last one. mSaved holds what a DISPOSE_PREVIOUS frame covered.
+    private int[] mCanvas;
+    private int[] mSaved;
+    private int mNextFrame;
+
+    private byte[] mCodes;  // data sub-blocks of one frame, concatenated
+    private byte[] mIndices;  // decoded color index of each frame pixel
+    private short[] mPrefix;
+    private byte[] mSuffix;
+    private short[] mLength;
+    private final int[] mAct = new int[256];  // active color table
+
+    /**
+     * Renders the bytes from the buffer's position to its limit. The buffer
+     * may be memory-mapped; it is read again each time a frame is rendered.
+     */
+    public GifRenderer(ByteBuffer data) {
+        mData = data.slice();
+    }
+
+    /**
+     * Returns false if the data is not a GIF with at least one frame. A file
+     * that is truncated or corrupt part way through parses as the frames
+     * before the damage.
+     */
+    public boolean parse() {
+        try {
+            if (readHeader()) readContents();
+        } catch (BufferUnderflowException e) {
+            // Truncated data.
+        } catch (IllegalArgumentException e) {
+            // A block runs past the end of the data.
+        }
+        return !mFrames.isEmpty() && mWidth > 0 && mHeight > 0
+                && (long) mWidth * mHeight <= MAX_PIXELS;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFrameCount() {
+        return mFrames.size();
+    }
+
+    public int getLoopCount() {
+        return mLoopCount;
+    }
+
+    // Returns the delay of frame n in milliseconds; 0 if it has none.
+    public int getDelay(int n) {
+        return mFrames.get(n).delay;
+    }
+
+    /**
+     * Returns the canvas with frame n composited over the frames before it.
+     * The array is reused, so it is only valid until the next call.
+     * Rendering frames in order is cheapest; going backwards restarts from
+     * the first frame.
+     */
+    public int[] renderFrame(int n) {
+        if (n < 0 || n >= mFrames.size()) return null;
+        if (mCanvas == null) {
+            allocate();
+        } else if (n < mNextFrame) {
+            Arrays.fill(mCanvas, 0);
+            mNextFrame = 0;
+        }
+        while (mNextFrame <= n) {
+            drawFrame(mNextFrame++);
+        }
+        return mCanvas;
+    }
+
+    // Drops the working buffers. They are allocated again if needed.
+    public void release() {
+        mCanvas = null;
+        mSaved = null;
+        mCodes = null;
+        mIndices = null;
+        mPrefix = null;
+        mSuffix = null;
+        mLength = null;
+        mNextFrame = 0;
+    }
+
+    private void allocate() {
+        mCanvas = new int[mWidth * mHeight];
+        if (mHasDisposePrevious) mSaved = new int[mWidth * mHeight];
+        mCodes = new byte[mMaxDataLength];
+        mIndices = new byte[mMaxFramePixels];
+        mPrefix = new short[MAX_CODES];
+        mSuffix = new byte[MAX_CODES];
+        mLength = new short[MAX_CODES];
+        mNextFrame = 0;
+    }
+
+    private void drawFrame(int index) {
+        Frame frame = mFrames.get(index);
+        if (index > 0) dispose(mFrames.get(index - 1));
+        if (frame.dispose == DISPOSE_PREVIOUS) copyRect(frame, mCanvas, mSaved);
+        if (frame.width == 0 || !loadColorTable(frame)) return;
+        decodeIndices(frame, readCodes(frame));
+        composite(frame);
+    }
+
+    private void dispose(Frame frame) {
+        if (frame.dispose == DISPOSE_BACKGROUND) {
+            int right = Math.min(frame.x + frame.width, mWidth);
+            int bottom = Math.min(frame.y + frame.height, mHeight);
+            int c = frame.transIndex >= 0 ? 0 : mBgColor;
+            for (int y = frame.y; y < bottom && frame.x < right; y++) {
+                int k = y * mWidth;
+                Arrays.fill(mCanvas, k + frame.x, k + right, c);
+            }
+        } else if (frame.dispose == DISPOSE_PREVIOUS) {
+            copyRect(frame, mSaved, mCanvas);
+        }
+    }
+
+    private void copyRect(Frame frame, int[] src, int[] dest) {
+        int right = Math.min(frame.x + frame.width, mWidth);
+        int bottom = Math.min(frame.y + frame.height, mHeight);
+        for (int y = frame.y; y < bottom && frame.x < right; y++) {
+            int k = y * mWidth + frame.x;
+            System.arraycopy(src, k, dest, k, right - frame.x);
+        }
+    }
+
+    private boolean loadColorTable(Frame frame) {
+        int offset = frame.lctOffset >= 0 ? frame.lctOffset : mGctOffset;
+        if (offset < 0) return false;  // no color table defined
+        int size = frame.lctOffset >= 0 ? frame.lctSize : mGctSize;
+        readColorTable(offset, size, mAct);
+        if (frame.transIndex >= 0) mAct[frame.transIndex] = 0;
+        return true;
+    }
+
+    private void readColorTable(int offset, int ncolors, int[] table) {
+        ByteBuffer data = mData;
+        for (int i = 0, p = offset; i < ncolors; i++, p += 3) {
+            table[i] = 0xff000000 | (data.get(p) & 0xff) << 16
+                    | (data.get(p + 1) & 0xff) << 8 | (data.get(p + 2) & 0xff);
+        }
+        Arrays.fill(table, ncolors, table.length, 0);
+    }
+
+    // Gathers the data sub-blocks of the frame into mCodes, so the LZW loop
+    // reads one flat array. Returns the number of bytes.
+    private int readCodes(Frame frame) {
+        ByteBuffer data = mData;
+        data.position(frame.dataOffset + 1);
+        int length = 0;
+        while (data.hasRemaining()) {
+            int size = data.get() & 0xff;
+            if (size == 0) break;
+            size = Math.min(size, Math.min(data.remaining(), mCodes.length - length));
+            data.get(mCodes, length, size);
+            length += size;
+        }
+        return length;
+    }
+
+    // LZW-decodes mCodes into mIndices. Strings are written straight into
+    // place from the end backwards instead of through a pixel stack.
+    // Missing pixels are left as index 0.
+    private void decodeIndices(Frame frame, int length) {
+        final byte[] codes = mCodes;
+        final byte[] out = mIndices;
+        final short[] prefix = mPrefix;
+        final byte[] suffix = mSuffix;
+        final short[] lengths = mLength;
+        final int npix = frame.width * frame.height;
+        final int minCodeSize = mData.get(frame.dataOffset) & 0xff;
+
+        int pi = 0;
+        if (minCodeSize >= 1 && minCodeSize < 12) {
+            final int clear = 1 << minCodeSize;
+            final int endOfInformation = clear + 1;
+            for (int c = 0; c < clear; c++) {
+                suffix[c] = (byte) c;
+                lengths[c] = 1;
+            }
+            int codeSize = minCodeSize + 1;
+            int codeMask = (1 << codeSize) - 1;
+            int available = clear + 2;
+            int oldCode = -1;
+            int datum = 0;
+            int bits = 0;
+            int p = 0;
+            while (pi < npix) {
+                while (bits < codeSize && p < length) {
+                    datum |= (codes[p++] & 0xff) << bits;
+                    bits += 8;
+                }
+                if (bits < codeSize) break;
+                int code = datum & codeMask;
+                datum >>>= codeSize;
+                bits -= codeSize;
+
+                if (code == clear) {
+                    codeSize = minCodeSize + 1;
+                    codeMask = (1 << codeSize) - 1;
+                    available = clear + 2;
+                    oldCode = -1;
+                    continue;
+                }
+                if (code == endOfInformation) break;
+                if (oldCode == -1) {
+                    if (code >= clear) break;
+                    out[pi++] = (byte) code;
+                    oldCode = code;
+                    continue;
+                }
+                if (code > available) break;
+
+                // For code == available the string is that of oldCode
+                // followed by its own first byte.
+                int c = code < available ? code : oldCode;
+                int end = pi + lengths[c];
+                int j = end - 1;
+                while (j >= npix) {
+                    c = prefix[c];
+                    j--;
+                }
+                while (j > pi) {
+                    out[j--] = suffix[c];
+                    c = prefix[c];
+                }
+                byte first = suffix[c];
+                out[pi] = first;
+                pi = end;
+                if (code == available) {
+                    if (pi < npix) out[pi] = first;
+                    pi++;
+                }
+
+                // A full table is kept as is until the next clear code.
+                if (available < MAX_CODES) {
+                    prefix[available] = (short) oldCode;
+                    suffix[available] = first;
+                    lengths[available] = (short) (lengths[oldCode] + 1);
+                    available++;
+                    if ((available & codeMask) == 0 && available < MAX_CODES) {
+                        codeSize++;
+                        codeMask = (codeMask << 1) | 1;
+                    }
+                }
+                oldCode = code;
+            }
+        }
+        if (pi < npix) Arrays.fill(out, pi, npix, (byte) 0);
+    }
+
+    // Maps the decoded indices through the color table onto the canvas.
+    // Each row is a plain counted loop over flat arrays with the
+    // transparency test hoisted out, which keeps it free of bounds checks.
+    private void composite(Frame frame) {
+        final int[] canvas = mCanvas;
+        final byte[] indices = mIndices;
+        final int[] act = mAct;
+        final int w = Math.min(frame.x + frame.width, mWidth) - frame.x;
+        if (w <= 0) return;
+        final boolean transparent = frame.transIndex >= 0;
+
+        int pass = 0;
+        int line = 0;
+        int step = frame.interlace ? INTERLACE_STEP[0] : 1;
+        for (int i = 0; i < frame.height; i++) {
+            while (line >= frame.height && pass < 3) {
+                pass++;
+                line = INTERLACE_START[pass];
+                step = INTERLACE_STEP[pass];
+            }
+            int y = frame.y + line;
+            line += step;
+            if (y >= mHeight) continue;
+            int dx = y * mWidth + frame.x;
+            int sx = i * frame.width;
+            if (transparent) {
+                for (int x = 0; x < w; x++) {
+                    int c = act[indices[sx + x] & 0xff];
+                    if (c != 0) canvas[dx + x] = c;
+                }
+            } else {
+                for (int x = 0; x < w; x++) {
+                    canvas[dx + x] = act[indices[sx + x] & 0xff];
+                }
+            }
+        }
+    }
+
+    private boolean readHeader() {
+        ByteBuffer data = mData;
+        if (data.get() != 'G' || data.get() != 'I' || data.get() != 'F') return false;
+        data.position(6);  // skip the version
+        // logical screen descriptor
+        mWidth = readShort();
+        mHeight = readShort();
+        int packed = data.get() & 0xff;
+        int bgIndex = data.get() & 0xff;
+        data.get();  // pixel aspect ratio
+        if ((packed & 0x80) != 0) {
+            mGctSize = 2 << (packed & 7);
+            mGctOffset = data.position();
+            data.position(mGctOffset + 3 * mGctSize);
+            if (bgIndex < mGctSize) {
+                int p = mGctOffset + 3 * bgIndex;
+                mBgColor = 0xff000000 | (data.get(p) & 0xff) << 16
+                        | (data.get(p + 1) & 0xff) << 8 | (data.get(p + 2) & 0xff);
+            }
+        }
+        return true;
+    }
+
+    private void readContents() {
+        ByteBuffer data = mData;
+        while (data.hasRemaining()) {
+            int code = data.get() & 0xff;
+            switch (code) {
+                case 0x2C:  // image separator
+                    readImage();
+                    break;
+                case 0x21:  // extension
+                    code = data.get() & 0xff;
+                    if (code == 0xf9) {
+                        readGraphicControlExt();
+                    } else if (code == 0xff && isNetscapeExt()) {
+                        readNetscapeExt();
+                    } else {
+                        skip();
+                    }
+                    break;
+                case 0x00:  // bad byte, but keep going and see what happens
+                    break;
+                default:  // 0x3b terminator, or something unknown
+                    return;
+            }
+        }
+    }
+
+    private void readGraphicControlExt() {
+        ByteBuffer data = mData;
+        data.get();  // block size
+        int packed = data.get() & 0xff;
+        mDispose = (packed & 0x1c) >> 2;
+        mDelay = readShort() * 10;
+        int transIndex = data.get() & 0xff;
+        mTransIndex = (packed & 1) != 0 ? transIndex : -1;
+        data.get();  // block terminator
+    }
+
+    private boolean isNetscapeExt() {
+        ByteBuffer data = mData;
+        int p = data.position();
+        if ((data.get(p) & 0xff) != 11) return false;
+        String app = "NETSCAPE2.0";
+        for (int i = 0; i < 11; i++) {
+            if (data.get(p + 1 + i) != app.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void readNetscapeExt() {
+        ByteBuffer data = mData;
+        int size;
+        do {
+            size = data.get() & 0xff;
+            int start = data.position();
+            if (size >= 3 && data.get(start) == 1) {
+                // loop count sub-block
+                mLoopCount = (data.get(start + 1) & 0xff) | (data.get(start + 2) & 0xff) << 8;
+            }
+            data.position(start + size);
+        } while (size > 0);
+    }
+
+    // Records the frame and skips over its pixel data. A frame whose data is
+    // cut short is kept and renders as far as it goes.
+    private void readImage() {
+        ByteBuffer data = mData;
+        Frame frame = new Frame();
+        frame.x = readShort();
+        frame.y = readShort();
+        frame.width = readShort();
+        frame.height = readShort();
+        int packed = data.get() & 0xff;
+        frame.interlace = (packed & 0x40) != 0;
+        if ((packed & 0x80) != 0) {
+            frame.lctSize = 2 << (packed & 7);
+            frame.lctOffset = data.position();
+            data.position(frame.lctOffset + 3 * frame.lctSize);
+        }
+        frame.delay = mDelay;
+        frame.dispose = mDispose;
+        frame.transIndex = mTransIndex;
+        mDelay = 0;
+        mDispose = 0;
+        mTransIndex = -1;
+        if ((long) frame.width * frame.height > MAX_PIXELS) {
+            frame.width = frame.height = 0;
+        }
+
+        frame.dataOffset = data.position();
+        data.get();  // LZW minimum code size
+        mFrames.add(frame);
+        int length = 0;
+        while (data.hasRemaining()) {
+            int size = data.get() & 0xff;
+            if (size == 0) break;
+            size = Math.min(size, data.remaining());
+            data.position(data.position() + size);
+            length += size;
+        }
+        frame.dataLength = length;
+        mMaxDataLength = Math.max(mMaxDataLength, length);
+        mMaxFramePixels = Math.max(mMaxFramePixels, frame.width * frame.height);
+        if (frame.dispose == DISPOSE_PREVIOUS) mHasDisposePrevious = true;
+    }
+
+    private int readShort() {
+        // 16-bit value, LSB first
+        int lo = mData.get() & 0xff;
+        return lo | (mData.get() & 0xff) << 8;
+    }
+
+    // Skips sub-blocks up to and including the next zero length block.
+    private void skip() {
+        ByteBuffer data = mData;
+        int size;
+        do {
+            size = data.get() & 0xff;
+            data.position(data.position() + size);
+        } while (size > 0);
+    }
+}
@@ -0,0 +1,830 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a JPEG at 1/8 or 1/4 of its size straight from the DCT domain.
+ *
+ * At 1/8 every 8x8 block becomes one pixel, its DC coefficient. At 1/4 it
+ * becomes 2x2 pixels computed from the DC and the three lowest AC
+ * coefficients. No full-size IDCT, upsampling or color conversion is done,
+ * and the AC scans of a progressive JPEG are skipped entirely at 1/8.
+ *
+ * Handles huffman-coded baseline, extended (8-bit) and progressive JPEGs
+ * with one (grayscale) or three (YCbCr, or Adobe RGB) components. For
+ * anything else decode() returns null so the caller can fall back to the
+ * platform decoder. This class has no Android dependencies.
+ */
+public class JpegDcDecoder {
+    public static final int SCALE_EIGHTH = 8;
+    public static final int SCALE_QUARTER = 4;
+
+    private static final int M_SOF0 = 0xC0;
+    private static final int M_SOF1 = 0xC1;
+    private static final int M_SOF2 = 0xC2;
+    private static final int M_DHT = 0xC4;
+    private static final int M_RST0 = 0xD0;
+    private static final int M_RST7 = 0xD7;
+    private static final int M_SOI = 0xD8;
+    private static final int M_EOI = 0xD9;
+    private static final int M_SOS = 0xDA;
+    private static final int M_DQT = 0xDB;
+    private static final int M_DRI = 0xDD;
+    private static final int M_APP14 = 0xEE;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final int LOOKUP_BITS = 9;
+
+    // Coefficients kept per block at 1/4: zigzag positions 0, 1, 2 and 4,
+    // i.e. (0,0), (0,1), (1,0) and (1,1) in natural order.
+    private static final int QUARTER_SLOTS = 4;
+    private static final int[] SLOT_OF_ZIGZAG = new int[64];
+    static {
+        for (int i = 0; i < 64; i++) SLOT_OF_ZIGZAG[i] = -1;
+        SLOT_OF_ZIGZAG[0] = 0;
+        SLOT_OF_ZIGZAG[1] = 1;
+        SLOT_OF_ZIGZAG[2] = 2;
+        SLOT_OF_ZIGZAG[4] = 3;
+    }
+
+    // Means of the 1-D IDCT basis over half a block, scaled for the 2-D
+    // transform: for a quadrant, pixel = F00 / 8 +- C1 * F01 +- C1 * F10
+    // +- C2 * F11 (before level shift).
+    private static final float C1 = 0.11327f;
+    private static final float C2 = 0.10263f;
+
+    public static class Image {
+        public final int width;
+        public final int height;
+        // ARGB_8888, row major.
+        public final int[] pixels;
+
+        Image(int width, int height, int[] pixels) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+    }
+
+    private static class Huffman {
+        // (length << 8 | value) for codes of at most LOOKUP_BITS, else 0.
+        final int[] lookup = new int[1 << LOOKUP_BITS];
+        final int[] maxCode = new int[18];
+        final int[] minCode = new int[17];
+        final int[] valPtr = new int[17];
+        final int[] values;
+
+        Huffman(int[] counts, int[] values) throws IOException {
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for (int len = 1; len <= 16; len++) {
+                valPtr[len] = k;
+                minCode[len] = code;
+                int n = counts[len];
+                if (len <= LOOKUP_BITS) {
+                    for (int i = 0; i < n; i++) {
+                        int shift = LOOKUP_BITS - len;
+                        int base = (code + i) << shift;
+                        if (base + (1 << shift) > lookup.length) {
+                            throw new IOException("bad huffman table");
+                        }
+                        int entry = (len << 8) | values[k + i];
+                        for (int j = 0; j < (1 << shift); j++) lookup[base + j] = entry;
+                    }
+                }
+                code += n;
+                k += n;
+                maxCode[len] = n > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    private static class Component {
+        int id;
+        int h;
+        int v;
+        int quantTable;
+        int blocksPerLine;     // allocated, a multiple of h
+        int blocksPerColumn;   // allocated, a multiple of v
+        int usedBlocksPerLine; // blocks covering the image, for single scans
+        int usedBlocksPerColumn;
+        short[] coefs;
+        long[] nonZero;        // progressive 1/4 only
+        int pred;
+        Huffman dcTable;
+        Huffman acTable;
+    }
+
+    private final InputStream mIn;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPos;
+    private int mLimit;
+
+    private long mBits;
+    private int mBitCount;
+    private int mMarker;    // marker hit while reading entropy data, or 0
+
+    private final int[][] mQuant = new int[4][];
+    private final Huffman[] mDcTables = new Huffman[4];
+    private final Huffman[] mAcTables = new Huffman[4];
+    private Component[] mComponents;
+    private int mWidth;
+    private int mHeight;
+    private int mMaxH;
+    private int mMaxV;
+    private int mMcusPerLine;
+    private int mMcusPerColumn;
+    private boolean mProgressive;
+    private int mRestartInterval;
+    private int mAdobeTransform = -1;
+    private int mScale;
+    private int mEobRun;
+    private volatile boolean mCancelled;
+
+    private JpegDcDecoder(InputStream in) {
+        mIn = in;
+    }
+
+    /**
+     * Decodes the smallest of 1/8 and 1/4 scale whose shorter side is at
+     * least minSide pixels. Returns null if the image is smaller than that,
+     * uses an unsupported JPEG flavor, or decoding is cancelled.
+     *
+     * @throws IOException if the stream is not a well-formed JPEG
+     */
+    public static Image decode(InputStream in, int minSide) throws IOException {
+        return new JpegDcDecoder(in).decode(minSide);
+    }
+
+    /**
+     * Creates a decoder that can be cancelled from another thread; see
+     * cancel() and decode(int).
+     */
+    public static JpegDcDecoder create(InputStream in) {
+        return new JpegDcDecoder(in);
+    }
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public Image decode(int minSide) throws IOException {
+        if (readByte() != 0xFF || readByte() != M_SOI) return null;
+        while (true) {
+            if (mCancelled) return null;
+            int marker = nextMarker();
+            switch (marker) {
+                case M_SOF0:
+                case M_SOF1:
+                case M_SOF2:
+                    if (mComponents != null) return null;
+                    mProgressive = marker == M_SOF2;
+                    if (!readFrame(minSide)) return null;
+                    break;
+                case M_DHT:
+                    readHuffmanTables();
+                    break;
+                case M_DQT:
+                    readQuantTables();
+                    break;
+                case M_DRI:
+                    readUnsignedShort();
+                    mRestartInterval = readUnsignedShort();
+                    break;
+                case M_APP14:
+                    readAdobe();
+                    break;
+                case M_SOS:
+                    if (mComponents == null) throw new IOException("SOS before SOF");
+                    readScan();
+                    break;
+                case M_EOI:
+                    if (mComponents == null) throw new IOException("no frame");
+                    return output();
+                default:
+                    // Other SOFn (and DAC) are arithmetic, lossless or
+                    // hierarchical.
+                    if (marker >= 0xC3 && marker <= 0xCF && marker != 0xC8) {
+                        return null;
+                    }
+                    if (marker >= M_RST0 && marker <= M_RST7) break;
+                    skip(readUnsignedShort() - 2);
+                    break;
+            }
+        }
+    }
+
+    private boolean readFrame(int minSide) throws IOException {
+        int length = readUnsignedShort();
+        int precision = readByte();
+        mHeight = readUnsignedShort();
+        mWidth = readUnsignedShort();
+        int count = readByte();
+        if (precision != 8 || mWidth == 0 || mHeight == 0
+                || (count != 1 && count != 3) || length != 8 + 3 * count) {
+            return false;
+        }
+
+        int shortSide = Math.min(mWidth, mHeight);
+        if (ceilDiv(shortSide, SCALE_EIGHTH) >= minSide) {
+            mScale = SCALE_EIGHTH;
+        } else if (ceilDiv(shortSide, SCALE_QUARTER) >= minSide) {
+            mScale = SCALE_QUARTER;
+        } else {
+            return false;
+        }
+
+        mComponents = new Component[count];
+        for (int i = 0; i < count; i++) {
+            Component c = new Component();
+            c.id = readByte();
+            int sampling = readByte();
+            c.h = sampling >> 4;
+            c.v = sampling & 15;
+            c.quantTable = readByte();
+            if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4 || c.quantTable > 3) {
+                return false;
+            }
+            mMaxH = Math.max(mMaxH, c.h);
+            mMaxV = Math.max(mMaxV, c.v);
+            mComponents[i] = c;
+        }
+
+        mMcusPerLine = ceilDiv(mWidth, 8 * mMaxH);
+        mMcusPerColumn = ceilDiv(mHeight, 8 * mMaxV);
+        int slots = mScale == SCALE_EIGHTH ? 1 : QUARTER_SLOTS;
+        for (Component c : mComponents) {
+            c.blocksPerLine = mMcusPerLine * c.h;
+            c.blocksPerColumn = mMcusPerColumn * c.v;
+            c.usedBlocksPerLine = ceilDiv(ceilDiv(mWidth * c.h, mMaxH), 8);
+            c.usedBlocksPerColumn = ceilDiv(ceilDiv(mHeight * c.v, mMaxV), 8);
+            int blocks = c.blocksPerLine * c.blocksPerColumn;
+            c.coefs = new short[blocks * slots];
+            if (mProgressive && mScale == SCALE_QUARTER) c.nonZero = new long[blocks];
+        }
+        return true;
+    }
+
+    private void readHuffmanTables() throws IOException {
+        int length = readUnsignedShort() - 2;
+        while (length > 0) {
+            int info = readByte();
+            int[] counts = new int[17];
+            int total = 0;
+            for (int i = 1; i <= 16; i++) {
+                counts[i] = readByte();
+                total += counts[i];
+            }
+            if (total > 256) throw new IOException("bad huffman table");
+            int[] values = new int[total];
+            for (int i = 0; i < total; i++) values[i] = readByte();
+            Huffman table = new Huffman(counts, values);
+            if ((info >> 4) == 0) {
+                mDcTables[info & 3] = table;
+            } else {
+                mAcTables[info & 3] = table;
+            }
+            length -= 17 + total;
+        }
+    }
+
+    private void readQuantTables() throws IOException {
+        int length = readUnsignedShort() - 2;
+        while (length > 0) {
+            int info = readByte();
+            boolean wide = (info >> 4) != 0;
+            int[] table = new int[64];
+            for (int i = 0; i < 64; i++) {
+                table[i] = wide ? readUnsignedShort() : readByte();
+            }
+            mQuant[info & 3] = table;
+            length -= 1 + (wide ? 128 : 64);
+        }
+    }
+
+    private void readAdobe() throws IOException {
+        int length = readUnsignedShort() - 2;
+        if (length >= 12) {
+            byte[] data = new byte[12];
+            for (int i = 0; i < 12; i++) data[i] = (byte) readByte();
+            if (data[0] == 'A' && data[1] == 'd' && data[2] == 'o'
+                    && data[3] == 'b' && data[4] == 'e') {
+                mAdobeTransform = data[11] & 0xFF;
+            }
+            length -= 12;
+        }
+        skip(length);
+    }
+
+    private void readScan() throws IOException {
+        readUnsignedShort();
+        int count = readByte();
+        if (count < 1 || count > 4) throw new IOException("bad scan");
+        Component[] components = new Component[count];
+        for (int i = 0; i < count; i++) {
+            int id = readByte();
+            int tables = readByte();
+            Component c = findComponent(id);
+            c.dcTable = mDcTables[tables >> 4];
+            c.acTable = mAcTables[tables & 3];
+            components[i] = c;
+        }
+        int ss = readByte();
+        int se = readByte();
+        int approx = readByte();
+        int ah = approx >> 4;
+        int al = approx & 15;
+        if (ss > 63 || se > 63 || ss > se && mProgressive) {
+            throw new IOException("bad spectral selection");
+        }
+
+        // AC scans of a progressive image do not matter at 1/8.
+        if (mProgressive && ss > 0 && mScale == SCALE_EIGHTH) {
+            skipEntropyData();
+            return;
+        }
+
+        mBits = 0;
+        mBitCount = 0;
+        mMarker = 0;
+        mEobRun = 0;
+        for (Component c : components) c.pred = 0;
+
+        int mode;
+        if (!mProgressive) {
+            mode = MODE_SEQUENTIAL;
+        } else if (ss == 0) {
+            mode = ah == 0 ? MODE_DC_FIRST : MODE_DC_REFINE;
+        } else {
+            mode = ah == 0 ? MODE_AC_FIRST : MODE_AC_REFINE;
+        }
+        checkTables(components, mode);
+
+        int restartsLeft = mRestartInterval;
+        if (count == 1) {
+            Component c = components[0];
+            for (int row = 0; row < c.usedBlocksPerColumn; row++) {
+                if (mCancelled) return;
+                for (int col = 0; col < c.usedBlocksPerLine; col++) {
+                    if (mRestartInterval > 0) {
+                        if (restartsLeft == 0) {
+                            processRestart(components);
+                            restartsLeft = mRestartInterval;
+                        }
+                        restartsLeft--;
+                    }
+                    decodeBlock(c, row * c.blocksPerLine + col, mode, ss, se, al);
+                }
+            }
+        } else {
+            for (int mcuRow = 0; mcuRow < mMcusPerColumn; mcuRow++) {
+                if (mCancelled) return;
+                for (int mcuCol = 0; mcuCol < mMcusPerLine; mcuCol++) {
+                    if (mRestartInterval > 0) {
+                        if (restartsLeft == 0) {
+                            processRestart(components);
+                            restartsLeft = mRestartInterval;
+                        }
+                        restartsLeft--;
+                    }
+                    for (Component c : components) {
+                        for (int v = 0; v < c.v; v++) {
+                            int base = (mcuRow * c.v + v) * c.blocksPerLine + mcuCol * c.h;
+                            for (int h = 0; h < c.h; h++) {
+                                decodeBlock(c, base + h, mode, ss, se, al);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static final int MODE_SEQUENTIAL = 0;
+    private static final int MODE_DC_FIRST = 1;
+    private static final int MODE_DC_REFINE = 2;
+    private static final int MODE_AC_FIRST = 3;
+    private static final int MODE_AC_REFINE = 4;
+
+    private static void checkTables(Component[] components, int mode)
+            throws IOException {
+        boolean needDc = mode == MODE_SEQUENTIAL || mode == MODE_DC_FIRST;
+        boolean needAc = mode == MODE_SEQUENTIAL || mode >= MODE_AC_FIRST;
+        for (Component c : components) {
+            if ((needDc && c.dcTable == null) || (needAc && c.acTable == null)) {
+                throw new IOException("missing huffman table");
+            }
+        }
+    }
+
+    private Component findComponent(int id) throws IOException {
+        for (Component c : mComponents) {
+            if (c.id == id) return c;
+        }
+        throw new IOException("unknown component " + id);
+    }
+
+    private void decodeBlock(Component c, int block, int mode,
+            int ss, int se, int al) throws IOException {
+        switch (mode) {
+            case MODE_SEQUENTIAL:
+                decodeSequential(c, block);
+                break;
+            case MODE_DC_FIRST: {
+                int t = decodeHuffman(c.dcTable);
+                int diff = t == 0 ? 0 : extend(readBits(t), t);
+                c.pred += diff;
+                c.coefs[block * slots()] = (short) (c.pred << al);
+                break;
+            }
+            case MODE_DC_REFINE:
+                if (readBit() != 0) c.coefs[block * slots()] |= 1 << al;
+                break;
+            case MODE_AC_FIRST:
+                decodeAcFirst(c, block, ss, se, al);
+                break;
+            case MODE_AC_REFINE:
+                decodeAcRefine(c, block, ss, se, al);
+                break;
+        }
+    }
+
+    private int slots() {
+        return mScale == SCALE_EIGHTH ? 1 : QUARTER_SLOTS;
+    }
+
+    private void decodeSequential(Component c, int block) throws IOException {
+        int t = decodeHuffman(c.dcTable);
+        int diff = t == 0 ? 0 : extend(readBits(t), t);
+        c.pred += diff;
+        boolean quarter = mScale == SCALE_QUARTER;
+        int offset = block * (quarter ? QUARTER_SLOTS : 1);
+        c.coefs[offset] = (short) c.pred;
+
+        Huffman ac = c.acTable;
+        int k = 1;
+        while (k < 64) {
+            int rs = decodeHuffman(ac);
+            int r = rs >> 4;
+            int s = rs & 15;
+            if (s == 0) {
+                if (r != 15) break;
+                k += 16;
+                continue;
+            }
+            k += r;
+            if (k > 63) throw new IOException("bad AC run");
+            int bits = readBits(s);
+            if (quarter) {
+                int slot = SLOT_OF_ZIGZAG[k];
+                if (slot > 0) c.coefs[offset + slot] = (short) extend(bits, s);
+            }
+            k++;
+        }
+    }
+
+    private void decodeAcFirst(Component c, int block, int ss, int se, int al)
+            throws IOException {
+        if (mEobRun > 0) {
+            mEobRun--;
+            return;
+        }
+        int offset = block * QUARTER_SLOTS;
+        Huffman ac = c.acTable;
+        int k = ss;
+        while (k <= se) {
+            int rs = decodeHuffman(ac);
+            int r = rs >> 4;
+            int s = rs & 15;
+            if (s == 0) {
+                if (r < 15) {
+                    mEobRun = (1 << r) - 1;
+                    if (r > 0) mEobRun += readBits(r);
+                    break;
+                }
+                k += 16;
+                continue;
+            }
+            k += r;
+            if (k > 63) throw new IOException("bad AC run");
+            int value = extend(readBits(s), s) << al;
+            int slot = SLOT_OF_ZIGZAG[k];
+            if (slot > 0) c.coefs[offset + slot] = (short) value;
+            c.nonZero[block] |= 1L << k;
+            k++;
+        }
+    }
+
+    private void decodeAcRefine(Component c, int block, int ss, int se, int al)
+            throws IOException {
+        int offset = block * QUARTER_SLOTS;
+        int p1 = 1 << al;
+        int m1 = -1 << al;
+        long nonZero = c.nonZero[block];
+        int k = ss;
+        if (mEobRun <= 0) {
+            Huffman ac = c.acTable;
+            while (k <= se) {
+                int rs = decodeHuffman(ac);
+                int r = rs >> 4;
+                int s = rs & 15;
+                int value = 0;
+                if (s != 0) {
+                    if (s != 1) throw new IOException("bad AC refinement");
+                    value = readBit() != 0 ? p1 : m1;
+                } else if (r != 15) {
+                    mEobRun = 1 << r;
+                    if (r > 0) mEobRun += readBits(r);
+                    break;
+                }
+                // Skip r zero coefficients, refining the non-zero ones on
+                // the way.
+                while (k <= se) {
+                    if ((nonZero & (1L << k)) != 0) {
+                        if (readBit() != 0) refine(c, offset, k, p1, m1);
+                    } else {
+                        if (r == 0) break;
+                        r--;
+                    }
+                    k++;
+                }
+                if (value != 0 && k <= se) {
+                    int slot = SLOT_OF_ZIGZAG[k];
+                    if (slot > 0) c.coefs[offset + slot] = (short) value;
+                    nonZero |= 1L << k;
+                }
+                k++;
+            }
+        }
+        if (mEobRun > 0) {
+            for (; k <= se; k++) {
+                if ((nonZero & (1L << k)) != 0 && readBit() != 0) {
+                    refine(c, offset, k, p1, m1);
+                }
+            }
+            mEobRun--;
+        }
+        c.nonZero[block] = nonZero;
+    }
+
+    private static void refine(Component c, int offset, int k, int p1, int m1) {
+        int slot = SLOT_OF_ZIGZAG[k];
+        if (slot <= 0) return;
+        int value = c.coefs[offset + slot];
+        if ((value & p1) == 0) {
+            c.coefs[offset + slot] = (short) (value + (value >= 0 ? p1 : m1));
+        }
+    }
+
+    private void processRestart(Component[] components) throws IOException {
+        mBits = 0;
+        mBitCount = 0;
+        int marker = mMarker;
+        mMarker = 0;
+        if (marker == 0) marker = nextMarker();
+        if (marker < M_RST0 || marker > M_RST7) {
+            throw new IOException("missing restart marker");
+        }
+        mEobRun = 0;
+        for (Component c : components) c.pred = 0;
+    }
+
+    private Image output() {
+        boolean quarter = mScale == SCALE_QUARTER;
+        int perBlock = quarter ? 2 : 1;
+        int outWidth = ceilDiv(mWidth, mScale);
+        int outHeight = ceilDiv(mHeight, mScale);
+
+        int count = mComponents.length;
+        int[][] planes = new int[count][];
+        int[] planeWidths = new int[count];
+        for (int i = 0; i < count; i++) {
+            Component c = mComponents[i];
+            int[] q = mQuant[c.quantTable];
+            int q0 = q == null ? 1 : q[0];
+            int q1 = q == null ? 1 : q[1];
+            int q2 = q == null ? 1 : q[2];
+            int q4 = q == null ? 1 : q[4];
+            int width = c.blocksPerLine * perBlock;
+            int[] plane = new int[width * c.blocksPerColumn * perBlock];
+            for (int by = 0; by < c.blocksPerColumn; by++) {
+                for (int bx = 0; bx < c.blocksPerLine; bx++) {
+                    int block = by * c.blocksPerLine + bx;
+                    if (!quarter) {
+                        plane[by * width + bx] = clamp(c.coefs[block] * q0 / 8 + 128);
+                        continue;
+                    }
+                    int offset = block * QUARTER_SLOTS;
+                    float dc = c.coefs[offset] * q0 / 8f + 128;
+                    float u = c.coefs[offset + 1] * q1 * C1;  // horizontal
+                    float v = c.coefs[offset + 2] * q2 * C1;  // vertical
+                    float uv = c.coefs[offset + 3] * q4 * C2;
+                    int p = (by * 2) * width + bx * 2;
+                    plane[p] = clamp(Math.round(dc + u + v + uv));
+                    plane[p + 1] = clamp(Math.round(dc - u + v - uv));
+                    plane[p + width] = clamp(Math.round(dc + u - v - uv));
+                    plane[p + width + 1] = clamp(Math.round(dc - u - v + uv));
+                }
+            }
+            planes[i] = plane;
+            planeWidths[i] = width;
+        }
+
+        int[] pixels = new int[outWidth * outHeight];
+        if (count == 1) {
+            int[] plane = planes[0];
+            int width = planeWidths[0];
+            for (int y = 0; y < outHeight; y++) {
+                for (int x = 0; x < outWidth; x++) {
+                    int g = plane[y * width + x];
+                    pixels[y * outWidth + x] = 0xFF000000 | (g << 16) | (g << 8) | g;
+                }
+            }
+            return new Image(outWidth, outHeight, pixels);
+        }
+
+        // Adobe transform 0 means the components are RGB, not YCbCr.
+        boolean rgb = mAdobeTransform == 0;
+        Component c0 = mComponents[0];
+        Component c1 = mComponents[1];
+        Component c2 = mComponents[2];
+        for (int y = 0; y < outHeight; y++) {
+            int row0 = (y * c0.v / mMaxV) * planeWidths[0];
+            int row1 = (y * c1.v / mMaxV) * planeWidths[1];
+            int row2 = (y * c2.v / mMaxV) * planeWidths[2];
+            for (int x = 0; x < outWidth; x++) {
+                int a = planes[0][row0 + x * c0.h / mMaxH];
+                int b = planes[1][row1 + x * c1.h / mMaxH];
+                int c = planes[2][row2 + x * c2.h / mMaxH];
+                int r, g, bl;
+                if (rgb) {
+                    r = a;
+                    g = b;
+                    bl = c;
+                } else {
+                    // JFIF YCbCr to RGB in 16.16 fixed point.
+                    int cb = b - 128;
+                    int cr = c - 128;
+                    r = clamp(a + ((91881 * cr + 32768) >> 16));
+                    g = clamp(a - ((22554 * cb + 46802 * cr - 32768) >> 16));
+                    bl = clamp(a + ((116130 * cb + 32768) >> 16));
+                }
+                pixels[y * outWidth + x] = 0xFF000000 | (r << 16) | (g << 8) | bl;
+            }
+        }
+        return new Image(outWidth, outHeight, pixels);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    private static int extend(int value, int bits) {
+        return value < (1 << (bits - 1)) ? value + (-1 << bits) + 1 : value;
+    }
+
+    // ---- Entropy-coded data ----
+
+    private void fillBits() throws IOException {
+        while (mBitCount <= 56) {
+            int b = 0;
+            if (mMarker == 0) {
+                b = readByteOrEof();
+                if (b < 0) {
+                    mMarker = M_EOI;
+                    b = 0;
+                } else if (b == 0xFF) {
+                    int next = readByteOrEof();
+                    while (next == 0xFF) next = readByteOrEof();
+                    if (next != 0) {
+                        // A marker ends the data; feed zeros from here on.
+                        mMarker = next < 0 ? M_EOI : next;
+                        b = 0;
+                    }
+                }
+            }
+            mBits = (mBits << 8) | b;
+            mBitCount += 8;
+        }
+    }
+
+    private int readBits(int n) throws IOException {
+        if (mBitCount < n) fillBits();
+        mBitCount -= n;
+        return (int) (mBits >>> mBitCount) & ((1 << n) - 1);
+    }
+
+    private int readBit() throws IOException {
+        return readBits(1);
+    }
+
+    private int decodeHuffman(Huffman table) throws IOException {
+        if (mBitCount < 16) fillBits();
+        int peek = (int) (mBits >>> (mBitCount - LOOKUP_BITS)) & ((1 << LOOKUP_BITS) - 1);
+        int entry = table.lookup[peek];
+        if (entry != 0) {
+            mBitCount -= entry >> 8;
+            return entry & 0xFF;
+        }
+        for (int len = LOOKUP_BITS + 1; len <= 16; len++) {
+            int code = (int) (mBits >>> (mBitCount - len)) & ((1 << len) - 1);
+            if (code <= table.maxCode[len]) {
+                mBitCount -= len;
+                return table.values[table.valPtr[len] + code - table.minCode[len]];
+            }
+        }
+        throw new IOException("bad huffman code");
+    }
+
+    private void skipEntropyData() throws IOException {
+        while (true) {
+            int b = readByte();
+            if (b != 0xFF) continue;
+            int next = readByte();
+            while (next == 0xFF) next = readByte();
+            if (next != 0 && (next < M_RST0 || next > M_RST7)) {
+                mMarker = next;
+                return;
+            }
+        }
+    }
+
+    // ---- Marker segments ----
+
+    private int nextMarker() throws IOException {
+        if (mMarker != 0) {
+            int marker = mMarker;
+            mMarker = 0;
+            return marker;
+        }
+        while (true) {
+            int b = readByte();
+            if (b != 0xFF) continue;
+            int next = readByte();
+            while (next == 0xFF) next = readByte();
+            if (next != 0) return next;
+        }
+    }
+
+    private int readByteOrEof() throws IOException {
+        if (mPos == mLimit) {
+            mLimit = mIn.read(mBuffer, 0, BUFFER_SIZE);
+            mPos = 0;
+            if (mLimit <= 0) {
+                mLimit = 0;
+                return -1;
+            }
+        }
+        return mBuffer[mPos++] & 0xFF;
+    }
+
+    private int readByte() throws IOException {
+        int b = readByteOrEof();
+        if (b < 0) throw new EOFException();
+        return b;
+    }
+
+    private int readUnsignedShort() throws IOException {
+        return (readByte() << 8) | readByte();
+    }
+
+    private void skip(int n) throws IOException {
+        if (n < 0) throw new IOException("bad segment length");
+        while (n > 0) {
+            int available = mLimit - mPos;
+            if (available == 0) {
+                readByte();
+                n--;
+                continue;
+            }
+            int step = Math.min(n, available);
+            mPos += step;
+            n -= step;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.common;
+
+/**
+ * Lossless image codec in the QOI format ("Quite OK Image", qoiformat.org).
+ *
+ * Pixels are coded as runs, references into a 64-entry table of recently
+ * seen colors, or small deltas from the previous pixel, so encoding and
+ * decoding are a single pass with no transform. It is used for cache
+ * entries that are decoded far more often than they are written.
+ *
+ * Pixels are non-premultiplied ARGB ints, as returned by
+ * Bitmap.getPixels(). This class has no Android dependencies.
+ */
+public class QoiCodec {
+    private static final int MAGIC = 0x716f6966; // "qoif"
+    public static final int HEADER_SIZE = 14;
+    private static final int END_MARKER_SIZE = 8;
+
+    private static final int OP_INDEX = 0x00;
+    private static final int OP_DIFF = 0x40;
+    private static final int OP_LUMA = 0x80;
+    private static final int OP_RUN = 0xc0;
+    private static final int OP_RGB = 0xfe;
+    private static final int OP_RGBA = 0xff;
+    private static final int OP_MASK = 0xc0;
+    private static final int MAX_RUN = 62;
+
+    // Refuse to decode anything bigger than this many pixels.
+    private static final int MAX_PIXELS = 16 * 1024 * 1024;
+
+    private static int hash(int argb) {
+        int a = argb >>> 24;
+        int r = (argb >> 16) & 0xff;
+        int g = (argb >> 8) & 0xff;
+        int b = argb & 0xff;
+        return (r * 3 + g * 5 + b * 7 + a * 11) & 63;
+    }
+
+    public static boolean isQoi(byte[] data, int offset, int length) {
+        return length >= HEADER_SIZE + END_MARKER_SIZE && readInt(data, offset) == MAGIC;
+    }
+
+    // Only valid if isQoi() returned true.
+    public static int getWidth(byte[] data, int offset) {
+        return readInt(data, offset + 4);
+    }
+
+    public static int getHeight(byte[] data, int offset) {
+        return readInt(data, offset + 8);
+    }
+
+    /**
+     * Returns width * height, or -1 if the data is not QOI or its size is
+     * empty or larger than the decoder accepts. Check this before
+     * allocating anything for the pixels.
+     */
+    public static int getPixelCount(byte[] data, int offset, int length) {
+        if (!isQoi(data, offset, length)) return -1;
+        int width = getWidth(data, offset);
+        int height = getHeight(data, offset);
+        if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS) return -1;
+        return width * height;
+    }
+
+    public static byte[] encode(int[] pixels, int width, int height) {
+        int count = width * height;
+        boolean opaque = true;
+        for (int i = 0; i < count && opaque; i++) opaque = (pixels[i] >>> 24) == 0xff;
+
+        // Worst case is one OP_RGBA (5 bytes) per pixel.
+        byte[] out = new byte[HEADER_SIZE + count * (opaque ? 4 : 5) + END_MARKER_SIZE];
+        writeInt(out, 0, MAGIC);
+        writeInt(out, 4, width);
+        writeInt(out, 8, height);
+        out[12] = (byte) (opaque ? 3 : 4);
+        out[13] = 0; // sRGB with linear alpha
+
+        int[] index = new int[64];
+        int p = HEADER_SIZE;
+        int prev = 0xff000000;
+        int run = 0;
+        for (int i = 0; i < count; i++) {
+            int px = pixels[i];
+            if (px == prev) {
+                if (++run == MAX_RUN) {
+                    out[p++] = (byte) (OP_RUN | (run - 1));
+                    run = 0;
+                }
+                continue;
+            }
+            if (run > 0) {
+                out[p++] = (byte) (OP_RUN | (run - 1));
+                run = 0;
+            }
+            int h = hash(px);
+            if (index[h] == px) {
+                out[p++] = (byte) (OP_INDEX | h);
+            } else {
+                index[h] = px;
+                if ((px >>> 24) == (prev >>> 24)) {
+                    int dr = (byte) ((px >> 16) - (prev >> 16));
+                    int dg = (byte) ((px >> 8) - (prev >> 8));
+                    int db = (byte) (px - prev);
+                    int drg = dr - dg;
+                    int dbg = db - dg;
+                    if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+                        out[p++] = (byte) (OP_DIFF | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2));
+                    } else if (dg >= -32 && dg <= 31 && drg >= -8 && drg <= 7
+                            && dbg >= -8 && dbg <= 7) {
+                        out[p++] = (byte) (OP_LUMA | (dg + 32));
+                        out[p++] = (byte) ((drg + 8) << 4 | (dbg + 8));
+                    } else {
+                        out[p++] = (byte) OP_RGB;
+                        out[p++] = (byte) (px >> 16);
+                        out[p++] = (byte) (px >> 8);
+                        out[p++] = (byte) px;
+                    }
+                } else {
+                    out[p++] = (byte) OP_RGBA;
+                    out[p++] = (byte) (px >> 16);
+                    out[p++] = (byte) (px >> 8);
+                    out[p++] = (byte) px;
+                    out[p++] = (byte) (px >>> 24);
+                }
+            }
+            prev = px;
+        }
+        if (run > 0) out[p++] = (byte) (OP_RUN | (run - 1));
+        for (int i = 0; i < END_MARKER_SIZE - 1; i++) out[p++] = 0;
+        out[p++] = 1;
+
+        byte[] result = new byte[p];
+        System.arraycopy(out, 0, result, 0, p);
+        return result;
+    }
+
+    /**
+     * Decodes into pixels, which must hold at least width * height ints.
+     * Returns false if the data is not valid QOI.
+     */
+    public static boolean decode(byte[] data, int offset, int length, int[] pixels) {
+        Decoder decoder = Decoder.create(data, offset, length);
+        return decoder != null && pixels.length >= decoder.getPixelCount()
+                && decoder.decode(pixels, decoder.getPixelCount());
+    }
+
+    /**
+     * Decodes an image a part at a time, e.g. a strip of rows, so that the
+     * caller needs only a buffer for that part.
+     */
+    public static class Decoder {
+        private final byte[] mData;
+        private final int mEnd;
+        private final int mWidth;
+        private final int mHeight;
+        private final int[] mIndex = new int[64];
+        private int mPosition;
+        private int mRemaining;
+        private int mPixel = 0xff000000;
+        // Pixels of the current run not handed out yet.
+        private int mRun;
+
+        private Decoder(byte[] data, int offset, int length, int pixelCount) {
+            mData = data;
+            mEnd = offset + length - END_MARKER_SIZE;
+            mWidth = QoiCodec.getWidth(data, offset);
+            mHeight = QoiCodec.getHeight(data, offset);
+            mPosition = offset + HEADER_SIZE;
+            mRemaining = pixelCount;
+        }
+
+        /**
+         * Returns null under the same conditions as getPixelCount().
+         */
+        public static Decoder create(byte[] data, int offset, int length) {
+            int count = QoiCodec.getPixelCount(data, offset, length);
+            return count < 0 ? null : new Decoder(data, offset, length, count);
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public int getPixelCount() {
+            return mWidth * mHeight;
+        }
+
+        /**
+         * Decodes the next count pixels into pixels[0, count). Returns false
+         * if the data is not valid QOI or ends before them.
+         */
+        public boolean decode(int[] pixels, int count) {
+            if (count > mRemaining || count > pixels.length) return false;
+            mRemaining -= count;
+            byte[] data = mData;
+            int[] index = mIndex;
+            int p = mPosition;
+            int end = mEnd;
+            int px = mPixel;
+            int i = Math.min(mRun, count);
+            for (int j = 0; j < i; j++) pixels[j] = px;
+            mRun -= i;
+            while (i < count) {
+                if (p >= end) return false;
+                int b1 = data[p++] & 0xff;
+                if (b1 == OP_RGB) {
+                    if (p + 3 > end) return false;
+                    px = (px & 0xff000000) | (data[p] & 0xff) << 16
+                            | (data[p + 1] & 0xff) << 8 | (data[p + 2] & 0xff);
+                    p += 3;
+                } else if (b1 == OP_RGBA) {
+                    if (p + 4 > end) return false;
+                    px = (data[p + 3] & 0xff) << 24 | (data[p] & 0xff) << 16
+                            | (data[p + 1] & 0xff) << 8 | (data[p + 2] & 0xff);
+                    p += 4;
+                } else {
+                    switch (b1 & OP_MASK) {
+                        case OP_INDEX:
+                            px = index[b1];
+                            pixels[i++] = px;
+                            // No need to re-insert an indexed color.
+                            continue;
+                        case OP_DIFF: {
+                            int r = ((px >> 16) + ((b1 >> 4) & 3) - 2) & 0xff;
+                            int g = ((px >> 8) + ((b1 >> 2) & 3) - 2) & 0xff;
+                            int b = (px + (b1 & 3) - 2) & 0xff;
+                            px = (px & 0xff000000) | r << 16 | g << 8 | b;
+                            break;
+                        }
+                        case OP_LUMA: {
+                            if (p >= end) return false;
+                            int b2 = data[p++] & 0xff;
+                            int dg = (b1 & 0x3f) - 32;
+                            int r = ((px >> 16) + dg - 8 + ((b2 >> 4) & 0x0f)) & 0xff;
+                            int g = ((px >> 8) + dg) & 0xff;
+                            int b = (px + dg - 8 + (b2 & 0x0f)) & 0xff;
+                            px = (px & 0xff000000) | r << 16 | g << 8 | b;
+                            break;
+                        }
+                        case OP_RUN: {
+                            int run = (b1 & 0x3f) + 1;
+                            int n = Math.min(run, count - i);
+                            for (int j = 0; j < n; j++) pixels[i++] = px;
+                            // The rest of the run starts the next part.
+                            mRun = Math.min(run - n, mRemaining);
+                            continue;
+                        }
+                    }
+                }
+                index[hash(px)] = px;
+                pixels[i++] = px;
+            }
+            mPosition = p;
+            mPixel = px;
+            return true;
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
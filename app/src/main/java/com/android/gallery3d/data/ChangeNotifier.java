@@ -40,6 +40,11 @@ public class ChangeNotifier {
         }
     }
 
+    // For watchers that are not a media set; only the dirty flag is kept.
+    public ChangeNotifier(Uri[] uris, GalleryApp application) {
+        this(null, uris, application);
+    }
+
     // Returns the dirty flag and clear it.
     public boolean isDirty() {
         return mContentDirty.compareAndSet(true, false);
@@ -50,7 +55,7 @@ public class ChangeNotifier {
     }
 
     protected void onChange(boolean selfChange) {
-        if (mContentDirty.compareAndSet(false, true)) {
+        if (mContentDirty.compareAndSet(false, true) && mMediaSet != null) {
             mMediaSet.notifyContentChanged();
         }
     }
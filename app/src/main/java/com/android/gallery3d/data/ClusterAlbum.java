@@ -16,6 +16,8 @@
 
 package com.android.gallery3d.data;
 
+import com.android.gallery3d.util.IntArray;
+
 import java.util.ArrayList;
 
 public class ClusterAlbum extends MediaSet implements ContentListener {
@@ -100,6 +102,21 @@ public class ClusterAlbum extends MediaSet implements ContentListener {
         return mPaths.size();
     }
 
+    @Override
+    public long[] getItemSignatures() {
+        return getItemSignatures(mDataManager.getLibraryIndex());
+    }
+
+    @Override
+    public boolean enumerateTotalIndexRows(LibraryIndex.Snapshot snapshot, IntArray rows) {
+        for (int i = 0, n = mPaths.size(); i < n; i++) {
+            int row = snapshot.findRow(mPaths.get(i));
+            if (row < 0) return false;
+            rows.add(row);
+        }
+        return true;
+    }
+
     @Override
     public int getTotalMediaItemCount() {
         return mPaths.size();
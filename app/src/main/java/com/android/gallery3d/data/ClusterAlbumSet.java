@@ -101,7 +101,7 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
                 break;
         }
 
-        clustering.run(mBaseSet);
+        clustering.run(ClusterFeatures.get(context, mBaseSet));
         int n = clustering.getNumberOfClusters();
         DataManager dataManager = mApplication.getDataManager();
         for (int i = 0; i < n; i++) {
@@ -131,13 +131,12 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
     }
 
     private void updateClustersContents() {
-        final HashSet<Path> existing = new HashSet<Path>();
-        mBaseSet.enumerateTotalMediaItems(new ItemConsumer() {
-            @Override
-            public void consume(int index, MediaItem item) {
-                existing.add(item.getPath());
-            }
-        });
+        ClusterFeatures features =
+                ClusterFeatures.get(mApplication.getAndroidContext(), mBaseSet);
+        HashSet<Path> existing = new HashSet<Path>(features.mCount * 2);
+        for (int i = 0; i < features.mCount; i++) {
+            existing.add(features.mPaths[i]);
+        }
 
         int n = mAlbums.size();
 
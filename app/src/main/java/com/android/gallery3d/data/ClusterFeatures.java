@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.gallery3d.data;
+
+import android.content.Context;
+
+import com.android.gallery3d.util.IntArray;
+
+import java.util.WeakHashMap;
+
+// The per-item features the clusterings work from, in the order of
+// baseSet.enumerateTotalMediaItems(). They are extracted for all cluster
+// kinds in a single pass and cached per base set and data version, so
+// switching between kinds only recomputes the clusters.
+public class ClusterFeatures {
+    @SuppressWarnings("unused")
+    private static final String TAG = "ClusterFeatures";
+
+    // One holder per base set; each holder is locked while its features are
+    // computed, so different base sets are computed concurrently.
+    private static final WeakHashMap<MediaSet, Holder> sHolders =
+            new WeakHashMap<MediaSet, Holder>();
+
+    private static class Holder {
+        ClusterFeatures mFeatures;
+    }
+
+    final long mDataVersion;
+    final int mCount;
+    final Path[] mPaths;
+    final long[] mDatesTaken;
+    final double[] mLatitudes;
+    final double[] mLongitudes;
+    final long[] mSizes;
+    final int[] mMediaTypes;
+    // Null if no item has tags (or faces).
+    final String[][] mTags;
+    final Face[][] mFaces;
+
+    private ClusterFeatures(long version, int count, boolean hasTags, boolean hasFaces) {
+        mDataVersion = version;
+        mCount = count;
+        mPaths = new Path[count];
+        mDatesTaken = new long[count];
+        mLatitudes = new double[count];
+        mLongitudes = new double[count];
+        mSizes = new long[count];
+        mMediaTypes = new int[count];
+        mTags = hasTags ? new String[count][] : null;
+        mFaces = hasFaces ? new Face[count][] : null;
+    }
+
+    // Returns the features of the current data version of baseSet, which
+    // must have been reloaded by the caller.
+    public static ClusterFeatures get(Context context, MediaSet baseSet) {
+        Holder holder;
+        synchronized (sHolders) {
+            holder = sHolders.get(baseSet);
+            if (holder == null) {
+                holder = new Holder();
+                sHolders.put(baseSet, holder);
+            }
+        }
+        synchronized (holder) {
+            long version = baseSet.getDataVersion();
+            ClusterFeatures features = holder.mFeatures;
+            if (features != null && features.mDataVersion == version
+                    && version != MediaObject.INVALID_DATA_VERSION) {
+                return features;
+            }
+            features = fromIndex(context, baseSet, version);
+            if (features == null) features = fromItems(baseSet, version);
+            holder.mFeatures = features;
+            return features;
+        }
+    }
+
+    // Items served by the library index are local media, which have neither
+    // tags nor faces.
+    private static ClusterFeatures fromIndex(
+            Context context, MediaSet baseSet, long version) {
+        LibraryIndex.Snapshot snapshot =
+                DataManager.from(context).getLibraryIndex().getSnapshot();
+        if (snapshot == null) return null;
+        IntArray rows = new IntArray();
+        if (!baseSet.enumerateTotalIndexRows(snapshot, rows)) return null;
+
+        int n = rows.size();
+        int[] rowArray = rows.getInternalArray();
+        ClusterFeatures f = new ClusterFeatures(version, n, false, false);
+        for (int i = 0; i < n; i++) {
+            int row = rowArray[i];
+            f.mPaths[i] = snapshot.getPath(row);
+            f.mDatesTaken[i] = snapshot.getDateTaken(row);
+            f.mLatitudes[i] = snapshot.getLatitude(row);
+            f.mLongitudes[i] = snapshot.getLongitude(row);
+            f.mSizes[i] = snapshot.getSize(row);
+            f.mMediaTypes[i] = snapshot.isVideo(row)
+                    ? MediaObject.MEDIA_TYPE_VIDEO : MediaObject.MEDIA_TYPE_IMAGE;
+        }
+        return f;
+    }
+
+    private static ClusterFeatures fromItems(MediaSet baseSet, long version) {
+        final int total = baseSet.getTotalMediaItemCount();
+        final MediaItem[] buf = new MediaItem[total];
+        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
+            @Override
+            public void consume(int index, MediaItem item) {
+                if (index < 0 || index >= total) return;
+                buf[index] = item;
+            }
+        });
+
+        int count = 0;
+        boolean hasTags = false;
+        boolean hasFaces = false;
+        for (int i = 0; i < total; i++) {
+            MediaItem item = buf[i];
+            if (item == null) continue;
+            count++;
+            hasTags |= item.getTags() != null;
+            hasFaces |= item.getFaces() != null;
+        }
+
+        ClusterFeatures f = new ClusterFeatures(version, count, hasTags, hasFaces);
+        double[] latLng = new double[2];
+        for (int i = 0, j = 0; i < total; i++) {
+            MediaItem item = buf[i];
+            if (item == null) continue;
+            f.mPaths[j] = item.getPath();
+            f.mDatesTaken[j] = item.getDateInMs();
+            item.getLatLong(latLng);
+            f.mLatitudes[j] = latLng[0];
+            f.mLongitudes[j] = latLng[1];
+            f.mSizes[j] = item.getSize();
+            f.mMediaTypes[j] = item.getMediaType();
+            if (hasTags) f.mTags[j] = item.getTags();
+            if (hasFaces) f.mFaces[j] = item.getFaces();
+            j++;
+        }
+        return f;
+    }
+}
@@ -19,7 +19,8 @@ package com.android.gallery3d.data;
 import java.util.ArrayList;
 
 public abstract class Clustering {
-    public abstract void run(MediaSet baseSet);
+    // The features are shared between clusterings and must not be modified.
+    public abstract void run(ClusterFeatures features);
     public abstract int getNumberOfClusters();
     public abstract ArrayList<Path> getCluster(int index);
     public abstract String getClusterName(int index);
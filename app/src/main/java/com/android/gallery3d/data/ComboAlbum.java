@@ -29,6 +29,11 @@ public class ComboAlbum extends MediaSet implements ContentListener {
     private final MediaSet[] mSets;
     private String mName;
 
+    // mOffsets[i] is the position of the first item of mSets[i], and
+    // mOffsets[mSets.length] the total count, for data version mOffsetsVersion.
+    private int[] mOffsets;
+    private long mOffsetsVersion = INVALID_DATA_VERSION;
+
     public ComboAlbum(Path path, MediaSet[] mediaSets, String name) {
         super(path, nextVersionNumber());
         mSets = mediaSets;
@@ -38,32 +43,76 @@ public class ComboAlbum extends MediaSet implements ContentListener {
         mName = name;
     }
 
+    private synchronized int[] getOffsets() {
+        if (mOffsetsVersion != mDataVersion || mOffsets == null) {
+            int[] offsets = new int[mSets.length + 1];
+            for (int i = 0; i < mSets.length; i++) {
+                offsets[i + 1] = offsets[i] + mSets[i].getMediaItemCount();
+            }
+            mOffsets = offsets;
+            mOffsetsVersion = mDataVersion;
+        }
+        return mOffsets;
+    }
+
     @Override
     public ArrayList<MediaItem> getMediaItem(int start, int count) {
         ArrayList<MediaItem> items = new ArrayList<MediaItem>();
-        for (MediaSet set : mSets) {
-            int size = set.getMediaItemCount();
-            if (count < 1) break;
-            if (start < size) {
-                int fetchCount = (start + count <= size) ? count : size - start;
-                ArrayList<MediaItem> fetchItems = set.getMediaItem(start, fetchCount);
-                items.addAll(fetchItems);
-                count -= fetchItems.size();
-                start = 0;
+        int[] offsets = getOffsets();
+        int n = mSets.length;
+        for (int i = findSet(offsets, start); i < n && count > 0; i++) {
+            int size = offsets[i + 1] - offsets[i];
+            int from = start - offsets[i];
+            if (from >= size) continue;
+            int fetchCount = Math.min(count, size - Math.max(from, 0));
+            ArrayList<MediaItem> fetchItems =
+                    mSets[i].getMediaItem(Math.max(from, 0), fetchCount);
+            items.addAll(fetchItems);
+            count -= fetchItems.size();
+            start += fetchItems.size();
+        }
+        return items;
+    }
+
+    // Returns the last set that starts at or before the position.
+    private int findSet(int[] offsets, int position) {
+        int lo = 0, hi = mSets.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsets[mid] <= position) {
+                lo = mid;
             } else {
-                start -= size;
+                hi = mid - 1;
             }
         }
-        return items;
+        return lo;
     }
 
+    // Asks each set in turn, starting with the one the hint falls in, so the
+    // sets can use their own item index instead of this set scanning pages.
     @Override
-    public int getMediaItemCount() {
-        int count = 0;
+    public int getIndexOfItem(Path path, int hint) {
+        int[] offsets = getOffsets();
+        int n = mSets.length;
+        int first = findSet(offsets, Math.max(hint, 0));
+        for (int k = 0; k < n; k++) {
+            int i = (first + k) % n;
+            int index = mSets[i].getIndexOfItem(path, hint - offsets[i]);
+            if (index != INDEX_NOT_FOUND) return offsets[i] + index;
+        }
+        return INDEX_NOT_FOUND;
+    }
+
+    @Override
+    public void prepareItemIndex() {
         for (MediaSet set : mSets) {
-            count += set.getMediaItemCount();
+            set.prepareItemIndex();
         }
-        return count;
+    }
+
+    @Override
+    public int getMediaItemCount() {
+        return getOffsets()[mSets.length];
     }
 
     @Override
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.gallery3d.data;
+
+import com.android.gallery3d.common.Fingerprint;
+import com.android.gallery3d.common.LruCache;
+import com.android.gallery3d.common.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+// A cheap 64-bit fingerprint of a file's content, used to share thumbnail
+// cache entries between paths that refer to identical files.
+//
+// Small files are hashed completely with Fingerprint (MD5). Larger files
+// are identified by their length and a CRC64 over a few sampled chunks,
+// which reads a constant amount of data whatever the file size.
+class ContentFingerprint {
+    private static final String TAG = "ContentFingerprint";
+
+    public static final long NONE = 0;
+
+    private static final long FULL_HASH_LIMIT = 1024 * 1024;
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    private static final int SAMPLE_COUNT = 4;
+
+    // (path, length, time modified) -> fingerprint
+    private static final LruCache<String, Long> sCache = new LruCache<String, Long>(1024);
+
+    // Returns NONE if the file cannot be read.
+    public static long get(String filePath) {
+        File file = new File(filePath);
+        long length = file.length();
+        if (length <= 0) return NONE;
+        String key = filePath + "+" + length + "+" + file.lastModified();
+        Long cached = sCache.get(key);
+        if (cached != null) return cached;
+
+        long fingerprint;
+        try {
+            fingerprint = length <= FULL_HASH_LIMIT
+                    ? hashFile(file) : hashSamples(file, length);
+        } catch (IOException e) {
+            Log.w(TAG, "cannot fingerprint " + filePath, e);
+            return NONE;
+        }
+        fingerprint ^= length * 0x9E3779B97F4A7C15L;
+        if (fingerprint == NONE) fingerprint = 1;
+        sCache.put(key, fingerprint);
+        return fingerprint;
+    }
+
+    private static long hashFile(File file) throws IOException {
+        byte[] digest = Fingerprint.fromInputStream(new FileInputStream(file), null).getBytes();
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (digest[i] & 0xff);
+        }
+        return result;
+    }
+
+    // Samples SAMPLE_COUNT chunks spread evenly from the start to the end
+    // of the file. The first and last chunks hold the headers and trailers
+    // that differ most between otherwise similar files.
+    private static long hashSamples(File file, long length) throws IOException {
+        byte[] samples = new byte[SAMPLE_SIZE * SAMPLE_COUNT];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long step = (length - SAMPLE_SIZE) / (SAMPLE_COUNT - 1);
+            for (int i = 0; i < SAMPLE_COUNT; i++) {
+                raf.seek(step * i);
+                raf.readFully(samples, i * SAMPLE_SIZE, SAMPLE_SIZE);
+            }
+        } finally {
+            Utils.closeSilently(raf);
+        }
+        return Utils.crc64Long(samples);
+    }
+}
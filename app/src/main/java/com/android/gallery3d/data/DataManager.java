@@ -28,6 +28,7 @@ import com.android.gallery3d.data.MediaObject.PanoramaSupportCallback;
 import com.android.gallery3d.data.MediaSet.ItemConsumer;
 import com.android.gallery3d.data.MediaSource.PathId;
 import com.android.gallery3d.picasasource.PicasaSource;
+import com.android.gallery3d.util.ThreadPool;
 
 import java.util.ArrayList;
 import java.util.Comparator;
@@ -109,6 +110,9 @@ public class DataManager implements StitchingChangeListener {
     private HashMap<String, MediaSource> mSourceMap =
             new LinkedHashMap<String, MediaSource>();
 
+    private LibraryIndex mLibraryIndex;
+    private MetadataHarvester mMetadataHarvester;
+
     public DataManager(GalleryApp application) {
         mApplication = application;
         mDefaultMainHandler = new Handler(application.getMainLooper());
@@ -131,6 +135,7 @@ public class DataManager implements StitchingChangeListener {
             for (MediaSource source : mSourceMap.values()) {
                 source.resume();
             }
+            getMetadataHarvester().start();
         }
     }
 
@@ -299,6 +304,28 @@ public class DataManager implements StitchingChangeListener {
         return sum;
     }
 
+    // The columnar index of all local media, created on first use.
+    public synchronized LibraryIndex getLibraryIndex() {
+        if (mLibraryIndex == null) {
+            mLibraryIndex = new LibraryIndex(mApplication);
+        }
+        return mLibraryIndex;
+    }
+
+    // For media sets that only hold the DataManager.
+    public ThreadPool getThreadPool() {
+        return mApplication.getThreadPool();
+    }
+
+    // Copies the metadata of local images into PhotoProvider while the
+    // gallery is in the foreground. Created on first use.
+    public synchronized MetadataHarvester getMetadataHarvester() {
+        if (mMetadataHarvester == null) {
+            mMetadataHarvester = new MetadataHarvester(mApplication);
+        }
+        return mMetadataHarvester;
+    }
+
     public void registerChangeNotifier(Uri uri, ChangeNotifier notifier) {
         NotifyBroker broker = null;
         synchronized (mNotifierMap) {
@@ -318,6 +345,7 @@ public class DataManager implements StitchingChangeListener {
             for (MediaSource source : mSourceMap.values()) {
                 source.resume();
             }
+            getMetadataHarvester().start();
         }
     }
 
@@ -326,15 +354,32 @@ public class DataManager implements StitchingChangeListener {
             for (MediaSource source : mSourceMap.values()) {
                 source.pause();
             }
+            getMetadataHarvester().stop();
         }
     }
 
+    // Coalesces the change notifications of a uri. A burst of changes (an
+    // import, a batch delete, the media scanner catching up) is delivered to
+    // the notifiers once, NOTIFY_COALESCE_DELAY ms after the first change,
+    // so the loaders reload once per burst instead of once per row.
     private static class NotifyBroker extends ContentObserver {
+        private static final long NOTIFY_COALESCE_DELAY = 150;
+
         private WeakHashMap<ChangeNotifier, Object> mNotifiers =
                 new WeakHashMap<ChangeNotifier, Object>();
+        private final Handler mHandler;
+        private boolean mPending;
+
+        private final Runnable mDispatch = new Runnable() {
+            @Override
+            public void run() {
+                dispatchChange();
+            }
+        };
 
         public NotifyBroker(Handler handler) {
             super(handler);
+            mHandler = handler;
         }
 
         public synchronized void registerNotifier(ChangeNotifier notifier) {
@@ -343,8 +388,15 @@ public class DataManager implements StitchingChangeListener {
 
         @Override
         public synchronized void onChange(boolean selfChange) {
+            if (mPending) return;
+            mPending = true;
+            mHandler.postDelayed(mDispatch, NOTIFY_COALESCE_DELAY);
+        }
+
+        private synchronized void dispatchChange() {
+            mPending = false;
             for(ChangeNotifier notifier : mNotifiers.keySet()) {
-                notifier.onChange(selfChange);
+                notifier.onChange(false);
             }
         }
     }
@@ -27,7 +27,10 @@ import android.os.Build;
 
 import com.android.gallery3d.common.ApiHelper;
 import com.android.gallery3d.common.BitmapUtils;
+import com.android.gallery3d.common.JpegDcDecoder;
+import com.android.gallery3d.common.QoiCodec;
 import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.exif.JpegScanner;
 import com.android.photos.data.GalleryBitmapPool;
 import com.android.gallery3d.ui.Log;
 import com.android.gallery3d.util.ThreadPool.CancelListener;
@@ -36,6 +39,7 @@ import com.android.gallery3d.util.ThreadPool.JobContext;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 
 public class DecodeUtils {
@@ -67,9 +71,18 @@ public class DecodeUtils {
                 BitmapFactory.decodeFileDescriptor(fd, null, options));
     }
 
+    // JPEG bounds are read from the frame header (from the start of the
+    // file); other formats go through BitmapFactory.
     public static void decodeBounds(JobContext jc, FileDescriptor fd,
             Options options) {
         Utils.assertTrue(options != null);
+        if (options.inSampleSize <= 1) {
+            try {
+                if (setJpegBounds(JpegScanner.scan(fd), options)) return;
+            } catch (IOException e) {
+                // Not seekable; let BitmapFactory read it.
+            }
+        }
         options.inJustDecodeBounds = true;
         jc.setCancelListener(new DecodeCanceller(options));
         BitmapFactory.decodeFileDescriptor(fd, null, options);
@@ -92,12 +105,26 @@ public class DecodeUtils {
     public static void decodeBounds(JobContext jc, byte[] bytes, int offset,
             int length, Options options) {
         Utils.assertTrue(options != null);
+        if (options.inSampleSize <= 1
+                && setJpegBounds(JpegScanner.scan(bytes, offset, length), options)) {
+            return;
+        }
         options.inJustDecodeBounds = true;
         jc.setCancelListener(new DecodeCanceller(options));
         BitmapFactory.decodeByteArray(bytes, offset, length, options);
         options.inJustDecodeBounds = false;
     }
 
+    // Sampled bounds depend on the decoder's rounding, so those are left
+    // to BitmapFactory.
+    private static boolean setJpegBounds(JpegScanner.Info info, Options options) {
+        if (info == null || info.width == 0 || info.height == 0) return false;
+        options.outWidth = info.width;
+        options.outHeight = info.height;
+        options.outMimeType = "image/jpeg";
+        return true;
+    }
+
     public static Bitmap decodeThumbnail(
             JobContext jc, String filePath, Options options, int targetSize, int type) {
         FileInputStream fis = null;
@@ -160,6 +187,38 @@ public class DecodeUtils {
         return ensureGLCompatibleBitmap(result);
     }
 
+    /**
+     * Decodes a micro thumbnail of a JPEG file from its DC (and lowest AC)
+     * coefficients, which is much cheaper than a full decode of a large
+     * photo. The shorter side of the result is at least targetSize.
+     *
+     * Returns null if the file is not a JPEG that JpegDcDecoder supports or
+     * is too small for it; callers should fall back to decodeThumbnail().
+     */
+    public static Bitmap decodeJpegMicroThumbnail(
+            JobContext jc, String filePath, int targetSize) {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(filePath);
+            final JpegDcDecoder decoder = JpegDcDecoder.create(fis);
+            jc.setCancelListener(new CancelListener() {
+                @Override
+                public void onCancel() {
+                    decoder.cancel();
+                }
+            });
+            JpegDcDecoder.Image image = decoder.decode(targetSize);
+            if (image == null || jc.isCancelled()) return null;
+            return Bitmap.createBitmap(
+                    image.pixels, image.width, image.height, Config.ARGB_8888);
+        } catch (Exception ex) {
+            Log.w(TAG, ex);
+            return null;
+        } finally {
+            Utils.closeSilently(fis);
+        }
+    }
+
     /**
      * Decodes the bitmap from the given byte array if the image size is larger than the given
      * requirement.
@@ -272,6 +331,54 @@ public class DecodeUtils {
         }
     }
 
+    // QOI cache data is copied into the bitmap in strips of about this many
+    // pixels, through a buffer kept per decoding thread.
+    private static final int QOI_STRIP_PIXELS = 16 * 1024;
+    private static final ThreadLocal<int[]> sQoiStrip = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[QOI_STRIP_PIXELS];
+        }
+    };
+
+    /**
+     * Decodes image data from ImageCacheService, which is JPEG or QOI (see
+     * ImageCacheService.encodeImage()). QOI is decoded straight into a
+     * bitmap from GalleryBitmapPool when one of the right size is free.
+     */
+    public static Bitmap decodeCacheData(JobContext jc, byte[] data, int offset,
+            int length, Options options) {
+        if (!QoiCodec.isQoi(data, offset, length)) {
+            return decodeUsingPool(jc, data, offset, length, options);
+        }
+        // This checks the size before anything is allocated for it.
+        QoiCodec.Decoder decoder = QoiCodec.Decoder.create(data, offset, length);
+        if (decoder == null) {
+            Log.w(TAG, "bad QOI header");
+            return null;
+        }
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        Bitmap bitmap = GalleryBitmapPool.getInstance().get(width, height);
+        if (bitmap == null || bitmap.getConfig() != Config.ARGB_8888) {
+            bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+        }
+
+        int[] strip = sQoiStrip.get();
+        if (strip.length < width) strip = new int[width];
+        int rows = strip.length / width;
+        for (int y = 0; y < height; y += rows) {
+            int n = Math.min(rows, height - y);
+            if (jc.isCancelled() || !decoder.decode(strip, n * width)) {
+                if (!jc.isCancelled()) Log.w(TAG, "bad QOI data " + width + "x" + height);
+                GalleryBitmapPool.getInstance().put(bitmap);
+                return null;
+            }
+            bitmap.setPixels(strip, 0, width, 0, y, width, n);
+        }
+        return bitmap;
+    }
+
     // This is the same as the method above except the source data comes
     // from a file descriptor instead of a byte array.
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
@@ -19,6 +19,7 @@ package com.android.gallery3d.data;
 import android.util.Log;
 
 import com.android.gallery3d.exif.ExifInterface;
+import com.android.gallery3d.exif.ExifProjection;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -26,6 +27,9 @@ import java.io.InputStream;
 public class Exif {
     private static final String TAG = "GalleryExif";
 
+    private static final ExifProjection ORIENTATION_TAG =
+            new ExifProjection(ExifInterface.TAG_ORIENTATION);
+
     /**
      * Returns the degrees in clockwise. Values are 0, 90, 180, or 270.
      */
@@ -82,7 +86,8 @@ public class Exif {
         if (jpegData == null)
             return 0;
 
-        ExifInterface exif = getExif(jpegData);
-        return getOrientation(exif);
+        ExifProjection.Result exif = ORIENTATION_TAG.newResult();
+        if (!ORIENTATION_TAG.read(jpegData, 0, jpegData.length, exif)) return 0;
+        return ExifInterface.getRotationForOrientationValue((short) exif.getInt(0, 0));
     }
 }
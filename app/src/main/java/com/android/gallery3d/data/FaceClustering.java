@@ -37,7 +37,7 @@ public class FaceClustering extends Clustering {
     private class FaceCluster {
         ArrayList<Path> mPaths = new ArrayList<Path>();
         String mName;
-        MediaItem mCoverItem;
+        Path mCoverPath;
         Rect mCoverRegion;
         int mCoverFaceIndex;
 
@@ -45,21 +45,19 @@ public class FaceClustering extends Clustering {
             mName = name;
         }
 
-        public void add(MediaItem item, int faceIndex) {
-            Path path = item.getPath();
+        public void add(Path path, Face[] faces, int faceIndex) {
             mPaths.add(path);
-            Face[] faces = item.getFaces();
             if (faces != null) {
                 Face face = faces[faceIndex];
-                if (mCoverItem == null) {
-                    mCoverItem = item;
+                if (mCoverPath == null) {
+                    mCoverPath = path;
                     mCoverRegion = face.getPosition();
                     mCoverFaceIndex = faceIndex;
                 } else {
                     Rect region = face.getPosition();
                     if (mCoverRegion.width() < region.width() &&
                             mCoverRegion.height() < region.height()) {
-                        mCoverItem = item;
+                        mCoverPath = path;
                         mCoverRegion = face.getPosition();
                         mCoverFaceIndex = faceIndex;
                     }
@@ -72,11 +70,13 @@ public class FaceClustering extends Clustering {
         }
 
         public MediaItem getCover() {
-            if (mCoverItem != null) {
-                if (PicasaSource.isPicasaImage(mCoverItem)) {
-                    return PicasaSource.getFaceItem(mContext, mCoverItem, mCoverFaceIndex);
+            if (mCoverPath != null) {
+                MediaItem coverItem = (MediaItem)
+                        DataManager.from(mContext).getMediaObject(mCoverPath);
+                if (coverItem != null && PicasaSource.isPicasaImage(coverItem)) {
+                    return PicasaSource.getFaceItem(mContext, coverItem, mCoverFaceIndex);
                 } else {
-                    return mCoverItem;
+                    return coverItem;
                 }
             }
             return null;
@@ -89,30 +89,27 @@ public class FaceClustering extends Clustering {
     }
 
     @Override
-    public void run(MediaSet baseSet) {
-        final TreeMap<Face, FaceCluster> map =
-                new TreeMap<Face, FaceCluster>();
-        final FaceCluster untagged = new FaceCluster(mUntaggedString);
-
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
-            @Override
-            public void consume(int index, MediaItem item) {
-                Face[] faces = item.getFaces();
-                if (faces == null || faces.length == 0) {
-                    untagged.add(item, -1);
-                    return;
-                }
-                for (int j = 0; j < faces.length; j++) {
-                    Face face = faces[j];
-                    FaceCluster cluster = map.get(face);
-                    if (cluster == null) {
-                        cluster = new FaceCluster(face.getName());
-                        map.put(face, cluster);
-                    }
-                    cluster.add(item, j);
+    public void run(ClusterFeatures features) {
+        TreeMap<Face, FaceCluster> map = new TreeMap<Face, FaceCluster>();
+        FaceCluster untagged = new FaceCluster(mUntaggedString);
+
+        for (int i = 0, n = features.mCount; i < n; i++) {
+            Path path = features.mPaths[i];
+            Face[] faces = features.mFaces == null ? null : features.mFaces[i];
+            if (faces == null || faces.length == 0) {
+                untagged.add(path, null, -1);
+                continue;
+            }
+            for (int j = 0; j < faces.length; j++) {
+                Face face = faces[j];
+                FaceCluster cluster = map.get(face);
+                if (cluster == null) {
+                    cluster = new FaceCluster(face.getName());
+                    map.put(face, cluster);
                 }
+                cluster.add(path, faces, j);
             }
-        });
+        }
 
         int m = map.size();
         mClusters = map.values().toArray(new FaceCluster[m + ((untagged.size() > 0) ? 1 : 0)]);
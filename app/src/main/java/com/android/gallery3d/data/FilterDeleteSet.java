@@ -17,6 +17,8 @@
 package com.android.gallery3d.data;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 // FilterDeleteSet filters a base MediaSet to remove some deletion items (we
 // expect the number to be small). The user can use the following methods to
@@ -64,6 +66,11 @@ public class FilterDeleteSet extends MediaSet implements ContentListener {
     // Deletions currently in effect, ordered by index
     private ArrayList<Deletion> mCurrent = new ArrayList<Deletion>();
 
+    // mShifts[i] = mCurrent.get(i).index - i, the new index of the first item
+    // after the i-th segment. It is non-decreasing, so the segment of a new
+    // index can be found by binary search.
+    private int[] mShifts = new int[0];
+
     public FilterDeleteSet(Path path, MediaSet baseSet) {
         super(path, INVALID_DATA_VERSION);
         mBaseSet = baseSet;
@@ -114,20 +121,11 @@ public class FilterDeleteSet extends MediaSet implements ContentListener {
         if (count <= 0) return new ArrayList<MediaItem>();
 
         int end = start + count - 1;
-        int n = mCurrent.size();
-        // Find the segment that "start" falls into. Count the number of items
-        // not yet deleted until it reaches "start".
-        int i = 0;
-        for (i = 0; i < n; i++) {
-            Deletion d = mCurrent.get(i);
-            if (d.index - i > start) break;
-        }
+        // Find the segment that "start" falls into: the number of deleted
+        // items before "start".
+        int i = findSegment(start, 0);
         // Find the segment that "end" falls into.
-        int j = i;
-        for (; j < n; j++) {
-            Deletion d = mCurrent.get(j);
-            if (d.index - j > end) break;
-        }
+        int j = findSegment(end, i);
 
         // Now get enough to cover deleted items in [start, end]
         ArrayList<MediaItem> base = mBaseSet.getMediaItem(start + i, count + (j - i));
@@ -141,6 +139,22 @@ public class FilterDeleteSet extends MediaSet implements ContentListener {
         return base;
     }
 
+    // Returns the first segment at or after "from" whose deleted item comes
+    // after the given new index.
+    private int findSegment(int index, int from) {
+        int[] shifts = mShifts;
+        int lo = from, hi = shifts.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (shifts[mid] > index) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
     // We apply the pending requests in the mRequests to construct mCurrent in reload().
     @Override
     public long reload() {
@@ -149,39 +163,35 @@ public class FilterDeleteSet extends MediaSet implements ContentListener {
             if (!newData && mRequests.isEmpty()) {
                 return mDataVersion;
             }
+            // Apply the requests to a path -> deletion map (in insertion
+            // order), so a batch of requests costs O(n) instead of O(n^2).
+            LinkedHashMap<Path, Deletion> current = new LinkedHashMap<Path, Deletion>();
+            for (Deletion d : mCurrent) {
+                current.put(d.path, d);
+            }
             for (int i = 0; i < mRequests.size(); i++) {
                 Request r = mRequests.get(i);
                 switch (r.type) {
                     case REQUEST_ADD: {
                         // Add the path into mCurrent if there is no duplicate.
-                        int n = mCurrent.size();
-                        int j;
-                        for (j = 0; j < n; j++) {
-                            if (mCurrent.get(j).path == r.path) break;
-                        }
-                        if (j == n) {
-                            mCurrent.add(new Deletion(r.path, r.indexHint));
+                        if (!current.containsKey(r.path)) {
+                            current.put(r.path, new Deletion(r.path, r.indexHint));
                         }
                         break;
                     }
                     case REQUEST_REMOVE: {
                         // Remove the path from mCurrent.
-                        int n = mCurrent.size();
-                        for (int j = 0; j < n; j++) {
-                            if (mCurrent.get(j).path == r.path) {
-                                mCurrent.remove(j);
-                                break;
-                            }
-                        }
+                        current.remove(r.path);
                         break;
                     }
                     case REQUEST_CLEAR: {
-                        mCurrent.clear();
+                        current.clear();
                         break;
                     }
                 }
             }
             mRequests.clear();
+            mCurrent = new ArrayList<Deletion>(current.values());
         }
 
         if (!mCurrent.isEmpty()) {
@@ -200,25 +210,30 @@ public class FilterDeleteSet extends MediaSet implements ContentListener {
             int from = Math.max(minIndex - 5, 0);
             int to = Math.min(maxIndex + 5, n);
             ArrayList<MediaItem> items = mBaseSet.getMediaItem(from, to - from);
+            HashMap<Path, Deletion> pending = new HashMap<Path, Deletion>();
+            for (Deletion d : mCurrent) {
+                pending.put(d.path, d);
+            }
             ArrayList<Deletion> result = new ArrayList<Deletion>();
             for (int i = 0; i < items.size(); i++) {
                 MediaItem item = items.get(i);
                 if (item == null) continue;
-                Path p = item.getPath();
                 // Find the matching path in mCurrent, if found move it to result
-                for (int j = 0; j < mCurrent.size(); j++) {
-                    Deletion d = mCurrent.get(j);
-                    if (d.path == p) {
-                        d.index = from + i;
-                        result.add(d);
-                        mCurrent.remove(j);
-                        break;
-                    }
+                Deletion d = pending.remove(item.getPath());
+                if (d != null) {
+                    d.index = from + i;
+                    result.add(d);
                 }
             }
             mCurrent = result;
         }
 
+        int[] shifts = new int[mCurrent.size()];
+        for (int i = 0; i < shifts.length; i++) {
+            shifts[i] = mCurrent.get(i).index - i;
+        }
+        mShifts = shifts;
+
         mDataVersion = nextVersionNumber();
         return mDataVersion;
     }
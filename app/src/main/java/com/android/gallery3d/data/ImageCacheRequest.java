@@ -25,6 +25,8 @@ import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
+import java.io.File;
+
 abstract class ImageCacheRequest implements Job<Bitmap> {
     private static final String TAG = "ImageCacheRequest";
 
@@ -49,33 +51,94 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
                 (mType == MediaItem.TYPE_MICROTHUMBNAIL) ? "MICROTHUMB" : "?");
     }
 
+    // Returns the file the image is decoded from, or null if it has none.
+    // The cache entries of items with a file are keyed by the file content,
+    // so identical files in different places share one entry.
+    protected String getLocalFilePath() {
+        return null;
+    }
+
+    // Decodes a microthumbnail of a local JPEG file straight from its DCT
+    // coefficients. Returns null if this is not a microthumbnail request or
+    // the fast decoder cannot handle the file.
+    protected Bitmap decodeJpegMicroThumbnail(JobContext jc, String filePath) {
+        if (mType != MediaItem.TYPE_MICROTHUMBNAIL) return null;
+        return DecodeUtils.decodeJpegMicroThumbnail(jc, filePath, mTargetSize);
+    }
+
     @Override
     public Bitmap run(JobContext jc) {
         ImageCacheService cacheService = mApplication.getImageCacheService();
+        String filePath = getLocalFilePath();
+        if (filePath == null) {
+            Bitmap bitmap = decodeCached(jc, cacheService, mPath, mTimeModified,
+                    ContentFingerprint.NONE, mType);
+            if (bitmap != null || jc.isCancelled()) return bitmap;
+            return decodeOriginal(jc, cacheService, null, ContentFingerprint.NONE);
+        }
 
-        BytesBuffer buffer = MediaItem.getBytesBufferPool().get();
+        long fingerprint = cacheService.getContentRef(mPath, mTimeModified, mType);
+        if (fingerprint != ContentFingerprint.NONE) {
+            Bitmap bitmap = decodeCached(jc, cacheService, null, 0, fingerprint, mType);
+            if (bitmap != null || jc.isCancelled()) return bitmap;
+        }
+
+        // Most files have a length no other cached file has. They are decoded
+        // first and fingerprinted after, while the file is in the page cache,
+        // so a cold grid does not read every file twice.
+        if (!cacheService.hasContentOfLength(new File(filePath).length(), mType)) {
+            return decodeOriginal(jc, cacheService, filePath, ContentFingerprint.NONE);
+        }
+        fingerprint = cacheService.getContentFingerprint(filePath);
+        if (jc.isCancelled()) return null;
+        if (fingerprint == ContentFingerprint.NONE) {
+            return decodeOriginal(jc, cacheService, null, fingerprint);
+        }
+
+        if (!cacheService.acquireContent(fingerprint, jc)) return null;
         try {
-            boolean found = cacheService.getImageData(mPath, mTimeModified, mType, buffer);
+            // Another path may have stored the same content meanwhile.
+            Bitmap bitmap = decodeCached(jc, cacheService, null, 0, fingerprint, mType);
             if (jc.isCancelled()) return null;
-            if (found) {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                Bitmap bitmap;
-                if (mType == MediaItem.TYPE_MICROTHUMBNAIL) {
-                    bitmap = DecodeUtils.decodeUsingPool(jc,
-                            buffer.data, buffer.offset, buffer.length, options);
-                } else {
-                    bitmap = DecodeUtils.decodeUsingPool(jc,
-                            buffer.data, buffer.offset, buffer.length, options);
-                }
-                if (bitmap == null && !jc.isCancelled()) {
-                    Log.w(TAG, "decode cached failed " + debugTag());
-                }
+            if (bitmap != null) {
+                cacheService.putContentRef(mPath, mTimeModified, mType, fingerprint, true);
                 return bitmap;
             }
+            return decodeOriginal(jc, cacheService, filePath, fingerprint);
+        } finally {
+            cacheService.releaseContent(fingerprint);
+        }
+    }
+
+    // Decodes the cached image data stored under the given content
+    // fingerprint, or under the path if the fingerprint is NONE. Returns
+    // null if there is none or it cannot be decoded.
+    static Bitmap decodeCached(JobContext jc, ImageCacheService cacheService,
+            Path path, long timeModified, long fingerprint, int type) {
+        BytesBuffer buffer = MediaItem.getBytesBufferPool().get();
+        try {
+            boolean found = fingerprint == ContentFingerprint.NONE
+                    ? cacheService.getImageData(path, timeModified, type, buffer)
+                    : cacheService.getContentImageData(fingerprint, type, buffer);
+            if (!found || jc.isCancelled()) return null;
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            Bitmap bitmap = DecodeUtils.decodeCacheData(jc,
+                    buffer.data, buffer.offset, buffer.length, options);
+            if (bitmap == null && !jc.isCancelled()) {
+                Log.w(TAG, "decode cached failed " + (fingerprint == ContentFingerprint.NONE
+                        ? path : Long.toHexString(fingerprint)) + "," + type);
+            }
+            return bitmap;
         } finally {
             MediaItem.getBytesBufferPool().recycle(buffer);
         }
+    }
+
+    // Stores the result by content if filePath is set, fingerprinting the
+    // file now unless a fingerprint is given, and by path otherwise.
+    private Bitmap decodeOriginal(JobContext jc, ImageCacheService cacheService,
+            String filePath, long fingerprint) {
         Bitmap bitmap = onDecodeOriginal(jc, mType);
         if (jc.isCancelled()) return null;
 
@@ -91,10 +154,19 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
         }
         if (jc.isCancelled()) return null;
 
-        byte[] array = BitmapUtils.compressToBytes(bitmap);
+        byte[] array = cacheService.encodeImage(bitmap, mType);
         if (jc.isCancelled()) return null;
 
-        cacheService.putImageData(mPath, mTimeModified, mType, array);
+        if (filePath != null && fingerprint == ContentFingerprint.NONE) {
+            fingerprint = cacheService.getContentFingerprint(filePath);
+        }
+        if (filePath != null && fingerprint != ContentFingerprint.NONE) {
+            cacheService.putContentImageData(fingerprint, mType, array);
+            cacheService.putContentRef(mPath, mTimeModified, mType, fingerprint, false);
+            cacheService.putContentLength(new File(filePath).length(), mType);
+        } else {
+            cacheService.putImageData(mPath, mTimeModified, mType, array);
+        }
         return bitmap;
     }
 
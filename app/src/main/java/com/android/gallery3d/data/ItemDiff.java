@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.gallery3d.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// ItemDiff computes the difference between two versions of the item list of
+// a media set, given as signatures (see MediaSet.getItemSignatures()).
+//
+// It finds the longest runs of unchanged items with Myers' O((N+M)D)
+// algorithm after trimming the common prefix and suffix, and matches
+// removed items against inserted ones to detect moves. Small edits to
+// large sets (a burst of imports, a few deletions) are cheap; if there are
+// more than maxEdits changes compute() gives up and returns null.
+public class ItemDiff {
+    public static final int NO_POSITION = -1;
+
+    // Runs of unchanged items: old[mOldStarts[i] + j] == new[mNewStarts[i] + j]
+    // for 0 <= j < mLengths[i]. Sorted by position.
+    private final int[] mOldStarts;
+    private final int[] mNewStarts;
+    private final int[] mLengths;
+    // New position -> old position of the items that moved.
+    private final HashMap<Integer, Integer> mMoves;
+    private final int mInsertedCount;
+    private final int mRemovedCount;
+
+    private ItemDiff(ArrayList<int[]> runs, HashMap<Integer, Integer> moves,
+            int inserted, int removed) {
+        int n = runs.size();
+        mOldStarts = new int[n];
+        mNewStarts = new int[n];
+        mLengths = new int[n];
+        for (int i = 0; i < n; i++) {
+            int[] run = runs.get(i);
+            mOldStarts[i] = run[0];
+            mNewStarts[i] = run[1];
+            mLengths[i] = run[2];
+        }
+        mMoves = moves;
+        mInsertedCount = inserted;
+        mRemovedCount = removed;
+    }
+
+    public static ItemDiff compute(long[] oldItems, long[] newItems, int maxEdits) {
+        int oldEnd = oldItems.length;
+        int newEnd = newItems.length;
+        int prefix = 0;
+        while (prefix < oldEnd && prefix < newEnd
+                && oldItems[prefix] == newItems[prefix]) {
+            prefix++;
+        }
+        while (oldEnd > prefix && newEnd > prefix
+                && oldItems[oldEnd - 1] == newItems[newEnd - 1]) {
+            oldEnd--;
+            newEnd--;
+        }
+
+        ArrayList<int[]> runs = new ArrayList<int[]>();
+        if (prefix > 0) runs.add(new int[] {0, 0, prefix});
+        if (!findRuns(oldItems, prefix, oldEnd, newItems, prefix, newEnd,
+                maxEdits, runs)) {
+            return null;
+        }
+        int suffix = oldItems.length - oldEnd;
+        if (suffix > 0) runs.add(new int[] {oldEnd, newEnd, suffix});
+
+        // Whatever is not in a run was removed from the old list or inserted
+        // into the new one. A removed item that is inserted again has moved.
+        HashMap<Long, Integer> removed = new HashMap<Long, Integer>();
+        int removedCount = 0;
+        int position = 0;
+        for (int[] run : runs) {
+            for (; position < run[0]; position++) {
+                removed.put(oldItems[position], position);
+                removedCount++;
+            }
+            position = run[0] + run[2];
+        }
+        for (; position < oldItems.length; position++) {
+            removed.put(oldItems[position], position);
+            removedCount++;
+        }
+        HashMap<Integer, Integer> moves = new HashMap<Integer, Integer>();
+        int insertedCount = 0;
+        position = 0;
+        for (int i = 0, n = runs.size(); i <= n; i++) {
+            int end = i < n ? runs.get(i)[1] : newItems.length;
+            for (; position < end; position++) {
+                Integer from = removed.get(newItems[position]);
+                if (from != null) {
+                    moves.put(position, from);
+                } else {
+                    insertedCount++;
+                }
+            }
+            if (i < n) position = runs.get(i)[1] + runs.get(i)[2];
+        }
+        return new ItemDiff(runs, moves, insertedCount, removedCount - moves.size());
+    }
+
+    // Myers' greedy algorithm on old[oldStart, oldEnd) and new[newStart,
+    // newEnd). Appends the runs of equal items to runs in order.
+    private static boolean findRuns(long[] a, int aStart, int aEnd,
+            long[] b, int bStart, int bEnd, int maxEdits, ArrayList<int[]> runs) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        if (n == 0 || m == 0) return n + m <= maxEdits;
+
+        int max = Math.min(maxEdits, n + m);
+        int offset = max + 1;
+        int[] v = new int[2 * max + 3];
+        ArrayList<int[]> trace = new ArrayList<int[]>();
+        for (int d = 0; d <= max; d++) {
+            trace.add(v.clone());
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+                    x = v[offset + k + 1];
+                } else {
+                    x = v[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[aStart + x] == b[bStart + y]) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    backtrack(trace, offset, d, n, m, aStart, bStart, runs);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void backtrack(ArrayList<int[]> trace, int offset, int d,
+            int x, int y, int aStart, int bStart, ArrayList<int[]> runs) {
+        ArrayList<int[]> reversed = new ArrayList<int[]>();
+        for (; d >= 0; d--) {
+            int[] v = trace.get(d);
+            int k = x - y;
+            int prevX, prevY, snakeX;
+            if (d == 0) {
+                prevX = 0;
+                prevY = 0;
+                snakeX = 0;
+            } else {
+                boolean down = k == -d
+                        || (k != d && v[offset + k - 1] < v[offset + k + 1]);
+                int prevK = down ? k + 1 : k - 1;
+                prevX = v[offset + prevK];
+                prevY = prevX - prevK;
+                // An insertion moves down, a removal moves right; the run of
+                // equal items follows the edit.
+                snakeX = down ? prevX : prevX + 1;
+            }
+            int length = x - snakeX;
+            if (length > 0) {
+                reversed.add(new int[] {aStart + snakeX, bStart + snakeX - k, length});
+            }
+            x = prevX;
+            y = prevY;
+        }
+        for (int i = reversed.size() - 1; i >= 0; i--) {
+            runs.add(reversed.get(i));
+        }
+    }
+
+    // Returns the old position of the item at the given new position, or
+    // NO_POSITION if it was inserted.
+    public int getOldPosition(int newPosition) {
+        int lo = 0, hi = mNewStarts.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mNewStarts[mid] > newPosition) {
+                hi = mid - 1;
+            } else if (mNewStarts[mid] + mLengths[mid] <= newPosition) {
+                lo = mid + 1;
+            } else {
+                return mOldStarts[mid] + newPosition - mNewStarts[mid];
+            }
+        }
+        Integer from = mMoves.get(newPosition);
+        return from == null ? NO_POSITION : from;
+    }
+
+    public int getInsertedCount() {
+        return mInsertedCount;
+    }
+
+    public int getRemovedCount() {
+        return mRemovedCount;
+    }
+
+    public int getMovedCount() {
+        return mMoves.size();
+    }
+}
@@ -0,0 +1,709 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.gallery3d.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.MediaStore.Files;
+import android.provider.MediaStore.Files.FileColumns;
+import android.provider.MediaStore.Images;
+import android.provider.MediaStore.Images.ImageColumns;
+import android.provider.MediaStore.Video;
+
+import com.android.gallery3d.app.GalleryApp;
+import com.android.gallery3d.data.BucketHelper.BucketEntry;
+import com.android.gallery3d.util.GalleryUtils;
+import com.android.gallery3d.util.IntArray;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// LibraryIndex keeps the fields of all local images and videos that the
+// data layer needs for sorting, filtering and clustering in primitive column
+// arrays, so they can be processed without creating a MediaItem per row.
+//
+// The index is built from one projection query on the files table and is
+// refreshed incrementally when MediaStore reports a change: only the rows
+// modified since the last refresh are re-read, and deleted rows (and rows
+// added with an old date modified) are found with an id-only query.
+//
+// getSnapshot() returns an immutable Snapshot; rows are ordered by id.
+// After a MediaStore change the snapshot is refreshed on a background
+// thread, so getCurrentSnapshot() can hand out the snapshot already held
+// without querying in the caller.
+//
+// The last snapshot and the local album lists are saved with
+// LibraryIndexStore. On a cold start getStoredAlbums() serves the album
+// lists from the memory-mapped file before MediaStore is queried, and the
+// first getSnapshot() starts from the saved snapshot, reading only the rows
+// changed since the file was written. The file is written on a background
+// thread SAVE_DELAY_MS after a change, so a burst of refreshes and album
+// loads costs one write and readers never wait for it.
+public class LibraryIndex {
+    private static final String TAG = "LibraryIndex";
+
+    public static final byte MIME_CLASS_JPEG = 0;
+    public static final byte MIME_CLASS_IMAGE = 1;
+    public static final byte MIME_CLASS_VIDEO = 2;
+
+    private static final Uri FILES_URI = Files.getContentUri("external");
+    private static final Uri[] WATCH_URIS = {
+            Images.Media.EXTERNAL_CONTENT_URI, Video.Media.EXTERNAL_CONTENT_URI};
+
+    private static final String WHERE_MEDIA = FileColumns.MEDIA_TYPE + " IN ("
+            + FileColumns.MEDIA_TYPE_IMAGE + "," + FileColumns.MEDIA_TYPE_VIDEO + ")";
+    private static final String[] ID_PROJECTION = { FileColumns._ID };
+    // Ids are inlined in the IN clause of queryRows(); this keeps the
+    // statement short.
+    private static final int MAX_IDS_PER_QUERY = 500;
+    // How long the store waits for more changes before it is written.
+    private static final long SAVE_DELAY_MS = 3000;
+
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_MEDIA_TYPE = 1;
+    private static final int INDEX_MIME_TYPE = 2;
+    private static final int INDEX_DATE_TAKEN = 3;
+    private static final int INDEX_DATE_MODIFIED = 4;
+    private static final int INDEX_SIZE = 5;
+    private static final int INDEX_BUCKET_ID = 6;
+    private static final int INDEX_LATITUDE = 7;
+    private static final int INDEX_LONGITUDE = 8;
+    private static final int INDEX_WIDTH = 9;
+    private static final int INDEX_HEIGHT = 10;
+
+    private static final String[] PROJECTION = {
+            FileColumns._ID,                // 0
+            FileColumns.MEDIA_TYPE,         // 1
+            FileColumns.MIME_TYPE,          // 2
+            ImageColumns.DATE_TAKEN,        // 3
+            FileColumns.DATE_MODIFIED,      // 4
+            FileColumns.SIZE,               // 5
+            ImageColumns.BUCKET_ID,         // 6
+            ImageColumns.LATITUDE,          // 7
+            ImageColumns.LONGITUDE,         // 8
+            FileColumns.WIDTH,              // 9
+            FileColumns.HEIGHT,             // 10
+    };
+
+    private final ContentResolver mResolver;
+    private final ChangeNotifier mNotifier;
+    private final LibraryIndexStore mStore;
+    // The snapshot reconciled with MediaStore. Only written with "this" locked.
+    private volatile Snapshot mSnapshot;
+    // The largest date modified (in seconds) seen in the last refresh.
+    private long mMaxDateModified;
+    // Set when the last refresh failed, so the next one tries again.
+    private boolean mRefreshFailed;
+
+    // The number of MediaStore changes reported so far, and the number
+    // mSnapshot reflects. Waiters for a current snapshot wait on
+    // mRefreshLock, which also guards mRefreshScheduled.
+    private final AtomicInteger mChangeCount = new AtomicInteger();
+    private volatile int mSnapshotChangeCount = -1;
+    private final Object mRefreshLock = new Object();
+    private boolean mRefreshScheduled;
+
+    // The content of the store file, read once. Guarded by mStoreLock.
+    private final Object mStoreLock = new Object();
+    private boolean mStoreRead;
+    private volatile LibraryIndexStore.Content mStored;
+    // The album lists to save, by media type. Guarded by mStoreLock.
+    private final HashMap<Integer, BucketEntry[]> mAlbums =
+            new HashMap<Integer, BucketEntry[]>();
+    // The snapshot to save and its watermark. Guarded by mStoreLock.
+    private Snapshot mSaveSnapshot;
+    private long mSaveMaxDateModified;
+    private boolean mSaveScheduled;
+    // Runs the background refreshes and writes. Guarded by mStoreLock.
+    private Handler mHandler;
+
+    public LibraryIndex(GalleryApp application) {
+        mResolver = application.getContentResolver();
+        mNotifier = new ChangeNotifier(WATCH_URIS, application) {
+            @Override
+            protected void onChange(boolean selfChange) {
+                // The flag is set before the count, see getSnapshot().
+                super.onChange(selfChange);
+                mChangeCount.incrementAndGet();
+                scheduleRefresh();
+            }
+        };
+        mStore = new LibraryIndexStore(application.getAndroidContext());
+    }
+
+    // Returns the current snapshot, refreshing it first if MediaStore has
+    // changed. This queries the database, so it must not be called from the
+    // main or render thread. Returns null if MediaStore cannot be queried.
+    public synchronized Snapshot getSnapshot() {
+        GalleryUtils.assertNotInRenderThread();
+        // Read before the dirty flag: a change counted here has already
+        // set the flag, so the snapshot below reflects it.
+        int changeCount = mChangeCount.get();
+        if (mSnapshot == null) {
+            LibraryIndexStore.Content stored = readStore();
+            if (stored != null) {
+                mSnapshot = stored.snapshot;
+                mMaxDateModified = stored.maxDateModified;
+            }
+        }
+        boolean dirty = mNotifier.isDirty();
+        if (dirty || mRefreshFailed || mSnapshot == null) {
+            Snapshot snapshot = mSnapshot == null ? load() : refresh(mSnapshot);
+            // Try again next time if this failed.
+            mRefreshFailed = snapshot == null;
+            if (snapshot == null) return mSnapshot;
+            mSnapshot = snapshot;
+            scheduleSave(snapshot, mMaxDateModified);
+        }
+        if (mSnapshotChangeCount != changeCount) {
+            mSnapshotChangeCount = changeCount;
+            synchronized (mRefreshLock) {
+                mRefreshLock.notifyAll();
+            }
+        }
+        return mSnapshot;
+    }
+
+    // Returns the snapshot already held if it reflects every MediaStore
+    // change reported so far. Otherwise waits up to timeoutMs for the
+    // background refresh, and returns null if it has not finished by then.
+    // Unlike getSnapshot() this never queries on the calling thread.
+    public Snapshot getCurrentSnapshot(long timeoutMs) {
+        long deadline = SystemClock.uptimeMillis() + timeoutMs;
+        boolean scheduled = false;
+        synchronized (mRefreshLock) {
+            while (true) {
+                // Read the count first; mSnapshot is written before it.
+                int changeCount = mSnapshotChangeCount;
+                Snapshot snapshot = mSnapshot;
+                if (snapshot != null && changeCount == mChangeCount.get()) return snapshot;
+                if (!scheduled) {
+                    // Nothing may have asked for a snapshot yet.
+                    scheduled = true;
+                    scheduleRefresh();
+                }
+                long wait = deadline - SystemClock.uptimeMillis();
+                if (wait <= 0) return null;
+                try {
+                    mRefreshLock.wait(wait);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    private void scheduleRefresh() {
+        synchronized (mRefreshLock) {
+            if (mRefreshScheduled) return;
+            mRefreshScheduled = true;
+        }
+        getHandler().post(mRefreshTask);
+    }
+
+    private final Runnable mRefreshTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mRefreshLock) {
+                mRefreshScheduled = false;
+            }
+            getSnapshot();
+        }
+    };
+
+    // Returns the album list of the given type saved by the last run, or null.
+    public BucketEntry[] getStoredAlbums(int type) {
+        LibraryIndexStore.Content stored = readStore();
+        return stored == null ? null : stored.albums.get(type);
+    }
+
+    // Records the album list of the given type loaded from MediaStore, so the
+    // next run can show it before querying.
+    public void setAlbums(int type, BucketEntry[] entries) {
+        readStore();
+        synchronized (mStoreLock) {
+            mAlbums.put(type, entries);
+        }
+        scheduleSave(null, 0);
+    }
+
+    private LibraryIndexStore.Content readStore() {
+        synchronized (mStoreLock) {
+            if (!mStoreRead) {
+                mStoreRead = true;
+                mStored = mStore.read();
+                if (mStored != null) mAlbums.putAll(mStored.albums);
+            }
+            return mStored;
+        }
+    }
+
+    // Schedules a write of the store, with the given snapshot if it is not
+    // null. Nothing is written before there is a snapshot.
+    private void scheduleSave(Snapshot snapshot, long maxDateModified) {
+        synchronized (mStoreLock) {
+            if (snapshot != null) {
+                mSaveSnapshot = snapshot;
+                mSaveMaxDateModified = maxDateModified;
+            }
+            if (mSaveScheduled) return;
+            mSaveScheduled = true;
+        }
+        getHandler().postDelayed(mSaveTask, SAVE_DELAY_MS);
+    }
+
+    private Handler getHandler() {
+        synchronized (mStoreLock) {
+            if (mHandler == null) {
+                HandlerThread thread = new HandlerThread("LibraryIndex",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                mHandler = new Handler(thread.getLooper());
+            }
+            return mHandler;
+        }
+    }
+
+    // Writes what was scheduled last, on the save thread. Snapshots and album
+    // lists are immutable, so only the references are taken under the lock.
+    private final Runnable mSaveTask = new Runnable() {
+        @Override
+        public void run() {
+            Snapshot snapshot;
+            long maxDateModified;
+            HashMap<Integer, BucketEntry[]> albums;
+            synchronized (mStoreLock) {
+                mSaveScheduled = false;
+                snapshot = mSaveSnapshot;
+                maxDateModified = mSaveMaxDateModified;
+                albums = new HashMap<Integer, BucketEntry[]>(mAlbums);
+            }
+            if (snapshot != null) mStore.write(snapshot, maxDateModified, albums);
+        }
+    };
+
+    private Snapshot load() {
+        Cursor cursor = mResolver.query(FILES_URI, PROJECTION, WHERE_MEDIA, null,
+                FileColumns._ID);
+        if (cursor == null) {
+            Log.w(TAG, "query fail: " + FILES_URI);
+            return null;
+        }
+        try {
+            Builder builder = new Builder(cursor.getCount());
+            while (cursor.moveToNext()) {
+                builder.addRow(cursor);
+                mMaxDateModified = Math.max(mMaxDateModified,
+                        cursor.getLong(INDEX_DATE_MODIFIED));
+            }
+            return builder.build();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Snapshot refresh(Snapshot old) {
+        // Re-read the rows added or modified since the last refresh. Rows
+        // modified in the same second as the watermark are read again.
+        Cursor cursor = mResolver.query(FILES_URI, PROJECTION,
+                WHERE_MEDIA + " AND " + FileColumns.DATE_MODIFIED + " >= ?",
+                new String[] {String.valueOf(mMaxDateModified)}, FileColumns._ID);
+        if (cursor == null) {
+            Log.w(TAG, "query fail: " + FILES_URI);
+            return null;
+        }
+        Snapshot changed;
+        long maxDateModified = mMaxDateModified;
+        try {
+            Builder builder = new Builder(cursor.getCount());
+            while (cursor.moveToNext()) {
+                builder.addRow(cursor);
+                maxDateModified = Math.max(maxDateModified,
+                        cursor.getLong(INDEX_DATE_MODIFIED));
+            }
+            changed = builder.build();
+        } finally {
+            cursor.close();
+        }
+
+        // Deletions are not reported by date; list the remaining ids.
+        int[] liveIds = queryIds();
+        if (liveIds == null) return null;
+
+        // A row can also arrive with a date modified below the watermark,
+        // for example a file copied with its original time. Read the live
+        // ids that are in neither the old snapshot nor the changed rows.
+        IntArray missing = findMissingIds(old, changed, liveIds);
+        if (missing.size() > 0) {
+            Snapshot added = queryRows(missing);
+            if (added == null) return null;
+            changed = merge(changed, added, null);
+        }
+        mMaxDateModified = maxDateModified;
+        return merge(old, changed, liveIds);
+    }
+
+    // Returns the ids (sorted) in liveIds that are in neither a nor b.
+    private static IntArray findMissingIds(Snapshot a, Snapshot b, int[] liveIds) {
+        IntArray missing = new IntArray();
+        int i = 0, j = 0;
+        for (int id : liveIds) {
+            while (i < a.mSize && a.mIds[i] < id) i++;
+            while (j < b.mSize && b.mIds[j] < id) j++;
+            if ((i < a.mSize && a.mIds[i] == id) || (j < b.mSize && b.mIds[j] == id)) {
+                continue;
+            }
+            missing.add(id);
+        }
+        return missing;
+    }
+
+    // Reads the rows of the given ids (sorted), MAX_IDS_PER_QUERY at a time.
+    private Snapshot queryRows(IntArray ids) {
+        int[] array = ids.getInternalArray();
+        int size = ids.size();
+        Builder builder = new Builder(size);
+        for (int from = 0; from < size; from += MAX_IDS_PER_QUERY) {
+            int to = Math.min(size, from + MAX_IDS_PER_QUERY);
+            StringBuilder where = new StringBuilder(WHERE_MEDIA)
+                    .append(" AND ").append(FileColumns._ID).append(" IN (");
+            for (int i = from; i < to; i++) {
+                if (i > from) where.append(',');
+                where.append(array[i]);
+            }
+            where.append(')');
+            Cursor cursor = mResolver.query(FILES_URI, PROJECTION, where.toString(), null,
+                    FileColumns._ID);
+            if (cursor == null) {
+                Log.w(TAG, "query fail: " + FILES_URI);
+                return null;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    builder.addRow(cursor);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return builder.build();
+    }
+
+    private int[] queryIds() {
+        Cursor cursor = mResolver.query(FILES_URI, ID_PROJECTION, WHERE_MEDIA, null,
+                FileColumns._ID);
+        if (cursor == null) return null;
+        try {
+            int[] ids = new int[cursor.getCount()];
+            int n = 0;
+            while (cursor.moveToNext() && n < ids.length) {
+                ids[n++] = cursor.getInt(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Merges the changed rows into the old snapshot. If liveIds (sorted) is
+    // not null, rows whose id is not listed there are dropped.
+    private static Snapshot merge(Snapshot old, Snapshot changed, int[] liveIds) {
+        Builder builder = new Builder(old.mSize + changed.mSize);
+        int i = 0, j = 0, k = 0;
+        while (i < old.mSize || j < changed.mSize) {
+            Snapshot from;
+            int row;
+            if (j >= changed.mSize
+                    || (i < old.mSize && old.mIds[i] < changed.mIds[j])) {
+                from = old;
+                row = i++;
+            } else {
+                if (i < old.mSize && old.mIds[i] == changed.mIds[j]) i++;
+                from = changed;
+                row = j++;
+            }
+            int id = from.mIds[row];
+            if (liveIds != null) {
+                while (k < liveIds.length && liveIds[k] < id) k++;
+                if (k >= liveIds.length || liveIds[k] != id) continue;
+            }
+            builder.addRow(from, row);
+        }
+        return builder.build();
+    }
+
+    private static class Builder {
+        private int mSize;
+        private int[] mIds;
+        private byte[] mMimeClasses;
+        private long[] mDatesTaken;
+        private long[] mDatesModified;
+        private long[] mSizes;
+        private int[] mBucketIds;
+        private double[] mLatitudes;
+        private double[] mLongitudes;
+        private int[] mWidths;
+        private int[] mHeights;
+
+        Builder(int capacity) {
+            mIds = new int[capacity];
+            mMimeClasses = new byte[capacity];
+            mDatesTaken = new long[capacity];
+            mDatesModified = new long[capacity];
+            mSizes = new long[capacity];
+            mBucketIds = new int[capacity];
+            mLatitudes = new double[capacity];
+            mLongitudes = new double[capacity];
+            mWidths = new int[capacity];
+            mHeights = new int[capacity];
+        }
+
+        void addRow(Cursor cursor) {
+            // The count of a cursor may change while it is read.
+            if (mSize == mIds.length) return;
+            int i = mSize++;
+            mIds[i] = cursor.getInt(INDEX_ID);
+            mMimeClasses[i] = getMimeClass(cursor.getInt(INDEX_MEDIA_TYPE),
+                    cursor.getString(INDEX_MIME_TYPE));
+            mDatesTaken[i] = cursor.getLong(INDEX_DATE_TAKEN);
+            mDatesModified[i] = cursor.getLong(INDEX_DATE_MODIFIED);
+            mSizes[i] = cursor.getLong(INDEX_SIZE);
+            mBucketIds[i] = cursor.getInt(INDEX_BUCKET_ID);
+            mLatitudes[i] = cursor.getDouble(INDEX_LATITUDE);
+            mLongitudes[i] = cursor.getDouble(INDEX_LONGITUDE);
+            mWidths[i] = cursor.getInt(INDEX_WIDTH);
+            mHeights[i] = cursor.getInt(INDEX_HEIGHT);
+        }
+
+        void addRow(Snapshot from, int row) {
+            int i = mSize++;
+            mIds[i] = from.mIds[row];
+            mMimeClasses[i] = from.mMimeClasses[row];
+            mDatesTaken[i] = from.mDatesTaken[row];
+            mDatesModified[i] = from.mDatesModified[row];
+            mSizes[i] = from.mSizes[row];
+            mBucketIds[i] = from.mBucketIds[row];
+            mLatitudes[i] = from.mLatitudes[row];
+            mLongitudes[i] = from.mLongitudes[row];
+            mWidths[i] = from.mWidths[row];
+            mHeights[i] = from.mHeights[row];
+        }
+
+        Snapshot build() {
+            return new Snapshot(this);
+        }
+
+        private static byte getMimeClass(int mediaType, String mimeType) {
+            if (mediaType == FileColumns.MEDIA_TYPE_VIDEO) return MIME_CLASS_VIDEO;
+            if ("image/jpeg".equalsIgnoreCase(mimeType)) return MIME_CLASS_JPEG;
+            return MIME_CLASS_IMAGE;
+        }
+    }
+
+    public static class Snapshot {
+        // The columns are read directly by LibraryIndexStore.
+        final int mSize;
+        final int[] mIds;
+        final byte[] mMimeClasses;
+        final long[] mDatesTaken;
+        final long[] mDatesModified;
+        final long[] mSizes;
+        final int[] mBucketIds;
+        final double[] mLatitudes;
+        final double[] mLongitudes;
+        final int[] mWidths;
+        final int[] mHeights;
+
+        // Rows of each (bucket id, media type), computed on demand.
+        private final HashMap<Long, int[]> mBucketRows = new HashMap<Long, int[]>();
+
+        private Snapshot(Builder b) {
+            this(b.mSize, b.mIds, b.mMimeClasses, b.mDatesTaken, b.mDatesModified,
+                    b.mSizes, b.mBucketIds, b.mLatitudes, b.mLongitudes,
+                    b.mWidths, b.mHeights);
+        }
+
+        Snapshot(int size, int[] ids, byte[] mimeClasses, long[] datesTaken,
+                long[] datesModified, long[] sizes, int[] bucketIds,
+                double[] latitudes, double[] longitudes, int[] widths, int[] heights) {
+            mSize = size;
+            mIds = ids;
+            mMimeClasses = mimeClasses;
+            mDatesTaken = datesTaken;
+            mDatesModified = datesModified;
+            mSizes = sizes;
+            mBucketIds = bucketIds;
+            mLatitudes = latitudes;
+            mLongitudes = longitudes;
+            mWidths = widths;
+            mHeights = heights;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public int getId(int row) {
+            return mIds[row];
+        }
+
+        public byte getMimeClass(int row) {
+            return mMimeClasses[row];
+        }
+
+        public boolean isVideo(int row) {
+            return mMimeClasses[row] == MIME_CLASS_VIDEO;
+        }
+
+        public long getDateTaken(int row) {
+            return mDatesTaken[row];
+        }
+
+        public long getDateModified(int row) {
+            return mDatesModified[row];
+        }
+
+        public long getSize(int row) {
+            return mSizes[row];
+        }
+
+        public int getBucketId(int row) {
+            return mBucketIds[row];
+        }
+
+        public double getLatitude(int row) {
+            return mLatitudes[row];
+        }
+
+        public double getLongitude(int row) {
+            return mLongitudes[row];
+        }
+
+        public int getWidth(int row) {
+            return mWidths[row];
+        }
+
+        public int getHeight(int row) {
+            return mHeights[row];
+        }
+
+        // The id in the high half, a hash of what changes when the file is
+        // edited in the low half. See MediaSet.getItemSignatures().
+        public long getSignature(int row) {
+            long h = mDatesModified[row] * 31 + mSizes[row];
+            return ((long) mIds[row] << 32) | ((int) (h ^ (h >>> 32)) & 0xffffffffL);
+        }
+
+        public Path getPath(int row) {
+            return getParentPath(row).getChild(mIds[row]);
+        }
+
+        // The parent of getPath(row), for callers that key items by
+        // (parent, id) without creating the Path.
+        public Path getParentPath(int row) {
+            return isVideo(row) ? LocalVideo.ITEM_PATH : LocalImage.ITEM_PATH;
+        }
+
+        // Returns the row of the given id, or -1.
+        public int findRow(int id) {
+            int lo = 0, hi = mSize - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int v = mIds[mid];
+                if (v < id) {
+                    lo = mid + 1;
+                } else if (v > id) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        // Returns the row of a local image or video path, or -1.
+        public int findRow(Path path) {
+            Path parent = path.getParent();
+            boolean isVideo;
+            if (parent == LocalImage.ITEM_PATH) {
+                isVideo = false;
+            } else if (parent == LocalVideo.ITEM_PATH) {
+                isVideo = true;
+            } else {
+                return -1;
+            }
+            int row;
+            try {
+                row = findRow(Integer.parseInt(path.getSuffix()));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            return (row >= 0 && isVideo(row) == isVideo) ? row : -1;
+        }
+
+        // Returns the rows of the images or videos in a bucket, in the order
+        // of LocalAlbum (date taken descending, then id descending). The
+        // returned array must not be modified.
+        public int[] getBucketRows(int bucketId, boolean isImage) {
+            Long key = ((long) bucketId << 1) | (isImage ? 1 : 0);
+            synchronized (mBucketRows) {
+                int[] rows = mBucketRows.get(key);
+                if (rows != null) return rows;
+                IntArray list = new IntArray();
+                // Walk down so ties in date taken stay in descending id order.
+                for (int i = mSize - 1; i >= 0; i--) {
+                    if (mBucketIds[i] == bucketId && isVideo(i) != isImage) {
+                        list.add(i);
+                    }
+                }
+                rows = list.toArray(null);
+                sortByDateTakenDescending(rows, 0, rows.length);
+                mBucketRows.put(key, rows);
+                return rows;
+            }
+        }
+
+        // Stable sort of rows[from, to) by date taken, newest first.
+        public void sortByDateTakenDescending(int[] rows, int from, int to) {
+            if (to - from < 2) return;
+            int[] tmp = new int[to - from];
+            mergeSort(rows, tmp, from, to);
+        }
+
+        private void mergeSort(int[] rows, int[] tmp, int from, int to) {
+            if (to - from < 2) return;
+            int mid = (from + to) >>> 1;
+            mergeSort(rows, tmp, from, mid);
+            mergeSort(rows, tmp, mid, to);
+            if (mDatesTaken[rows[mid - 1]] >= mDatesTaken[rows[mid]]) return;
+            int i = from, j = mid, k = 0;
+            while (i < mid && j < to) {
+                tmp[k++] = mDatesTaken[rows[j]] > mDatesTaken[rows[i]]
+                        ? rows[j++] : rows[i++];
+            }
+            while (i < mid) tmp[k++] = rows[i++];
+            while (j < to) tmp[k++] = rows[j++];
+            System.arraycopy(tmp, 0, rows, from, k);
+        }
+    }
+}
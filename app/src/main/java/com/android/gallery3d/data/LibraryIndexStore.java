@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.gallery3d.data;
+
+import android.content.Context;
+
+import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.BucketHelper.BucketEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+// LibraryIndexStore saves a LibraryIndex snapshot and the local album lists
+// to a file, and reads them back through a memory map.
+//
+// The file is big-endian:
+//
+//   int magic, int version, long maxDateModified, int rowCount, int albumCount
+//   one fixed-width block per column, rowCount entries each, in the order
+//     int id, byte mimeClass, int bucketId, long dateTaken, long dateModified,
+//     long size, double latitude, double longitude, int width, int height
+//   albumCount * { int mediaType, int bucketId, int dateTaken,
+//                  int nameLength, UTF-8 name }
+//
+// Rows are ordered by id, as in the snapshot. The albums of each media type
+// are in display order. A file with another magic or version is ignored.
+class LibraryIndexStore {
+    private static final String TAG = "LibraryIndexStore";
+
+    private static final String FILE_NAME = "library_index";
+    private static final int MAGIC = 0x4d494458; // "MIDX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+    private static final int ROW_SIZE = 4 + 1 + 4 + 8 + 8 + 8 + 8 + 8 + 4 + 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static class Content {
+        public LibraryIndex.Snapshot snapshot;
+        public long maxDateModified;
+        public HashMap<Integer, BucketEntry[]> albums;
+    }
+
+    private final File mFile;
+
+    public LibraryIndexStore(Context context) {
+        this(new File(context.getCacheDir(), FILE_NAME));
+    }
+
+    LibraryIndexStore(File file) {
+        mFile = file;
+    }
+
+    // Returns null if there is no usable file.
+    public Content read() {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "cannot read " + mFile, e);
+            return null;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "cannot read " + mFile, e);
+            return null;
+        } finally {
+            Utils.closeSilently(file);
+        }
+    }
+
+    private static Content read(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE
+                || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        Content content = new Content();
+        content.maxDateModified = buffer.getLong();
+        int n = buffer.getInt();
+        int albumCount = buffer.getInt();
+        if (n < 0 || albumCount < 0
+                || (long) n * ROW_SIZE > buffer.remaining()) {
+            throw new IOException("truncated");
+        }
+
+        // Each column is a contiguous block, so it is copied in bulk.
+        int[] ids = readInts(buffer, n);
+        byte[] mimeClasses = new byte[n];
+        buffer.get(mimeClasses);
+        int[] bucketIds = readInts(buffer, n);
+        long[] datesTaken = readLongs(buffer, n);
+        long[] datesModified = readLongs(buffer, n);
+        long[] sizes = readLongs(buffer, n);
+        double[] latitudes = readDoubles(buffer, n);
+        double[] longitudes = readDoubles(buffer, n);
+        int[] widths = readInts(buffer, n);
+        int[] heights = readInts(buffer, n);
+        content.snapshot = new LibraryIndex.Snapshot(n, ids, mimeClasses,
+                datesTaken, datesModified, sizes, bucketIds, latitudes, longitudes,
+                widths, heights);
+
+        HashMap<Integer, ArrayList<BucketEntry>> albums =
+                new HashMap<Integer, ArrayList<BucketEntry>>();
+        for (int i = 0; i < albumCount; i++) {
+            int type = buffer.getInt();
+            int bucketId = buffer.getInt();
+            int dateTaken = buffer.getInt();
+            byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            BucketEntry entry = new BucketEntry(bucketId, new String(name, UTF_8));
+            entry.dateTaken = dateTaken;
+            ArrayList<BucketEntry> list = albums.get(type);
+            if (list == null) {
+                list = new ArrayList<BucketEntry>();
+                albums.put(type, list);
+            }
+            list.add(entry);
+        }
+        content.albums = new HashMap<Integer, BucketEntry[]>();
+        for (Map.Entry<Integer, ArrayList<BucketEntry>> e : albums.entrySet()) {
+            content.albums.put(e.getKey(),
+                    e.getValue().toArray(new BucketEntry[e.getValue().size()]));
+        }
+        return content;
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int n) {
+        int[] result = new int[n];
+        buffer.asIntBuffer().get(result);
+        buffer.position(buffer.position() + 4 * n);
+        return result;
+    }
+
+    private static long[] readLongs(ByteBuffer buffer, int n) {
+        long[] result = new long[n];
+        buffer.asLongBuffer().get(result);
+        buffer.position(buffer.position() + 8 * n);
+        return result;
+    }
+
+    private static double[] readDoubles(ByteBuffer buffer, int n) {
+        double[] result = new double[n];
+        buffer.asDoubleBuffer().get(result);
+        buffer.position(buffer.position() + 8 * n);
+        return result;
+    }
+
+    // Writes to a temporary file first, so a crash never leaves a partial
+    // file behind.
+    public void write(LibraryIndex.Snapshot snapshot, long maxDateModified,
+            Map<Integer, BucketEntry[]> albums) {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp), 64 * 1024));
+            int albumCount = 0;
+            for (BucketEntry[] entries : albums.values()) {
+                albumCount += entries.length;
+            }
+            int n = snapshot.mSize;
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(maxDateModified);
+            out.writeInt(n);
+            out.writeInt(albumCount);
+            for (int i = 0; i < n; i++) out.writeInt(snapshot.mIds[i]);
+            out.write(snapshot.mMimeClasses, 0, n);
+            for (int i = 0; i < n; i++) out.writeInt(snapshot.mBucketIds[i]);
+            for (int i = 0; i < n; i++) out.writeLong(snapshot.mDatesTaken[i]);
+            for (int i = 0; i < n; i++) out.writeLong(snapshot.mDatesModified[i]);
+            for (int i = 0; i < n; i++) out.writeLong(snapshot.mSizes[i]);
+            for (int i = 0; i < n; i++) out.writeDouble(snapshot.mLatitudes[i]);
+            for (int i = 0; i < n; i++) out.writeDouble(snapshot.mLongitudes[i]);
+            for (int i = 0; i < n; i++) out.writeInt(snapshot.mWidths[i]);
+            for (int i = 0; i < n; i++) out.writeInt(snapshot.mHeights[i]);
+            for (Map.Entry<Integer, BucketEntry[]> e : albums.entrySet()) {
+                for (BucketEntry entry : e.getValue()) {
+                    byte[] name = entry.bucketName.getBytes(UTF_8);
+                    out.writeInt(e.getKey());
+                    out.writeInt(entry.bucketId);
+                    out.writeInt(entry.dateTaken);
+                    out.writeInt(name.length);
+                    out.write(name);
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "cannot rename " + tmp);
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "cannot write " + tmp, e);
+            tmp.delete();
+        } finally {
+            Utils.closeSilently(out);
+        }
+    }
+}
@@ -31,11 +31,17 @@ import com.android.gallery3d.R;
 import com.android.gallery3d.app.GalleryApp;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.BucketNames;
+import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.GalleryUtils;
+import com.android.gallery3d.util.IntArray;
 import com.android.gallery3d.util.MediaSetUtils;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 // LocalAlbumSet lists all media items in one bucket on local storage.
 // The media items need to be all images or all videos, but not both.
@@ -44,10 +50,21 @@ public class LocalAlbum extends MediaSet {
     private static final String[] COUNT_PROJECTION = { "count(*)" };
 
     private static final int INVALID_COUNT = -1;
+
+    // For keyset paging we remember the (date taken, id) key of every
+    // CHECKPOINT_INTERVAL-th row, so a page can seek to its start instead of
+    // making SQLite walk and discard all the rows before it. This relies on
+    // mOrderClause ending in the unique _id column.
+    private static final int CHECKPOINT_INTERVAL = 64;
+    private static final int MAX_CHECKPOINTS = 4096;
+
     private final String mWhereClause;
     private final String mOrderClause;
     private final Uri mBaseUri;
     private final String[] mProjection;
+    private final String[] mKeyProjection;
+    private final String mDateTakenColumn;
+    private final int mDateTakenIndex;
 
     private final GalleryApp mApplication;
     private final ContentResolver mResolver;
@@ -58,6 +75,21 @@ public class LocalAlbum extends MediaSet {
     private final Path mItemPath;
     private int mCachedCount = INVALID_COUNT;
 
+    // Checkpoint c (0-based) is the key of the row at position
+    // (c + 1) * CHECKPOINT_INTERVAL - 1. A null date taken is stored as
+    // Long.MIN_VALUE. Guarded by mCheckpointLock.
+    private final Object mCheckpointLock = new Object();
+    private long[] mCheckpointDates = new long[16];
+    private int[] mCheckpointIds = new int[16];
+    private int mCheckpointCount;
+    private int mCheckpointGeneration;
+
+    private volatile MediaItemIndex mItemIndex;
+    // The job building mItemIndex for mIndexTaskVersion. Guarded by mIndexLock.
+    private final Object mIndexLock = new Object();
+    private Future<MediaItemIndex> mIndexTask;
+    private long mIndexTaskVersion;
+
     public LocalAlbum(Path path, GalleryApp application, int bucketId,
             boolean isImage, String name) {
         super(path, nextVersionNumber());
@@ -74,6 +106,9 @@ public class LocalAlbum extends MediaSet {
             mBaseUri = Images.Media.EXTERNAL_CONTENT_URI;
             mProjection = LocalImage.PROJECTION;
             mItemPath = LocalImage.ITEM_PATH;
+            mDateTakenColumn = ImageColumns.DATE_TAKEN;
+            mKeyProjection = new String[] {ImageColumns._ID, ImageColumns.DATE_TAKEN};
+            mDateTakenIndex = LocalImage.INDEX_DATE_TAKEN;
         } else {
             mWhereClause = VideoColumns.BUCKET_ID + " = ?";
             mOrderClause = VideoColumns.DATE_TAKEN + " DESC, "
@@ -81,8 +116,10 @@ public class LocalAlbum extends MediaSet {
             mBaseUri = Video.Media.EXTERNAL_CONTENT_URI;
             mProjection = LocalVideo.PROJECTION;
             mItemPath = LocalVideo.ITEM_PATH;
+            mDateTakenColumn = VideoColumns.DATE_TAKEN;
+            mKeyProjection = new String[] {VideoColumns._ID, VideoColumns.DATE_TAKEN};
+            mDateTakenIndex = LocalVideo.INDEX_DATE_TAKEN;
         }
-
         mNotifier = new ChangeNotifier(this, mBaseUri, application);
     }
 
@@ -114,47 +151,297 @@ public class LocalAlbum extends MediaSet {
     @Override
     public ArrayList<MediaItem> getMediaItem(int start, int count) {
         DataManager dataManager = mApplication.getDataManager();
-        Uri uri = mBaseUri.buildUpon()
-                .appendQueryParameter("limit", start + "," + count).build();
         ArrayList<MediaItem> list = new ArrayList<MediaItem>();
         GalleryUtils.assertNotInRenderThread();
-        Cursor cursor = mResolver.query(
-                uri, mProjection, mWhereClause,
-                new String[]{String.valueOf(mBucketId)},
-                mOrderClause);
+
+        // Seek to the checkpoint at or before start, then skip the remaining
+        // (less than CHECKPOINT_INTERVAL) rows.
+        int checkpoint;
+        int generation;
+        long seekDate = 0;
+        int seekId = 0;
+        if (start >= CHECKPOINT_INTERVAL) {
+            fillCheckpoints(start / CHECKPOINT_INTERVAL);
+        }
+        synchronized (mCheckpointLock) {
+            generation = mCheckpointGeneration;
+            checkpoint = Math.min(start / CHECKPOINT_INTERVAL, mCheckpointCount) - 1;
+            if (checkpoint >= 0) {
+                seekDate = mCheckpointDates[checkpoint];
+                seekId = mCheckpointIds[checkpoint];
+            }
+        }
+        int skip = start - (checkpoint + 1) * CHECKPOINT_INTERVAL;
+
+        Cursor cursor = queryPage(mProjection, checkpoint >= 0, seekDate, seekId,
+                skip, count);
         if (cursor == null) {
-            Log.w(TAG, "query fail: " + uri);
+            Log.w(TAG, "query fail: " + mBaseUri);
             return list;
         }
 
         try {
+            int position = start;
+            StaleRows stale = new StaleRows();
             while (cursor.moveToNext()) {
                 int id = cursor.getInt(0);  // _id must be in the first column
+                if ((position + 1) % CHECKPOINT_INTERVAL == 0) {
+                    addCheckpoint(generation, position, getDateTakenKey(
+                            cursor, mDateTakenIndex), id);
+                }
+                ++position;
                 Path childPath = mItemPath.getChild(id);
-                MediaItem item = loadOrUpdateItem(childPath, cursor,
-                        dataManager, mApplication, mIsImage);
+                MediaItem item = peekUpToDateItem(childPath, cursor, dataManager);
+                if (item == null) stale.add(cursor.getPosition(), list.size());
                 list.add(item);
             }
+            stale.load(cursor, mItemPath, dataManager, mApplication, mIsImage, list);
         } finally {
             cursor.close();
         }
         return list;
     }
 
+    // Starts building the index for the current data version on a thread pool
+    // thread, so it is usually ready by the time getIndexOfItem() needs it.
+    @Override
+    public void prepareItemIndex() {
+        long version = mDataVersion;
+        MediaItemIndex index = mItemIndex;
+        if (index == null || index.getDataVersion() != version) startIndexBuild(version);
+    }
+
+    // Returns the id -> position index for the current data version, waiting
+    // for the build if it is not ready. Returns null if the build failed or
+    // was cancelled for a newer version; getIndexOfItem() then scans pages.
+    @Override
+    protected MediaItemIndex getItemIndex() {
+        long version = mDataVersion;
+        MediaItemIndex index = mItemIndex;
+        if (index != null && index.getDataVersion() == version) return index;
+        return startIndexBuild(version).get();
+    }
+
+    private boolean isIndexRequested() {
+        synchronized (mIndexLock) {
+            return mIndexTask != null;
+        }
+    }
+
+    // Returns the job building the index for the version, starting it if needed.
+    private Future<MediaItemIndex> startIndexBuild(long version) {
+        synchronized (mIndexLock) {
+            if (mIndexTask == null || mIndexTaskVersion != version) {
+                if (mIndexTask != null) mIndexTask.cancel();
+                mIndexTaskVersion = version;
+                mIndexTask = mApplication.getThreadPool().submit(new IndexBuilder(version));
+            }
+            return mIndexTask;
+        }
+    }
+
+    // Builds the index from a key-only query. The same pass records the
+    // paging checkpoints.
+    private class IndexBuilder implements Job<MediaItemIndex> {
+        private final long mVersion;
+
+        IndexBuilder(long version) {
+            mVersion = version;
+        }
+
+        @Override
+        public MediaItemIndex run(JobContext jc) {
+            int generation;
+            synchronized (mCheckpointLock) {
+                generation = mCheckpointGeneration;
+            }
+            Cursor cursor = mResolver.query(mBaseUri, mKeyProjection, mWhereClause,
+                    new String[]{String.valueOf(mBucketId)}, mOrderClause);
+            if (cursor == null) {
+                Log.w(TAG, "query fail: " + mBaseUri);
+                return null;
+            }
+            IntArray ids = new IntArray();
+            try {
+                while (cursor.moveToNext()) {
+                    if (jc.isCancelled()) return null;
+                    int position = ids.size();
+                    int id = cursor.getInt(0);
+                    if ((position + 1) % CHECKPOINT_INTERVAL == 0) {
+                        addCheckpoint(generation, position, getDateTakenKey(cursor, 1), id);
+                    }
+                    ids.add(id);
+                }
+            } finally {
+                cursor.close();
+            }
+            MediaItemIndex index = new MediaItemIndex(
+                    mItemPath, mVersion, ids.getInternalArray(), ids.size());
+            if (!jc.isCancelled()) mItemIndex = index;
+            return index;
+        }
+    }
+
+    @Override
+    public long[] getItemSignatures() {
+        return getItemSignatures(mApplication.getDataManager().getLibraryIndex());
+    }
+
+    @Override
+    public boolean enumerateTotalIndexRows(LibraryIndex.Snapshot snapshot, IntArray rows) {
+        int[] bucketRows = snapshot.getBucketRows(mBucketId, mIsImage);
+        // The snapshot can lag behind MediaStore. If it does not have every
+        // item of the album, the caller must load the items instead.
+        if (bucketRows.length != getMediaItemCount()) return false;
+        for (int row : bucketRows) {
+            rows.add(row);
+        }
+        return true;
+    }
+
+    // If seek is true, only rows after the (seekDate, seekId) key in
+    // mOrderClause order are returned. The first skip rows are dropped.
+    private Cursor queryPage(String[] projection, boolean seek, long seekDate,
+            int seekId, int skip, int count) {
+        Uri uri = mBaseUri.buildUpon()
+                .appendQueryParameter("limit", skip + "," + count).build();
+        String where = mWhereClause;
+        String[] whereArgs;
+        String bucketId = String.valueOf(mBucketId);
+        if (!seek) {
+            whereArgs = new String[] {bucketId};
+        } else if (seekDate == Long.MIN_VALUE) {
+            // Null dates sort last in descending order.
+            where += " AND (" + mDateTakenColumn + " IS NULL AND _id < ?)";
+            whereArgs = new String[] {bucketId, String.valueOf(seekId)};
+        } else {
+            where += " AND (" + mDateTakenColumn + " < ? OR "
+                    + mDateTakenColumn + " IS NULL OR ("
+                    + mDateTakenColumn + " = ? AND _id < ?))";
+            String date = String.valueOf(seekDate);
+            whereArgs = new String[] {bucketId, date, date, String.valueOf(seekId)};
+        }
+        return mResolver.query(uri, projection, where, whereArgs, mOrderClause);
+    }
+
+    private static long getDateTakenKey(Cursor cursor, int index) {
+        return cursor.isNull(index) ? Long.MIN_VALUE : cursor.getLong(index);
+    }
+
+    // Records the key of the row at the given position if it extends the
+    // contiguous run of checkpoints of the current generation.
+    private void addCheckpoint(int generation, int position, long date, int id) {
+        synchronized (mCheckpointLock) {
+            int checkpoint = (position + 1) / CHECKPOINT_INTERVAL - 1;
+            if (generation != mCheckpointGeneration
+                    || checkpoint != mCheckpointCount
+                    || checkpoint >= MAX_CHECKPOINTS) {
+                return;
+            }
+            if (checkpoint == mCheckpointIds.length) {
+                int capacity = Math.min(checkpoint * 2, MAX_CHECKPOINTS);
+                long[] dates = new long[capacity];
+                int[] ids = new int[capacity];
+                System.arraycopy(mCheckpointDates, 0, dates, 0, checkpoint);
+                System.arraycopy(mCheckpointIds, 0, ids, 0, checkpoint);
+                mCheckpointDates = dates;
+                mCheckpointIds = ids;
+            }
+            mCheckpointDates[checkpoint] = date;
+            mCheckpointIds[checkpoint] = id;
+            mCheckpointCount++;
+        }
+    }
+
+    // Makes sure the first "target" checkpoints are known, by scanning only
+    // the key columns forward from the last known checkpoint. This is paid
+    // once for a jump deep into the album; later pages just seek.
+    private void fillCheckpoints(int target) {
+        int generation;
+        int checkpoint;
+        long seekDate = 0;
+        int seekId = 0;
+        synchronized (mCheckpointLock) {
+            target = Math.min(target, MAX_CHECKPOINTS);
+            if (mCheckpointCount >= target) return;
+            generation = mCheckpointGeneration;
+            checkpoint = mCheckpointCount - 1;
+            if (checkpoint >= 0) {
+                seekDate = mCheckpointDates[checkpoint];
+                seekId = mCheckpointIds[checkpoint];
+            }
+        }
+        int position = (checkpoint + 1) * CHECKPOINT_INTERVAL;
+        int count = target * CHECKPOINT_INTERVAL - position;
+        Cursor cursor = queryPage(mKeyProjection, checkpoint >= 0, seekDate, seekId,
+                0, count);
+        if (cursor == null) {
+            Log.w(TAG, "query fail: " + mBaseUri);
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                if ((position + 1) % CHECKPOINT_INTERVAL == 0) {
+                    addCheckpoint(generation, position,
+                            getDateTakenKey(cursor, 1), cursor.getInt(0));
+                }
+                ++position;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the cached item for the path if the cursor row has the same
+    // version, or null if the item must be created or updated. Items found
+    // here are not modified, so DataManager.LOCK is not needed.
+    private static MediaItem peekUpToDateItem(Path path, Cursor cursor,
+            DataManager dataManager) {
+        LocalMediaItem item = (LocalMediaItem) dataManager.peekMediaObject(path);
+        return (item != null && item.isUpToDate(cursor)) ? item : null;
+    }
+
+    // Must be called with DataManager.LOCK held.
     private static MediaItem loadOrUpdateItem(Path path, Cursor cursor,
             DataManager dataManager, GalleryApp app, boolean isImage) {
-        synchronized (DataManager.LOCK) {
-            LocalMediaItem item = (LocalMediaItem) dataManager.peekMediaObject(path);
-            if (item == null) {
-                if (isImage) {
-                    item = new LocalImage(path, app, cursor);
-                } else {
-                    item = new LocalVideo(path, app, cursor);
-                }
+        LocalMediaItem item = (LocalMediaItem) dataManager.peekMediaObject(path);
+        if (item == null) {
+            if (isImage) {
+                item = new LocalImage(path, app, cursor);
             } else {
-                item.updateContent(cursor);
+                item = new LocalVideo(path, app, cursor);
+            }
+        } else {
+            item.updateContent(cursor);
+        }
+        return item;
+    }
+
+    // The rows of a page whose items are missing or out of date. They are
+    // loaded after the page has been scanned, in one DataManager.LOCK
+    // section instead of one per row.
+    private static class StaleRows {
+        // Pairs of (cursor position, index in the result).
+        private final IntArray mRows = new IntArray();
+
+        public void add(int cursorPosition, int resultIndex) {
+            mRows.add(cursorPosition);
+            mRows.add(resultIndex);
+        }
+
+        public void load(Cursor cursor, Path itemPath, DataManager dataManager,
+                GalleryApp app, boolean isImage, List<MediaItem> result) {
+            int n = mRows.size();
+            if (n == 0) return;
+            int[] rows = mRows.getInternalArray();
+            synchronized (DataManager.LOCK) {
+                for (int i = 0; i < n; i += 2) {
+                    if (!cursor.moveToPosition(rows[i])) continue;
+                    Path childPath = itemPath.getChild(cursor.getInt(0));
+                    result.set(rows[i + 1], loadOrUpdateItem(
+                            childPath, cursor, dataManager, app, isImage));
+                }
             }
-            return item;
         }
     }
 
@@ -193,6 +480,7 @@ public class LocalAlbum extends MediaSet {
         try {
             int n = ids.size();
             int i = 0;
+            StaleRows stale = new StaleRows();
 
             while (i < n && cursor.moveToNext()) {
                 int id = cursor.getInt(0);  // _id must be in the first column
@@ -203,17 +491,18 @@ public class LocalAlbum extends MediaSet {
                 }
 
                 while (ids.get(i) < id) {
-                    if (++i >= n) {
-                        return result;
-                    }
+                    if (++i >= n) break;
                 }
+                if (i >= n) break;
 
                 Path childPath = itemPath.getChild(id);
-                MediaItem item = loadOrUpdateItem(childPath, cursor, dataManager,
-                        application, isImage);
+                MediaItem item = peekUpToDateItem(childPath, cursor, dataManager);
+                if (item == null) stale.add(cursor.getPosition(), i);
                 result[i] = item;
                 ++i;
             }
+            stale.load(cursor, itemPath, dataManager, application, isImage,
+                    Arrays.asList(result));
             return result;
         } finally {
             cursor.close();
@@ -256,6 +545,12 @@ public class LocalAlbum extends MediaSet {
         if (mNotifier.isDirty()) {
             mDataVersion = nextVersionNumber();
             mCachedCount = INVALID_COUNT;
+            synchronized (mCheckpointLock) {
+                mCheckpointCount = 0;
+                mCheckpointGeneration++;
+            }
+            // Keep an index that has been asked for ready for the new version.
+            if (isIndexRequested()) startIndexBuild(mDataVersion);
         }
         return mDataVersion;
     }
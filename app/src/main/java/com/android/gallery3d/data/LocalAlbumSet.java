@@ -57,6 +57,7 @@ public class LocalAlbumSet extends MediaSet
 
     private Future<ArrayList<MediaSet>> mLoadTask;
     private ArrayList<MediaSet> mLoadBuffer;
+    private boolean mRestoredAlbums;
 
     public LocalAlbumSet(Path path, GalleryApp application) {
         super(path, nextVersionNumber());
@@ -122,17 +123,22 @@ public class LocalAlbumSet extends MediaSet
                 circularShiftRight(entries, offset++, index);
             }
 
-            ArrayList<MediaSet> albums = new ArrayList<MediaSet>();
-            DataManager dataManager = mApplication.getDataManager();
-            for (BucketEntry entry : entries) {
-                MediaSet album = getLocalAlbum(dataManager,
-                        mType, mPath, entry.bucketId, entry.bucketName);
-                albums.add(album);
-            }
-            return albums;
+            mApplication.getDataManager().getLibraryIndex().setAlbums(mType, entries);
+            return createAlbums(entries);
         }
     }
 
+    private ArrayList<MediaSet> createAlbums(BucketEntry[] entries) {
+        ArrayList<MediaSet> albums = new ArrayList<MediaSet>();
+        DataManager dataManager = mApplication.getDataManager();
+        for (BucketEntry entry : entries) {
+            MediaSet album = getLocalAlbum(dataManager,
+                    mType, mPath, entry.bucketId, entry.bucketName);
+            albums.add(album);
+        }
+        return albums;
+    }
+
     private MediaSet getLocalAlbum(
             DataManager manager, int type, Path parent, int id, String name) {
         synchronized (DataManager.LOCK) {
@@ -146,7 +152,7 @@ public class LocalAlbumSet extends MediaSet
                     return new LocalAlbum(path, mApplication, id, false, name);
                 case MEDIA_TYPE_ALL:
                     Comparator<MediaItem> comp = DataManager.sDateTakenComparator;
-                    return new LocalMergeAlbum(path, comp, new MediaSet[] {
+                    return new LocalMergeAlbum(path, manager, comp, new MediaSet[] {
                             getLocalAlbum(manager, MEDIA_TYPE_IMAGE, PATH_IMAGE, id, name),
                             getLocalAlbum(manager, MEDIA_TYPE_VIDEO, PATH_VIDEO, id, name)}, id);
             }
@@ -168,14 +174,31 @@ public class LocalAlbumSet extends MediaSet
             if (mLoadTask != null) mLoadTask.cancel();
             mIsLoading = true;
             mLoadTask = mApplication.getThreadPool().submit(new AlbumsLoader(), this);
+            if (!mRestoredAlbums) {
+                // On a cold start show the albums saved by the last run until
+                // the loader above has reconciled them with MediaStore.
+                mRestoredAlbums = true;
+                BucketEntry[] entries = mApplication.getDataManager()
+                        .getLibraryIndex().getStoredAlbums(mType);
+                if (entries != null && mAlbums.isEmpty()) {
+                    mAlbums = createAlbums(entries);
+                    mDataVersion = nextVersionNumber();
+                }
+            }
         }
         if (mLoadBuffer != null) {
+            // Albums are shared MediaSet objects, so the restored list and
+            // the loaded one hold the same objects for unchanged albums.
+            // Only a change to the list or to one of the albums bumps the
+            // version, so an unchanged reconcile does not redraw the page.
+            boolean changed = !mLoadBuffer.equals(mAlbums);
             mAlbums = mLoadBuffer;
             mLoadBuffer = null;
             for (MediaSet album : mAlbums) {
-                album.reload();
+                long version = album.getDataVersion();
+                if (album.reload() != version) changed = true;
             }
-            mDataVersion = nextVersionNumber();
+            if (changed) mDataVersion = nextVersionNumber();
         }
         return mDataVersion;
     }
@@ -34,8 +34,10 @@ import com.android.gallery3d.app.GalleryApp;
 import com.android.gallery3d.app.PanoramaMetadataSupport;
 import com.android.gallery3d.common.ApiHelper;
 import com.android.gallery3d.common.BitmapUtils;
+import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.exif.ExifInterface;
 import com.android.gallery3d.exif.ExifTag;
+import com.android.gallery3d.exif.JpegScanner;
 import com.android.gallery3d.filtershow.tools.SaveImage;
 import com.android.gallery3d.util.GalleryUtils;
 import com.android.gallery3d.util.ThreadPool.Job;
@@ -59,7 +61,7 @@ public class LocalImage extends LocalMediaItem {
     private static final int INDEX_MIME_TYPE = 2;
     private static final int INDEX_LATITUDE = 3;
     private static final int INDEX_LONGITUDE = 4;
-    private static final int INDEX_DATE_TAKEN = 5;
+    static final int INDEX_DATE_TAKEN = 5;
     private static final int INDEX_DATE_ADDED = 6;
     private static final int INDEX_DATE_MODIFIED = 7;
     private static final int INDEX_DATA = 8;
@@ -147,6 +149,29 @@ public class LocalImage extends LocalMediaItem {
         height = cursor.getInt(INDEX_HEIGHT);
     }
 
+    // The version is made of the columns that change without the file
+    // content changing: moving the file to another folder keeps its date
+    // modified but changes the bucket id and path, renaming it changes the
+    // path and title, rotating a non-JPEG image only changes the orientation,
+    // a geotag edit changes the location, and a rescan may fill in the date
+    // taken or the size. The cheap numeric columns are compared first.
+    @Override
+    protected boolean isUpToDate(Cursor cursor) {
+        return dateModifiedInSec == cursor.getLong(INDEX_DATE_MODIFIED)
+                && fileSize == cursor.getLong(INDEX_SIZE)
+                && rotation == cursor.getInt(INDEX_ORIENTATION)
+                && bucketId == cursor.getInt(INDEX_BUCKET_ID)
+                && dateTakenInMs == cursor.getLong(INDEX_DATE_TAKEN)
+                && dateAddedInSec == cursor.getLong(INDEX_DATE_ADDED)
+                && width == cursor.getInt(INDEX_WIDTH)
+                && height == cursor.getInt(INDEX_HEIGHT)
+                && latitude == cursor.getDouble(INDEX_LATITUDE)
+                && longitude == cursor.getDouble(INDEX_LONGITUDE)
+                && Utils.equals(filePath, cursor.getString(INDEX_DATA))
+                && Utils.equals(caption, cursor.getString(INDEX_CAPTION))
+                && Utils.equals(mimeType, cursor.getString(INDEX_MIME_TYPE));
+    }
+
     @Override
     protected boolean updateFromCursor(Cursor cursor) {
         UpdateHelper uh = new UpdateHelper();
@@ -186,6 +211,11 @@ public class LocalImage extends LocalMediaItem {
             mLocalFilePath = localFilePath;
         }
 
+        @Override
+        protected String getLocalFilePath() {
+            return mLocalFilePath;
+        }
+
         @Override
         public Bitmap onDecodeOriginal(JobContext jc, final int type) {
             BitmapFactory.Options options = new BitmapFactory.Options();
@@ -194,11 +224,10 @@ public class LocalImage extends LocalMediaItem {
 
             // try to decode from JPEG EXIF
             if (type == MediaItem.TYPE_MICROTHUMBNAIL) {
-                ExifInterface exif = new ExifInterface();
                 byte[] thumbData = null;
                 try {
-                    exif.readExif(mLocalFilePath);
-                    thumbData = exif.getThumbnail();
+                    JpegScanner.Info info = JpegScanner.scan(new File(mLocalFilePath));
+                    if (info != null) thumbData = info.getThumbnailBytes();
                 } catch (FileNotFoundException e) {
                     Log.w(TAG, "failed to find file to read thumbnail: " + mLocalFilePath);
                 } catch (IOException e) {
@@ -209,6 +238,10 @@ public class LocalImage extends LocalMediaItem {
                             jc, thumbData, options, targetSize);
                     if (bitmap != null) return bitmap;
                 }
+                if (jc.isCancelled()) return null;
+
+                Bitmap bitmap = decodeJpegMicroThumbnail(jc, mLocalFilePath);
+                if (bitmap != null || jc.isCancelled()) return bitmap;
             }
 
             return DecodeUtils.decodeThumbnail(jc, mLocalFilePath, options, targetSize, type);
@@ -323,7 +356,10 @@ public class LocalImage extends LocalMediaItem {
         if (MIME_TYPE_JPEG.equals(mimeType)) {
             // ExifInterface returns incorrect values for photos in other format.
             // For example, the width and height of an webp images is always '0'.
-            MediaDetails.extractExifInfo(details, filePath);
+            if (!MetadataHarvester.getDetails(mApplication.getContentResolver(), id,
+                    dateModifiedInSec, details)) {
+                MediaDetails.extractExifInfo(details, filePath);
+            }
         }
         return details;
     }
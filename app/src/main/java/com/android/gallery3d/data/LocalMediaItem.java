@@ -70,11 +70,17 @@ public abstract class LocalMediaItem extends MediaItem {
 
     abstract protected boolean updateFromCursor(Cursor cursor);
 
+    // Compares the row with this item, cheap numeric columns first. When
+    // the columns that can change all match, the row is unchanged and
+    // updateFromCursor() is skipped.
+    abstract protected boolean isUpToDate(Cursor cursor);
+
     public int getBucketId() {
         return bucketId;
     }
 
     protected void updateContent(Cursor cursor) {
+        if (isUpToDate(cursor)) return;
         if (updateFromCursor(cursor)) {
             mDataVersion = nextVersionNumber();
         }
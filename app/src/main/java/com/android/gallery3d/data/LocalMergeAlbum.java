@@ -20,13 +20,13 @@ import android.net.Uri;
 import android.provider.MediaStore;
 
 import com.android.gallery3d.common.ApiHelper;
+import com.android.gallery3d.util.Future;
+import com.android.gallery3d.util.IntArray;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.NoSuchElementException;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 // MergeAlbum merges items from two or more MediaSets. It uses a Comparator to
 // determine the order of items. The items are assumed to be sorted in the input
@@ -36,21 +36,35 @@ import java.util.TreeMap;
 public class LocalMergeAlbum extends MediaSet implements ContentListener {
     @SuppressWarnings("unused")
     private static final String TAG = "LocalMergeAlbum";
-    private static final int PAGE_SIZE = 64;
 
+    // The page buffers of all sources together hold at most this many items.
+    private static final int MAX_BUFFERED_ITEMS = 256;
+    private static final int MIN_PAGE_SIZE = 16;
+    private static final int MAX_PAGE_SIZE = 64;
+
+    private static final Path[] ITEM_PATHS = {LocalImage.ITEM_PATH, LocalVideo.ITEM_PATH};
+
+    private final DataManager mDataManager;
     private final Comparator<MediaItem> mComparator;
     private final MediaSet[] mSources;
 
     private FetchCache[] mFetcher;
+    private SortedMerge<MediaItem> mMerge;
     private int mSupportedOperation;
     private int mBucketId;
 
-    // mIndex maps global position to the position of each underlying media sets.
-    private TreeMap<Integer, int[]> mIndex = new TreeMap<Integer, int[]>();
+    private volatile MediaItemIndex mItemIndex;
+    // The seek keys of the sources, built with mItemIndex.
+    private volatile SeekKeys mSeekKeys;
+    // The job building mItemIndex for mIndexTaskVersion. Guarded by mIndexLock.
+    private final Object mIndexLock = new Object();
+    private Future<MediaItemIndex> mIndexTask;
+    private long mIndexTaskVersion;
 
-    public LocalMergeAlbum(
-            Path path, Comparator<MediaItem> comparator, MediaSet[] sources, int bucketId) {
+    public LocalMergeAlbum(Path path, DataManager dataManager,
+            Comparator<MediaItem> comparator, MediaSet[] sources, int bucketId) {
         super(path, INVALID_DATA_VERSION);
+        mDataManager = dataManager;
         mComparator = comparator;
         mSources = sources;
         mBucketId = bucketId;
@@ -70,24 +84,23 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
     }
 
     private void updateData() {
-        ArrayList<MediaSet> matches = new ArrayList<MediaSet>();
         int supported = mSources.length == 0 ? 0 : MediaItem.SUPPORT_ALL;
+        int pageSize = Math.max(MIN_PAGE_SIZE, Math.min(MAX_PAGE_SIZE,
+                MAX_BUFFERED_ITEMS / Math.max(1, mSources.length)));
         mFetcher = new FetchCache[mSources.length];
         for (int i = 0, n = mSources.length; i < n; ++i) {
-            mFetcher[i] = new FetchCache(mSources[i]);
+            mFetcher[i] = new FetchCache(mSources[i], pageSize);
             supported &= mSources[i].getSupportedOperations();
         }
         mSupportedOperation = supported;
-        mIndex.clear();
-        mIndex.put(0, new int[mSources.length]);
+        mMerge = new SortedMerge<MediaItem>(mComparator, mFetcher, mKeyProvider);
     }
 
     private void invalidateCache() {
         for (int i = 0, n = mSources.length; i < n; i++) {
             mFetcher[i].invalidate();
         }
-        mIndex.clear();
-        mIndex.put(0, new int[mSources.length]);
+        mMerge.reset();
     }
 
     @Override
@@ -118,49 +131,139 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
 
     @Override
     public ArrayList<MediaItem> getMediaItem(int start, int count) {
+        if (mMerge == null) return new ArrayList<MediaItem>();
+        return mMerge.get(start, count);
+    }
 
-        // First find the nearest mark position <= start.
-        SortedMap<Integer, int[]> head = mIndex.headMap(start + 1);
-        int markPos = head.lastKey();
-        int[] subPos = head.get(markPos).clone();
-        MediaItem[] slot = new MediaItem[mSources.length];
+    @Override
+    public long[] getItemSignatures() {
+        return getItemSignatures(mDataManager.getLibraryIndex());
+    }
 
-        int size = mSources.length;
+    // Starts building the index for the current data version on a thread pool
+    // thread, so it is usually ready by the time getIndexOfItem() needs it.
+    @Override
+    public void prepareItemIndex() {
+        long version = mDataVersion;
+        MediaItemIndex index = mItemIndex;
+        if (index == null || index.getDataVersion() != version) startIndexBuild(version);
+    }
 
-        // fill all slots
-        for (int i = 0; i < size; i++) {
-            slot[i] = mFetcher[i].getItem(subPos[i]);
-        }
+    // Returns the id -> position index for the current data version, waiting
+    // for the build if it is not ready. Returns null if the library index
+    // cannot order the items; getIndexOfItem() then scans pages.
+    @Override
+    protected MediaItemIndex getItemIndex() {
+        long version = mDataVersion;
+        MediaItemIndex index = mItemIndex;
+        if (index != null && index.getDataVersion() == version) return index;
+        return startIndexBuild(version).get();
+    }
 
-        ArrayList<MediaItem> result = new ArrayList<MediaItem>();
+    private boolean isIndexRequested() {
+        synchronized (mIndexLock) {
+            return mIndexTask != null;
+        }
+    }
 
-        for (int i = markPos; i < start + count; i++) {
-            int k = -1;  // k points to the best slot up to now.
-            for (int j = 0; j < size; j++) {
-                if (slot[j] != null) {
-                    if (k == -1 || mComparator.compare(slot[j], slot[k]) < 0) {
-                        k = j;
-                    }
-                }
+    // Returns the job building the index for the version, starting it if needed.
+    private Future<MediaItemIndex> startIndexBuild(long version) {
+        synchronized (mIndexLock) {
+            if (mIndexTask == null || mIndexTaskVersion != version) {
+                if (mIndexTask != null) mIndexTask.cancel();
+                mIndexTaskVersion = version;
+                mIndexTask = mDataManager.getThreadPool().submit(new IndexBuilder(version));
             }
+            return mIndexTask;
+        }
+    }
 
-            // If we don't have anything, all streams are exhausted.
-            if (k == -1) break;
+    private static class SeekKeys {
+        final long version;
+        final long[][] keys;
+
+        SeekKeys(long version, long[][] keys) {
+            this.version = version;
+            this.keys = keys;
+        }
+    }
 
-            // Pick the best slot and refill it.
-            subPos[k]++;
-            if (i >= start) {
-                result.add(slot[k]);
+    // Deep seeks in the merge compare the date taken from the library index
+    // instead of loading pages of the sources. This waits for the index
+    // build, which the seek would otherwise outlast.
+    private final SortedMerge.KeyProvider mKeyProvider = new SortedMerge.KeyProvider() {
+        @Override
+        public long[][] getKeys() {
+            long version = mDataVersion;
+            SeekKeys keys = mSeekKeys;
+            if (keys == null || keys.version != version) {
+                startIndexBuild(version).get();
+                keys = mSeekKeys;
             }
-            slot[k] = mFetcher[k].getItem(subPos[k]);
+            return keys != null && keys.version == version ? keys.keys : null;
+        }
+    };
+
+    // Builds the index and the seek keys from the library index rows, which
+    // come in the order of the merge (see enumerateTotalIndexRows()), so no
+    // page is loaded.
+    private class IndexBuilder implements Job<MediaItemIndex> {
+        private final long mVersion;
+
+        IndexBuilder(long version) {
+            mVersion = version;
+        }
 
-            // Periodically leave a mark in the index, so we can come back later.
-            if ((i + 1) % PAGE_SIZE == 0) {
-                mIndex.put(i + 1, subPos.clone());
+        @Override
+        public MediaItemIndex run(JobContext jc) {
+            LibraryIndex.Snapshot snapshot = mDataManager.getLibraryIndex().getSnapshot();
+            if (snapshot == null || jc.isCancelled()) return null;
+            IntArray rows = new IntArray();
+            long[][] keys = new long[mSources.length][];
+            if (!enumerateTotalIndexRows(snapshot, rows, keys)) return null;
+            // Image and video ids are both MediaStore file ids, so they do not
+            // collide and one index covers both sources.
+            int[] ids = rows.getInternalArray();
+            for (int i = 0, n = rows.size(); i < n; i++) {
+                ids[i] = snapshot.getId(ids[i]);
             }
+            MediaItemIndex index = new MediaItemIndex(ITEM_PATHS, mVersion, ids, rows.size());
+            if (!jc.isCancelled()) {
+                mSeekKeys = new SeekKeys(mVersion, keys);
+                mItemIndex = index;
+            }
+            return index;
         }
+    }
 
-        return result;
+    @Override
+    public boolean enumerateTotalIndexRows(LibraryIndex.Snapshot snapshot, IntArray rows) {
+        return enumerateTotalIndexRows(snapshot, rows, null);
+    }
+
+    // The rows can only be ordered without MediaItems for the date taken
+    // comparator, which is what LocalSource and LocalAlbumSet use. If keys is
+    // not null, keys[s] is set to the seek keys of source s: the negated date
+    // taken, as the merge is newest first.
+    private boolean enumerateTotalIndexRows(LibraryIndex.Snapshot snapshot, IntArray rows,
+            long[][] keys) {
+        if (mComparator != DataManager.sDateTakenComparator) return false;
+        int from = rows.size();
+        for (int s = 0; s < mSources.length; s++) {
+            int start = rows.size();
+            if (!mSources[s].enumerateTotalIndexRows(snapshot, rows)) return false;
+            if (keys != null) {
+                int[] array = rows.getInternalArray();
+                keys[s] = new long[rows.size() - start];
+                for (int i = 0; i < keys[s].length; i++) {
+                    keys[s][i] = -snapshot.getDateTaken(array[start + i]);
+                }
+            }
+        }
+        // Each source is sorted already. A stable sort of the concatenation
+        // gives the same order as the merge in getMediaItem().
+        snapshot.sortByDateTakenDescending(rows.getInternalArray(), from, rows.size());
+        return true;
     }
 
     @Override
@@ -182,6 +285,8 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
             mDataVersion = nextVersionNumber();
             updateData();
             invalidateCache();
+            // Keep an index that has been asked for ready for the new version.
+            if (isIndexRequested()) startIndexBuild(mDataVersion);
         }
         return mDataVersion;
     }
@@ -210,43 +315,36 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
         }
     }
 
-    private static class FetchCache {
-        private MediaSet mBaseSet;
-        private SoftReference<ArrayList<MediaItem>> mCacheRef;
+    // Holds one page of a source. The page is strongly referenced; the total
+    // memory is bounded by MAX_BUFFERED_ITEMS across all sources.
+    private static class FetchCache implements SortedMerge.Source<MediaItem> {
+        private final MediaSet mBaseSet;
+        private final int mPageSize;
+        private ArrayList<MediaItem> mCache;
         private int mStartPos;
 
-        public FetchCache(MediaSet baseSet) {
+        public FetchCache(MediaSet baseSet, int pageSize) {
             mBaseSet = baseSet;
+            mPageSize = pageSize;
         }
 
         public void invalidate() {
-            mCacheRef = null;
+            mCache = null;
         }
 
-        public MediaItem getItem(int index) {
-            boolean needLoading = false;
-            ArrayList<MediaItem> cache = null;
-            if (mCacheRef == null
-                    || index < mStartPos || index >= mStartPos + PAGE_SIZE) {
-                needLoading = true;
-            } else {
-                cache = mCacheRef.get();
-                if (cache == null) {
-                    needLoading = true;
-                }
-            }
-
-            if (needLoading) {
-                cache = mBaseSet.getMediaItem(index, PAGE_SIZE);
-                mCacheRef = new SoftReference<ArrayList<MediaItem>>(cache);
+        @Override
+        public MediaItem get(int index) {
+            if (mCache == null
+                    || index < mStartPos || index >= mStartPos + mPageSize) {
+                mCache = mBaseSet.getMediaItem(index, mPageSize);
                 mStartPos = index;
             }
 
-            if (index < mStartPos || index >= mStartPos + cache.size()) {
+            if (index < mStartPos || index >= mStartPos + mCache.size()) {
                 return null;
             }
 
-            return cache.get(index - mStartPos);
+            return mCache.get(index - mStartPos);
         }
     }
 
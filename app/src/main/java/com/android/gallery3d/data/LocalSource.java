@@ -100,7 +100,7 @@ class LocalSource extends MediaSource {
                         LocalAlbumSet.PATH_VIDEO.getChild(bucketId));
                 Comparator<MediaItem> comp = DataManager.sDateTakenComparator;
                 return new LocalMergeAlbum(
-                        path, comp, new MediaSet[] {imageSet, videoSet}, bucketId);
+                        path, dataManager, comp, new MediaSet[] {imageSet, videoSet}, bucketId);
             }
             case LOCAL_IMAGE_ITEM:
                 return new LocalImage(path, mApplication, mMatcher.getIntVar(0));
@@ -26,6 +26,7 @@ import android.provider.MediaStore.Video.VideoColumns;
 
 import com.android.gallery3d.app.GalleryApp;
 import com.android.gallery3d.common.BitmapUtils;
+import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.GalleryUtils;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
@@ -43,7 +44,7 @@ public class LocalVideo extends LocalMediaItem {
     private static final int INDEX_MIME_TYPE = 2;
     private static final int INDEX_LATITUDE = 3;
     private static final int INDEX_LONGITUDE = 4;
-    private static final int INDEX_DATE_TAKEN = 5;
+    static final int INDEX_DATE_TAKEN = 5;
     private static final int INDEX_DATE_ADDED = 6;
     private static final int INDEX_DATE_MODIFIED = 7;
     private static final int INDEX_DATA = 8;
@@ -128,6 +129,22 @@ public class LocalVideo extends LocalMediaItem {
         }
     }
 
+    // See LocalImage.isUpToDate().
+    @Override
+    protected boolean isUpToDate(Cursor cursor) {
+        return dateModifiedInSec == cursor.getLong(INDEX_DATE_MODIFIED)
+                && fileSize == cursor.getLong(INDEX_SIZE)
+                && bucketId == cursor.getInt(INDEX_BUCKET_ID)
+                && dateTakenInMs == cursor.getLong(INDEX_DATE_TAKEN)
+                && dateAddedInSec == cursor.getLong(INDEX_DATE_ADDED)
+                && durationInSec == cursor.getInt(INDEX_DURATION) / 1000
+                && latitude == cursor.getDouble(INDEX_LATITUDE)
+                && longitude == cursor.getDouble(INDEX_LONGITUDE)
+                && Utils.equals(filePath, cursor.getString(INDEX_DATA))
+                && Utils.equals(caption, cursor.getString(INDEX_CAPTION))
+                && Utils.equals(mimeType, cursor.getString(INDEX_MIME_TYPE));
+    }
+
     @Override
     protected boolean updateFromCursor(Cursor cursor) {
         UpdateHelper uh = new UpdateHelper();
@@ -166,6 +183,11 @@ public class LocalVideo extends LocalMediaItem {
             mLocalFilePath = localFilePath;
         }
 
+        @Override
+        protected String getLocalFilePath() {
+            return mLocalFilePath;
+        }
+
         @Override
         public Bitmap onDecodeOriginal(JobContext jc, int type) {
             Bitmap bitmap = BitmapUtils.createVideoThumbnail(mLocalFilePath);
@@ -64,24 +64,11 @@ class LocationClustering extends Clustering {
     }
 
     @Override
-    public void run(MediaSet baseSet) {
-        final int total = baseSet.getTotalMediaItemCount();
-        final SmallItem[] buf = new SmallItem[total];
-        // Separate items to two sets: with or without lat-long.
-        final double[] latLong = new double[2];
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
-            @Override
-            public void consume(int index, MediaItem item) {
-                if (index < 0 || index >= total) return;
-                SmallItem s = new SmallItem();
-                s.path = item.getPath();
-                item.getLatLong(latLong);
-                s.lat = latLong[0];
-                s.lng = latLong[1];
-                buf[index] = s;
-            }
-        });
+    public void run(ClusterFeatures features) {
+        final SmallItem[] buf = getSmallItems(features);
+        final int total = buf.length;
 
+        // Separate items to two sets: with or without lat-long.
         final ArrayList<SmallItem> withLatLong = new ArrayList<SmallItem>();
         final ArrayList<SmallItem> withoutLatLong = new ArrayList<SmallItem>();
         final ArrayList<Point> points = new ArrayList<Point>();
@@ -116,11 +103,13 @@ class LocationClustering extends Clustering {
         }
 
         ReverseGeocoder geocoder = new ReverseGeocoder(mContext);
+        String[] names = generateNames(clusters, geocoder);
         mNames = new ArrayList<String>();
         boolean hasUnresolvedAddress = false;
         mClusters = new ArrayList<ArrayList<SmallItem>>();
-        for (ArrayList<SmallItem> cluster : clusters) {
-            String name = generateName(cluster, geocoder);
+        for (int i = 0, n = clusters.size(); i < n; i++) {
+            ArrayList<SmallItem> cluster = clusters.get(i);
+            String name = names[i];
             if (name != null) {
                 mNames.add(name);
                 mClusters.add(cluster);
@@ -147,8 +136,31 @@ class LocationClustering extends Clustering {
         }
     }
 
-    private static String generateName(ArrayList<SmallItem> items,
+    private static SmallItem[] getSmallItems(ClusterFeatures features) {
+        int n = features.mCount;
+        SmallItem[] buf = new SmallItem[n];
+        for (int i = 0; i < n; i++) {
+            SmallItem s = new SmallItem();
+            s.path = features.mPaths[i];
+            s.lat = features.mLatitudes[i];
+            s.lng = features.mLongitudes[i];
+            buf[i] = s;
+        }
+        return buf;
+    }
+
+    // Names all the clusters with one batched geocoder lookup.
+    private static String[] generateNames(ArrayList<ArrayList<SmallItem>> clusters,
             ReverseGeocoder geocoder) {
+        int n = clusters.size();
+        ReverseGeocoder.SetLatLong[] sets = new ReverseGeocoder.SetLatLong[n];
+        for (int i = 0; i < n; i++) {
+            sets[i] = getSetLatLong(clusters.get(i));
+        }
+        return geocoder.computeAddresses(sets);
+    }
+
+    private static ReverseGeocoder.SetLatLong getSetLatLong(ArrayList<SmallItem> items) {
         ReverseGeocoder.SetLatLong set = new ReverseGeocoder.SetLatLong();
 
         int n = items.size();
@@ -174,8 +186,7 @@ class LocationClustering extends Clustering {
                 set.mMaxLonLongitude = itemLongitude;
             }
         }
-
-        return geocoder.computeAddress(set);
+        return set;
     }
 
     @Override
@@ -19,9 +19,11 @@ package com.android.gallery3d.data;
 import com.android.gallery3d.R;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.exif.ExifInterface;
+import com.android.gallery3d.exif.ExifProjection;
 import com.android.gallery3d.exif.ExifTag;
 import com.android.gallery3d.exif.Rational;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -109,62 +111,67 @@ public class MediaDetails implements Iterable<Entry<Integer, Object>> {
         return mUnits.get(index);
     }
 
-    private static void setExifData(MediaDetails details, ExifTag tag,
-            int key) {
-        if (tag != null) {
-            String value = null;
-            int type = tag.getDataType();
-            if (type == ExifTag.TYPE_UNSIGNED_RATIONAL || type == ExifTag.TYPE_RATIONAL) {
-                value = String.valueOf(tag.getValueAsRational(0).toDouble());
-            } else if (type == ExifTag.TYPE_ASCII) {
-                value = tag.getValueAsString();
-            } else {
-                value = String.valueOf(tag.forceGetValueAsLong(0));
-            }
-            if (key == MediaDetails.INDEX_FLASH) {
-                FlashState state = new FlashState(
-                        Integer.valueOf(value.toString()));
-                details.addDetail(key, state);
-            } else {
-                details.addDetail(key, value);
-            }
+    // The EXIF tags shown as details, and the detail each one fills.
+    static final int[] EXIF_TAG_IDS = {
+            ExifInterface.TAG_FLASH,
+            ExifInterface.TAG_IMAGE_WIDTH,
+            ExifInterface.TAG_IMAGE_LENGTH,
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_MODEL,
+            ExifInterface.TAG_APERTURE_VALUE,
+            ExifInterface.TAG_ISO_SPEED_RATINGS,
+            ExifInterface.TAG_WHITE_BALANCE,
+            ExifInterface.TAG_EXPOSURE_TIME,
+            ExifInterface.TAG_FOCAL_LENGTH,
+    };
+    static final int[] EXIF_DETAILS = {
+            INDEX_FLASH, INDEX_WIDTH, INDEX_HEIGHT, INDEX_MAKE, INDEX_MODEL,
+            INDEX_APERTURE, INDEX_ISO, INDEX_WHITE_BALANCE, INDEX_EXPOSURE_TIME,
+            INDEX_FOCAL_LENGTH,
+    };
+    private static final ExifProjection EXIF_TAGS = new ExifProjection(EXIF_TAG_IDS);
+
+    // Returns the value of the detail from the tag in the given slot, or
+    // null if the tag is absent: a FlashState for the flash, a Double for the
+    // focal length and a String for the others.
+    static Object getExifDetail(ExifProjection.Result exif, int slot, int key) {
+        if (!exif.hasTag(slot)) return null;
+        if (key == INDEX_FLASH) {
+            return new FlashState((int) exif.getLong(slot, 0, 0));
+        } else if (key == INDEX_FOCAL_LENGTH) {
+            return exif.getRational(slot, 0, Double.NaN);
+        }
+        int type = exif.getDataType(slot);
+        if (type == ExifTag.TYPE_UNSIGNED_RATIONAL || type == ExifTag.TYPE_RATIONAL) {
+            return String.valueOf(exif.getRational(slot, 0, Double.NaN));
+        } else if (type == ExifTag.TYPE_ASCII) {
+            return exif.getString(slot);
+        } else {
+            return String.valueOf(exif.getLong(slot, 0, 0));
         }
     }
 
-    public static void extractExifInfo(MediaDetails details, String filePath) {
+    static void addExifDetail(MediaDetails details, int key, Object value) {
+        details.addDetail(key, value);
+        if (key == INDEX_FOCAL_LENGTH) {
+            details.setUnit(INDEX_FOCAL_LENGTH, R.string.unit_mm);
+        }
+    }
 
-        ExifInterface exif = new ExifInterface();
+    public static void extractExifInfo(MediaDetails details, String filePath) {
+        // Only the tags shown are read; the rest of the header is skipped.
+        ExifProjection.Result exif = EXIF_TAGS.newResult();
         try {
-            exif.readExif(filePath);
+            EXIF_TAGS.read(new File(filePath), exif);
         } catch (FileNotFoundException e) {
             Log.w(TAG, "Could not find file to read exif: " + filePath, e);
         } catch (IOException e) {
             Log.w(TAG, "Could not read exif from file: " + filePath, e);
         }
 
-        setExifData(details, exif.getTag(ExifInterface.TAG_FLASH),
-                MediaDetails.INDEX_FLASH);
-        setExifData(details, exif.getTag(ExifInterface.TAG_IMAGE_WIDTH),
-                MediaDetails.INDEX_WIDTH);
-        setExifData(details, exif.getTag(ExifInterface.TAG_IMAGE_LENGTH),
-                MediaDetails.INDEX_HEIGHT);
-        setExifData(details, exif.getTag(ExifInterface.TAG_MAKE),
-                MediaDetails.INDEX_MAKE);
-        setExifData(details, exif.getTag(ExifInterface.TAG_MODEL),
-                MediaDetails.INDEX_MODEL);
-        setExifData(details, exif.getTag(ExifInterface.TAG_APERTURE_VALUE),
-                MediaDetails.INDEX_APERTURE);
-        setExifData(details, exif.getTag(ExifInterface.TAG_ISO_SPEED_RATINGS),
-                MediaDetails.INDEX_ISO);
-        setExifData(details, exif.getTag(ExifInterface.TAG_WHITE_BALANCE),
-                MediaDetails.INDEX_WHITE_BALANCE);
-        setExifData(details, exif.getTag(ExifInterface.TAG_EXPOSURE_TIME),
-                MediaDetails.INDEX_EXPOSURE_TIME);
-        ExifTag focalTag = exif.getTag(ExifInterface.TAG_FOCAL_LENGTH);
-        if (focalTag != null) {
-            details.addDetail(MediaDetails.INDEX_FOCAL_LENGTH,
-                    focalTag.getValueAsRational(0).toDouble());
-            details.setUnit(MediaDetails.INDEX_FOCAL_LENGTH, R.string.unit_mm);
+        for (int slot = 0; slot < EXIF_DETAILS.length; slot++) {
+            Object value = getExifDetail(exif, slot, EXIF_DETAILS[slot]);
+            if (value != null) addExifDetail(details, EXIF_DETAILS[slot], value);
         }
     }
 }
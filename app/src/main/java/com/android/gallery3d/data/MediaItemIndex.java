@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.gallery3d.data;
+
+import java.util.Arrays;
+
+// MediaItemIndex maps the ids of the items in a MediaSet to their positions.
+// All the items must be children of one of the given item paths, with their
+// numeric id as the last segment (like "/local/image/item/123"). The ids must
+// be unique across the item paths, as MediaStore ids of images and videos are.
+// The index is only valid for the data version it was built for.
+public class MediaItemIndex {
+    private final Path[] mItemPaths;
+    private final long mDataVersion;
+    // Sorted entries of (id << 32) | position.
+    private final long[] mEntries;
+
+    public MediaItemIndex(Path itemPath, long dataVersion, int[] ids, int count) {
+        this(new Path[] {itemPath}, dataVersion, ids, count);
+    }
+
+    public MediaItemIndex(Path[] itemPaths, long dataVersion, int[] ids, int count) {
+        mItemPaths = itemPaths;
+        mDataVersion = dataVersion;
+        mEntries = new long[count];
+        for (int i = 0; i < count; i++) {
+            mEntries[i] = ((long) ids[i] << 32) | i;
+        }
+        Arrays.sort(mEntries);
+    }
+
+    public long getDataVersion() {
+        return mDataVersion;
+    }
+
+    public int size() {
+        return mEntries.length;
+    }
+
+    // Returns the position of the item, or MediaSet.INDEX_NOT_FOUND.
+    public int indexOf(Path path) {
+        if (!isItemPath(path.getParent())) return MediaSet.INDEX_NOT_FOUND;
+        int id;
+        try {
+            id = Integer.parseInt(path.getSuffix());
+        } catch (NumberFormatException e) {
+            return MediaSet.INDEX_NOT_FOUND;
+        }
+
+        // Find the first entry >= (id << 32).
+        long key = (long) id << 32;
+        int lo = 0, hi = mEntries.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mEntries[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo < mEntries.length && (int) (mEntries[lo] >> 32) == id) {
+            return (int) mEntries[lo];
+        }
+        return MediaSet.INDEX_NOT_FOUND;
+    }
+
+    private boolean isItemPath(Path parent) {
+        for (Path itemPath : mItemPaths) {
+            if (parent == itemPath) return true;
+        }
+        return false;
+    }
+}
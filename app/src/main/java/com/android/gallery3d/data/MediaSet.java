@@ -18,6 +18,7 @@ package com.android.gallery3d.data;
 
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.Future;
+import com.android.gallery3d.util.IntArray;
 
 import java.util.ArrayList;
 import java.util.WeakHashMap;
@@ -42,6 +43,9 @@ public abstract class MediaSet extends MediaObject {
     public static final int SYNC_RESULT_CANCELLED = 1;
     public static final int SYNC_RESULT_ERROR = 2;
 
+    // How long getItemSignatures() waits for the library index to refresh.
+    private static final long SIGNATURE_WAIT_MS = 300;
+
     /** Listener to be used with requestSync(SyncListener). */
     public static interface SyncListener {
         /**
@@ -131,6 +135,10 @@ public abstract class MediaSet extends MediaObject {
         int index = getIndexOf(path, list);
         if (index != INDEX_NOT_FOUND) return start + index;
 
+        // use the reverse index if this set has one
+        MediaItemIndex itemIndex = getItemIndex();
+        if (itemIndex != null) return itemIndex.indexOf(path);
+
         // try to find it globally
         start = start == 0 ? MEDIAITEM_BATCH_FETCH_COUNT : 0;
         list = getMediaItem(start, MEDIAITEM_BATCH_FETCH_COUNT);
@@ -143,6 +151,45 @@ public abstract class MediaSet extends MediaObject {
         }
     }
 
+    // Returns an index from item path to position for the current data
+    // version, or null if this set has none and getIndexOfItem() should scan
+    // the items instead. It may wait for the index to be built, so it is only
+    // called from loader threads.
+    protected MediaItemIndex getItemIndex() {
+        return null;
+    }
+
+    // Called when the set is opened, so a set with an item index can start
+    // building it in the background before getIndexOfItem() needs it.
+    public void prepareItemIndex() {
+    }
+
+    // Returns a signature for each media item of this set, in order, or null
+    // if they cannot be computed cheaply. Items with the same signature in
+    // two data versions are the same, unchanged item; the loaders use this
+    // to find what changed between versions (see ItemDiff). Only called from
+    // loader threads, right after reload().
+    public long[] getItemSignatures() {
+        return null;
+    }
+
+    // Computes the item signatures from the library index rows of this set.
+    // The snapshot the index already holds is used; if it has not caught up
+    // with MediaStore within SIGNATURE_WAIT_MS, null is returned and the
+    // loader reloads as usual.
+    protected long[] getItemSignatures(LibraryIndex index) {
+        LibraryIndex.Snapshot snapshot = index.getCurrentSnapshot(SIGNATURE_WAIT_MS);
+        if (snapshot == null) return null;
+        IntArray rows = new IntArray();
+        if (!enumerateTotalIndexRows(snapshot, rows)) return null;
+        int[] array = rows.getInternalArray();
+        long[] signatures = new long[rows.size()];
+        for (int i = 0; i < signatures.length; i++) {
+            signatures[i] = snapshot.getSignature(array[i]);
+        }
+        return signatures;
+    }
+
     protected int getIndexOf(Path path, ArrayList<MediaItem> list) {
         for (int i = 0, n = list.size(); i < n; ++i) {
             // item could be null only in ClusterAlbum
@@ -219,6 +266,20 @@ public abstract class MediaSet extends MediaObject {
         return total;
     }
 
+    // Appends the library index rows of all media items under this set to
+    // rows, in the order enumerateTotalMediaItems() would visit them. Returns
+    // false if some item is not in the index, in which case the content of
+    // rows is undefined and the caller should enumerate the items instead.
+    //
+    // The default implementation handles sets that only have sub-sets.
+    public boolean enumerateTotalIndexRows(LibraryIndex.Snapshot snapshot, IntArray rows) {
+        if (getMediaItemCount() > 0) return false;
+        for (int i = 0, n = getSubMediaSetCount(); i < n; i++) {
+            if (!getSubMediaSet(i).enumerateTotalIndexRows(snapshot, rows)) return false;
+        }
+        return true;
+    }
+
     // Recursively enumerate all media items under this set.
     // Returns the number of items enumerated.
     protected int enumerateTotalMediaItems(
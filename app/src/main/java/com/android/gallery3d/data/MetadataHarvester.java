@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.MediaStore.Images;
+import android.provider.MediaStore.Images.ImageColumns;
+
+import com.android.gallery3d.app.GalleryApp;
+import com.android.gallery3d.data.MediaDetails.FlashState;
+import com.android.gallery3d.exif.ExifInterface;
+import com.android.gallery3d.exif.ExifProjection;
+import com.android.gallery3d.exif.ExifTag;
+import com.android.gallery3d.util.Future;
+import com.android.gallery3d.util.LightCycleHelper;
+import com.android.gallery3d.util.LightCycleHelper.PanoramaMetadata;
+import com.android.gallery3d.util.ParallelBatch;
+import com.android.gallery3d.util.ThreadPool;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
+import com.android.photos.data.PhotoProvider;
+import com.android.photos.data.PhotoProvider.LocalMetadata;
+import com.android.photos.data.PhotoProvider.Metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+// MetadataHarvester copies the EXIF fields shown in the details of local
+// JPEGs, their location and their panorama flags into the local metadata
+// table of PhotoProvider, so they can be shown without opening the files.
+// The rows are keyed by MediaStore id and the harvester owns the whole table.
+//
+// Every harvested photo gets a KEY_LOCAL_DATE_MODIFIED row holding the date
+// modified it was read at. A harvest compares those with the ids and dates
+// of the JPEG rows of MediaStore: rows of images that are gone are dropped,
+// and images that are missing from the table or have changed since are read,
+// newest first, CHUNK_SIZE rows at a time. Files are parsed on a bounded
+// number of threads with ParallelBatch, and finished photos are written in
+// row order, BATCH_SIZE photos per applyBatch() transaction. A harvest that
+// is stopped part way keeps what it wrote, and the next one reads the rest.
+//
+// The harvest runs while the gallery is in the foreground and starts over
+// when it is resumed after MediaStore has changed. Readers use getDetails()
+// and getPanoramaMetadata(), and fall back to the file when they return
+// nothing.
+public class MetadataHarvester {
+    private static final String TAG = "MetadataHarvester";
+
+    /** The date modified of the file the metadata was read from. Long value. */
+    static final String KEY_LOCAL_DATE_MODIFIED = "local_date_modified";
+
+    private static final Uri IMAGES_URI = Images.Media.EXTERNAL_CONTENT_URI;
+    private static final Uri[] WATCH_URIS = { IMAGES_URI };
+    private static final String IMAGES_URI_PREFIX = IMAGES_URI.toString() + "/";
+
+    private static final String WHERE_JPEG = ImageColumns.MIME_TYPE + " = 'image/jpeg'";
+    private static final String ORDER_BY = ImageColumns._ID + " DESC";
+    private static final String[] PROJECTION = {
+            ImageColumns._ID,               // 0
+            ImageColumns.DATA,              // 1
+            ImageColumns.DATE_MODIFIED,     // 2
+    };
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_DATA = 1;
+    private static final int INDEX_DATE_MODIFIED = 2;
+    private static final String[] LIVE_PROJECTION = {
+            ImageColumns._ID, ImageColumns.DATE_MODIFIED };
+
+    private static final String WHERE_KEY = LocalMetadata.KEY + " = ?";
+    private static final String WHERE_LOCAL_ID = LocalMetadata.LOCAL_ID + " = ?";
+    private static final String[] HARVESTED_PROJECTION = {
+            LocalMetadata.LOCAL_ID, LocalMetadata.VALUE };
+    private static final String[] VALUE_PROJECTION = { LocalMetadata.KEY, LocalMetadata.VALUE };
+
+    // Rows read from MediaStore at a time. Their ids are listed in the
+    // query, so this stays well below SQLite's limit on terms.
+    private static final int CHUNK_SIZE = 256;
+    // Photos written per transaction.
+    private static final int BATCH_SIZE = 64;
+    // Files parsed at a time, including the harvest job's own thread. The
+    // harvester has its own threads so the shared pool keeps serving
+    // thumbnails.
+    private static final int PARALLELISM = Math.max(1,
+            Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+    // The metadata key of each of MediaDetails.EXIF_DETAILS.
+    private static final String[] DETAIL_KEYS = {
+            Metadata.KEY_EXIF_FLASH,
+            Metadata.KEY_EXIF_IMAGE_WIDTH,
+            Metadata.KEY_EXIF_IMAGE_LENGTH,
+            Metadata.KEY_EXIF_MAKE,
+            Metadata.KEY_EXIF_MODEL,
+            Metadata.KEY_EXIF_APERTURE_VALUE,
+            Metadata.KEY_EXIF_ISO,
+            Metadata.KEY_EXIF_WHITE_BALANCE,
+            Metadata.KEY_EXIF_EXPOSURE,
+            Metadata.KEY_EXIF_FOCAL_LENGTH,
+    };
+
+    // The tags read from each file: those of the details, then the ones
+    // below.
+    private static final int SLOT_F_NUMBER = MediaDetails.EXIF_TAG_IDS.length;
+    private static final int SLOT_LATITUDE = SLOT_F_NUMBER + 1;
+    private static final int SLOT_LATITUDE_REF = SLOT_F_NUMBER + 2;
+    private static final int SLOT_LONGITUDE = SLOT_F_NUMBER + 3;
+    private static final int SLOT_LONGITUDE_REF = SLOT_F_NUMBER + 4;
+    private static final ExifProjection HARVEST_TAGS = new ExifProjection(concat(
+            MediaDetails.EXIF_TAG_IDS,
+            ExifInterface.TAG_F_NUMBER,
+            ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_GPS_LATITUDE_REF,
+            ExifInterface.TAG_GPS_LONGITUDE,
+            ExifInterface.TAG_GPS_LONGITUDE_REF));
+
+    private static final ThreadLocal<ExifProjection.Result> sExifResult =
+            new ThreadLocal<ExifProjection.Result>() {
+        @Override
+        protected ExifProjection.Result initialValue() {
+            return HARVEST_TAGS.newResult();
+        }
+    };
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final ChangeNotifier mNotifier;
+    private final ThreadPool mThreadPool = new ThreadPool(PARALLELISM, PARALLELISM);
+    private final ParallelBatch mParallelBatch = new ParallelBatch(mThreadPool, PARALLELISM);
+
+    private Future<Void> mTask;
+
+    public MetadataHarvester(GalleryApp application) {
+        mContext = application.getAndroidContext();
+        mResolver = application.getContentResolver();
+        mNotifier = new ChangeNotifier(WATCH_URIS, application);
+    }
+
+    // Starts a harvest if MediaStore has changed since the last one began.
+    public synchronized void start() {
+        if (mTask != null && !mTask.isDone()) return;
+        if (!mNotifier.isDirty()) return;
+        mTask = mThreadPool.submit(new Job<Void>() {
+            @Override
+            public Void run(JobContext jc) {
+                // Try again on the next start() if the harvest failed.
+                if (!harvest(jc) && !jc.isCancelled()) mNotifier.fakeChange();
+                return null;
+            }
+        });
+    }
+
+    // Stops the harvest in progress. What it has written is kept, and the
+    // next start() continues from there.
+    public synchronized void stop() {
+        if (mTask == null) return;
+        if (!mTask.isDone()) {
+            mTask.cancel();
+            mNotifier.fakeChange();
+        }
+        mTask = null;
+    }
+
+    // Returns false if the harvest failed or was cancelled.
+    private boolean harvest(JobContext jc) {
+        Versions live = queryVersions(IMAGES_URI, LIVE_PROJECTION, WHERE_JPEG, null,
+                ImageColumns._ID);
+        Versions harvested = queryVersions(LocalMetadata.CONTENT_URI, HARVESTED_PROJECTION,
+                WHERE_KEY, new String[] {KEY_LOCAL_DATE_MODIFIED}, LocalMetadata.LOCAL_ID);
+        if (live == null || harvested == null) return false;
+
+        // Both are sorted by id.
+        long[] wanted = new long[live.mSize];
+        int wantedCount = 0;
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        int i = 0;
+        int j = 0;
+        while (i < live.mSize || j < harvested.mSize) {
+            if (j == harvested.mSize
+                    || (i < live.mSize && live.mIds[i] < harvested.mIds[j])) {
+                wanted[wantedCount++] = live.mIds[i++];
+            } else if (i == live.mSize || harvested.mIds[j] < live.mIds[i]) {
+                // The image is gone.
+                operations.add(newDelete(harvested.mIds[j++]));
+            } else {
+                if (live.mDatesModified[i] != harvested.mDatesModified[j]) {
+                    wanted[wantedCount++] = live.mIds[i];
+                }
+                i++;
+                j++;
+            }
+        }
+        if (!operations.isEmpty() && !applyBatch(operations)) return false;
+
+        Chunk chunk = new Chunk();
+        for (int to = wantedCount; to > 0 && !jc.isCancelled(); to -= CHUNK_SIZE) {
+            if (!chunk.load(wanted, Math.max(0, to - CHUNK_SIZE), to)) return false;
+            if (chunk.mSize == 0) continue;
+            ParallelBatch.Result result = mParallelBatch.run(jc, chunk.mSize, chunk, chunk);
+            chunk.flush();
+            if (chunk.mFailed || result.cancelled) return false;
+        }
+        return !jc.isCancelled();
+    }
+
+    // Ids, in ascending order, and the date modified of each.
+    private static class Versions {
+        int mSize;
+        long[] mIds;
+        long[] mDatesModified;
+    }
+
+    // Reads the ids and dates modified in the first two columns. Returns
+    // null if the query fails.
+    private Versions queryVersions(Uri uri, String[] projection, String where,
+            String[] whereArgs, String orderBy) {
+        Cursor cursor = mResolver.query(uri, projection, where, whereArgs, orderBy);
+        if (cursor == null) {
+            Log.w(TAG, "query fail: " + uri);
+            return null;
+        }
+        try {
+            Versions versions = new Versions();
+            int count = cursor.getCount();
+            versions.mIds = new long[count];
+            versions.mDatesModified = new long[count];
+            while (versions.mSize < count && cursor.moveToNext()) {
+                versions.mIds[versions.mSize] = cursor.getLong(0);
+                versions.mDatesModified[versions.mSize] = cursor.getLong(1);
+                versions.mSize++;
+            }
+            return versions;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // The MediaStore rows being harvested. Files are parsed by the batch
+    // threads; the results are written by the listener, which ParallelBatch
+    // calls in row order.
+    private class Chunk implements ParallelBatch.ItemOperation,
+            ParallelBatch.ProgressListener {
+        int mSize;
+        final long[] mIds = new long[CHUNK_SIZE];
+        final String[] mPaths = new String[CHUNK_SIZE];
+        final long[] mDatesModified = new long[CHUNK_SIZE];
+        final ContentValues[][] mValues = new ContentValues[CHUNK_SIZE][];
+
+        private final ArrayList<ContentProviderOperation> mOperations =
+                new ArrayList<ContentProviderOperation>();
+        private int mPending;
+        boolean mFailed;
+
+        // Reads the rows of ids[from, to), newest first. Rows deleted since
+        // the ids were read are skipped.
+        boolean load(long[] ids, int from, int to) {
+            StringBuilder where = new StringBuilder(WHERE_JPEG)
+                    .append(" AND ").append(ImageColumns._ID).append(" IN (");
+            for (int i = from; i < to; i++) {
+                if (i > from) where.append(',');
+                where.append(ids[i]);
+            }
+            where.append(')');
+            Cursor cursor = mResolver.query(IMAGES_URI, PROJECTION, where.toString(), null,
+                    ORDER_BY);
+            if (cursor == null) {
+                Log.w(TAG, "query fail: " + IMAGES_URI);
+                return false;
+            }
+            try {
+                mSize = 0;
+                while (mSize < CHUNK_SIZE && cursor.moveToNext()) {
+                    mIds[mSize] = cursor.getLong(INDEX_ID);
+                    mPaths[mSize] = cursor.getString(INDEX_DATA);
+                    mDatesModified[mSize] = cursor.getLong(INDEX_DATE_MODIFIED);
+                    mValues[mSize] = null;
+                    mSize++;
+                }
+                return true;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        public boolean run(JobContext jc, int index) {
+            mValues[index] = harvestFile(mIds[index], mPaths[index], mDatesModified[index]);
+            return true;
+        }
+
+        @Override
+        public void onItemDone(int index) {
+            ContentValues[] values = mValues[index];
+            mValues[index] = null;
+            // The file could not be harvested; readers will parse it.
+            if (values == null) return;
+            // Replace what was harvested from an older version of the file.
+            mOperations.add(newDelete(mIds[index]));
+            for (ContentValues v : values) {
+                // PhotoProvider replaces metadata on update.
+                mOperations.add(ContentProviderOperation.newUpdate(LocalMetadata.CONTENT_URI)
+                        .withValues(v).build());
+            }
+            if (++mPending == BATCH_SIZE) flush();
+        }
+
+        void flush() {
+            if (mPending == 0 || mFailed) return;
+            mFailed = !applyBatch(mOperations);
+            mOperations.clear();
+            mPending = 0;
+        }
+    }
+
+    private ContentValues[] harvestFile(long id, String path, long dateModified) {
+        ArrayList<ContentValues> values = new ArrayList<ContentValues>();
+        values.add(newValues(id, KEY_LOCAL_DATE_MODIFIED, dateModified));
+
+        // Harvested files are read on the pool threads; each reuses its
+        // result and the header array in it.
+        ExifProjection.Result exif = sExifResult.get();
+        try {
+            if (path != null) HARVEST_TAGS.read(new File(path), exif);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read exif from file: " + path, e);
+        }
+        for (int slot = 0; slot < DETAIL_KEYS.length; slot++) {
+            int key = MediaDetails.EXIF_DETAILS[slot];
+            if (key == MediaDetails.INDEX_FLASH) {
+                // The raw value, so getDetails() restores the whole FlashState.
+                if (exif.hasTag(slot)) {
+                    values.add(newValues(id, DETAIL_KEYS[slot], exif.getLong(slot, 0, 0)));
+                }
+                continue;
+            }
+            // A rational such as 0/0 has no value to show.
+            int type = exif.getDataType(slot);
+            if ((type == ExifTag.TYPE_UNSIGNED_RATIONAL || type == ExifTag.TYPE_RATIONAL)
+                    && exif.getDenominator(slot, 0) == 0) {
+                continue;
+            }
+            Object value = MediaDetails.getExifDetail(exif, slot, key);
+            if (value != null) values.add(newValues(id, DETAIL_KEYS[slot], value.toString()));
+        }
+        double fNumber = exif.getRational(SLOT_F_NUMBER, 0, -1);
+        if (fNumber >= 0) values.add(newValues(id, Metadata.KEY_EXIF_FSTOP, fNumber));
+        if (exif.getComponentCount(SLOT_LATITUDE) == 3
+                && exif.getComponentCount(SLOT_LONGITUDE) == 3) {
+            values.add(newValues(id, Metadata.KEY_LATITUDE,
+                    getDegrees(exif, SLOT_LATITUDE, SLOT_LATITUDE_REF, "S")));
+            values.add(newValues(id, Metadata.KEY_LONGITUDE,
+                    getDegrees(exif, SLOT_LONGITUDE, SLOT_LONGITUDE_REF, "W")));
+        }
+
+        PanoramaMetadata panorama = LightCycleHelper.getPanoramaMetadata(mContext,
+                ContentUris.withAppendedId(IMAGES_URI, id));
+        values.add(newValues(id, Metadata.KEY_PANORAMA_VIEWER, panorama.mUsePanoramaViewer));
+        values.add(newValues(id, Metadata.KEY_PANORAMA_360, panorama.mIsPanorama360));
+        return values.toArray(new ContentValues[values.size()]);
+    }
+
+    // Converts degrees, minutes and seconds to signed degrees.
+    private static double getDegrees(ExifProjection.Result exif, int slot, int refSlot,
+            String negativeRef) {
+        double degrees = exif.getRational(slot, 0, 0)
+                + exif.getRational(slot, 1, 0) / 60
+                + exif.getRational(slot, 2, 0) / 3600;
+        return negativeRef.equals(exif.getString(refSlot)) ? -degrees : degrees;
+    }
+
+    private static ContentValues newValues(long id, String key, Object value) {
+        ContentValues values = new ContentValues(3);
+        values.put(LocalMetadata.LOCAL_ID, id);
+        values.put(LocalMetadata.KEY, key);
+        if (value instanceof Boolean) {
+            values.put(LocalMetadata.VALUE, (Boolean) value);
+        } else if (value instanceof Long) {
+            values.put(LocalMetadata.VALUE, (Long) value);
+        } else if (value instanceof Double) {
+            // SQLite stores NaN as NULL, which the VALUE column rejects.
+            double d = (Double) value;
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                values.put(LocalMetadata.VALUE, String.valueOf(d));
+            } else {
+                values.put(LocalMetadata.VALUE, d);
+            }
+        } else {
+            values.put(LocalMetadata.VALUE, (String) value);
+        }
+        return values;
+    }
+
+    // Deletes everything harvested from the image with the given id.
+    private static ContentProviderOperation newDelete(long id) {
+        return ContentProviderOperation.newDelete(LocalMetadata.CONTENT_URI)
+                .withSelection(WHERE_LOCAL_ID, new String[] {String.valueOf(id)})
+                .withYieldAllowed(true)
+                .build();
+    }
+
+    private boolean applyBatch(ArrayList<ContentProviderOperation> operations) {
+        try {
+            mResolver.applyBatch(PhotoProvider.AUTHORITY, operations);
+            return true;
+        } catch (RemoteException e) {
+            Log.w(TAG, "cannot write metadata", e);
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "cannot write metadata", e);
+        }
+        return false;
+    }
+
+    private static int[] concat(int[] a, int... b) {
+        int[] result = new int[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    // Adds the EXIF details harvested from the image with the given
+    // MediaStore id, and returns true, if they were read from the version of
+    // the file with the given date modified. Otherwise returns false and
+    // adds nothing.
+    public static boolean getDetails(ContentResolver resolver, long id, long dateModified,
+            MediaDetails details) {
+        Cursor cursor = resolver.query(LocalMetadata.CONTENT_URI, VALUE_PROJECTION,
+                WHERE_LOCAL_ID, new String[] {String.valueOf(id)}, null);
+        if (cursor == null) return false;
+        String[] values = new String[DETAIL_KEYS.length];
+        boolean current = false;
+        try {
+            while (cursor.moveToNext()) {
+                String key = cursor.getString(0);
+                if (KEY_LOCAL_DATE_MODIFIED.equals(key)) {
+                    current = cursor.getLong(1) == dateModified;
+                    continue;
+                }
+                for (int i = 0; i < DETAIL_KEYS.length; i++) {
+                    if (DETAIL_KEYS[i].equals(key)) {
+                        values[i] = cursor.getString(1);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (!current) return false;
+        for (int i = 0; i < DETAIL_KEYS.length; i++) {
+            if (values[i] == null) continue;
+            int key = MediaDetails.EXIF_DETAILS[i];
+            Object value = values[i];
+            try {
+                if (key == MediaDetails.INDEX_FLASH) {
+                    // Older harvests stored only whether the flash fired.
+                    value = new FlashState(Integer.parseInt(values[i]));
+                } else if (key == MediaDetails.INDEX_FOCAL_LENGTH) {
+                    value = Double.valueOf(values[i]);
+                }
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            MediaDetails.addExifDetail(details, key, value);
+        }
+        return true;
+    }
+
+    // Returns the panorama flags harvested for a MediaStore image, or null
+    // if the uri is not one or it has not been harvested. The flags are
+    // those of the file when it was last harvested.
+    public static PanoramaMetadata getPanoramaMetadata(ContentResolver resolver, Uri uri) {
+        if (!uri.toString().startsWith(IMAGES_URI_PREFIX)) return null;
+        long id;
+        try {
+            id = ContentUris.parseId(uri);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        Cursor cursor = resolver.query(LocalMetadata.CONTENT_URI, VALUE_PROJECTION,
+                WHERE_LOCAL_ID, new String[] {String.valueOf(id)}, null);
+        if (cursor == null) return null;
+        int found = 0;
+        boolean usePanoramaViewer = false;
+        boolean isPanorama360 = false;
+        try {
+            while (cursor.moveToNext()) {
+                String key = cursor.getString(0);
+                if (Metadata.KEY_PANORAMA_VIEWER.equals(key)) {
+                    usePanoramaViewer = cursor.getInt(1) != 0;
+                    found++;
+                } else if (Metadata.KEY_PANORAMA_360.equals(key)) {
+                    isPanorama360 = cursor.getInt(1) != 0;
+                    found++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (found < 2) return null;
+        if (!usePanoramaViewer && !isPanorama360) return LightCycleHelper.NOT_PANORAMA;
+        return new PanoramaMetadata(usePanoramaViewer, isPanorama360);
+    }
+}
@@ -35,6 +35,9 @@ public class PanoramaMetadataJob implements Job<PanoramaMetadata> {
 
     @Override
     public PanoramaMetadata run(JobContext jc) {
+        PanoramaMetadata harvested = MetadataHarvester.getPanoramaMetadata(
+                mContext.getContentResolver(), mUri);
+        if (harvested != null) return harvested;
         return LightCycleHelper.getPanoramaMetadata(mContext, mUri);
     }
 }
@@ -51,29 +51,12 @@ public class SizeClustering extends Clustering {
 
     @SuppressWarnings("unchecked")
     @Override
-    public void run(MediaSet baseSet) {
+    public void run(ClusterFeatures features) {
         @SuppressWarnings("unchecked")
-        final ArrayList<Path>[] group = new ArrayList[SIZE_LEVELS.length];
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
-            @Override
-            public void consume(int index, MediaItem item) {
-                // Find the cluster this item belongs to.
-                long size = item.getSize();
-                int i;
-                for (i = 0; i < SIZE_LEVELS.length - 1; i++) {
-                    if (size < SIZE_LEVELS[i + 1]) {
-                        break;
-                    }
-                }
-
-                ArrayList<Path> list = group[i];
-                if (list == null) {
-                    list = new ArrayList<Path>();
-                    group[i] = list;
-                }
-                list.add(item.getPath());
-            }
-        });
+        ArrayList<Path>[] group = new ArrayList[SIZE_LEVELS.length];
+        for (int i = 0, n = features.mCount; i < n; i++) {
+            addToGroup(group, features.mSizes[i], features.mPaths[i]);
+        }
 
         int count = 0;
         for (int i = 0; i < group.length; i++) {
@@ -111,6 +94,23 @@ public class SizeClustering extends Clustering {
         }
     }
 
+    private static void addToGroup(ArrayList<Path>[] group, long size, Path path) {
+        // Find the cluster this item belongs to.
+        int i;
+        for (i = 0; i < SIZE_LEVELS.length - 1; i++) {
+            if (size < SIZE_LEVELS[i + 1]) {
+                break;
+            }
+        }
+
+        ArrayList<Path> list = group[i];
+        if (list == null) {
+            list = new ArrayList<Path>();
+            group[i] = list;
+        }
+        list.add(path);
+    }
+
     private String getSizeString(int index) {
         long bytes = SIZE_LEVELS[index];
         if (bytes >= GIGA_BYTES) {
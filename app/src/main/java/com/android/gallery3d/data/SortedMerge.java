@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+// SortedMerge gives random access to the merge of several sorted sources.
+// Items that compare equal are ordered by source index, so the merge is
+// stable.
+//
+// A checkpoint holds the position in each source at a global position that
+// is a multiple of CHECKPOINT_INTERVAL. get() merges forward from the
+// nearest checkpoint with a min-heap of the source heads, leaving
+// checkpoints behind it. A position far beyond every checkpoint is located
+// directly instead: the position in each source is found by binary search
+// on the rank of its items, which costs O(k^2 log^2 n) probes for k sources
+// rather than merging every item up to the position. The probes compare the
+// sort keys of a KeyProvider if there is one, and read the sources otherwise.
+public class SortedMerge<T> {
+
+    public interface Source<T> {
+        // Returns the item at the given position, or null past the end.
+        T get(int index);
+    }
+
+    // Gives seek() the sort keys of the sources, so its probes do not load
+    // items. keys[s][i] is the key of item i of source s. Keys of items of
+    // different sources must compare in the same order as the comparator.
+    public interface KeyProvider {
+        // Returns the keys for the current sources, or null to read them.
+        long[][] getKeys();
+    }
+
+    // A checkpoint is recorded every CHECKPOINT_INTERVAL merged items.
+    private static final int CHECKPOINT_INTERVAL = 32;
+    // Positions at least this far past the nearest checkpoint are located by
+    // binary search instead of merging up to them.
+    private static final int MIN_SEEK_DISTANCE = 64 * CHECKPOINT_INTERVAL;
+
+    private final Comparator<? super T> mComparator;
+    private final Source<T>[] mSources;
+    private final KeyProvider mKeyProvider;
+    // Checkpoint index -> position in each source.
+    private final TreeMap<Integer, int[]> mCheckpoints = new TreeMap<Integer, int[]>();
+
+    public SortedMerge(Comparator<? super T> comparator, Source<T>[] sources) {
+        this(comparator, sources, null);
+    }
+
+    public SortedMerge(Comparator<? super T> comparator, Source<T>[] sources,
+            KeyProvider keyProvider) {
+        mComparator = comparator;
+        mSources = sources;
+        mKeyProvider = keyProvider;
+        reset();
+    }
+
+    // Drops all checkpoints. Call this when any source changes.
+    public void reset() {
+        mCheckpoints.clear();
+        mCheckpoints.put(0, new int[mSources.length]);
+    }
+
+    public ArrayList<T> get(int start, int count) {
+        int size = mSources.length;
+        ArrayList<T> result = new ArrayList<T>();
+        if (size == 0 || count <= 0) return result;
+
+        // First find the nearest checkpoint <= start.
+        Map.Entry<Integer, int[]> entry = mCheckpoints.floorEntry(start / CHECKPOINT_INTERVAL);
+        int markPos = entry.getKey() * CHECKPOINT_INTERVAL;
+        int[] subPos = entry.getValue().clone();
+        if (start - markPos >= MIN_SEEK_DISTANCE) {
+            int target = start / CHECKPOINT_INTERVAL * CHECKPOINT_INTERVAL;
+            seek(subPos, target - markPos);
+            markPos = target;
+            mCheckpoints.put(target / CHECKPOINT_INTERVAL, subPos.clone());
+        }
+
+        // Fill all slots and build a min-heap of the non-exhausted sources.
+        Object[] slot = new Object[size];
+        int[] heap = new int[size];
+        int heapSize = 0;
+        for (int i = 0; i < size; i++) {
+            slot[i] = mSources[i].get(subPos[i]);
+            if (slot[i] != null) heap[heapSize++] = i;
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heapSize, i, slot);
+        }
+
+        for (int i = markPos; i < start + count; i++) {
+            // If we don't have anything, all streams are exhausted.
+            if (heapSize == 0) break;
+
+            // Pick the best slot and refill it.
+            int k = heap[0];
+            subPos[k]++;
+            if (i >= start) {
+                result.add(item(slot, k));
+            }
+            slot[k] = mSources[k].get(subPos[k]);
+            if (slot[k] == null) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, heapSize, 0, slot);
+
+            // Leave a checkpoint, so we can come back later.
+            if ((i + 1) % CHECKPOINT_INTERVAL == 0) {
+                Integer key = (i + 1) / CHECKPOINT_INTERVAL;
+                if (!mCheckpoints.containsKey(key)) mCheckpoints.put(key, subPos.clone());
+            }
+        }
+
+        return result;
+    }
+
+    // Advances subPos, the source positions at some global position, by
+    // distance items. The merged prefix is a prefix of every source, so the
+    // new position in source s is the number of its items whose rank is
+    // below the target.
+    private void seek(int[] subPos, int distance) {
+        int size = mSources.length;
+        int target = distance;
+        for (int p : subPos) target += p;
+        int[] from = subPos.clone();
+        long[][] keys = mKeyProvider == null ? null : mKeyProvider.getKeys();
+        if (keys != null && keys.length != size) keys = null;
+        for (int s = 0; s < size; s++) {
+            int lo = from[s];
+            int hi = from[s] + distance;
+            // Find the first position in s whose rank is >= target.
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (rankAtLeast(s, mid, from, distance, target, keys)) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            subPos[s] = lo;
+        }
+    }
+
+    // Returns true if item i of source s has at least target items before
+    // it in the merge. Counts in the other sources are clamped to
+    // [from[t], from[t] + distance], which does not change the answer: the
+    // items before from[t] are before every item at or past the checkpoint,
+    // and reaching the upper bound already makes the rank >= target. The
+    // items are compared by key if keys is not null.
+    private boolean rankAtLeast(int s, int i, int[] from, int distance, int target,
+            long[][] keys) {
+        T x = null;
+        long key = 0;
+        if (keys != null) {
+            if (i >= keys[s].length) return true;
+            key = keys[s][i];
+        } else {
+            x = mSources[s].get(i);
+            if (x == null) return true;
+        }
+        int rank = i;
+        for (int t = 0; t < mSources.length && rank < target; t++) {
+            if (t == s) continue;
+            int lo = from[t];
+            int hi = from[t] + distance;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                boolean before;
+                if (keys != null) {
+                    before = mid < keys[t].length
+                            && (keys[t][mid] < key || (keys[t][mid] == key && t < s));
+                } else {
+                    T y = mSources[t].get(mid);
+                    before = y != null && before(y, t, x, s);
+                }
+                if (before) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            rank += lo;
+        }
+        return rank >= target;
+    }
+
+    private boolean before(T a, int sourceA, T b, int sourceB) {
+        int c = mComparator.compare(a, b);
+        return c < 0 || (c == 0 && sourceA < sourceB);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T item(Object[] slot, int k) {
+        return (T) slot[k];
+    }
+
+    // Ties are broken by source index, so the merge order is stable.
+    private boolean less(int a, int b, Object[] slot) {
+        return before(item(slot, a), a, item(slot, b), b);
+    }
+
+    private void siftDown(int[] heap, int heapSize, int i, Object[] slot) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= heapSize) return;
+            int child = left;
+            int right = left + 1;
+            if (right < heapSize && less(heap[right], heap[left], slot)) {
+                child = right;
+            }
+            if (!less(heap[child], heap[i], slot)) return;
+            int t = heap[i];
+            heap[i] = heap[child];
+            heap[child] = t;
+            i = child;
+        }
+    }
+}
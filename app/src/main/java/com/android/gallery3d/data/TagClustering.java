@@ -38,32 +38,27 @@ public class TagClustering extends Clustering {
     }
 
     @Override
-    public void run(MediaSet baseSet) {
-        final TreeMap<String, ArrayList<Path>> map =
-                new TreeMap<String, ArrayList<Path>>();
-        final ArrayList<Path> untagged = new ArrayList<Path>();
+    public void run(ClusterFeatures features) {
+        TreeMap<String, ArrayList<Path>> map = new TreeMap<String, ArrayList<Path>>();
+        ArrayList<Path> untagged = new ArrayList<Path>();
 
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
-            @Override
-            public void consume(int index, MediaItem item) {
-                Path path = item.getPath();
-
-                String[] tags = item.getTags();
-                if (tags == null || tags.length == 0) {
-                    untagged.add(path);
-                    return;
-                }
-                for (int j = 0; j < tags.length; j++) {
-                    String key = tags[j];
-                    ArrayList<Path> list = map.get(key);
-                    if (list == null) {
-                        list = new ArrayList<Path>();
-                        map.put(key, list);
-                    }
-                    list.add(path);
+        for (int i = 0, n = features.mCount; i < n; i++) {
+            Path path = features.mPaths[i];
+            String[] tags = features.mTags == null ? null : features.mTags[i];
+            if (tags == null || tags.length == 0) {
+                untagged.add(path);
+                continue;
+            }
+            for (int j = 0; j < tags.length; j++) {
+                String key = tags[j];
+                ArrayList<Path> list = map.get(key);
+                if (list == null) {
+                    list = new ArrayList<Path>();
+                    map.put(key, list);
                 }
+                list.add(path);
             }
-        });
+        }
 
         int m = map.size();
         mClusters = new ArrayList<ArrayList<Path>>();
@@ -97,31 +97,8 @@ public class TimeClustering extends Clustering {
     }
 
     @Override
-    public void run(MediaSet baseSet) {
-        final int total = baseSet.getTotalMediaItemCount();
-        final SmallItem[] buf = new SmallItem[total];
-        final double[] latLng = new double[2];
-
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
-            @Override
-            public void consume(int index, MediaItem item) {
-                if (index < 0 || index >= total) return;
-                SmallItem s = new SmallItem();
-                s.path = item.getPath();
-                s.dateInMs = item.getDateInMs();
-                item.getLatLong(latLng);
-                s.lat = latLng[0];
-                s.lng = latLng[1];
-                buf[index] = s;
-            }
-        });
-
-        ArrayList<SmallItem> items = new ArrayList<SmallItem>(total);
-        for (int i = 0; i < total; i++) {
-            if (buf[i] != null) {
-                items.add(buf[i]);
-            }
-        }
+    public void run(ClusterFeatures features) {
+        ArrayList<SmallItem> items = getSmallItems(features);
 
         Collections.sort(items, sDateComparator);
 
@@ -174,6 +151,20 @@ public class TimeClustering extends Clustering {
         return mNames[index];
     }
 
+    private static ArrayList<SmallItem> getSmallItems(ClusterFeatures features) {
+        int n = features.mCount;
+        ArrayList<SmallItem> items = new ArrayList<SmallItem>(n);
+        for (int i = 0; i < n; i++) {
+            SmallItem s = new SmallItem();
+            s.path = features.mPaths[i];
+            s.dateInMs = features.mDatesTaken[i];
+            s.lat = features.mLatitudes[i];
+            s.lng = features.mLongitudes[i];
+            items.add(s);
+        }
+        return items;
+    }
+
     private void setTimeRange(long timeRange, int numItems) {
         if (numItems != 0) {
             int meanItemsPerCluster = numItems / NUM_CLUSTERS_TARGETED;
@@ -33,30 +33,18 @@ public class TypeClustering extends Clustering {
     private class TypeCluster {
         ArrayList<Path> mPaths = new ArrayList<Path>();
         String mName;
-        MediaItem mCoverItem;
 
         public TypeCluster(String name) {
             mName = name;
         }
 
-        public void add(MediaItem item) {
-            Path path = item.getPath();
+        public void add(Path path) {
             mPaths.add(path);
-            if (mCoverItem == null) {
-                mCoverItem = item;
-            }
         }
 
         public int size() {
             return mPaths.size();
         }
-
-        public MediaItem getCover() {
-            if (mCoverItem != null) {
-                return mCoverItem;
-            }
-            return null;
-        }
     }
 
     public TypeClustering(Context context) {
@@ -65,24 +53,22 @@ public class TypeClustering extends Clustering {
     }
 
     @Override
-    public void run(MediaSet baseSet) {
+    public void run(ClusterFeatures features) {
         // image and video
         final TypeCluster images = new TypeCluster(mContext.getResources().getString(R.string.type_images));
         final TypeCluster videos = new TypeCluster(mContext.getResources().getString(R.string.type_videos));
         final TypeCluster unknown = new TypeCluster(mUntaggedString);
 
-        baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
-            @Override
-            public void consume(int index, MediaItem item) {
-                if (item.getMediaType() == MediaObject.MEDIA_TYPE_IMAGE) {
-                    images.add(item);
-                } else if (item.getMediaType() == MediaObject.MEDIA_TYPE_VIDEO) {
-                    videos.add(item);
-                } else {
-                    unknown.add(item);
-                }
+        for (int i = 0, n = features.mCount; i < n; i++) {
+            int type = features.mMediaTypes[i];
+            if (type == MediaObject.MEDIA_TYPE_IMAGE) {
+                images.add(features.mPaths[i]);
+            } else if (type == MediaObject.MEDIA_TYPE_VIDEO) {
+                videos.add(features.mPaths[i]);
+            } else {
+                unknown.add(features.mPaths[i]);
             }
-        });
+        }
         if (unknown.size() != 0) {
             mClusters = new TypeCluster[] { images, videos, unknown };
         } else {
@@ -104,9 +90,4 @@ public class TypeClustering extends Clustering {
     public String getClusterName(int index) {
         return mClusters[index].mName;
     }
-
-    @Override
-    public MediaItem getClusterCover(int index) {
-        return mClusters[index].getCover();
-    }
 }
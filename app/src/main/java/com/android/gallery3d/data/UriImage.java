@@ -32,6 +32,7 @@ import com.android.gallery3d.util.ThreadPool.CancelListener;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
@@ -189,6 +190,23 @@ public class UriImage extends MediaItem {
 
         @Override
         public Bitmap run(JobContext jc) {
+            // Files opened by uri share the cache entries of local media
+            // with the same content. As in ImageCacheRequest, a file is only
+            // fingerprinted before decoding if a file of its length is cached.
+            ImageCacheService cacheService = mApplication.getImageCacheService();
+            String filePath = ContentResolver.SCHEME_FILE.equals(mUri.getScheme())
+                    ? mUri.getPath() : null;
+            long fingerprint = ContentFingerprint.NONE;
+            if (filePath != null
+                    && cacheService.hasContentOfLength(new File(filePath).length(), mType)) {
+                fingerprint = cacheService.getContentFingerprint(filePath);
+            }
+            if (fingerprint != ContentFingerprint.NONE) {
+                Bitmap bitmap = ImageCacheRequest.decodeCached(
+                        jc, cacheService, null, 0, fingerprint, mType);
+                if (bitmap != null || jc.isCancelled()) return bitmap;
+            }
+
             if (!prepareInputFile(jc)) return null;
             int targetSize = MediaItem.getTargetSize(mType);
             Options options = new Options();
@@ -205,6 +223,16 @@ public class UriImage extends MediaItem {
             } else {
                 bitmap = BitmapUtils.resizeDownBySideLength(bitmap, targetSize, true);
             }
+            if (filePath != null && !jc.isCancelled()) {
+                if (fingerprint == ContentFingerprint.NONE) {
+                    fingerprint = cacheService.getContentFingerprint(filePath);
+                }
+                if (fingerprint != ContentFingerprint.NONE) {
+                    cacheService.putContentImageData(fingerprint, mType,
+                            cacheService.encodeImage(bitmap, mType));
+                    cacheService.putContentLength(new File(filePath).length(), mType);
+                }
+            }
             return bitmap;
         }
     }
@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.exif;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Indexes the EXIF header of a JPEG without decoding any tag values.
+ *
+ * load() finds the EXIF APP1 segment. It follows the links from IFD0 to
+ * the EXIF, GPS, interoperability and thumbnail IFDs and records only the
+ * id, type, count and value position of every entry, in flat arrays. A
+ * value is read from the buffer when it is asked for. getAllTags() builds
+ * the list ExifInterface.getAllTags() would, without the stream parser.
+ * Readers that want a few known tags should use ExifProjection, which
+ * shares the helpers below. Only the header of a file is read, and one
+ * index can be reused for many files.
+ *
+ * Tags are named by the ExifInterface.TAG_* constants, which also give the
+ * IFD the tag is looked up in. This class is not thread-safe.
+ */
+public class ExifIndex {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final int EXIF_HEADER = 0x45786966; // "Exif"
+    private static final short LITTLE_ENDIAN_TAG = (short) 0x4949; // "II"
+    private static final short BIG_ENDIAN_TAG = (short) 0x4d4d; // "MM"
+    static final int TAG_SIZE = 12;
+    static final int MAX_TAGS_IN_IFD = 1000;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // The TIFF data, from its header to the end of APP1, in its byte order.
+    private ByteBuffer mTiff;
+    // Position of the TIFF header in the loaded buffer.
+    private int mTiffStart;
+
+    // One slot per entry. The key is ExifInterface.defineTag(ifd, tagId).
+    private int mCount;
+    private int[] mKeys = new int[INITIAL_CAPACITY];
+    private short[] mTypes = new short[INITIAL_CAPACITY];
+    private int[] mComponentCounts = new int[INITIAL_CAPACITY];
+    // Relative to the TIFF header.
+    private int[] mValueOffsets = new int[INITIAL_CAPACITY];
+    // The header read by the last load(File).
+    private byte[] mHeader;
+
+    /**
+     * Indexes the EXIF header of a JPEG file. Returns false if there is no
+     * readable EXIF header. Only the header is read, up to
+     * JpegScanner.MAX_HEADER_SIZE bytes, into an array that the next load()
+     * of a file reuses.
+     */
+    public boolean load(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteBuffer header = JpegScanner.readHeader(in, mHeader);
+            mHeader = header.array();
+            return load(header);
+        } finally {
+            in.close();
+        }
+    }
+
+    boolean load(byte[] jpeg, int offset, int length) {
+        return load(ByteBuffer.wrap(jpeg, offset, length).slice());
+    }
+
+    /**
+     * Indexes a JPEG from the buffer's position. The buffer is kept and read
+     * again by the getters, so it must not change until the next load().
+     */
+    boolean load(ByteBuffer jpeg) {
+        mTiff = null;
+        mCount = 0;
+        ByteBuffer in = jpeg.slice();
+        try {
+            ByteBuffer tiff = findTiffData(in);
+            if (tiff == null) return false;
+            mTiffStart = in.position();
+            mTiff = tiff;
+            int ifd1 = readIfd(IfdId.TYPE_IFD_0, tiff.getInt(4));
+            int exif = (int) getLong(ExifInterface.TAG_EXIF_IFD, 0, 0);
+            if (exif > 0) readIfd(IfdId.TYPE_IFD_EXIF, exif);
+            int gps = (int) getLong(ExifInterface.TAG_GPS_IFD, 0, 0);
+            if (gps > 0) readIfd(IfdId.TYPE_IFD_GPS, gps);
+            int interop = (int) getLong(ExifInterface.TAG_INTEROPERABILITY_IFD, 0, 0);
+            if (interop > 0) readIfd(IfdId.TYPE_IFD_INTEROPERABILITY, interop);
+            if (ifd1 > 0) readIfd(IfdId.TYPE_IFD_1, ifd1);
+        } catch (BufferUnderflowException e) {
+            // Truncated header; keep what was indexed.
+        } catch (IndexOutOfBoundsException e) {
+            // Offset out of range; keep what was indexed.
+        }
+        return mTiff != null;
+    }
+
+    /**
+     * Finds the TIFF data of the EXIF APP1 segment of a JPEG starting at the
+     * buffer's position. Returns it as a slice in the TIFF byte order that
+     * ends with the segment, and leaves the buffer at the TIFF header.
+     * Returns null if there is no EXIF segment.
+     */
+    static ByteBuffer findTiffData(ByteBuffer in) {
+        in.order(ByteOrder.BIG_ENDIAN);
+        if (in.getShort() != JpegHeader.SOI) return null;
+        short marker = in.getShort();
+        while (marker != JpegHeader.EOI && !JpegHeader.isSofMarker(marker)) {
+            int start = in.position();
+            int length = in.getShort() & 0xffff;
+            if (length < 2 || start + length > in.limit()) return null;
+            if (marker == JpegHeader.APP1 && length >= 8
+                    && in.getInt() == EXIF_HEADER && in.getShort() == 0) {
+                ByteBuffer tiff = in.slice();
+                tiff.limit(start + length - in.position());
+                return setTiffByteOrder(tiff) ? tiff : null;
+            }
+            in.position(start + length);
+            marker = in.getShort();
+        }
+        return null;
+    }
+
+    // Sets the order of a buffer starting at a TIFF header from the header.
+    static boolean setTiffByteOrder(ByteBuffer tiff) {
+        if (tiff.limit() < 8) return false;
+        short byteOrder = tiff.getShort(0);
+        if (byteOrder == LITTLE_ENDIAN_TAG) {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder == BIG_ENDIAN_TAG) {
+            tiff.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    // Records the entries of one IFD. Returns the offset of the next IFD,
+    // or 0.
+    private int readIfd(int ifd, int offset) {
+        ByteBuffer tiff = mTiff;
+        if (offset < 8 || offset + 2 > tiff.limit()) return 0;
+        int count = tiff.getShort(offset) & 0xffff;
+        if (count > MAX_TAGS_IN_IFD) return 0;
+        int limit = tiff.limit();
+        for (int i = 0; i < count; i++) {
+            int entry = offset + 2 + i * TAG_SIZE;
+            if (entry + TAG_SIZE > limit) return 0;
+            int valueOffset = entryValueOffset(tiff, entry);
+            if (valueOffset < 0) continue;
+            add(ExifInterface.defineTag(ifd, tiff.getShort(entry)), tiff.getShort(entry + 2),
+                    tiff.getInt(entry + 4), valueOffset);
+        }
+        int next = offset + 2 + count * TAG_SIZE;
+        return next + 4 <= limit ? tiff.getInt(next) : 0;
+    }
+
+    // Returns the offset of the value of the IFD entry at the given offset,
+    // or -1 if its type is invalid or the value lies outside the TIFF data.
+    static int entryValueOffset(ByteBuffer tiff, int entry) {
+        short type = tiff.getShort(entry + 2);
+        // Some invalid images contain invalid data types; ignore them.
+        if (!ExifTag.isValidType(type)) return -1;
+        long components = tiff.getInt(entry + 4) & 0xffffffffL;
+        long size = components * ExifTag.getElementSize(type);
+        if (size <= 4) return entry + 8;
+        long o = tiff.getInt(entry + 8) & 0xffffffffL;
+        return o + size > tiff.limit() ? -1 : (int) o;
+    }
+
+    private void add(int key, short type, int components, int valueOffset) {
+        if (mCount == mKeys.length) {
+            int capacity = mCount * 2;
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mComponentCounts = Arrays.copyOf(mComponentCounts, capacity);
+            mValueOffsets = Arrays.copyOf(mValueOffsets, capacity);
+        }
+        mKeys[mCount] = key;
+        mTypes[mCount] = type;
+        mComponentCounts[mCount] = components;
+        mValueOffsets[mCount] = valueOffset;
+        mCount++;
+    }
+
+    // Returns the slot of the tag, or -1. IFDs rarely hold more than a few
+    // dozen entries, so a scan beats any map.
+    private int find(int tagId) {
+        int[] keys = mKeys;
+        for (int i = 0, n = mCount; i < n; i++) {
+            if (keys[i] == tagId) return i;
+        }
+        return -1;
+    }
+
+    ByteOrder getByteOrder() {
+        return mTiff == null ? null : mTiff.order();
+    }
+
+    /**
+     * Returns the number of entries in the index.
+     */
+    int getTagCount() {
+        return mCount;
+    }
+
+    boolean hasTag(int tagId) {
+        return find(tagId) >= 0;
+    }
+
+    /**
+     * Returns the ExifTag.TYPE_* of the tag, or -1 if it is absent.
+     */
+    short getDataType(int tagId) {
+        int i = find(tagId);
+        return i < 0 ? -1 : mTypes[i];
+    }
+
+    int getComponentCount(int tagId) {
+        int i = find(tagId);
+        return i < 0 ? 0 : mComponentCounts[i];
+    }
+
+    /**
+     * Returns the position of the tag's value in the loaded buffer, or -1 if
+     * the tag is absent.
+     */
+    int getValueOffset(int tagId) {
+        int i = find(tagId);
+        return i < 0 ? -1 : mTiffStart + mValueOffsets[i];
+    }
+
+    /**
+     * Reads an integer component of a tag of type byte, short or long.
+     */
+    long getLong(int tagId, int index, long defaultValue) {
+        int i = find(tagId);
+        if (i < 0) return defaultValue;
+        return readLong(mTiff, mTypes[i], mComponentCounts[i], mValueOffsets[i],
+                index, defaultValue);
+    }
+
+    int getInt(int tagId, int defaultValue) {
+        return (int) getLong(tagId, 0, defaultValue);
+    }
+
+    long getNumerator(int tagId, int index) {
+        int i = find(tagId);
+        if (i < 0) return 0;
+        return readRationalPart(mTiff, mTypes[i], mComponentCounts[i], mValueOffsets[i],
+                index, 0);
+    }
+
+    long getDenominator(int tagId, int index) {
+        int i = find(tagId);
+        if (i < 0) return 0;
+        return readRationalPart(mTiff, mTypes[i], mComponentCounts[i], mValueOffsets[i],
+                index, 4);
+    }
+
+    /**
+     * Reads a rational component as a double. Returns defaultValue if the
+     * tag is absent, not rational, or has a zero denominator.
+     */
+    double getRational(int tagId, int index, double defaultValue) {
+        long denominator = getDenominator(tagId, index);
+        if (denominator == 0) return defaultValue;
+        return (double) getNumerator(tagId, index) / denominator;
+    }
+
+    /**
+     * Reads an ASCII tag up to its first NUL, or returns null if the tag is
+     * absent or not ASCII.
+     */
+    String getString(int tagId) {
+        int i = find(tagId);
+        if (i < 0) return null;
+        return readString(mTiff, mTypes[i], mComponentCounts[i], mValueOffsets[i]);
+    }
+
+    // The readers below decode one value in place. offset is relative to
+    // the TIFF header at the start of tiff.
+
+    static long readLong(ByteBuffer tiff, short type, int count, int offset,
+            int index, long defaultValue) {
+        if (index < 0 || index >= count) return defaultValue;
+        switch (type) {
+            case ExifTag.TYPE_UNSIGNED_BYTE:
+            case ExifTag.TYPE_UNDEFINED:
+                return tiff.get(offset + index) & 0xff;
+            case ExifTag.TYPE_UNSIGNED_SHORT:
+                return tiff.getShort(offset + index * 2) & 0xffff;
+            case ExifTag.TYPE_UNSIGNED_LONG:
+                return tiff.getInt(offset + index * 4) & 0xffffffffL;
+            case ExifTag.TYPE_LONG:
+                return tiff.getInt(offset + index * 4);
+            default:
+                return defaultValue;
+        }
+    }
+
+    // part is 0 for the numerator and 4 for the denominator.
+    static long readRationalPart(ByteBuffer tiff, short type, int count, int offset,
+            int index, int part) {
+        if (index < 0 || index >= count) return 0;
+        int p = offset + index * 8 + part;
+        switch (type) {
+            case ExifTag.TYPE_UNSIGNED_RATIONAL:
+                return tiff.getInt(p) & 0xffffffffL;
+            case ExifTag.TYPE_RATIONAL:
+                return tiff.getInt(p);
+            default:
+                return 0;
+        }
+    }
+
+    static String readString(ByteBuffer tiff, short type, int count, int offset) {
+        if (type != ExifTag.TYPE_ASCII) return null;
+        int length = 0;
+        while (length < count && tiff.get(offset + length) != 0) length++;
+        byte[] buf = new byte[length];
+        for (int k = 0; k < length; k++) buf[k] = tiff.get(offset + k);
+        return new String(buf, US_ASCII);
+    }
+
+    /**
+     * Returns the position of the EXIF thumbnail in the loaded buffer, or -1
+     * if there is none.
+     */
+    int getThumbnailOffset() {
+        int offset = (int) getLong(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT, 0, 0);
+        int length = getThumbnailLength();
+        if (offset <= 0 || length <= 0 || (long) offset + length > mTiff.limit()) return -1;
+        return mTiffStart + offset;
+    }
+
+    int getThumbnailLength() {
+        return (int) getLong(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, 0, 0);
+    }
+
+    /**
+     * Decodes every entry into an ExifTag, in the order of
+     * ExifInterface.getAllTags(): by IFD id, then by tag id. A repeated tag
+     * is listed once, with its first value. Returns null if there are no
+     * tags.
+     */
+    public List<ExifTag> getAllTags() {
+        if (mCount == 0) return null;
+        // Keys sort by IFD id, then by tag id, with the slot in the low
+        // bits so that the first of equal keys comes first.
+        long[] order = new long[mCount];
+        for (int i = 0; i < mCount; i++) order[i] = (long) mKeys[i] << 32 | i;
+        Arrays.sort(order);
+        ArrayList<ExifTag> tags = new ArrayList<ExifTag>(mCount);
+        int previous = -1;
+        for (long entry : order) {
+            int key = (int) (entry >>> 32);
+            if (key == previous) continue;
+            previous = key;
+            tags.add(makeTag((int) entry));
+        }
+        return tags;
+    }
+
+    /**
+     * Decodes the tag into an ExifTag, as ExifInterface.getTag() would
+     * return it. Returns null if the tag is absent.
+     */
+    ExifTag getTag(int tagId) {
+        int i = find(tagId);
+        return i < 0 ? null : makeTag(i);
+    }
+
+    private ExifTag makeTag(int i) {
+        int tagId = mKeys[i];
+        short type = mTypes[i];
+        int count = mComponentCounts[i];
+        int p = mValueOffsets[i];
+        ByteBuffer in = mTiff;
+        ExifTag tag = new ExifTag(ExifInterface.getTrueTagKey(tagId), type, count,
+                ExifInterface.getTrueIfd(tagId), count != ExifTag.SIZE_UNDEFINED);
+        switch (type) {
+            case ExifTag.TYPE_UNSIGNED_BYTE:
+            case ExifTag.TYPE_UNDEFINED: {
+                byte[] value = new byte[count];
+                for (int k = 0; k < count; k++) value[k] = in.get(p + k);
+                tag.setValue(value);
+                break;
+            }
+            case ExifTag.TYPE_ASCII: {
+                byte[] buf = new byte[count];
+                for (int k = 0; k < count; k++) buf[k] = in.get(p + k);
+                // Accept strings that do not match the defined count, as
+                // ExifParser does.
+                tag.setHasDefinedCount(false);
+                tag.setValue(new String(buf, US_ASCII));
+                tag.setHasDefinedCount(count != ExifTag.SIZE_UNDEFINED);
+                break;
+            }
+            case ExifTag.TYPE_UNSIGNED_LONG: {
+                long[] value = new long[count];
+                for (int k = 0; k < count; k++) value[k] = in.getInt(p + k * 4) & 0xffffffffL;
+                tag.setValue(value);
+                break;
+            }
+            case ExifTag.TYPE_UNSIGNED_SHORT: {
+                int[] value = new int[count];
+                for (int k = 0; k < count; k++) value[k] = in.getShort(p + k * 2) & 0xffff;
+                tag.setValue(value);
+                break;
+            }
+            case ExifTag.TYPE_LONG: {
+                int[] value = new int[count];
+                for (int k = 0; k < count; k++) value[k] = in.getInt(p + k * 4);
+                tag.setValue(value);
+                break;
+            }
+            case ExifTag.TYPE_UNSIGNED_RATIONAL: {
+                Rational[] value = new Rational[count];
+                for (int k = 0; k < count; k++) {
+                    value[k] = new Rational(in.getInt(p + k * 8) & 0xffffffffL,
+                            in.getInt(p + k * 8 + 4) & 0xffffffffL);
+                }
+                tag.setValue(value);
+                break;
+            }
+            case ExifTag.TYPE_RATIONAL: {
+                Rational[] value = new Rational[count];
+                for (int k = 0; k < count; k++) {
+                    value[k] = new Rational(in.getInt(p + k * 8), in.getInt(p + k * 8 + 4));
+                }
+                tag.setValue(value);
+                break;
+            }
+        }
+        tag.setOffset(p);
+        return tag;
+    }
+}
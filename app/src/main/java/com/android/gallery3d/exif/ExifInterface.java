@@ -34,6 +34,7 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -707,6 +708,12 @@ public class ExifInterface {
     }
 
     private static final String NULL_ARGUMENT_STRING = "Argument is null";
+    // Slack reserved in APP1 when forceRewriteExif has to move the image
+    // data, so the next rewrite can grow the header in place.
+    private static final int EXIF_PADDING = 1024;
+    private static final int APP1_HEADER_SIZE = 10;
+    // Size of the buffer used to shift the image data in forceRewriteExif().
+    private static final int SHIFT_BUFFER_SIZE = 64 * 1024;
     private ExifData mData = new ExifData(DEFAULT_BYTE_ORDER);
     public static final ByteOrder DEFAULT_BYTE_ORDER = ByteOrder.BIG_ENDIAN;
 
@@ -1029,6 +1036,11 @@ public class ExifInterface {
             is.close();
             is = null;
 
+            // Nothing to patch if the file has no exif header.
+            if (exifSize == 0) {
+                return false;
+            }
+
             // Open file for memory mapping.
             file = new RandomAccessFile(temp, "rw");
             long fileLength = file.length();
@@ -1079,8 +1091,12 @@ public class ExifInterface {
     }
 
     /**
-     * Attempts to do an in-place rewrite of the exif metadata. If this fails,
-     * fall back to overwriting file. This preserves tags that are not being
+     * Attempts to do an in-place rewrite of the exif metadata. If the tags do
+     * not fit the existing values, the whole exif header is rewritten in place
+     * when it fits in the existing APP1 segment, growing into any padding left
+     * there. Otherwise a new header that reserves padding for later rewrites
+     * replaces the old one, and the image data after it is shifted in place,
+     * so the file keeps its identity. This preserves tags that are not being
      * rewritten.
      *
      * @param filename a String containing a filepath for a jpeg file.
@@ -1094,28 +1110,119 @@ public class ExifInterface {
             throws FileNotFoundException,
             IOException {
         // Attempt in-place write
-        if (!rewriteExif(filename, tags)) {
-            // Fall back to doing a copy
-            ExifData tempData = mData;
-            mData = new ExifData(DEFAULT_BYTE_ORDER);
-            FileInputStream is = null;
-            ByteArrayOutputStream bytes = null;
+        if (rewriteExif(filename, tags)) {
+            return;
+        }
+        ExifData tempData = mData;
+        mData = new ExifData(DEFAULT_BYTE_ORDER);
+        RandomAccessFile file = null;
+        InputStream is = null;
+        try {
+            // Find the existing exif APP1 segment, if any.
+            is = new BufferedInputStream(new FileInputStream(filename));
+            ExifParser parser = null;
             try {
-                is = new FileInputStream(filename);
-                bytes = new ByteArrayOutputStream();
-                doExifStreamIO(is, bytes);
-                byte[] imageBytes = bytes.toByteArray();
-                readExif(imageBytes);
-                setTags(tags);
-                writeExif(imageBytes, filename);
-            } catch (IOException e) {
-                closeSilently(is);
-                throw e;
-            } finally {
-                is.close();
-                // Prevent clobbering of mData
-                mData = tempData;
+                parser = ExifParser.parse(is, 0, this);
+            } catch (ExifInvalidFormatException e) {
+                throw new IOException("Invalid exif format : ", e);
+            }
+            // Without an exif segment, the new one goes right after SOI.
+            int segmentStart = 2;
+            int segmentEnd = 2;
+            if (parser.getTiffStartPosition() > 0) {
+                segmentStart = parser.getTiffStartPosition() - APP1_HEADER_SIZE;
+                segmentEnd = parser.getOffsetToExifEndFromSOF();
+            }
+            is.close();
+            is = new BufferedInputStream(new FileInputStream(filename));
+            readExif(is);
+            is.close();
+            is = null;
+            setTags(tags);
+
+            file = new RandomAccessFile(filename, "rw");
+            if (segmentEnd > segmentStart) {
+                byte[] segment = getExifSegment(segmentEnd - segmentStart, 0);
+                if (segment.length == segmentEnd - segmentStart) {
+                    ByteBuffer buf = ByteBuffer.wrap(segment);
+                    while (buf.hasRemaining()) {
+                        file.getChannel().write(buf, segmentStart + buf.position());
+                    }
+                    file.close();
+                    return;
+                }
+            }
+            byte[] segment = getExifSegment(0, EXIF_PADDING);
+            replaceExifSegment(file, segment, segmentStart, segmentEnd);
+        } catch (IOException e) {
+            closeSilently(file);
+            throw e;
+        } finally {
+            closeSilently(is);
+            // Prevent clobbering of mData
+            mData = tempData;
+        }
+        file.close();
+    }
+
+    private byte[] getExifSegment(int segmentLength, int padding) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ExifOutputStream eos = new ExifOutputStream(bytes, this);
+        eos.setExifData(mData);
+        eos.setSegmentLength(segmentLength);
+        eos.setPadding(padding);
+        eos.writeExifSegment();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replaces the bytes between segmentStart and segmentEnd with the given
+     * APP1 segment, shifting the rest of the file in place. Unlike writing a
+     * copy and renaming it over the source, this keeps the file (and the
+     * MediaStore row that refers to it) the same.
+     */
+    private static void replaceExifSegment(RandomAccessFile file, byte[] segment,
+            long segmentStart, long segmentEnd) throws IOException {
+        FileChannel channel = file.getChannel();
+        long length = channel.size();
+        long delta = segment.length - (segmentEnd - segmentStart);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SHIFT_BUFFER_SIZE);
+        if (delta > 0) {
+            // Move the last block first, so nothing is overwritten before it
+            // has been read.
+            for (long end = length; end > segmentEnd;) {
+                int n = (int) Math.min(SHIFT_BUFFER_SIZE, end - segmentEnd);
+                end -= n;
+                move(channel, buffer, end, n, end + delta);
             }
+        } else if (delta < 0) {
+            for (long start = segmentEnd; start < length;) {
+                int n = (int) Math.min(SHIFT_BUFFER_SIZE, length - start);
+                move(channel, buffer, start, n, start + delta);
+                start += n;
+            }
+            channel.truncate(length + delta);
+        }
+        writeFully(channel, ByteBuffer.wrap(segment), segmentStart);
+    }
+
+    private static void move(FileChannel channel, ByteBuffer buffer, long from, int length,
+            long to) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, from + buffer.position()) < 0) {
+                throw new IOException("Filesize changed during operation");
+            }
+        }
+        buffer.flip();
+        writeFully(channel, buffer, to);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
         }
     }
 
@@ -1247,7 +1354,7 @@ public class ExifInterface {
         if (l == null || l.length <= 0) {
             return null;
         }
-        return new Long(l[0]);
+        return Long.valueOf(l[0]);
     }
 
     /**
@@ -1262,11 +1369,12 @@ public class ExifInterface {
      * @see #getTagValue
      */
     public Integer getTagIntValue(int tagId, int ifdId) {
-        int[] l = getTagIntValues(tagId, ifdId);
+        // Read the packed longs directly rather than copying them to an int[].
+        long[] l = getTagLongValues(tagId, ifdId);
         if (l == null || l.length <= 0) {
             return null;
         }
-        return new Integer(l[0]);
+        return Integer.valueOf((int) l[0]);
     }
 
     /**
@@ -1300,11 +1408,11 @@ public class ExifInterface {
      * @see #getTagValue
      */
     public Rational getTagRationalValue(int tagId, int ifdId) {
-        Rational[] l = getTagRationalValues(tagId, ifdId);
-        if (l == null || l.length == 0) {
+        ExifTag t = getTag(tagId, ifdId);
+        if (t == null) {
             return null;
         }
-        return new Rational(l[0]);
+        return t.getValueAsRational(null);
     }
 
     /**
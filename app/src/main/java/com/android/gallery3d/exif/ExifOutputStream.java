@@ -75,6 +75,8 @@ class ExifOutputStream extends FilterOutputStream {
     private static final int MAX_EXIF_SIZE = 65535;
 
     private ExifData mExifData;
+    private int mPadding;
+    private int mSegmentLength;
     private int mState = STATE_SOI;
     private int mByteToSkip;
     private int mByteToCopy;
@@ -102,6 +104,33 @@ class ExifOutputStream extends FilterOutputStream {
         return mExifData;
     }
 
+    /**
+     * Reserves the given number of zero bytes at the end of the APP1 segment,
+     * so that the header can later grow in place without moving the image
+     * data. The padding is trimmed if it would push APP1 past 64Kb.
+     */
+    protected void setPadding(int padding) {
+        mPadding = padding;
+    }
+
+    /**
+     * Pads the APP1 segment, including its marker, up to the given length so
+     * that it can overwrite an existing segment of that length. A header that
+     * does not fit is written unpadded.
+     */
+    protected void setSegmentLength(int length) {
+        mSegmentLength = length;
+    }
+
+    /**
+     * Writes only the APP1 segment holding the Exif header, without the SOI
+     * marker or any image data.
+     */
+    protected void writeExifSegment() throws IOException {
+        writeExifData();
+        out.flush();
+    }
+
     private int requestByteToBuffer(int requestByteCount, byte[] buffer
             , int offset, int length) {
         int byteNeeded = requestByteCount - mBuffer.position();
@@ -219,10 +248,12 @@ class ExifOutputStream extends FilterOutputStream {
         if (exifSize + 8 > MAX_EXIF_SIZE) {
             throw new IOException("Exif header is too large (>64Kb)");
         }
+        int padding = Math.min(mPadding, MAX_EXIF_SIZE - exifSize - 8);
+        padding = Math.max(padding, mSegmentLength - exifSize - 10);
         OrderedDataOutputStream dataOutputStream = new OrderedDataOutputStream(out);
         dataOutputStream.setByteOrder(ByteOrder.BIG_ENDIAN);
         dataOutputStream.writeShort(JpegHeader.APP1);
-        dataOutputStream.writeShort((short) (exifSize + 8));
+        dataOutputStream.writeShort((short) (exifSize + 8 + padding));
         dataOutputStream.writeInt(EXIF_HEADER);
         dataOutputStream.writeShort((short) 0x0000);
         if (mExifData.getByteOrder() == ByteOrder.BIG_ENDIAN) {
@@ -235,6 +266,9 @@ class ExifOutputStream extends FilterOutputStream {
         dataOutputStream.writeInt(8);
         writeAllTags(dataOutputStream);
         writeThumbnail(dataOutputStream);
+        if (padding > 0) {
+            dataOutputStream.write(new byte[padding]);
+        }
         for (ExifTag t : nullTags) {
             mExifData.addTag(t);
         }
@@ -560,7 +560,7 @@ class ExifParser {
                 byte[] buf = new byte[(int) numOfComp];
                 System.arraycopy(mDataAboveIfd0, (int) offset - DEFAULT_IFD0_OFFSET,
                         buf, 0, (int) numOfComp);
-                tag.setValue(buf);
+                tag.setPackedValue(buf);
             } else {
                 tag.setOffset((int) offset);
             }
@@ -681,50 +681,43 @@ class ExifParser {
             case ExifTag.TYPE_UNDEFINED: {
                 byte buf[] = new byte[tag.getComponentCount()];
                 read(buf);
-                tag.setValue(buf);
+                tag.setPackedValue(buf);
             }
                 break;
-            case ExifTag.TYPE_ASCII:
-                tag.setValue(readString(tag.getComponentCount()));
-                break;
-            case ExifTag.TYPE_UNSIGNED_LONG: {
-                long value[] = new long[tag.getComponentCount()];
-                for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readUnsignedLong();
-                }
-                tag.setValue(value);
+            case ExifTag.TYPE_ASCII: {
+                byte buf[] = new byte[tag.getComponentCount()];
+                mTiffStream.readOrThrow(buf);
+                tag.setStringByte(buf);
             }
                 break;
+            // Integers and rationals are read straight into the packed
+            // long[] the tag keeps, rationals as numerator/denominator pairs.
+            case ExifTag.TYPE_UNSIGNED_LONG:
             case ExifTag.TYPE_UNSIGNED_RATIONAL: {
-                Rational value[] = new Rational[tag.getComponentCount()];
+                long value[] = new long[tag.getComponentCount()
+                        * (type == ExifTag.TYPE_UNSIGNED_RATIONAL ? 2 : 1)];
                 for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readUnsignedRational();
+                    value[i] = readUnsignedLong();
                 }
-                tag.setValue(value);
+                tag.setPackedValue(value);
             }
                 break;
             case ExifTag.TYPE_UNSIGNED_SHORT: {
-                int value[] = new int[tag.getComponentCount()];
+                long value[] = new long[tag.getComponentCount()];
                 for (int i = 0, n = value.length; i < n; i++) {
                     value[i] = readUnsignedShort();
                 }
-                tag.setValue(value);
-            }
-                break;
-            case ExifTag.TYPE_LONG: {
-                int value[] = new int[tag.getComponentCount()];
-                for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readLong();
-                }
-                tag.setValue(value);
+                tag.setPackedValue(value);
             }
                 break;
+            case ExifTag.TYPE_LONG:
             case ExifTag.TYPE_RATIONAL: {
-                Rational value[] = new Rational[tag.getComponentCount()];
+                long value[] = new long[tag.getComponentCount()
+                        * (type == ExifTag.TYPE_RATIONAL ? 2 : 1)];
                 for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readRational();
+                    value[i] = readLong();
                 }
-                tag.setValue(value);
+                tag.setPackedValue(value);
             }
                 break;
         }
@@ -772,7 +765,8 @@ class ExifParser {
                     if (header == EXIF_HEADER && headerTail == EXIF_HEADER_TAIL) {
                         mTiffStartPosition = dataStream.getReadByteCount();
                         mApp1End = length;
-                        mOffsetToApp1EndFromSOF = mTiffStartPosition + mApp1End;
+                        // length still counts its own two bytes.
+                        mOffsetToApp1EndFromSOF = mTiffStartPosition + mApp1End - 2;
                         return true;
                     }
                 }
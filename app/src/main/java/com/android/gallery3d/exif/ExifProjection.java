@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.exif;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads a fixed set of EXIF tags from JPEGs.
+ *
+ * The tags are given once, as ExifInterface.TAG_* constants, and sorted by
+ * IFD when the projection is built. read() then visits only the IFDs that
+ * hold a requested tag, compares each entry against the few ids wanted
+ * there, and stops walking an IFD as soon as everything in it was found.
+ * Nothing is decoded until a Result getter asks for it, and the getters
+ * for numbers do not allocate.
+ *
+ * A projection is immutable and may be shared between threads; each thread
+ * reads into its own Result, which can be reused for many files. Results
+ * are addressed by slot, the position of the tag in the constructor
+ * arguments.
+ */
+public class ExifProjection {
+    private static final int TAG_EXIF_IFD =
+            ExifInterface.getTrueTagKey(ExifInterface.TAG_EXIF_IFD);
+    private static final int TAG_GPS_IFD =
+            ExifInterface.getTrueTagKey(ExifInterface.TAG_GPS_IFD);
+    private static final int TAG_INTEROPERABILITY_IFD =
+            ExifInterface.getTrueTagKey(ExifInterface.TAG_INTEROPERABILITY_IFD);
+
+    private static final short[] NO_TAGS = new short[0];
+    private static final int[] NO_SLOTS = new int[0];
+
+    private final int mSlotCount;
+    // Per IFD, the ids to look for and the slot each one fills, or null if
+    // nothing is wanted from that IFD.
+    private final short[][] mTagIds = new short[IfdId.TYPE_IFD_COUNT][];
+    private final int[][] mSlots = new int[IfdId.TYPE_IFD_COUNT][];
+
+    /**
+     * Results are reported in slot i for tagIds[i].
+     */
+    public ExifProjection(int... tagIds) {
+        mSlotCount = tagIds.length;
+        for (int ifd = 0; ifd < IfdId.TYPE_IFD_COUNT; ifd++) {
+            int n = 0;
+            for (int tagId : tagIds) {
+                if (ExifInterface.getTrueIfd(tagId) == ifd) n++;
+            }
+            if (n == 0) continue;
+            short[] ids = new short[n];
+            int[] slots = new int[n];
+            n = 0;
+            for (int slot = 0; slot < tagIds.length; slot++) {
+                if (ExifInterface.getTrueIfd(tagIds[slot]) != ifd) continue;
+                ids[n] = ExifInterface.getTrueTagKey(tagIds[slot]);
+                slots[n++] = slot;
+            }
+            mTagIds[ifd] = ids;
+            mSlots[ifd] = slots;
+        }
+    }
+
+    public int getSlotCount() {
+        return mSlotCount;
+    }
+
+    public Result newResult() {
+        return new Result(mSlotCount);
+    }
+
+    /**
+     * Reads the tags from a JPEG file. Returns false if it has no readable
+     * EXIF header, in which case no tag is set in the result. Only the
+     * header is read, up to JpegScanner.MAX_HEADER_SIZE bytes, into an array
+     * the result keeps and reuses for the next file; callers that read many
+     * files should reuse one result.
+     */
+    public boolean read(File file, Result result) throws IOException {
+        // A reused result must not keep the last file's tags if this throws.
+        result.clear();
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteBuffer header = JpegScanner.readHeader(in, result.mHeader);
+            result.mHeader = header.array();
+            return read(header, result);
+        } finally {
+            in.close();
+        }
+    }
+
+    public boolean read(byte[] jpeg, int offset, int length, Result result) {
+        return read(ByteBuffer.wrap(jpeg, offset, length).slice(), result);
+    }
+
+    /**
+     * Reads the tags from a JPEG at the buffer's position. The result keeps
+     * the buffer, so it must not change while the result is used.
+     */
+    public boolean read(ByteBuffer jpeg, Result result) {
+        result.clear();
+        ByteBuffer in = jpeg.slice();
+        try {
+            ByteBuffer tiff = ExifIndex.findTiffData(in);
+            return tiff != null && readTiff(tiff, in.position(), result);
+        } catch (BufferUnderflowException e) {
+            // Truncated header.
+        } catch (IndexOutOfBoundsException e) {
+            // Offset out of range.
+        }
+        return false;
+    }
+
+    /**
+     * Reads the tags from TIFF data in its byte order. tiffStart is the
+     * position of the TIFF header in the caller's buffer; offsets reported
+     * by the result are relative to it. Tags found before an error in the
+     * data stay set.
+     */
+    boolean readTiff(ByteBuffer tiff, int tiffStart, Result result) {
+        result.clear();
+        if (result.mTypes.length < mSlotCount) {
+            throw new IllegalArgumentException("result is too small");
+        }
+        result.mTiff = tiff;
+        result.mTiffStart = tiffStart;
+        try {
+            int[] pointers = result.mPointers;
+            int ifd1 = readIfd(IfdId.TYPE_IFD_0, tiff.getInt(4), result);
+            if (mTagIds[IfdId.TYPE_IFD_EXIF] != null
+                    || mTagIds[IfdId.TYPE_IFD_INTEROPERABILITY] != null) {
+                readIfd(IfdId.TYPE_IFD_EXIF, pointers[IfdId.TYPE_IFD_EXIF], result);
+            }
+            if (mTagIds[IfdId.TYPE_IFD_INTEROPERABILITY] != null) {
+                readIfd(IfdId.TYPE_IFD_INTEROPERABILITY,
+                        pointers[IfdId.TYPE_IFD_INTEROPERABILITY], result);
+            }
+            if (mTagIds[IfdId.TYPE_IFD_GPS] != null) {
+                readIfd(IfdId.TYPE_IFD_GPS, pointers[IfdId.TYPE_IFD_GPS], result);
+            }
+            if (mTagIds[IfdId.TYPE_IFD_1] != null) {
+                readIfd(IfdId.TYPE_IFD_1, ifd1, result);
+            }
+        } catch (BufferUnderflowException e) {
+            // Truncated header; keep what was found.
+        } catch (IndexOutOfBoundsException e) {
+            // Offset out of range; keep what was found.
+        }
+        return true;
+    }
+
+    // Fills the slots wanted from one IFD and records the offsets of the IFDs
+    // it links to. Returns the offset of the next IFD, or 0 if the walk
+    // stopped early.
+    private int readIfd(int ifd, int offset, Result result) {
+        ByteBuffer tiff = result.mTiff;
+        int limit = tiff.limit();
+        if (offset < 8 || offset + 2 > limit) return 0;
+        int count = tiff.getShort(offset) & 0xffff;
+        if (count > ExifIndex.MAX_TAGS_IN_IFD) return 0;
+
+        short[] ids = mTagIds[ifd];
+        int[] slots = mSlots[ifd];
+        if (ids == null) {
+            ids = NO_TAGS;
+            slots = NO_SLOTS;
+        }
+        int wanted = ids.length;
+        // Only IFD0 and the EXIF IFD link to others; stop looking for the
+        // links once they are no longer needed.
+        boolean wantExif = ifd == IfdId.TYPE_IFD_0
+                && (mTagIds[IfdId.TYPE_IFD_EXIF] != null
+                || mTagIds[IfdId.TYPE_IFD_INTEROPERABILITY] != null);
+        boolean wantGps = ifd == IfdId.TYPE_IFD_0 && mTagIds[IfdId.TYPE_IFD_GPS] != null;
+        boolean wantInterop = ifd == IfdId.TYPE_IFD_EXIF
+                && mTagIds[IfdId.TYPE_IFD_INTEROPERABILITY] != null;
+        // IFD0 has to be walked to its end to find IFD1.
+        boolean wantNext = ifd == IfdId.TYPE_IFD_0 && mTagIds[IfdId.TYPE_IFD_1] != null;
+
+        for (int i = 0; i < count; i++) {
+            if (wanted == 0 && !wantExif && !wantGps && !wantInterop && !wantNext) return 0;
+            int entry = offset + 2 + i * ExifIndex.TAG_SIZE;
+            if (entry + ExifIndex.TAG_SIZE > limit) return 0;
+            short tagId = tiff.getShort(entry);
+            if (wantExif && tagId == TAG_EXIF_IFD) {
+                result.mPointers[IfdId.TYPE_IFD_EXIF] = tiff.getInt(entry + 8);
+                wantExif = false;
+                continue;
+            } else if (wantGps && tagId == TAG_GPS_IFD) {
+                result.mPointers[IfdId.TYPE_IFD_GPS] = tiff.getInt(entry + 8);
+                wantGps = false;
+                continue;
+            } else if (wantInterop && tagId == TAG_INTEROPERABILITY_IFD) {
+                result.mPointers[IfdId.TYPE_IFD_INTEROPERABILITY] = tiff.getInt(entry + 8);
+                wantInterop = false;
+                continue;
+            }
+            for (int k = 0; k < ids.length; k++) {
+                int slot = slots[k];
+                // A repeated tag keeps its first value, as in ExifIndex.
+                if (ids[k] != tagId || result.mTypes[slot] != 0) continue;
+                int valueOffset = ExifIndex.entryValueOffset(tiff, entry);
+                if (valueOffset < 0) break;
+                result.mTypes[slot] = tiff.getShort(entry + 2);
+                result.mComponentCounts[slot] = tiff.getInt(entry + 4);
+                result.mValueOffsets[slot] = valueOffset;
+                wanted--;
+                break;
+            }
+        }
+        int next = offset + 2 + count * ExifIndex.TAG_SIZE;
+        return next + 4 <= limit ? tiff.getInt(next) : 0;
+    }
+
+    /**
+     * The values read by a projection. Not thread-safe.
+     */
+    public static class Result {
+        private ByteBuffer mTiff;
+        private int mTiffStart;
+
+        // One slot per requested tag; a type of 0 marks a missing tag.
+        private final short[] mTypes;
+        private final int[] mComponentCounts;
+        // Relative to the TIFF header.
+        private final int[] mValueOffsets;
+
+        // Offsets of the linked IFDs, by IFD id.
+        private final int[] mPointers = new int[IfdId.TYPE_IFD_COUNT];
+        // The header read by the last read(File, Result) into this result.
+        private byte[] mHeader;
+
+        Result(int slotCount) {
+            mTypes = new short[slotCount];
+            mComponentCounts = new int[slotCount];
+            mValueOffsets = new int[slotCount];
+        }
+
+        private void clear() {
+            mTiff = null;
+            Arrays.fill(mTypes, (short) 0);
+            Arrays.fill(mPointers, 0);
+        }
+
+        public boolean hasTag(int slot) {
+            return mTypes[slot] != 0;
+        }
+
+        /**
+         * Returns the ExifTag.TYPE_* of the tag, or -1 if it is absent.
+         */
+        public short getDataType(int slot) {
+            return mTypes[slot] == 0 ? -1 : mTypes[slot];
+        }
+
+        public int getComponentCount(int slot) {
+            return mTypes[slot] == 0 ? 0 : mComponentCounts[slot];
+        }
+
+        /**
+         * Returns the position of the tag's value in the buffer that was
+         * read, or -1 if the tag is absent.
+         */
+        public int getValueOffset(int slot) {
+            return mTypes[slot] == 0 ? -1 : mTiffStart + mValueOffsets[slot];
+        }
+
+        /**
+         * Reads an integer component of a tag of type byte, short or long.
+         */
+        public long getLong(int slot, int index, long defaultValue) {
+            if (mTypes[slot] == 0) return defaultValue;
+            return ExifIndex.readLong(mTiff, mTypes[slot], mComponentCounts[slot],
+                    mValueOffsets[slot], index, defaultValue);
+        }
+
+        public int getInt(int slot, int defaultValue) {
+            return (int) getLong(slot, 0, defaultValue);
+        }
+
+        public long getNumerator(int slot, int index) {
+            if (mTypes[slot] == 0) return 0;
+            return ExifIndex.readRationalPart(mTiff, mTypes[slot], mComponentCounts[slot],
+                    mValueOffsets[slot], index, 0);
+        }
+
+        public long getDenominator(int slot, int index) {
+            if (mTypes[slot] == 0) return 0;
+            return ExifIndex.readRationalPart(mTiff, mTypes[slot], mComponentCounts[slot],
+                    mValueOffsets[slot], index, 4);
+        }
+
+        /**
+         * Reads a rational component as a double. Returns defaultValue if
+         * the tag is absent, not rational, or has a zero denominator.
+         */
+        public double getRational(int slot, int index, double defaultValue) {
+            long denominator = getDenominator(slot, index);
+            if (denominator == 0) return defaultValue;
+            return (double) getNumerator(slot, index) / denominator;
+        }
+
+        /**
+         * Reads an ASCII tag up to its first NUL, or returns null if the
+         * tag is absent or not ASCII.
+         */
+        public String getString(int slot) {
+            if (mTypes[slot] == 0) return null;
+            return ExifIndex.readString(mTiff, mTypes[slot], mComponentCounts[slot],
+                    mValueOffsets[slot]);
+        }
+    }
+}
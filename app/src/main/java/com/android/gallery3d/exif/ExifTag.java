@@ -97,7 +97,8 @@ public class ExifTag {
     private int mComponentCountActual;
     // The ifd that this tag should be put in
     private int mIfd;
-    // The value (array of elements of type Tag Type)
+    // The value: a long[] for integer types, a long[] of numerator and
+    // denominator pairs for rational types, a byte[] otherwise.
     private Object mValue;
     // Value offset in exif header.
     private int mOffset;
@@ -332,8 +333,19 @@ public class ExifTag {
         if (mDataType != TYPE_ASCII && mDataType != TYPE_UNDEFINED) {
             return false;
         }
+        return setStringByte(value.getBytes(US_ASCII));
+    }
 
-        byte[] buf = value.getBytes(US_ASCII);
+    /**
+     * Sets ASCII bytes as {@link #setValue(String)} would after encoding,
+     * without creating a String. Used by ExifParser.
+     */
+    protected boolean setStringByte(byte[] buf) {
+        for (int i = 0; i < buf.length; i++) {
+            if (buf[i] < 0) {
+                buf[i] = '?';
+            }
+        }
         byte[] finalBuf = buf;
         if (mDataType == TYPE_ASCII) {
             if (buf.length > 0) {
@@ -386,7 +398,12 @@ public class ExifTag {
             return false;
         }
 
-        mValue = value;
+        long[] packed = new long[value.length * 2];
+        for (int i = 0; i < value.length; i++) {
+            packed[i * 2] = value[i].getNumerator();
+            packed[i * 2 + 1] = value[i].getDenominator();
+        }
+        mValue = packed;
         mComponentCountActual = value.length;
         return true;
     }
@@ -527,6 +544,25 @@ public class ExifTag {
         }
     }
 
+    /**
+     * Sets integer values, or numerator and denominator pairs for rational
+     * types, without the checks of the public setters. Used by ExifParser,
+     * which reads values that are in range by construction.
+     */
+    protected void setPackedValue(long[] value) {
+        mValue = value;
+        mComponentCountActual = isRational() ? value.length / 2 : value.length;
+    }
+
+    /**
+     * Takes ownership of the given bytes instead of copying them as
+     * {@link #setValue(byte[])} does. Used by ExifParser.
+     */
+    protected void setPackedValue(byte[] value) {
+        mValue = value;
+        mComponentCountActual = value.length;
+    }
+
     /**
      * Sets a timestamp to this tag. The method converts the timestamp with the
      * format of "yyyy:MM:dd kk:mm:ss" and calls {@link #setValue(String)}. This
@@ -616,10 +652,14 @@ public class ExifTag {
      *         does not exist or cannot be converted to an array of Rationals.
      */
     public Rational[] getValueAsRationals() {
-        if (mValue instanceof Rational[]) {
-            return (Rational[]) mValue;
+        if (!isRational() || mValue == null) {
+            return null;
         }
-        return null;
+        Rational[] r = new Rational[((long[]) mValue).length / 2];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = getRational(i);
+        }
+        return r;
     }
 
     /**
@@ -632,11 +672,10 @@ public class ExifTag {
      * @return the tag's value as a Rational, or the defaultValue.
      */
     public Rational getValueAsRational(Rational defaultValue) {
-        Rational[] r = getValueAsRationals();
-        if (r == null || r.length < 1) {
+        if (!isRational() || mValue == null || ((long[]) mValue).length < 2) {
             return defaultValue;
         }
-        return r[0];
+        return getRational(0);
     }
 
     /**
@@ -650,8 +689,8 @@ public class ExifTag {
      * @return the tag's value as a Rational, or the defaultValue.
      */
     public Rational getValueAsRational(long defaultValue) {
-        Rational defaultVal = new Rational(defaultValue, 1);
-        return getValueAsRational(defaultVal);
+        Rational r = getValueAsRational(null);
+        return r != null ? r : new Rational(defaultValue, 1);
     }
 
     /**
@@ -662,7 +701,7 @@ public class ExifTag {
      *         not exist or cannot be converted to an array of ints.
      */
     public int[] getValueAsInts() {
-        if (mValue == null) {
+        if (mValue == null || isRational()) {
             return null;
         } else if (mValue instanceof long[]) {
             long[] val = (long[]) mValue;
@@ -685,11 +724,11 @@ public class ExifTag {
      * @return the tag's value as a int, or the defaultValue.
      */
     public int getValueAsInt(int defaultValue) {
-        int[] i = getValueAsInts();
-        if (i == null || i.length < 1) {
+        long[] l = getValueAsLongs();
+        if (l == null || l.length < 1) {
             return defaultValue;
         }
-        return i[0];
+        return (int) l[0]; // Truncates
     }
 
     /**
@@ -700,7 +739,7 @@ public class ExifTag {
      *         does not exist or cannot be converted to an array of longs.
      */
     public long[] getValueAsLongs() {
-        if (mValue instanceof long[]) {
+        if (mValue instanceof long[] && !isRational()) {
             return (long[]) mValue;
         }
         return null;
@@ -727,6 +766,9 @@ public class ExifTag {
      * Gets the tag's value or null if none exists.
      */
     public Object getValue() {
+        if (isRational()) {
+            return getValueAsRationals();
+        }
         return mValue;
     }
 
@@ -747,9 +789,9 @@ public class ExifTag {
         if (b != null && b.length >= 1) {
             return b[0];
         }
-        Rational[] r = getValueAsRationals();
-        if (r != null && r.length >= 1 && r[0].getDenominator() != 0) {
-            return (long) r[0].toDouble();
+        Rational r = getValueAsRational(null);
+        if (r != null && r.getDenominator() != 0) {
+            return (long) r.toDouble();
         }
         return defaultValue;
     }
@@ -766,23 +808,18 @@ public class ExifTag {
             } else {
                 return Arrays.toString((byte[]) mValue);
             }
+        } else if (isRational()) {
+            if (((long[]) mValue).length == 2) {
+                return getRational(0).toString();
+            } else {
+                return Arrays.toString(getValueAsRationals());
+            }
         } else if (mValue instanceof long[]) {
             if (((long[]) mValue).length == 1) {
                 return String.valueOf(((long[]) mValue)[0]);
             } else {
                 return Arrays.toString((long[]) mValue);
             }
-        } else if (mValue instanceof Object[]) {
-            if (((Object[]) mValue).length == 1) {
-                Object val = ((Object[]) mValue)[0];
-                if (val == null) {
-                    return "";
-                } else {
-                    return val.toString();
-                }
-            } else {
-                return Arrays.toString((Object[]) mValue);
-            }
         } else {
             return mValue.toString();
         }
@@ -799,7 +836,7 @@ public class ExifTag {
      *                {@link #TYPE_RATIONAL} or {@link #TYPE_UNSIGNED_RATIONAL}.
      */
     protected long getValueAt(int index) {
-        if (mValue instanceof long[]) {
+        if (mValue instanceof long[] && !isRational()) {
             return ((long[]) mValue)[index];
         } else if (mValue instanceof byte[]) {
             return ((byte[]) mValue)[index];
@@ -840,7 +877,12 @@ public class ExifTag {
             throw new IllegalArgumentException("Cannot get RATIONAL value from "
                     + convertTypeToString(mDataType));
         }
-        return ((Rational[]) mValue)[index];
+        long[] packed = (long[]) mValue;
+        return new Rational(packed[index * 2], packed[index * 2 + 1]);
+    }
+
+    private boolean isRational() {
+        return mDataType == TYPE_RATIONAL || mDataType == TYPE_UNSIGNED_RATIONAL;
     }
 
     /**
@@ -991,11 +1033,6 @@ public class ExifTag {
                         return false;
                     }
                     return Arrays.equals((long[]) mValue, (long[]) tag.mValue);
-                } else if (mValue instanceof Rational[]) {
-                    if (!(tag.mValue instanceof Rational[])) {
-                        return false;
-                    }
-                    return Arrays.equals((Rational[]) mValue, (Rational[]) tag.mValue);
                 } else if (mValue instanceof byte[]) {
                     if (!(tag.mValue instanceof byte[])) {
                         return false;
@@ -16,19 +16,23 @@
 
 package com.android.gallery3d.exif;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
- * This class stores all the tags in an IFD.
+ * This class stores all the tags in an IFD, sorted by tag id as TIFF requires.
  *
  * @see ExifData
  * @see ExifTag
  */
 class IfdData {
 
+    private static final int INITIAL_CAPACITY = 8;
+
     private final int mIfdId;
-    private final Map<Short, ExifTag> mExifTags = new HashMap<Short, ExifTag>();
+    // Parallel arrays; mTagIds[0, mTagCount) is kept sorted by unsigned id.
+    private short[] mTagIds = new short[INITIAL_CAPACITY];
+    private ExifTag[] mTags = new ExifTag[INITIAL_CAPACITY];
+    private int mTagCount;
     private int mOffsetToNextIfd = 0;
     private static final int[] sIfds = {
             IfdId.TYPE_IFD_0, IfdId.TYPE_IFD_1, IfdId.TYPE_IFD_EXIF,
@@ -55,7 +59,7 @@ class IfdData {
      * Get a array the contains all {@link ExifTag} in this IFD.
      */
     protected ExifTag[] getAllTags() {
-        return mExifTags.values().toArray(new ExifTag[mExifTags.size()]);
+        return Arrays.copyOf(mTags, mTagCount);
     }
 
     /**
@@ -76,7 +80,8 @@ class IfdData {
      * such tag.
      */
     protected ExifTag getTag(short tagId) {
-        return mExifTags.get(tagId);
+        int i = indexOf(tagId);
+        return i >= 0 ? mTags[i] : null;
     }
 
     /**
@@ -84,25 +89,70 @@ class IfdData {
      */
     protected ExifTag setTag(ExifTag tag) {
         tag.setIfd(mIfdId);
-        return mExifTags.put(tag.getTagId(), tag);
+        int i = indexOf(tag.getTagId());
+        if (i >= 0) {
+            ExifTag old = mTags[i];
+            mTags[i] = tag;
+            return old;
+        }
+        i = -i - 1;
+        if (mTagCount == mTagIds.length) {
+            mTagIds = Arrays.copyOf(mTagIds, mTagCount * 2);
+            mTags = Arrays.copyOf(mTags, mTagCount * 2);
+        }
+        System.arraycopy(mTagIds, i, mTagIds, i + 1, mTagCount - i);
+        System.arraycopy(mTags, i, mTags, i + 1, mTagCount - i);
+        mTagIds[i] = tag.getTagId();
+        mTags[i] = tag;
+        mTagCount++;
+        return null;
     }
 
     protected boolean checkCollision(short tagId) {
-        return mExifTags.get(tagId) != null;
+        return indexOf(tagId) >= 0;
     }
 
     /**
      * Removes the tag of the given ID
      */
     protected void removeTag(short tagId) {
-        mExifTags.remove(tagId);
+        int i = indexOf(tagId);
+        if (i < 0) {
+            return;
+        }
+        mTagCount--;
+        System.arraycopy(mTagIds, i + 1, mTagIds, i, mTagCount - i);
+        System.arraycopy(mTags, i + 1, mTags, i, mTagCount - i);
+        mTags[mTagCount] = null;
     }
 
     /**
      * Gets the tags count in the IFD.
      */
     protected int getTagCount() {
-        return mExifTags.size();
+        return mTagCount;
+    }
+
+    /**
+     * Binary search over the unsigned tag ids. Returns the index of the tag,
+     * or (-(insertion point) - 1) if it is absent.
+     */
+    private int indexOf(short tagId) {
+        int key = tagId & 0xffff;
+        int lo = 0;
+        int hi = mTagCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = mTagIds[mid] & 0xffff;
+            if (id < key) {
+                lo = mid + 1;
+            } else if (id > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
     }
 
     /**
@@ -139,7 +189,7 @@ class IfdData {
                     if (ExifInterface.isOffsetTag(tag.getTagId())) {
                         continue;
                     }
-                    ExifTag tag2 = mExifTags.get(tag.getTagId());
+                    ExifTag tag2 = getTag(tag.getTagId());
                     if (!tag.equals(tag2)) {
                         return false;
                     }
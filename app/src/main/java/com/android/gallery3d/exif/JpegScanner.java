@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.exif;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads what the gallery needs from a JPEG header in one pass over the
+ * marker segments: the frame size and components, the EXIF orientation and
+ * the location of the EXIF thumbnail. Scanning stops at the SOF segment, so
+ * no entropy-coded data is touched. Files and streams are read only up to
+ * the end of that segment, and never past MAX_HEADER_SIZE bytes.
+ */
+public class JpegScanner {
+    private static final int M_SOI = 0xD8;
+    private static final int M_EOI = 0xD9;
+    private static final int M_SOS = 0xDA;
+    private static final int M_APP1 = 0xE1;
+    private static final int M_TEM = 0x01;
+    private static final int M_RST0 = 0xD0;
+    private static final int M_RST7 = 0xD7;
+
+    private static final int EXIF_HEADER = 0x45786966; // "Exif"
+
+    // The segments before the frame header normally take a few KB; EXIF
+    // needs one APP1 segment of at most 64 KB.
+    static final int MAX_HEADER_SIZE = 256 * 1024;
+    private static final int INITIAL_HEADER_SIZE = 16 * 1024;
+
+    // Slots of HEADER_TAGS.
+    private static final int ORIENTATION = 0;
+    private static final int THUMBNAIL_OFFSET = 1;
+    private static final int THUMBNAIL_LENGTH = 2;
+    private static final ExifProjection HEADER_TAGS = new ExifProjection(
+            ExifInterface.TAG_ORIENTATION,
+            ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT,
+            ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+
+    public static class Info {
+        public int width;
+        public int height;
+        public int components;
+        public int precision;
+        // The SOFn marker, e.g. 0xC0 for baseline or 0xC2 for progressive.
+        public int sofMarker;
+        // The EXIF orientation (1 to 8), or 0 if there is none.
+        public int orientation;
+        // Byte range of the EXIF thumbnail in the file; length is 0 if none.
+        public int thumbnailOffset;
+        public int thumbnailLength;
+
+        private ByteBuffer mBuffer;
+
+        public boolean hasThumbnail() {
+            return thumbnailLength > 0;
+        }
+
+        // Copies the EXIF thumbnail out of the scanned file.
+        public byte[] getThumbnailBytes() {
+            if (!hasThumbnail()) return null;
+            byte[] bytes = new byte[thumbnailLength];
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(thumbnailOffset);
+            buffer.get(bytes);
+            return bytes;
+        }
+    }
+
+    /**
+     * Returns null if the file is not a JPEG or has no frame header.
+     */
+    public static Info scan(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return scan(readHeader(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Scans from the start of the file. The descriptor is neither closed
+     * nor moved, so the caller can keep using it. Throws IOException if it
+     * is not seekable, e.g. for a pipe; use scan(InputStream) for those.
+     */
+    @SuppressWarnings("resource")
+    public static Info scan(FileDescriptor fd) throws IOException {
+        // Closing this stream would close fd.
+        FileChannel channel = new FileInputStream(fd).getChannel();
+        long position = channel.position();
+        channel.position(0);
+        try {
+            return scan(readHeader(Channels.newInputStream(channel)));
+        } finally {
+            channel.position(position);
+        }
+    }
+
+    /**
+     * Scans from the stream's position and leaves it open, somewhere past
+     * the header. The stream is read in blocks, so it needs no buffering.
+     */
+    public static Info scan(InputStream in) throws IOException {
+        return scan(readHeader(in));
+    }
+
+    public static Info scan(byte[] data, int offset, int length) {
+        return scan(ByteBuffer.wrap(data, offset, length).slice());
+    }
+
+    /**
+     * Scans the buffer from its position. Offsets in the result are
+     * relative to that position.
+     */
+    public static Info scan(ByteBuffer buffer) {
+        ByteBuffer in = buffer.slice();
+        in.order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (in.remaining() < 4 || (in.get() & 0xFF) != 0xFF
+                    || (in.get() & 0xFF) != M_SOI) {
+                return null;
+            }
+            Info info = new Info();
+            info.mBuffer = in;
+            while (in.hasRemaining()) {
+                if ((in.get() & 0xFF) != 0xFF) continue;
+                int marker = in.get() & 0xFF;
+                while (marker == 0xFF) marker = in.get() & 0xFF;
+                if (marker == 0 || marker == M_TEM
+                        || (marker >= M_RST0 && marker <= M_RST7)) {
+                    continue;
+                }
+                if (marker == M_SOS || marker == M_EOI) return null;
+
+                int start = in.position();
+                int length = in.getShort() & 0xFFFF;
+                if (length < 2 || start + length > in.limit()) return null;
+                if (isSofMarker(marker)) {
+                    info.sofMarker = marker;
+                    info.precision = in.get() & 0xFF;
+                    info.height = in.getShort() & 0xFFFF;
+                    info.width = in.getShort() & 0xFFFF;
+                    info.components = in.get() & 0xFF;
+                    return info;
+                }
+                if (marker == M_APP1 && info.orientation == 0 && length >= 8
+                        && in.getInt() == EXIF_HEADER && in.getShort() == 0) {
+                    parseExif(in, start + 8, start + length, info);
+                }
+                in.position(start + length);
+            }
+        } catch (BufferUnderflowException e) {
+            // Truncated header.
+        } catch (IndexOutOfBoundsException e) {
+            // Offset out of range.
+        } catch (IllegalArgumentException e) {
+            // Offset out of range.
+        }
+        return null;
+    }
+
+    /**
+     * Reads the marker segments from the SOI up to the end of the frame
+     * header, the first SOS or EOI, or MAX_HEADER_SIZE bytes, whichever
+     * comes first. Whatever was read is returned if the stream is not a
+     * JPEG or ends early.
+     */
+    static ByteBuffer readHeader(InputStream in) throws IOException {
+        return readHeader(in, null);
+    }
+
+    /**
+     * Like readHeader(InputStream), but reads into the given array unless it
+     * is null. The result is backed by that array, or by a larger one if the
+     * header did not fit; pass its array() to the next call to reuse it.
+     */
+    static ByteBuffer readHeader(InputStream in, byte[] buffer) throws IOException {
+        HeaderReader reader = new HeaderReader(in, buffer);
+        if (!reader.read(2) || reader.get(0) != 0xFF || reader.get(1) != M_SOI) {
+            return reader.toBuffer();
+        }
+        while (reader.read(1)) {
+            if (reader.last() != 0xFF) continue;
+            int marker = 0xFF;
+            while (marker == 0xFF && reader.read(1)) marker = reader.last();
+            if (marker == 0xFF || marker == M_SOS || marker == M_EOI) break;
+            if (marker == 0 || marker == M_TEM
+                    || (marker >= M_RST0 && marker <= M_RST7)) {
+                continue;
+            }
+            if (!reader.read(2)) break;
+            int length = (reader.get(reader.length() - 2) << 8) | reader.last();
+            if (length < 2 || !reader.read(length - 2) || isSofMarker(marker)) break;
+        }
+        return reader.toBuffer();
+    }
+
+    // Walks the header with a cursor over a buffer that is filled from the
+    // stream in blocks, so no extra buffering is needed, and that grows up
+    // to MAX_HEADER_SIZE.
+    private static class HeaderReader {
+        private final InputStream mIn;
+        private byte[] mData;
+        // Bytes read from the stream, and bytes consumed by the walk.
+        private int mLength;
+        private int mPosition;
+
+        HeaderReader(InputStream in, byte[] data) {
+            mIn = in;
+            mData = data != null ? data : new byte[INITIAL_HEADER_SIZE];
+        }
+
+        // Consumes count bytes. Returns false if the stream ended or the
+        // limit was hit first.
+        boolean read(int count) throws IOException {
+            long wanted = (long) mPosition + count;
+            int end = (int) Math.min(wanted, MAX_HEADER_SIZE);
+            if (end > mData.length) {
+                byte[] data = new byte[Math.min(Math.max(end, mData.length * 2),
+                        MAX_HEADER_SIZE)];
+                System.arraycopy(mData, 0, data, 0, mLength);
+                mData = data;
+            }
+            while (mLength < end) {
+                int n = mIn.read(mData, mLength, mData.length - mLength);
+                if (n < 0) {
+                    mPosition = mLength;
+                    return false;
+                }
+                mLength += n;
+            }
+            mPosition = end;
+            return end == wanted;
+        }
+
+        int get(int index) {
+            return mData[index] & 0xFF;
+        }
+
+        int last() {
+            return get(mPosition - 1);
+        }
+
+        int length() {
+            return mPosition;
+        }
+
+        ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(mData, 0, mPosition).slice();
+        }
+    }
+
+    private static boolean isSofMarker(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF
+                && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    // Reads the orientation from IFD0 and the thumbnail range from IFD1.
+    // tiff and end are absolute positions of the TIFF header and the end of
+    // the APP1 segment.
+    private static void parseExif(ByteBuffer buffer, int tiff, int end, Info info) {
+        ByteBuffer in = buffer.duplicate();
+        in.limit(end).position(tiff);
+        in = in.slice();
+        if (!ExifIndex.setTiffByteOrder(in)) return;
+        ExifProjection.Result result = HEADER_TAGS.newResult();
+        HEADER_TAGS.readTiff(in, tiff, result);
+
+        if (result.getDataType(ORIENTATION) == ExifTag.TYPE_UNSIGNED_SHORT) {
+            int orientation = result.getInt(ORIENTATION, 0);
+            if (orientation >= 1 && orientation <= 8) info.orientation = orientation;
+        }
+        int thumbnailOffset = result.getInt(THUMBNAIL_OFFSET, 0);
+        int thumbnailLength = result.getInt(THUMBNAIL_LENGTH, 0);
+        if (thumbnailOffset > 0 && thumbnailLength > 0
+                && (long) thumbnailOffset + thumbnailLength <= in.limit()) {
+            info.thumbnailOffset = tiff + thumbnailOffset;
+            info.thumbnailLength = thumbnailLength;
+        }
+    }
+}
@@ -29,6 +29,7 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
@@ -36,13 +37,16 @@ import android.webkit.MimeTypeMap;
 import com.adobe.xmp.XMPException;
 import com.adobe.xmp.XMPMeta;
 import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.exif.ExifIndex;
 import com.android.gallery3d.exif.ExifInterface;
 import com.android.gallery3d.exif.ExifTag;
+import com.android.gallery3d.exif.JpegScanner;
 import com.android.gallery3d.filtershow.imageshow.MasterImage;
 import com.android.gallery3d.filtershow.pipeline.FilterEnvironment;
 import com.android.gallery3d.filtershow.tools.XmpPresets;
 import com.android.gallery3d.util.XmpUtilHelper;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -129,57 +133,62 @@ public final class ImageLoader {
         } finally {
             Utils.closeSilently(cursor);
         }
-        ExifInterface exif = new ExifInterface();
-        InputStream is = null;
-        // Fall back to checking EXIF tags in file or input stream.
+        // Fall back to the EXIF orientation in the JPEG header.
+        ParcelFileDescriptor pfd = null;
         try {
+            JpegScanner.Info info;
             if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
                 String mimeType = getMimeType(uri);
                 if (!JPEG_MIME_TYPE.equals(mimeType)) {
                     return ORI_NORMAL;
                 }
-                String path = uri.getPath();
-                exif.readExif(path);
+                info = JpegScanner.scan(new File(uri.getPath()));
             } else {
-                is = context.getContentResolver().openInputStream(uri);
-                exif.readExif(is);
+                try {
+                    pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+                    info = JpegScanner.scan(pfd.getFileDescriptor());
+                } catch (IOException e) {
+                    // Pipes and providers without file descriptors can't
+                    // be seeked; read the header from a stream instead.
+                    info = scanStream(context, uri);
+                }
             }
-            return parseExif(exif);
+            return info == null ? ORI_NORMAL : checkOrientation(info.orientation);
         } catch (IOException e) {
             Log.w(LOGTAG, "Failed to read EXIF orientation", e);
         } catch (NullPointerException e) {
             Log.w(LOGTAG, "Invalid EXIF data", e);
         } finally {
-            try {
-                if (is != null) {
-                    is.close();
-                }
-            } catch (IOException e) {
-                Log.w(LOGTAG, "Failed to close InputStream", e);
-            }
+            Utils.closeSilently(pfd);
         }
         return ORI_NORMAL;
     }
 
-    private static int parseExif(ExifInterface exif){
-        Integer tagval = exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
-        if (tagval != null) {
-            int orientation = tagval;
-            switch(orientation) {
-                case ORI_NORMAL:
-                case ORI_ROTATE_90:
-                case ORI_ROTATE_180:
-                case ORI_ROTATE_270:
-                case ORI_FLIP_HOR:
-                case ORI_FLIP_VERT:
-                case ORI_TRANSPOSE:
-                case ORI_TRANSVERSE:
-                    return orientation;
-                default:
-                    return ORI_NORMAL;
-            }
+    private static JpegScanner.Info scanStream(Context context, Uri uri)
+            throws IOException {
+        InputStream is = context.getContentResolver().openInputStream(uri);
+        if (is == null) return null;
+        try {
+            return JpegScanner.scan(is);
+        } finally {
+            Utils.closeSilently(is);
+        }
+    }
+
+    private static int checkOrientation(int orientation) {
+        switch(orientation) {
+            case ORI_NORMAL:
+            case ORI_ROTATE_90:
+            case ORI_ROTATE_180:
+            case ORI_ROTATE_270:
+            case ORI_FLIP_HOR:
+            case ORI_FLIP_VERT:
+            case ORI_TRANSPOSE:
+            case ORI_TRANSVERSE:
+                return orientation;
+            default:
+                return ORI_NORMAL;
         }
-        return ORI_NORMAL;
     }
 
     /**
@@ -572,10 +581,10 @@ public final class ImageLoader {
                 return null;
             }
             try {
-                ExifInterface exif = new ExifInterface();
-                exif.readExif(path);
-                List<ExifTag> taglist = exif.getAllTags();
-                return taglist;
+                // Indexes the header in place instead of running the
+                // stream parser over it.
+                ExifIndex exif = new ExifIndex();
+                return exif.load(new File(path)) ? exif.getAllTags() : null;
             } catch (IOException e) {
                 Log.w(LOGTAG, "Failed to read EXIF tags", e);
             } catch (NullPointerException e) {
@@ -25,7 +25,12 @@ import android.os.PowerManager;
 import android.os.StatFs;
 import android.util.Log;
 
+import com.android.gallery3d.common.Fingerprint;
+import com.android.gallery3d.common.Utils;
+
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
@@ -49,6 +54,9 @@ public class ImportTask implements Runnable {
 
   private static final String WAKELOCK_LABEL = "Google Photos MTP Import Task";
 
+  private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+  private static final long MAX_32BIT_OFFSET = 0xffffffffL;
+
   private Listener mListener;
   private String mDestAlbumName;
   private Collection<IngestObjectInfo> mObjectsToImport;
@@ -82,10 +90,7 @@ public class ImportTask implements Runnable {
         visited++;
         String importedPath = null;
         if (hasSpaceForSize(object.getCompressedSize())) {
-          importedPath = new File(dest, object.getName(mDevice)).getAbsolutePath();
-          if (!mDevice.importFile(object.getObjectHandle(), importedPath)) {
-            importedPath = null;
-          }
+          importedPath = importObject(object, new File(dest, object.getName(mDevice)));
         }
         if (importedPath == null) {
           objectsNotImported.add(object);
@@ -103,6 +108,77 @@ public class ImportTask implements Runnable {
     }
   }
 
+  /**
+   * Copies the object to target and returns its path, or null on failure.
+   * The content is fingerprinted while it is copied; if target already
+   * holds the same content (the object was imported before), the existing
+   * file is kept untouched so its cached thumbnails stay valid.
+   */
+  private String importObject(IngestObjectInfo object, File target) {
+    File temp = new File(target.getParentFile(), "." + target.getName() + ".import");
+    Fingerprint fingerprint = copyObject(
+        object.getObjectHandle(), object.getCompressedSize() & 0xffffffffL, temp);
+    if (fingerprint == null) {
+      temp.delete();
+      // The device may not support partial reads; let the framework copy it.
+      String path = target.getAbsolutePath();
+      return mDevice.importFile(object.getObjectHandle(), path) ? path : null;
+    }
+    try {
+      if (target.length() == temp.length()
+          && fingerprint.equals(Fingerprint.fromFile(target))) {
+        temp.delete();
+        return target.getAbsolutePath();
+      }
+    } catch (IOException e) {
+      // The existing file cannot be read; replace it.
+    }
+    if (!temp.renameTo(target)) {
+      temp.delete();
+      return null;
+    }
+    return target.getAbsolutePath();
+  }
+
+  // Returns the tree fingerprint of the copied content, or null on failure.
+  // MTP reports 0xffffffff as the size of objects of 4GB or more; those are
+  // read until a short read. GetPartialObject only takes 32-bit offsets, so
+  // reads past 4GB use GetPartialObject64; a device without it fails the
+  // copy and importObject() falls back to importFile().
+  private Fingerprint copyObject(int handle, long size, File dest) {
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(dest);
+      Fingerprint.TreeHasher hasher = new Fingerprint.TreeHasher();
+      byte[] buffer = new byte[COPY_BUFFER_SIZE];
+      long offset = 0;
+      boolean sizeKnown = size != 0xffffffffL;
+      while (!sizeKnown || offset < size) {
+        long request = sizeKnown ? Math.min(buffer.length, size - offset) : buffer.length;
+        int n = (int) (offset + request <= MAX_32BIT_OFFSET
+            ? mDevice.getPartialObject(handle, offset, request, buffer)
+            : mDevice.getPartialObject64(handle, offset, request, buffer));
+        if (n <= 0) break;
+        out.write(buffer, 0, n);
+        hasher.update(buffer, 0, n);
+        offset += n;
+        if (!sizeKnown && n < request) break;
+      }
+      if (sizeKnown && offset != size) return null;
+      out.close();
+      out = null;
+      return hasher.finish();
+    } catch (IOException e) {
+      Log.i(TAG, "Fail to copy object " + handle, e);
+      return null;
+    } catch (IllegalArgumentException e) {
+      Log.i(TAG, "Fail to copy object " + handle, e);
+      return null;
+    } finally {
+      Utils.closeSilently(out);
+    }
+  }
+
   private static boolean hasSpaceForSize(long size) {
     String state = Environment.getExternalStorageState();
     if (!Environment.MEDIA_MOUNTED.equals(state)) {
@@ -32,6 +32,7 @@ import android.view.MenuItem;
 
 import com.android.gallery3d.R;
 import com.android.gallery3d.app.AbstractGalleryActivity;
+import com.android.gallery3d.app.BatchService;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.DataManager;
 import com.android.gallery3d.data.MediaItem;
@@ -40,6 +41,7 @@ import com.android.gallery3d.data.Path;
 import com.android.gallery3d.filtershow.crop.CropActivity;
 import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.GalleryUtils;
+import com.android.gallery3d.util.ParallelBatch;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
@@ -427,34 +429,51 @@ public class MenuExecutor {
         return result;
     }
 
-    private class MediaOperation implements Job<Void> {
+    // Operations whose per-item work touches nothing but that item, so a
+    // batch of them can run on several threads.
+    private static boolean isParallelizable(int operation) {
+        switch (operation) {
+            case R.id.action_delete:
+            case R.id.action_rotate_cw:
+            case R.id.action_rotate_ccw:
+            case R.id.action_toggle_full_caching:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private class MediaOperation implements Job<Void>,
+            ParallelBatch.ItemOperation, ParallelBatch.ProgressListener {
         private final ArrayList<Path> mItems;
         private final int mOperation;
         private final ProgressListener mListener;
+        private final ParallelBatch mBatch;
+        private final DataManager mDataManager;
 
         public MediaOperation(int operation, ArrayList<Path> items,
                 ProgressListener listener) {
             mOperation = operation;
             mItems = items;
             mListener = listener;
+            mDataManager = mActivity.getDataManager();
+            mBatch = new ParallelBatch(
+                    mActivity.getBatchServiceParallelThreadPoolIfAvailable(),
+                    isParallelizable(operation) ? BatchService.BATCH_PARALLELISM : 1);
         }
 
         @Override
         public Void run(JobContext jc) {
-            int index = 0;
-            DataManager manager = mActivity.getDataManager();
             int result = EXECUTION_RESULT_SUCCESS;
             try {
                 onProgressStart(mListener);
-                for (Path id : mItems) {
-                    if (jc.isCancelled()) {
-                        result = EXECUTION_RESULT_CANCEL;
-                        break;
-                    }
-                    if (!execute(manager, jc, mOperation, id)) {
-                        result = EXECUTION_RESULT_FAIL;
-                    }
-                    onProgressUpdate(index++, mListener);
+                ParallelBatch.Result r = mBatch.run(jc, mItems.size(), this, this);
+                if (r.cancelled) {
+                    result = EXECUTION_RESULT_CANCEL;
+                } else if (r.failed > 0) {
+                    Log.w(TAG, "operation " + mOperation + " failed for "
+                            + r.failed + " of " + mItems.size() + " items");
+                    result = EXECUTION_RESULT_FAIL;
                 }
             } catch (Throwable th) {
                 Log.e(TAG, "failed to execute operation " + mOperation
@@ -464,5 +483,15 @@ public class MenuExecutor {
             }
             return null;
         }
+
+        @Override
+        public boolean run(JobContext jc, int index) {
+            return execute(mDataManager, jc, mOperation, mItems.get(index));
+        }
+
+        @Override
+        public void onItemDone(int index) {
+            onProgressUpdate(index, mListener);
+        }
     }
 }
@@ -18,13 +18,18 @@ package com.android.gallery3d.ui;
 
 import com.android.gallery3d.app.AbstractGalleryActivity;
 import com.android.gallery3d.data.DataManager;
+import com.android.gallery3d.data.LibraryIndex;
 import com.android.gallery3d.data.MediaItem;
+import com.android.gallery3d.data.MediaObject;
 import com.android.gallery3d.data.MediaSet;
 import com.android.gallery3d.data.Path;
+import com.android.gallery3d.util.CompactBitSet;
+import com.android.gallery3d.util.IntArray;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
+import java.util.Map;
 
 public class SelectionManager {
     @SuppressWarnings("unused")
@@ -34,7 +39,7 @@ public class SelectionManager {
     public static final int LEAVE_SELECTION_MODE = 2;
     public static final int SELECT_ALL_MODE = 3;
 
-    private Set<Path> mClickedSet;
+    private ClickedSet mClickedSet;
     private MediaSet mSourceMediaSet;
     private SelectionListener mListener;
     private DataManager mDataManager;
@@ -43,6 +48,7 @@ public class SelectionManager {
     private boolean mInSelectionMode;
     private boolean mAutoLeave = true;
     private int mTotal;
+    private long mTotalVersion = MediaObject.INVALID_DATA_VERSION;
 
     public interface SelectionListener {
         public void onSelectionModeChange(int mode);
@@ -51,7 +57,7 @@ public class SelectionManager {
 
     public SelectionManager(AbstractGalleryActivity activity, boolean isAlbumSet) {
         mDataManager = activity.getDataManager();
-        mClickedSet = new HashSet<Path>();
+        mClickedSet = new ClickedSet();
         mIsAlbumSet = isAlbumSet;
         mTotal = -1;
     }
@@ -111,7 +117,10 @@ public class SelectionManager {
     private int getTotalCount() {
         if (mSourceMediaSet == null) return -1;
 
-        if (mTotal < 0) {
+        // The count is cached per data version of the source set.
+        long version = mSourceMediaSet.getDataVersion();
+        if (mTotal < 0 || version != mTotalVersion) {
+            mTotalVersion = version;
             mTotal = mIsAlbumSet
                     ? mSourceMediaSet.getSubMediaSetCount()
                     : mSourceMediaSet.getMediaItemCount();
@@ -201,7 +210,9 @@ public class SelectionManager {
                     }
                 }
             } else {
-                for (Path id : mClickedSet) {
+                ArrayList<Path> clicked = new ArrayList<Path>(mClickedSet.size());
+                mClickedSet.addAllTo(clicked);
+                for (Path id : clicked) {
                     if (expandSet) {
                         if (!expandMediaSet(selected, mDataManager.getMediaSet(id),
                                 maxSelection)) {
@@ -216,7 +227,10 @@ public class SelectionManager {
                 }
             }
         } else {
+            // The count is known without materializing any Path.
+            if (getSelectedCount() > maxSelection) return null;
             if (mInverseSelection) {
+                if (getInverseSelectedFromIndex(selected)) return selected;
                 int total = getTotalCount();
                 int index = 0;
                 while (index < total) {
@@ -234,19 +248,127 @@ public class SelectionManager {
                     index += count;
                 }
             } else {
-                for (Path id : mClickedSet) {
-                    selected.add(id);
-                    if (selected.size() > maxSelection) {
-                        return null;
-                    }
-                }
+                mClickedSet.addAllTo(selected);
             }
         }
         return selected;
     }
 
+    // Collects the selected items in select-all mode from the library index,
+    // which avoids loading every MediaItem of the source set. Only the
+    // selected items get a Path. Returns false if the set is not covered by
+    // the index.
+    private boolean getInverseSelectedFromIndex(ArrayList<Path> selected) {
+        if (mSourceMediaSet.getSubMediaSetCount() != 0) return false;
+        LibraryIndex.Snapshot snapshot = mDataManager.getLibraryIndex().getSnapshot();
+        if (snapshot == null) return false;
+        IntArray rows = new IntArray();
+        if (!mSourceMediaSet.enumerateTotalIndexRows(snapshot, rows)) return false;
+        int[] rowArray = rows.getInternalArray();
+        for (int i = 0, n = rows.size(); i < n; i++) {
+            int row = rowArray[i];
+            Path parent = snapshot.getParentPath(row);
+            int id = snapshot.getId(row);
+            if (!mClickedSet.contains(parent, id)) selected.add(parent.getChild(id));
+        }
+        return true;
+    }
+
     public void setSourceMediaSet(MediaSet set) {
         mSourceMediaSet = set;
         mTotal = -1;
     }
+
+    // The clicked paths. A path whose last segment is an int (the media id
+    // of an item, the bucket id of an album) is stored as that int in a
+    // compressed bitmap of its parent, so selecting thousands of items
+    // costs a few bytes each. Paths are materialized only when read.
+    private static class ClickedSet {
+        private final HashMap<Path, CompactBitSet> mIds = new HashMap<Path, CompactBitSet>();
+        private final HashSet<Path> mOthers = new HashSet<Path>();
+        private int mSize;
+
+        public int size() {
+            return mSize;
+        }
+
+        public void clear() {
+            mIds.clear();
+            mOthers.clear();
+            mSize = 0;
+        }
+
+        public boolean contains(Path path) {
+            Integer id = getId(path);
+            if (id == null) return mOthers.contains(path);
+            return contains(path.getParent(), id);
+        }
+
+        public boolean contains(Path parent, int id) {
+            CompactBitSet ids = mIds.get(parent);
+            return ids != null && ids.contains(id);
+        }
+
+        public void add(Path path) {
+            Integer id = getId(path);
+            boolean added;
+            if (id == null) {
+                added = mOthers.add(path);
+            } else {
+                Path parent = path.getParent();
+                CompactBitSet ids = mIds.get(parent);
+                if (ids == null) {
+                    ids = new CompactBitSet();
+                    mIds.put(parent, ids);
+                }
+                added = ids.add(id);
+            }
+            if (added) mSize++;
+        }
+
+        public void remove(Path path) {
+            Integer id = getId(path);
+            boolean removed;
+            if (id == null) {
+                removed = mOthers.remove(path);
+            } else {
+                Path parent = path.getParent();
+                CompactBitSet ids = mIds.get(parent);
+                removed = ids != null && ids.remove(id);
+                if (ids != null && ids.isEmpty()) mIds.remove(parent);
+            }
+            if (removed) mSize--;
+        }
+
+        public void addAllTo(ArrayList<Path> out) {
+            for (Map.Entry<Path, CompactBitSet> entry : mIds.entrySet()) {
+                Path parent = entry.getKey();
+                for (int id : entry.getValue().toArray()) {
+                    out.add(parent.getChild(id));
+                }
+            }
+            out.addAll(mOthers);
+        }
+
+        // Returns the int value of the last segment if getChild(int) of the
+        // parent gives back the same path, or null.
+        private static Integer getId(Path path) {
+            if (path.getParent() == null) return null;
+            String suffix = path.getSuffix();
+            int n = suffix.length();
+            int start = n > 0 && suffix.charAt(0) == '-' ? 1 : 0;
+            if (n == start || n - start > 10) return null;
+            // Reject leading zeros, which getChild(int) would not produce.
+            if (suffix.charAt(start) == '0' && (n - start > 1 || start == 1)) return null;
+            long value = 0;
+            for (int i = start; i < n; i++) {
+                char c = suffix.charAt(i);
+                if (c < '0' || c > '9') return null;
+                value = value * 10 + (c - '0');
+            }
+            if (start == 1) value = -value;
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) return null;
+            return (int) value;
+        }
+    }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.gallery3d.util;
+
+import java.util.Arrays;
+
+// A compressed set of ints in the style of a roaring bitmap. Values are
+// grouped by their high 16 bits; each group stores its low 16 bits either
+// as a sorted array (up to ARRAY_MAX values, 2 bytes each) or as a 65536-bit
+// bitmap (8KB). Sparse ids and dense runs of ids are both stored compactly.
+public class CompactBitSet {
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 65536 / 64;
+
+    private static class Container {
+        // Exactly one of these is non-null.
+        char[] mArray;
+        long[] mBits;
+        int mSize;
+    }
+
+    // Sorted high halves and their containers.
+    private char[] mKeys = new char[4];
+    private Container[] mContainers = new Container[4];
+    private int mContainerCount;
+    private int mSize;
+    // The container of the last lookup. Ids of one album are close together,
+    // so most lookups hit it and skip the search of mKeys.
+    private int mLastContainer;
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        mKeys = new char[4];
+        mContainers = new Container[4];
+        mContainerCount = 0;
+        mSize = 0;
+        mLastContainer = 0;
+    }
+
+    public boolean contains(int value) {
+        int i = findContainer((char) (value >>> 16));
+        if (i < 0) return false;
+        Container c = mContainers[i];
+        char low = (char) value;
+        if (c.mBits != null) return (c.mBits[low >>> 6] & (1L << low)) != 0;
+        return Arrays.binarySearch(c.mArray, 0, c.mSize, low) >= 0;
+    }
+
+    // Returns true if the value was not in the set.
+    public boolean add(int value) {
+        char key = (char) (value >>> 16);
+        int i = findContainer(key);
+        if (i < 0) {
+            i = -i - 1;
+            insertContainer(i, key);
+        }
+        Container c = mContainers[i];
+        char low = (char) value;
+        if (c.mBits != null) {
+            long mask = 1L << low;
+            if ((c.mBits[low >>> 6] & mask) != 0) return false;
+            c.mBits[low >>> 6] |= mask;
+        } else {
+            int pos;
+            if (c.mSize == 0 || c.mArray[c.mSize - 1] < low) {
+                // Appending, as select-all does with ascending ids.
+                pos = c.mSize;
+            } else {
+                pos = Arrays.binarySearch(c.mArray, 0, c.mSize, low);
+                if (pos >= 0) return false;
+                pos = -pos - 1;
+            }
+            if (c.mSize == ARRAY_MAX) {
+                toBitmap(c);
+                c.mBits[low >>> 6] |= 1L << low;
+            } else {
+                if (c.mSize == c.mArray.length) {
+                    c.mArray = Arrays.copyOf(c.mArray, Math.min(ARRAY_MAX, c.mSize * 2));
+                }
+                System.arraycopy(c.mArray, pos, c.mArray, pos + 1, c.mSize - pos);
+                c.mArray[pos] = low;
+            }
+        }
+        c.mSize++;
+        mSize++;
+        return true;
+    }
+
+    // Returns true if the value was in the set.
+    public boolean remove(int value) {
+        int i = findContainer((char) (value >>> 16));
+        if (i < 0) return false;
+        Container c = mContainers[i];
+        char low = (char) value;
+        if (c.mBits != null) {
+            long mask = 1L << low;
+            if ((c.mBits[low >>> 6] & mask) == 0) return false;
+            c.mBits[low >>> 6] &= ~mask;
+            c.mSize--;
+            // Convert back well below ARRAY_MAX so toggling at the boundary
+            // does not convert every time.
+            if (c.mSize <= ARRAY_MAX / 2) toArray(c);
+        } else {
+            int pos = Arrays.binarySearch(c.mArray, 0, c.mSize, low);
+            if (pos < 0) return false;
+            System.arraycopy(c.mArray, pos + 1, c.mArray, pos, c.mSize - pos - 1);
+            c.mSize--;
+        }
+        mSize--;
+        if (c.mSize == 0) removeContainer(i);
+        return true;
+    }
+
+    // Returns the values in unsigned ascending order.
+    public int[] toArray() {
+        int[] result = new int[mSize];
+        int n = 0;
+        for (int i = 0; i < mContainerCount; i++) {
+            int high = mKeys[i] << 16;
+            Container c = mContainers[i];
+            if (c.mBits != null) {
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    long word = c.mBits[w];
+                    while (word != 0) {
+                        int bit = Long.numberOfTrailingZeros(word);
+                        result[n++] = high | (w << 6) | bit;
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                for (int j = 0; j < c.mSize; j++) {
+                    result[n++] = high | c.mArray[j];
+                }
+            }
+        }
+        return result;
+    }
+
+    private int findContainer(char key) {
+        int last = mLastContainer;
+        if (last < mContainerCount && mKeys[last] == key) return last;
+        int i = Arrays.binarySearch(mKeys, 0, mContainerCount, key);
+        if (i >= 0) mLastContainer = i;
+        return i;
+    }
+
+    private void insertContainer(int i, char key) {
+        if (mContainerCount == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, mContainerCount * 2);
+            mContainers = Arrays.copyOf(mContainers, mContainerCount * 2);
+        }
+        System.arraycopy(mKeys, i, mKeys, i + 1, mContainerCount - i);
+        System.arraycopy(mContainers, i, mContainers, i + 1, mContainerCount - i);
+        Container c = new Container();
+        c.mArray = new char[4];
+        mKeys[i] = key;
+        mContainers[i] = c;
+        mContainerCount++;
+    }
+
+    private void removeContainer(int i) {
+        System.arraycopy(mKeys, i + 1, mKeys, i, mContainerCount - i - 1);
+        System.arraycopy(mContainers, i + 1, mContainers, i, mContainerCount - i - 1);
+        mContainers[--mContainerCount] = null;
+    }
+
+    private static void toBitmap(Container c) {
+        long[] bits = new long[BITMAP_WORDS];
+        for (int j = 0; j < c.mSize; j++) {
+            char low = c.mArray[j];
+            bits[low >>> 6] |= 1L << low;
+        }
+        c.mBits = bits;
+        c.mArray = null;
+    }
+
+    private static void toArray(Container c) {
+        char[] array = new char[Math.max(4, c.mSize)];
+        int n = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            long word = c.mBits[w];
+            while (word != 0) {
+                array[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        c.mArray = array;
+        c.mBits = null;
+    }
+}
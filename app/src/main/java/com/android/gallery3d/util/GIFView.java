@@ -1,27 +1,28 @@
 package com.android.gallery3d.util;
 
-import com.android.gallery3d.R;
-
 import android.content.Context;
-import android.content.ContentResolver;
-import android.content.res.AssetManager;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.ImageView;
-import android.widget.Toast;
 
+import com.android.gallery3d.app.GalleryApp;
+import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
-public class GIFView extends ImageView implements GifAction {
+public class GIFView extends ImageView {
 
     private static final String  TAG            = "GIFView";
     private static final float   SCALE_LIMIT    = 4;
@@ -29,7 +30,15 @@ public class GIFView extends ImageView implements GifAction {
 
     private GifDecoder           mGifDecoder    = null;
     private Bitmap               mCurrentImage  = null;
-    private DrawThread           mDrawThread    = null;
+
+    // The load or frame decode in flight; results from any other job are
+    // stale and dropped.
+    private Future<?>            mTask          = null;
+    // Uptime at which the next frame is due on screen.
+    private long                 mNextFrameTime = 0;
+
+    private final Handler        mHandler       = new Handler();
+    private final ThreadPool     mThreadPool;
 
     private Uri                  mUri;
     private Context              mContext;
@@ -37,6 +46,7 @@ public class GIFView extends ImageView implements GifAction {
     public GIFView(Context context) {
         super(context);
         mContext = context;
+        mThreadPool = ((GalleryApp) context.getApplicationContext()).getThreadPool();
     }
 
     public boolean setDrawable(Uri uri) {
@@ -45,68 +55,151 @@ public class GIFView extends ImageView implements GifAction {
         }
         mUri = uri;
 
-        InputStream is = getInputStream(uri);
-        if (is == null || (getFileSize (is) == 0)) {
+        ParcelFileDescriptor pfd = openFileDescriptor(uri);
+        if (pfd == null || pfd.getStatSize() == 0) {
+            Utils.closeSilently(pfd);
             return false;
         }
-        startDecode(is);
+        startDecode(pfd);
         return true;
     }
 
-    private int getFileSize (InputStream is) {
-        if(is == null) return 0;
-
-        int size = 0;
+    private ParcelFileDescriptor openFileDescriptor(Uri uri) {
         try {
-            if (is instanceof FileInputStream) {
-                FileInputStream f = (FileInputStream) is;
-                size = (int) f.getChannel().size();
-            } else {
-                while (-1 != is.read()) {
-                    size++;
-                }
-            }
-
+            return mContext.getContentResolver().openFileDescriptor(uri, "r");
         } catch (IOException e) {
             Log.e(TAG, "catch exception:" + e);
+            return null;
         }
+    }
 
-        return size;
-
+    private void startDecode(ParcelFileDescriptor pfd) {
+        freeGifDecoder();
+        mNextFrameTime = 0;
+        mTask = mThreadPool.submit(new LoadJob(pfd), new FutureListener<GifDecoder>() {
+            @Override
+            public void onFutureDone(final Future<GifDecoder> future) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDecoderLoaded(future);
+                    }
+                });
+            }
+        });
     }
 
-    private InputStream getInputStream (Uri uri) {
-        ContentResolver cr = mContext.getContentResolver();
-        InputStream input = null;
-        try {
-            input = cr.openInputStream(uri);
-        } catch (IOException e) {
-            Log.e(TAG, "catch exception:" + e);
+    private void onDecoderLoaded(Future<GifDecoder> future) {
+        GifDecoder decoder = future.get();
+        if (future != mTask) {
+            if (decoder != null) decoder.free();
+            return;
         }
-        return input;
+        mTask = null;
+        if (decoder == null) {
+            // if this gif can not be decoded, just try to show it as jpg by parsing mUri
+            setImageURI(mUri);
+            return;
+        }
+        mGifDecoder = decoder;
+        decodeFrame(decoder, 0);
     }
 
-    private void startDecode(InputStream is) {
-        freeGifDecoder();
-        mGifDecoder = new GifDecoder(is, this);
-        mGifDecoder.start();
+    private void decodeFrame(final GifDecoder decoder, final int index) {
+        final long showTime = mNextFrameTime;
+        mTask = mThreadPool.submit(new Job<Bitmap>() {
+            @Override
+            public Bitmap run(JobContext jc) {
+                return jc.isCancelled() ? null : decoder.decodeFrame(index);
+            }
+        }, new FutureListener<Bitmap>() {
+            @Override
+            public void onFutureDone(final Future<Bitmap> future) {
+                mHandler.postAtTime(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFrameDecoded(future, index);
+                    }
+                }, showTime);
+            }
+        });
     }
 
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
-        if (mGifDecoder == null) {
+    private void onFrameDecoded(Future<Bitmap> future, int index) {
+        if (future != mTask) return;
+        mTask = null;
+        Bitmap bitmap = future.get();
+        if (bitmap == null) {
+            if (index == 0) setImageURI(mUri);
             return;
         }
+        mCurrentImage = bitmap;
+        invalidate();
+
+        // Decode the next frame while this one is shown. The decoder keeps
+        // enough bitmaps that this one is not overwritten in the meantime.
+        mNextFrameTime = SystemClock.uptimeMillis() + getDelay(index);
+        int count = mGifDecoder.getFrameCount();
+        if (count > 1) {
+            decodeFrame(mGifDecoder, (index + 1) % count);
+        }
+    }
 
-        if (mCurrentImage == null) {
-            mCurrentImage = mGifDecoder.getImage();
+    private static class LoadJob implements Job<GifDecoder> {
+        private final ParcelFileDescriptor mPfd;
+
+        public LoadJob(ParcelFileDescriptor pfd) {
+            mPfd = pfd;
+        }
+
+        @Override
+        public GifDecoder run(JobContext jc) {
+            try {
+                ByteBuffer data = readData(mPfd);
+                if (data == null || jc.isCancelled()) return null;
+                GifDecoder decoder = new GifDecoder(data);
+                if (decoder.parse() != GifDecoder.STATUS_FINISH) {
+                    Log.e(TAG, "parse error");
+                    return null;
+                }
+                return decoder;
+            } finally {
+                Utils.closeSilently(mPfd);
+            }
         }
+    }
+
+    // Maps the file when possible so only the pages being decoded stay in
+    // memory. The mapping outlives the descriptor.
+    private static ByteBuffer readData(ParcelFileDescriptor pfd) {
+        FileInputStream is = new FileInputStream(pfd.getFileDescriptor());
+        try {
+            FileChannel channel = is.getChannel();
+            long size = channel.size();
+            if (size > 0) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        } catch (IOException e) {
+            // not a regular file, e.g. a pipe from a content provider
+        }
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) > 0) bos.write(buf, 0, n);
+            return ByteBuffer.wrap(bos.toByteArray());
+        } catch (IOException e) {
+            Log.e(TAG, "catch exception:" + e);
+            return null;
+        }
+    }
+
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
         if (mCurrentImage == null) {
-            // if this gif can not be displayed, just try to show it as jpg by parsing mUri
-            setImageURI(mUri);
             return;
         }
-        setImageURI(null);
+
         int saveCount = canvas.getSaveCount();
         canvas.save();
         canvas.translate(getPaddingLeft(), getPaddingTop());
@@ -142,62 +235,19 @@ public class GIFView extends ImageView implements GifAction {
         canvas.restoreToCount(saveCount);
     }
 
-    public void parseOk(boolean parseStatus, int frameIndex) {
-        if (parseStatus) {
-            //indicates the start of a new GIF
-            if (mGifDecoder != null && frameIndex == -1
-                    && mGifDecoder.getFrameCount() > 1) {
-                if (mDrawThread != null) {
-                    mDrawThread = null;
-                }
-                mDrawThread = new DrawThread();
-                mDrawThread.start();
-            }
-        } else {
-            Log.e(TAG, "parse error");
-        }
-    }
-
-    private Handler mRedrawHandler = new Handler() {
-        public void handleMessage(Message msg) {
-            invalidate();
-        }
-    };
-
-    private class DrawThread extends Thread {
-        public void run() {
-            if (mGifDecoder == null) {
-                return;
-            }
-
-            while (true) {
-                if (!isShown() || mRedrawHandler == null) {
-                    break;
-                }
-                if (mGifDecoder == null) {
-                    return;
-                }
-                GifFrame frame = mGifDecoder.next();
-                mCurrentImage = frame.mImage;
-
-                Message msg = mRedrawHandler.obtainMessage();
-                mRedrawHandler.sendMessage(msg);
-                try {
-                    Thread.sleep(getDelay(frame));
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "catch exception:" + e);
-                }
-            }
-        }
-
-    }
-
-    private long getDelay (GifFrame frame) {
+    private long getDelay (int index) {
         //in milliseconds
-        return frame.mDelayInMs == 0 ? FRAME_DELAY : frame.mDelayInMs;
+        int delay = mGifDecoder.getDelay(index);
+        return delay <= 0 ? FRAME_DELAY : delay;
     }
 
     private void freeGifDecoder () {
+        if (mTask != null) {
+            mTask.cancel();
+            mTask = null;
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        mCurrentImage = null;
         if (mGifDecoder != null) {
             mGifDecoder.free();
             mGifDecoder = null;
@@ -206,9 +256,6 @@ public class GIFView extends ImageView implements GifAction {
     }
 
     public void freeMemory() {
-        if (mDrawThread != null) {
-            mDrawThread = null;
-        }
         freeGifDecoder();
     }
 }
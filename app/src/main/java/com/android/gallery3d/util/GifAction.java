@@ -1,5 +0,0 @@
-package com.android.gallery3d.util;
-
-public interface GifAction {
-    public void parseOk(boolean parseStatus, int frameIndex);
-}
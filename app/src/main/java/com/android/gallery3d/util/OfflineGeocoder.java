@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.util;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.location.Address;
+
+import com.android.gallery3d.R;
+import com.android.gallery3d.common.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Resolves coordinates to the nearest known place using a bundled,
+ * memory-mapped grid index instead of the network Geocoder. The index only
+ * holds major cities, with English names, so it is a fallback for when the
+ * platform Geocoder is absent or fails.
+ *
+ * The index file (res/raw/geo_places) is big-endian and laid out as:
+ *
+ *   int magic, int version, int cellSizeE6, int cellCount, int placeCount,
+ *   int stringPoolSize
+ *   cellCount * { int cellId, int firstPlace }            sorted by cellId
+ *   placeCount * { int latE6, int lngE6, int locality, int adminArea,
+ *                  int countryCode, int countryName }      grouped by cell
+ *   string pool: { unsigned short length, UTF-8 bytes }*
+ *
+ * String fields are offsets into the string pool, or -1 when absent. A
+ * cell id is row * columns + column of the cellSizeE6 (micro-degree) grid
+ * starting at (-90, -180). Only non-empty cells are stored.
+ */
+public class OfflineGeocoder {
+    private static final String TAG = "OfflineGeocoder";
+
+    private static final int MAGIC = 0x47454f31; // "GEO1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 6 * 4;
+    private static final int CELL_ENTRY_SIZE = 2 * 4;
+    private static final int PLACE_ENTRY_SIZE = 6 * 4;
+
+    // Places farther away than this are not considered a match.
+    private static final double MAX_DISTANCE_METERS = 40000;
+    private static final double METERS_PER_DEGREE = 111195;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static OfflineGeocoder sInstance;
+    private static boolean sLoadAttempted;
+
+    private final ByteBuffer mBuffer;
+    private final int mCellSizeE6;
+    private final int mRows;
+    private final int mColumns;
+    private final int mCellCount;
+    private final int mPlaceCount;
+    private final int mCellTableOffset;
+    private final int mPlaceTableOffset;
+    private final int mStringPoolOffset;
+
+    // Returns null if the bundled index is missing or unreadable.
+    public static synchronized OfflineGeocoder getInstance(Context context) {
+        if (!sLoadAttempted) {
+            sLoadAttempted = true;
+            try {
+                sInstance = new OfflineGeocoder(mapIndex(context));
+            } catch (Throwable t) {
+                Log.w(TAG, "cannot load offline geocoding index", t);
+            }
+        }
+        return sInstance;
+    }
+
+    private static ByteBuffer mapIndex(Context context) throws IOException {
+        AssetFileDescriptor afd = null;
+        try {
+            afd = context.getResources().openRawResourceFd(R.raw.geo_places);
+        } catch (Exception e) {
+            // The resource is compressed in the apk; read it instead.
+        }
+        if (afd == null) {
+            InputStream is = context.getResources().openRawResource(R.raw.geo_places);
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = is.read(buf)) > 0) bos.write(buf, 0, n);
+                return ByteBuffer.wrap(bos.toByteArray());
+            } finally {
+                Utils.closeSilently(is);
+            }
+        }
+        FileInputStream fis = null;
+        try {
+            fis = afd.createInputStream();
+            FileChannel channel = fis.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY,
+                    afd.getStartOffset(), afd.getLength());
+        } finally {
+            Utils.closeSilently(fis);
+            Utils.closeSilently(afd);
+        }
+    }
+
+    OfflineGeocoder(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE
+                || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("bad index header");
+        }
+        mCellSizeE6 = buffer.getInt(8);
+        mCellCount = buffer.getInt(12);
+        mPlaceCount = buffer.getInt(16);
+        int stringPoolSize = buffer.getInt(20);
+        if (mCellSizeE6 <= 0 || mCellCount < 0 || mPlaceCount < 0) {
+            throw new IOException("bad index header");
+        }
+        mRows = (180000000 + mCellSizeE6 - 1) / mCellSizeE6;
+        mColumns = (360000000 + mCellSizeE6 - 1) / mCellSizeE6;
+        mCellTableOffset = HEADER_SIZE;
+        mPlaceTableOffset = mCellTableOffset + mCellCount * CELL_ENTRY_SIZE;
+        mStringPoolOffset = mPlaceTableOffset + mPlaceCount * PLACE_ENTRY_SIZE;
+        if (mStringPoolOffset + stringPoolSize > buffer.capacity()) {
+            throw new IOException("truncated index");
+        }
+    }
+
+    public Address lookupAddress(double latitude, double longitude) {
+        int place = findNearestPlace(latitude, longitude);
+        return place < 0 ? null : toAddress(place);
+    }
+
+    /**
+     * Resolves all the given coordinates in one pass over the index. The
+     * queries are visited in cell order so neighboring lookups touch the
+     * same pages of the mapped file. Unresolved entries are left null.
+     */
+    public Address[] lookupAddresses(double[] latitudes, double[] longitudes) {
+        int n = latitudes.length;
+        Address[] result = new Address[n];
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = ((long) cellIdOf(latitudes[i], longitudes[i]) << 32) | i;
+        }
+        Arrays.sort(order);
+
+        int lastPlace = -1;
+        Address lastAddress = null;
+        for (int i = 0; i < n; i++) {
+            int index = (int) order[i];
+            int place = findNearestPlace(latitudes[index], longitudes[index]);
+            if (place < 0) continue;
+            // Many cluster end points resolve to the same place.
+            if (place != lastPlace) {
+                lastPlace = place;
+                lastAddress = toAddress(place);
+            }
+            result[index] = lastAddress;
+        }
+        return result;
+    }
+
+    private int rowOf(double latitude) {
+        int row = (int) Math.floor((latitude + 90) * 1000000 / mCellSizeE6);
+        return Utils.clamp(row, 0, mRows - 1);
+    }
+
+    private int columnOf(double longitude) {
+        int column = (int) Math.floor((longitude + 180) * 1000000 / mCellSizeE6);
+        return Utils.clamp(column, 0, mColumns - 1);
+    }
+
+    private int cellIdOf(double latitude, double longitude) {
+        return rowOf(latitude) * mColumns + columnOf(longitude);
+    }
+
+    private int findNearestPlace(double latitude, double longitude) {
+        if (!GalleryUtils.isValidLocation(latitude, longitude)) return -1;
+
+        double cellDegrees = mCellSizeE6 / 1000000.0;
+        double spanDegrees = MAX_DISTANCE_METERS / METERS_PER_DEGREE;
+        int rowSpan = (int) Math.ceil(spanDegrees / cellDegrees);
+        double cosLat = Math.max(Math.cos(Math.toRadians(latitude)), 0.01);
+        int columnSpan = Math.min(mColumns / 2,
+                (int) Math.ceil(spanDegrees / (cellDegrees * cosLat)));
+
+        double latRad = Math.toRadians(latitude);
+        double lngRad = Math.toRadians(longitude);
+        int row = rowOf(latitude);
+        int column = columnOf(longitude);
+
+        int best = -1;
+        double bestDistance = MAX_DISTANCE_METERS;
+        for (int r = Math.max(0, row - rowSpan),
+                rEnd = Math.min(mRows - 1, row + rowSpan); r <= rEnd; r++) {
+            for (int c = column - columnSpan; c <= column + columnSpan; c++) {
+                // Wrap around the antimeridian.
+                int wrapped = (c + mColumns) % mColumns;
+                int cell = findCell(r * mColumns + wrapped);
+                if (cell < 0) continue;
+                int end = cell + 1 < mCellCount
+                        ? cellFirstPlace(cell + 1) : mPlaceCount;
+                for (int p = cellFirstPlace(cell); p < end; p++) {
+                    int base = mPlaceTableOffset + p * PLACE_ENTRY_SIZE;
+                    double pLat = Math.toRadians(mBuffer.getInt(base) / 1e6);
+                    double pLng = Math.toRadians(mBuffer.getInt(base + 4) / 1e6);
+                    double d = GalleryUtils.fastDistanceMeters(latRad, lngRad, pLat, pLng);
+                    if (d < bestDistance) {
+                        bestDistance = d;
+                        best = p;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    // Binary search in the cell table. Returns the entry index or -1.
+    private int findCell(int cellId) {
+        int lo = 0, hi = mCellCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = mBuffer.getInt(mCellTableOffset + mid * CELL_ENTRY_SIZE);
+            if (id < cellId) {
+                lo = mid + 1;
+            } else if (id > cellId) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int cellFirstPlace(int cell) {
+        return mBuffer.getInt(mCellTableOffset + cell * CELL_ENTRY_SIZE + 4);
+    }
+
+    private Address toAddress(int place) {
+        int base = mPlaceTableOffset + place * PLACE_ENTRY_SIZE;
+        // The bundled names are English, whatever the default locale.
+        Address address = new Address(Locale.ENGLISH);
+        String locality = readString(mBuffer.getInt(base + 8));
+        String adminArea = readString(mBuffer.getInt(base + 12));
+        address.setLatitude(mBuffer.getInt(base) / 1e6);
+        address.setLongitude(mBuffer.getInt(base + 4) / 1e6);
+        address.setLocality(locality);
+        address.setAdminArea(adminArea);
+        address.setCountryCode(readString(mBuffer.getInt(base + 16)));
+        address.setCountryName(readString(mBuffer.getInt(base + 20)));
+        address.setFeatureName(locality);
+        address.setAddressLine(0, adminArea == null
+                ? locality : locality + ", " + adminArea);
+        return address;
+    }
+
+    private String readString(int offset) {
+        if (offset < 0) return null;
+        int position = mStringPoolOffset + offset;
+        int length = mBuffer.getShort(position) & 0xffff;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(position + 2 + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+}
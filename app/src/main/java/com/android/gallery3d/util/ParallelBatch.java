@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.util;
+
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs an operation over items 0..count-1 on several threads at once.
+ *
+ * Items are handed out in index order, but may finish in any order. The
+ * progress listener is only told about the longest prefix of finished
+ * items, so it sees every index exactly once and in increasing order. When
+ * the parent job is cancelled no new items are started; the items already
+ * running are allowed to finish and are still reported.
+ */
+public class ParallelBatch {
+    private static final String TAG = "ParallelBatch";
+
+    public interface ItemOperation {
+        // Returns false if the operation failed for this item.
+        public boolean run(JobContext jc, int index);
+    }
+
+    public interface ProgressListener {
+        public void onItemDone(int index);
+    }
+
+    public static class Result {
+        public final int completed;
+        public final int failed;
+        public final boolean cancelled;
+
+        Result(int completed, int failed, boolean cancelled) {
+            this.completed = completed;
+            this.failed = failed;
+            this.cancelled = cancelled;
+        }
+    }
+
+    private final ThreadPool mThreadPool;
+    private final int mParallelism;
+
+    // The calling thread always takes part, so a parallelism of 1 never
+    // touches the thread pool.
+    public ParallelBatch(ThreadPool threadPool, int parallelism) {
+        mThreadPool = threadPool;
+        mParallelism = Math.max(1, parallelism);
+    }
+
+    public Result run(JobContext jc, int count,
+            ItemOperation operation, ProgressListener listener) {
+        Batch batch = new Batch(jc, count, operation, listener);
+        int helpers = Math.min(mParallelism, count) - 1;
+        Future<?>[] futures = new Future<?>[Math.max(helpers, 0)];
+        for (int i = 0; i < helpers; i++) {
+            futures[i] = mThreadPool.submit(batch);
+        }
+        batch.run(jc);
+        for (Future<?> f : futures) {
+            f.waitDone();
+        }
+        return batch.getResult();
+    }
+
+    private static class Batch implements Job<Void> {
+        private final JobContext mParent;
+        private final int mCount;
+        private final ItemOperation mOperation;
+        private final ProgressListener mListener;
+        private final AtomicInteger mNext = new AtomicInteger();
+
+        // Guarded by this.
+        private final BitSet mDone = new BitSet();
+        private int mReported;
+        private int mFailed;
+
+        Batch(JobContext parent, int count,
+                ItemOperation operation, ProgressListener listener) {
+            mParent = parent;
+            mCount = count;
+            mOperation = operation;
+            mListener = listener;
+        }
+
+        @Override
+        public Void run(JobContext jc) {
+            while (!mParent.isCancelled()) {
+                int index = mNext.getAndIncrement();
+                if (index >= mCount) break;
+                boolean ok;
+                try {
+                    ok = mOperation.run(mParent, index);
+                } catch (Throwable t) {
+                    Log.w(TAG, "operation failed for item " + index, t);
+                    ok = false;
+                }
+                onItemDone(index, ok);
+            }
+            return null;
+        }
+
+        private synchronized void onItemDone(int index, boolean ok) {
+            if (!ok) mFailed++;
+            mDone.set(index);
+            // Reporting under the lock keeps the listener calls ordered
+            // even though they come from different threads.
+            while (mReported < mCount && mDone.get(mReported)) {
+                if (mListener != null) mListener.onItemDone(mReported);
+                mReported++;
+            }
+        }
+
+        synchronized Result getResult() {
+            return new Result(mReported, mFailed, mReported < mCount);
+        }
+    }
+}
@@ -71,13 +71,23 @@ public class ReverseGeocoder {
 
     private Context mContext;
     private Geocoder mGeocoder;
+    private OfflineGeocoder mOfflineGeocoder;
+    private boolean mUsePlatformGeocoder;
     private BlobCache mGeoCache;
     private ConnectivityManager mConnectivityManager;
     private static Address sCurrentAddress; // last known address
 
     public ReverseGeocoder(Context context) {
+        this(context, true);
+    }
+
+    // If usePlatformGeocoder is false, only the bundled offline index is
+    // consulted and no network lookups are made.
+    public ReverseGeocoder(Context context, boolean usePlatformGeocoder) {
         mContext = context;
         mGeocoder = new Geocoder(mContext);
+        mOfflineGeocoder = OfflineGeocoder.getInstance(context);
+        mUsePlatformGeocoder = usePlatformGeocoder;
         mGeoCache = CacheManager.getCache(context, GEO_CACHE_FILE,
                 GEO_CACHE_MAX_ENTRIES, GEO_CACHE_MAX_BYTES,
                 GEO_CACHE_VERSION);
@@ -86,28 +96,87 @@ public class ReverseGeocoder {
     }
 
     public String computeAddress(SetLatLong set) {
-        // The overall min and max latitudes and longitudes of the set.
-        double setMinLatitude = set.mMinLatLatitude;
-        double setMinLongitude = set.mMinLatLongitude;
-        double setMaxLatitude = set.mMaxLatLatitude;
-        double setMaxLongitude = set.mMaxLatLongitude;
-        if (Math.abs(set.mMaxLatLatitude - set.mMinLatLatitude)
-                < Math.abs(set.mMaxLonLongitude - set.mMinLonLongitude)) {
-            setMinLatitude = set.mMinLonLatitude;
-            setMinLongitude = set.mMinLonLongitude;
-            setMaxLatitude = set.mMaxLonLatitude;
-            setMaxLongitude = set.mMaxLonLongitude;
+        return computeAddresses(new SetLatLong[] {set})[0];
+    }
+
+    // Names all the sets at once. The end points of every set are resolved
+    // in a single batch and the current location is only looked up once.
+    public String[] computeAddresses(SetLatLong[] sets) {
+        int n = sets.length;
+        double[] latitudes = new double[2 * n];
+        double[] longitudes = new double[2 * n];
+        for (int i = 0; i < n; i++) {
+            SetLatLong set = sets[i];
+            // The overall min and max latitudes and longitudes of the set.
+            latitudes[2 * i] = set.mMinLatLatitude;
+            longitudes[2 * i] = set.mMinLatLongitude;
+            latitudes[2 * i + 1] = set.mMaxLatLatitude;
+            longitudes[2 * i + 1] = set.mMaxLatLongitude;
+            if (Math.abs(set.mMaxLatLatitude - set.mMinLatLatitude)
+                    < Math.abs(set.mMaxLonLongitude - set.mMinLonLongitude)) {
+                latitudes[2 * i] = set.mMinLonLatitude;
+                longitudes[2 * i] = set.mMinLonLongitude;
+                latitudes[2 * i + 1] = set.mMaxLonLatitude;
+                longitudes[2 * i + 1] = set.mMaxLonLongitude;
+            }
         }
-        Address addr1 = lookupAddress(setMinLatitude, setMinLongitude, true);
-        Address addr2 = lookupAddress(setMaxLatitude, setMaxLongitude, true);
-        if (addr1 == null)
-            addr1 = addr2;
-        if (addr2 == null)
-            addr2 = addr1;
-        if (addr1 == null || addr2 == null) {
-            return null;
+        boolean[] offline = new boolean[2 * n];
+        Address[] addresses = lookupAddresses(latitudes, longitudes, offline);
+
+        String[] result = new String[n];
+        Location location = null;
+        boolean locationResolved = false;
+        Address currentAddress = null;
+        boolean currentAddressResolved = false;
+        Address offlineCurrentAddress = null;
+        boolean offlineCurrentAddressResolved = false;
+        for (int i = 0; i < n; i++) {
+            Address addr1 = addresses[2 * i];
+            Address addr2 = addresses[2 * i + 1];
+            // The names are compared with each other and with the current
+            // address, so they must all come from the same source. The
+            // offline index has English names only.
+            boolean useOffline = offline[2 * i] || offline[2 * i + 1];
+            if (useOffline) {
+                addr1 = mOfflineGeocoder.lookupAddress(latitudes[2 * i], longitudes[2 * i]);
+                addr2 = mOfflineGeocoder.lookupAddress(
+                        latitudes[2 * i + 1], longitudes[2 * i + 1]);
+            }
+            if (addr1 == null)
+                addr1 = addr2;
+            if (addr2 == null)
+                addr2 = addr1;
+            if (addr1 == null || addr2 == null) {
+                continue;
+            }
+            if (!locationResolved) {
+                location = getLastKnownLocation();
+                locationResolved = true;
+            }
+            Address current;
+            if (useOffline) {
+                if (!offlineCurrentAddressResolved) {
+                    offlineCurrentAddress = location == null ? null
+                            : mOfflineGeocoder.lookupAddress(
+                                    location.getLatitude(), location.getLongitude());
+                    offlineCurrentAddressResolved = true;
+                }
+                current = offlineCurrentAddress;
+            } else {
+                if (!currentAddressResolved) {
+                    currentAddress = lookupCurrentAddress(location);
+                    currentAddressResolved = true;
+                }
+                current = currentAddress;
+            }
+            result[i] = computeAddress(addr1, addr2,
+                    latitudes[2 * i], longitudes[2 * i],
+                    latitudes[2 * i + 1], longitudes[2 * i + 1], current);
         }
+        return result;
+    }
 
+    private Location getLastKnownLocation() {
         // Get current location, we decide the granularity of the string based
         // on this.
         LocationManager locationManager =
@@ -120,22 +189,34 @@ public class ReverseGeocoder {
             if (location != null)
                 break;
         }
+        return location;
+    }
+
+    // Only asks the platform Geocoder, so that the names match those of
+    // the sets it resolved.
+    private Address lookupCurrentAddress(Location location) {
+        if (location == null) return null;
+        Address currentAddress = lookupPlatformAddress(
+                location.getLatitude(), location.getLongitude(), true);
+        if (currentAddress == null) {
+            currentAddress = sCurrentAddress;
+        } else {
+            sCurrentAddress = currentAddress;
+        }
+        return currentAddress;
+    }
+
+    private String computeAddress(Address addr1, Address addr2,
+            double setMinLatitude, double setMinLongitude,
+            double setMaxLatitude, double setMaxLongitude,
+            Address currentAddress) {
         String currentCity = "";
         String currentAdminArea = "";
         String currentCountry = Locale.getDefault().getCountry();
-        if (location != null) {
-            Address currentAddress = lookupAddress(
-                    location.getLatitude(), location.getLongitude(), true);
-            if (currentAddress == null) {
-                currentAddress = sCurrentAddress;
-            } else {
-                sCurrentAddress = currentAddress;
-            }
-            if (currentAddress != null && currentAddress.getCountryCode() != null) {
-                currentCity = checkNull(currentAddress.getLocality());
-                currentCountry = checkNull(currentAddress.getCountryCode());
-                currentAdminArea = checkNull(currentAddress.getAdminArea());
-            }
+        if (currentAddress != null && currentAddress.getCountryCode() != null) {
+            currentCity = checkNull(currentAddress.getLocality());
+            currentCountry = checkNull(currentAddress.getCountryCode());
+            currentAdminArea = checkNull(currentAddress.getAdminArea());
         }
 
         String closestCommonLocation = null;
@@ -302,8 +383,65 @@ public class ReverseGeocoder {
         return null;
     }
 
+    /**
+     * Resolves a batch of coordinates. The platform Geocoder is used when it
+     * is present; the offline index only names the nearest city, in English,
+     * and resolves the coordinates the Geocoder is absent for or fails on,
+     * in one pass.
+     */
+    public Address[] lookupAddresses(double[] latitudes, double[] longitudes) {
+        return lookupAddresses(latitudes, longitudes, new boolean[latitudes.length]);
+    }
+
+    // Sets offline[i] for the addresses that came from the offline index.
+    private Address[] lookupAddresses(double[] latitudes, double[] longitudes,
+            boolean[] offline) {
+        int n = latitudes.length;
+        Address[] result = new Address[n];
+        int misses = n;
+        if (mUsePlatformGeocoder && Geocoder.isPresent()) {
+            misses = 0;
+            for (int i = 0; i < n; i++) {
+                result[i] = lookupPlatformAddress(latitudes[i], longitudes[i], true);
+                if (result[i] == null) misses++;
+            }
+        }
+        if (misses == 0 || mOfflineGeocoder == null) return result;
+
+        double[] missLatitudes = new double[misses];
+        double[] missLongitudes = new double[misses];
+        for (int i = 0, k = 0; i < n; i++) {
+            if (result[i] != null) continue;
+            missLatitudes[k] = latitudes[i];
+            missLongitudes[k++] = longitudes[i];
+        }
+        Address[] found = mOfflineGeocoder.lookupAddresses(missLatitudes, missLongitudes);
+        for (int i = 0, k = 0; i < n; i++) {
+            if (result[i] != null) continue;
+            result[i] = found[k++];
+            offline[i] = result[i] != null;
+        }
+        return result;
+    }
+
+    /**
+     * Resolves a single coordinate, e.g. for the details view. The platform
+     * Geocoder gives street-level addresses, so it is preferred; the offline
+     * index only names the nearest city and is used when the Geocoder is
+     * unavailable or has no answer.
+     */
     public Address lookupAddress(final double latitude, final double longitude,
             boolean useCache) {
+        if (mUsePlatformGeocoder && Geocoder.isPresent()) {
+            Address address = lookupPlatformAddress(latitude, longitude, useCache);
+            if (address != null) return address;
+        }
+        if (mOfflineGeocoder == null) return null;
+        return mOfflineGeocoder.lookupAddress(latitude, longitude);
+    }
+
+    private Address lookupPlatformAddress(final double latitude, final double longitude,
+            boolean useCache) {
         try {
             long locationKey = (long) (((latitude + LAT_MAX) * 2 * LAT_MAX
                     + (longitude + LON_MAX)) * EARTH_RADIUS_METERS);
@@ -369,7 +507,7 @@ public class ReverseGeocoder {
                 }
                 if (!locale.getLanguage().equals(Locale.getDefault().getLanguage())) {
                     dis.close();
-                    return lookupAddress(latitude, longitude, false);
+                    return lookupPlatformAddress(latitude, longitude, false);
                 }
                 address = new Address(locale);
 
@@ -21,6 +21,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 
 import com.android.photos.data.PhotoProvider.Accounts;
 import com.android.photos.data.PhotoProvider.Albums;
+import com.android.photos.data.PhotoProvider.LocalMetadata;
 import com.android.photos.data.PhotoProvider.Metadata;
 import com.android.photos.data.PhotoProvider.Photos;
 
@@ -34,7 +35,7 @@ import java.util.List;
 public class PhotoDatabase extends SQLiteOpenHelper {
     @SuppressWarnings("unused")
     private static final String TAG = PhotoDatabase.class.getSimpleName();
-    static final int DB_VERSION = 3;
+    static final int DB_VERSION = 4;
 
     private static final String SQL_CREATE_TABLE = "CREATE TABLE ";
 
@@ -78,6 +79,15 @@ public class PhotoDatabase extends SQLiteOpenHelper {
         createUniqueConstraint(Metadata.PHOTO_ID, Metadata.KEY),
     };
 
+    private static final String[][] CREATE_LOCAL_METADATA = {
+        { LocalMetadata._ID, "INTEGER PRIMARY KEY AUTOINCREMENT" },
+        // LocalMetadata.LOCAL_ID is a MediaStore id, not a Photos._ID
+        { LocalMetadata.LOCAL_ID, "INTEGER NOT NULL" },
+        { LocalMetadata.KEY, "TEXT NOT NULL" },
+        { LocalMetadata.VALUE, "TEXT NOT NULL" },
+        createUniqueConstraint(LocalMetadata.LOCAL_ID, LocalMetadata.KEY),
+    };
+
     private static final String[][] CREATE_ACCOUNT = {
         { Accounts._ID, "INTEGER PRIMARY KEY AUTOINCREMENT" },
         { Accounts.ACCOUNT_NAME, "TEXT UNIQUE NOT NULL" },
@@ -89,6 +99,7 @@ public class PhotoDatabase extends SQLiteOpenHelper {
         createTable(db, Albums.TABLE, getAlbumTableDefinition());
         createTable(db, Photos.TABLE, getPhotoTableDefinition());
         createTable(db, Metadata.TABLE, getMetadataTableDefinition());
+        createTable(db, LocalMetadata.TABLE, getLocalMetadataTableDefinition());
     }
 
     public PhotoDatabase(Context context, String dbName, int dbVersion) {
@@ -110,6 +121,7 @@ public class PhotoDatabase extends SQLiteOpenHelper {
     }
 
     private void recreate(SQLiteDatabase db) {
+        dropTable(db, LocalMetadata.TABLE);
         dropTable(db, Metadata.TABLE);
         dropTable(db, Photos.TABLE);
         dropTable(db, Albums.TABLE);
@@ -129,6 +141,10 @@ public class PhotoDatabase extends SQLiteOpenHelper {
         return tableCreationStrings(CREATE_METADATA);
     }
 
+    protected List<String[]> getLocalMetadataTableDefinition() {
+        return tableCreationStrings(CREATE_LOCAL_METADATA);
+    }
+
     protected List<String[]> getAccountTableDefinition() {
         return tableCreationStrings(CREATE_ACCOUNT);
     }
@@ -40,9 +40,11 @@ import java.util.List;
  * accessed by this provider. Use Photos.CONTENT_URI to query all photos and
  * videos. Use Albums.CONTENT_URI to query all albums. Use Metadata.CONTENT_URI
  * to query metadata about a photo or video, based on the ID of the media. Use
- * ImageCache.THUMBNAIL_CONTENT_URI, ImageCache.PREVIEW_CONTENT_URI, or
- * ImageCache.ORIGINAL_CONTENT_URI to query the path of the thumbnail, preview,
- * or original-sized image respectfully. <br/>
+ * LocalMetadata.CONTENT_URI to query metadata of an image stored on the
+ * device, based on its MediaStore ID. Use ImageCache.THUMBNAIL_CONTENT_URI,
+ * ImageCache.PREVIEW_CONTENT_URI, or ImageCache.ORIGINAL_CONTENT_URI to query
+ * the path of the thumbnail, preview, or original-sized image respectfully.
+ * <br/>
  * To add or update metadata, use the update function rather than insert. All
  * values for the metadata must be in the ContentValues, even if they are also
  * in the selection. The selection and selectionArgs are not used when updating
@@ -207,12 +209,49 @@ public class PhotoProvider extends SQLiteContentProvider {
         public static final String KEY_EXIF_FSTOP = ExifInterface.TAG_APERTURE;
         /** The ISO equivalent value used. Integer value. */
         public static final String KEY_EXIF_ISO = ExifInterface.TAG_ISO;
+        /** The width in the EXIF header. Integer value. */
+        public static final String KEY_EXIF_IMAGE_WIDTH = ExifInterface.TAG_IMAGE_WIDTH;
+        /** The height in the EXIF header. Integer value. */
+        public static final String KEY_EXIF_IMAGE_LENGTH = ExifInterface.TAG_IMAGE_LENGTH;
+        /** The white balance mode, 0 for auto or 1 for manual. Integer value. */
+        public static final String KEY_EXIF_WHITE_BALANCE = ExifInterface.TAG_WHITE_BALANCE;
+        /** The lens aperture in APEX units. Float value. */
+        public static final String KEY_EXIF_APERTURE_VALUE = "ApertureValue";
+
+        /** Whether the photo should be shown in a panorama viewer. Boolean value. */
+        public static final String KEY_PANORAMA_VIEWER = "use_panorama_viewer";
+        /** Whether the photo is a 360 degree panorama. Boolean value. */
+        public static final String KEY_PANORAMA_360 = "panorama_360";
+    }
+
+    /**
+     * Contains columns and Uri for accessing metadata of images stored on the
+     * device, harvested from their files by the gallery. Rows belong to a
+     * MediaStore id rather than to a row of Photos, so they are kept apart
+     * from Metadata and are not removed when photos are deleted. Keys are the
+     * Metadata.KEY_* values.
+     */
+    public static interface LocalMetadata extends BaseColumns {
+        /** Internal database table used for local metadata information. */
+        public static final String TABLE = "local_metadata";
+        /** Content URI for local image metadata. */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, TABLE);
+        /** The MediaStore id of the image. Long value. */
+        public static final String LOCAL_ID = "local_id";
+        /** Metadata key. String value */
+        public static final String KEY = Metadata.KEY;
+        /**
+         * Metadata value. Type is based on key.
+         */
+        public static final String VALUE = Metadata.VALUE;
     }
 
     // SQL used within this class.
     protected static final String WHERE_ID = BaseColumns._ID + " = ?";
     protected static final String WHERE_METADATA_ID = Metadata.PHOTO_ID + " = ? AND "
             + Metadata.KEY + " = ?";
+    protected static final String WHERE_LOCAL_METADATA_ID = LocalMetadata.LOCAL_ID + " = ? AND "
+            + LocalMetadata.KEY + " = ?";
 
     protected static final String SELECT_ALBUM_ID = "SELECT " + Albums._ID + " FROM "
             + Albums.TABLE;
@@ -252,6 +291,8 @@ public class PhotoProvider extends SQLiteContentProvider {
     protected static final int MATCH_METADATA_ID = 6;
     protected static final int MATCH_ACCOUNT = 7;
     protected static final int MATCH_ACCOUNT_ID = 8;
+    protected static final int MATCH_LOCAL_METADATA = 9;
+    protected static final int MATCH_LOCAL_METADATA_ID = 10;
 
     static {
         sUriMatcher.addURI(AUTHORITY, Photos.TABLE, MATCH_PHOTO);
@@ -266,6 +307,9 @@ public class PhotoProvider extends SQLiteContentProvider {
         sUriMatcher.addURI(AUTHORITY, Accounts.TABLE, MATCH_ACCOUNT);
         // match against Accounts._ID
         sUriMatcher.addURI(AUTHORITY, Accounts.TABLE + "/#", MATCH_ACCOUNT_ID);
+        sUriMatcher.addURI(AUTHORITY, LocalMetadata.TABLE, MATCH_LOCAL_METADATA);
+        // match against local_metadata/<LocalMetadata._ID>
+        sUriMatcher.addURI(AUTHORITY, LocalMetadata.TABLE + "/#", MATCH_LOCAL_METADATA_ID);
     }
 
     @Override
@@ -332,7 +376,11 @@ public class PhotoProvider extends SQLiteContentProvider {
         int rowsUpdated = 0;
         SQLiteDatabase db = getDatabaseHelper().getWritableDatabase();
         if (match == MATCH_METADATA) {
-            rowsUpdated = modifyMetadata(db, values);
+            rowsUpdated = modifyMetadata(db, Metadata.TABLE, Metadata.PHOTO_ID,
+                    WHERE_METADATA_ID, values);
+        } else if (match == MATCH_LOCAL_METADATA) {
+            rowsUpdated = modifyMetadata(db, LocalMetadata.TABLE, LocalMetadata.LOCAL_ID,
+                    WHERE_LOCAL_METADATA_ID, values);
         } else {
             selection = addIdToSelection(match, selection);
             selectionArgs = addIdToSelectionArgs(match, uri, selectionArgs);
@@ -353,6 +401,7 @@ public class PhotoProvider extends SQLiteContentProvider {
             case MATCH_PHOTO_ID:
             case MATCH_ALBUM_ID:
             case MATCH_METADATA_ID:
+            case MATCH_LOCAL_METADATA_ID:
                 where = WHERE_ID;
                 break;
             default:
@@ -367,6 +416,7 @@ public class PhotoProvider extends SQLiteContentProvider {
             case MATCH_PHOTO_ID:
             case MATCH_ALBUM_ID:
             case MATCH_METADATA_ID:
+            case MATCH_LOCAL_METADATA_ID:
                 whereArgs = new String[] {
                     uri.getPathSegments().get(1),
                 };
@@ -406,6 +456,10 @@ public class PhotoProvider extends SQLiteContentProvider {
             case MATCH_ACCOUNT_ID:
                 table = Accounts.TABLE;
                 break;
+            case MATCH_LOCAL_METADATA:
+            case MATCH_LOCAL_METADATA_ID:
+                table = LocalMetadata.TABLE;
+                break;
             default:
                 throw unknownUri(uri);
         }
@@ -417,15 +471,16 @@ public class PhotoProvider extends SQLiteContentProvider {
         return new PhotoDatabase(context, DB_NAME);
     }
 
-    private int modifyMetadata(SQLiteDatabase db, ContentValues values) {
+    private int modifyMetadata(SQLiteDatabase db, String table, String idColumn,
+            String whereMetadataId, ContentValues values) {
         int rowCount;
         if (values.get(Metadata.VALUE) == null) {
             String[] selectionArgs = {
-                    values.getAsString(Metadata.PHOTO_ID), values.getAsString(Metadata.KEY),
+                    values.getAsString(idColumn), values.getAsString(Metadata.KEY),
             };
-            rowCount = db.delete(Metadata.TABLE, WHERE_METADATA_ID, selectionArgs);
+            rowCount = db.delete(table, whereMetadataId, selectionArgs);
         } else {
-            long rowId = db.replace(Metadata.TABLE, null, values);
+            long rowId = db.replace(table, null, values);
             rowCount = (rowId == -1) ? 0 : 1;
         }
         return rowCount;
@@ -509,6 +564,7 @@ public class PhotoProvider extends SQLiteContentProvider {
             case MATCH_ALBUM:
             case MATCH_METADATA:
             case MATCH_ACCOUNT:
+            case MATCH_LOCAL_METADATA:
                 break;
             default:
                 throw new IllegalArgumentException("Operation not allowed on an existing row.");
@@ -0,0 +1,9 @@
+package com.android.gallery3d;
+
+/**
+ * JUnit category of the JVM benchmarks, the @Test methods named benchmarkX
+ * that print their timings. They are left out of the unit test run and only
+ * run with {@code ./gradlew test -Pbenchmarks}.
+ */
+public interface Benchmark {
+}
@@ -0,0 +1,99 @@
+package com.android.gallery3d.common;
+
+import android.database.Cursor;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class EntrySchemaTest {
+
+    @Entry.Table("samples")
+    public static class SampleEntry extends Entry {
+        @Column("name") public String name;
+        @Column("flag") public boolean flag;
+        @Column("small") public short small;
+        @Column("count") public int count;
+        @Column("size") public long size;
+        @Column("ratio") public float ratio;
+        @Column("score") public double score;
+        @Column("data") public byte[] data;
+    }
+
+    private static final EntrySchema SCHEMA = new EntrySchema(SampleEntry.class);
+
+    // A cursor over rows generated from the row number, with the given
+    // columns. Only the methods the schema uses are implemented.
+    private static Cursor fakeCursor(final String[] columns, final int rows) {
+        return (Cursor) Proxy.newProxyInstance(Cursor.class.getClassLoader(),
+                new Class<?>[] {Cursor.class}, new InvocationHandler() {
+            private int mPosition = -1;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("moveToNext")) return ++mPosition < rows;
+                if (name.equals("moveToFirst")) {
+                    mPosition = 0;
+                    return rows > 0;
+                }
+                if (name.equals("getCount")) return rows;
+                if (name.equals("getPosition")) return mPosition;
+                if (name.equals("close")) return null;
+                String column = columns[(Integer) args[0]];
+                Object value = value(column, mPosition);
+                if (name.equals("isNull")) return value == null;
+                if (name.equals("getString")) return (String) value;
+                if (name.equals("getBlob")) return (byte[]) value;
+                Number number = (Number) value;
+                if (name.equals("getShort")) return number.shortValue();
+                if (name.equals("getInt")) return number.intValue();
+                if (name.equals("getLong")) return number.longValue();
+                if (name.equals("getFloat")) return number.floatValue();
+                if (name.equals("getDouble")) return number.doubleValue();
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    private static Object value(String column, int row) {
+        if (column.equals("_id")) return (long) row + 1;
+        if (column.equals("name")) return row % 5 == 0 ? null : "row" + row;
+        if (column.equals("flag")) return row % 2;
+        if (column.equals("small")) return (short) (row % 1000);
+        if (column.equals("count")) return row * 3;
+        if (column.equals("size")) return row * 100000L;
+        if (column.equals("ratio")) return row / 4f;
+        if (column.equals("score")) return row / 8.0;
+        if (column.equals("data")) return row % 7 == 0 ? null : new byte[] {(byte) row};
+        throw new IllegalArgumentException(column);
+    }
+
+    private static void assertRow(int row, SampleEntry entry) {
+        assertEquals(row + 1, entry.id);
+        assertEquals(value("name", row), entry.name);
+        assertEquals(row % 2 == 1, entry.flag);
+        assertEquals(row % 1000, entry.small);
+        assertEquals(row * 3, entry.count);
+        assertEquals(row * 100000L, entry.size);
+        assertEquals(row / 4f, entry.ratio, 0);
+        assertEquals(row / 8.0, entry.score, 0);
+        assertArrayEquals((byte[]) value("data", row), entry.data);
+    }
+
+    @Test
+    public void testCursorToObject() {
+        Cursor cursor = fakeCursor(SCHEMA.getProjection(), 50);
+        int row = 0;
+        while (cursor.moveToNext()) {
+            assertRow(row, SCHEMA.cursorToObject(cursor, new SampleEntry()));
+            row++;
+        }
+        assertEquals(50, row);
+    }
+}
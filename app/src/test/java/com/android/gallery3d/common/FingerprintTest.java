@@ -0,0 +1,124 @@
+package com.android.gallery3d.common;
+
+import com.android.gallery3d.Benchmark;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FingerprintTest {
+    private static final int CHUNK = 4 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File write(byte[] data) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    // The tree fingerprint as documented: the MD5 of the chunk MD5s
+    // followed by the big-endian length.
+    private static byte[] treeDigest(byte[] data) throws Exception {
+        MessageDigest tree = MessageDigest.getInstance("md5");
+        for (int offset = 0; offset < data.length; offset += CHUNK) {
+            MessageDigest chunk = MessageDigest.getInstance("md5");
+            chunk.update(data, offset, Math.min(CHUNK, data.length - offset));
+            tree.update(chunk.digest());
+        }
+        tree.update(ByteBuffer.allocate(8).putLong(data.length).array());
+        return tree.digest();
+    }
+
+    @Test
+    public void testLegacyStreamId() throws IOException {
+        long[] count = new long[1];
+        Fingerprint fp = Fingerprint.fromInputStream(
+                new ByteArrayInputStream("abc".getBytes("US-ASCII")), count);
+        assertEquals(3, count[0]);
+        assertEquals("cs_01_900150983cd24fb0d6963f7d28e17f72", fp.toStreamId());
+        assertEquals(fp, Fingerprint.fromStreamId(fp.toStreamId()));
+        assertEquals(fp, Fingerprint.extractFingerprint(
+                Arrays.asList("other", fp.toStreamId())));
+    }
+
+    @Test
+    public void testTreeFingerprint() throws Exception {
+        int[] lengths = {0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK + 5};
+        Random random = new Random(1);
+        for (int length : lengths) {
+            byte[] data = random(length, length);
+            Fingerprint fromFile = Fingerprint.fromFile(write(data));
+            assertTrue("length " + length, fromFile.equals(treeDigest(data)));
+            assertTrue(fromFile.toStreamId().startsWith("ct_01_"));
+            assertEquals(fromFile, Fingerprint.fromStreamId(fromFile.toStreamId()));
+
+            // Pieces of any size give the same result.
+            Fingerprint.TreeHasher hasher = new Fingerprint.TreeHasher();
+            int offset = 0;
+            while (offset < length) {
+                int n = Math.min(length - offset, 1 + random.nextInt(3 * 1024 * 1024));
+                hasher.update(data, offset, n);
+                offset += n;
+            }
+            assertEquals("length " + length, fromFile, hasher.finish());
+
+            // Same digest bytes, different kind of fingerprint.
+            Fingerprint legacy = Fingerprint.fromInputStream(
+                    new ByteArrayInputStream(data), null);
+            assertFalse(legacy.equals(fromFile));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadStreamId() {
+        Fingerprint.fromStreamId("ct_01_900150983cd24fb0d6963f7d28e17fzz");
+    }
+
+    // Hashes a 64MB file with the sequential MD5 and with the parallel tree.
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkLargeFile() throws IOException {
+        File file = write(random(64 * 1024 * 1024, 2));
+        for (int i = 0; i < 2; i++) {
+            Fingerprint.fromInputStream(new FileInputStream(file), null);
+            Fingerprint.fromFile(file);
+        }
+        int runs = 5;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            Fingerprint.fromInputStream(new FileInputStream(file), null);
+        }
+        long sequential = (System.nanoTime() - t0) / runs;
+        t0 = System.nanoTime();
+        for (int i = 0; i < runs; i++) Fingerprint.fromFile(file);
+        long tree = (System.nanoTime() - t0) / runs;
+        System.out.printf("Fingerprint of 64MB: fromInputStream %.1f ms, fromFile %.1f ms"
+                + " (%d cores)%n", sequential / 1e6, tree / 1e6,
+                Runtime.getRuntime().availableProcessors());
+    }
+}
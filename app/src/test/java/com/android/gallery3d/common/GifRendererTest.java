@@ -0,0 +1,335 @@
+package com.android.gallery3d.common;
+
+import com.android.gallery3d.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GifRendererTest {
+    private static final int RED = 0xffff0000;
+    private static final int GREEN = 0xff00ff00;
+    private static final int BLUE = 0xff0000ff;
+    private static final int WHITE = 0xffffffff;
+
+    // Writes GIFs by hand, so that frame offsets, transparency, disposal
+    // and interlacing can be chosen freely. The LZW data is uncompressed:
+    // every index is a literal, with a clear code often enough that the
+    // code size never grows.
+    private static class GifWriter {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        // The global color table has four entries: white, red, green, blue.
+        GifWriter(int width, int height, int bgIndex) {
+            write("GIF89a".getBytes());
+            writeShort(width);
+            writeShort(height);
+            mOut.write(0x81);  // global color table of 4 entries
+            mOut.write(bgIndex);
+            mOut.write(0);
+            int[] colors = {WHITE, RED, GREEN, BLUE};
+            for (int c : colors) {
+                mOut.write(c >> 16);
+                mOut.write(c >> 8);
+                mOut.write(c);
+            }
+        }
+
+        // indices are in display order; they are stored interlaced if asked.
+        GifWriter frame(int x, int y, int width, int height, int dispose, int transIndex,
+                int delay, boolean interlace, byte[] indices) {
+            mOut.write(0x21);
+            mOut.write(0xf9);
+            mOut.write(4);
+            mOut.write(dispose << 2 | (transIndex >= 0 ? 1 : 0));
+            writeShort(delay / 10);
+            mOut.write(Math.max(transIndex, 0));
+            mOut.write(0);
+
+            mOut.write(0x2c);
+            writeShort(x);
+            writeShort(y);
+            writeShort(width);
+            writeShort(height);
+            mOut.write(interlace ? 0x40 : 0);
+            if (interlace) indices = interlace(indices, width, height);
+            writeLzw(indices);
+            return this;
+        }
+
+        byte[] finish() {
+            mOut.write(0x3b);
+            return mOut.toByteArray();
+        }
+
+        private static byte[] interlace(byte[] indices, int width, int height) {
+            byte[] out = new byte[indices.length];
+            int[] start = {0, 4, 2, 1};
+            int[] step = {8, 8, 4, 2};
+            int row = 0;
+            for (int pass = 0; pass < 4; pass++) {
+                for (int y = start[pass]; y < height; y += step[pass]) {
+                    System.arraycopy(indices, y * width, out, row++ * width, width);
+                }
+            }
+            return out;
+        }
+
+        private void writeLzw(byte[] indices) {
+            int minCodeSize = 2;
+            int clear = 1 << minCodeSize;
+            int codeSize = minCodeSize + 1;
+            ByteArrayOutputStream codes = new ByteArrayOutputStream();
+            int datum = 0;
+            int bits = 0;
+            int[] stream = new int[indices.length + indices.length / 2 + 2];
+            int n = 0;
+            for (int i = 0; i < indices.length; i++) {
+                if (i % 2 == 0) stream[n++] = clear;
+                stream[n++] = indices[i];
+            }
+            stream[n++] = clear + 1;
+            for (int i = 0; i < n; i++) {
+                datum |= stream[i] << bits;
+                bits += codeSize;
+                while (bits >= 8) {
+                    codes.write(datum & 0xff);
+                    datum >>= 8;
+                    bits -= 8;
+                }
+            }
+            if (bits > 0) codes.write(datum);
+
+            mOut.write(minCodeSize);
+            byte[] data = codes.toByteArray();
+            for (int p = 0; p < data.length; p += 255) {
+                int size = Math.min(255, data.length - p);
+                mOut.write(size);
+                mOut.write(data, p, size);
+            }
+            mOut.write(0);
+        }
+
+        private void writeShort(int value) {
+            mOut.write(value);
+            mOut.write(value >> 8);
+        }
+
+        private void write(byte[] bytes) {
+            mOut.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static byte[] fill(int count, int index) {
+        byte[] indices = new byte[count];
+        Arrays.fill(indices, (byte) index);
+        return indices;
+    }
+
+    private static int[] canvas(int width, int height, int color) {
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, color);
+        return pixels;
+    }
+
+    private static void fillRect(int[] canvas, int width, int x, int y, int w, int h, int c) {
+        for (int yy = y; yy < y + h; yy++) {
+            Arrays.fill(canvas, yy * width + x, yy * width + x + w, c);
+        }
+    }
+
+    private static GifRenderer parse(byte[] gif) {
+        GifRenderer renderer = new GifRenderer(ByteBuffer.wrap(gif));
+        assertTrue(renderer.parse());
+        return renderer;
+    }
+
+    @Test
+    public void testDisposal() {
+        // Frame 0 fills the canvas with red. Frame 1 puts a green square
+        // with a transparent hole at (2, 1) and is restored to the
+        // background afterwards. Frame 2 is blue and restored to what was
+        // below it. Frame 3 draws one white pixel.
+        byte[] square = fill(9, 2);
+        square[4] = 3;
+        byte[] gif = new GifWriter(8, 6, 2)
+                .frame(0, 0, 8, 6, 1, -1, 100, false, fill(48, 1))
+                .frame(2, 1, 3, 3, 2, 3, 50, false, square)
+                .frame(4, 2, 4, 4, 3, -1, 0, false, fill(16, 3))
+                .frame(0, 0, 1, 1, 1, -1, 20, false, fill(1, 0))
+                .finish();
+        GifRenderer renderer = parse(gif);
+        assertEquals(8, renderer.getWidth());
+        assertEquals(6, renderer.getHeight());
+        assertEquals(4, renderer.getFrameCount());
+        assertEquals(100, renderer.getDelay(0));
+        assertEquals(0, renderer.getDelay(2));
+
+        int[] expected = canvas(8, 6, RED);
+        assertArrayEquals(expected, renderer.renderFrame(0));
+
+        fillRect(expected, 8, 2, 1, 3, 3, GREEN);
+        expected[2 * 8 + 3] = RED;
+        assertArrayEquals(expected, renderer.renderFrame(1));
+
+        // A transparent frame is disposed to transparent, not to the
+        // background color.
+        fillRect(expected, 8, 2, 1, 3, 3, 0);
+        fillRect(expected, 8, 4, 2, 4, 4, BLUE);
+        assertArrayEquals(expected, renderer.renderFrame(2));
+
+        fillRect(expected, 8, 4, 2, 4, 4, RED);
+        fillRect(expected, 8, 4, 2, 1, 2, 0);
+        expected[0] = WHITE;
+        assertArrayEquals(expected, renderer.renderFrame(3));
+
+        // Going backwards starts over.
+        assertArrayEquals(canvas(8, 6, RED), renderer.renderFrame(0));
+        assertNull(renderer.renderFrame(4));
+        assertNull(renderer.renderFrame(-1));
+    }
+
+    @Test
+    public void testBackgroundAndInterlace() {
+        byte[] rows = new byte[5 * 11];
+        for (int y = 0; y < 11; y++) Arrays.fill(rows, y * 5, y * 5 + 5, (byte) (y % 4));
+        byte[] gif = new GifWriter(6, 12, 2)
+                .frame(0, 0, 6, 12, 2, -1, 0, false, fill(72, 1))
+                .frame(1, 1, 5, 11, 1, -1, 0, true, rows)
+                .finish();
+        GifRenderer renderer = parse(gif);
+        int[] colors = {WHITE, RED, GREEN, BLUE};
+        // Frame 0 is disposed to the background color, green.
+        int[] expected = canvas(6, 12, GREEN);
+        for (int y = 0; y < 11; y++) fillRect(expected, 6, 1, y + 1, 5, 1, colors[y % 4]);
+        assertArrayEquals(expected, renderer.renderFrame(1));
+    }
+
+    @Test
+    public void testBadData() {
+        byte[] gif = new GifWriter(8, 6, 0)
+                .frame(0, 0, 8, 6, 1, -1, 0, false, fill(48, 1))
+                .frame(0, 0, 8, 6, 1, -1, 0, false, fill(48, 2))
+                .finish();
+        assertFalse(new GifRenderer(ByteBuffer.wrap("GIF".getBytes())).parse());
+        assertFalse(new GifRenderer(ByteBuffer.wrap(new byte[] {'P', 'N', 'G'})).parse());
+
+        // Truncated files keep the frames before the damage, and every
+        // frame renders without throwing.
+        for (int length = 0; length < gif.length; length++) {
+            GifRenderer renderer = new GifRenderer(ByteBuffer.wrap(gif, 0, length));
+            if (!renderer.parse()) continue;
+            for (int n = 0; n < renderer.getFrameCount(); n++) {
+                assertEquals(48, renderer.renderFrame(n).length);
+            }
+        }
+    }
+
+    // An animation written by javax.imageio, with full LZW compression.
+    private static byte[] encodeAnimation(int width, int height, int frames) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+        ImageOutputStream out = ImageIO.createImageOutputStream(bytes);
+        writer.setOutput(out);
+        writer.prepareWriteSequence(null);
+        for (int f = 0; f < frames; f++) {
+            BufferedImage image = new BufferedImage(width, height,
+                    BufferedImage.TYPE_BYTE_INDEXED);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    double v = Math.sin((x + f * 4) * 0.05) * Math.cos(y * 0.07);
+                    image.setRGB(x, y, (int) (128 + 127 * v) * 0x10101);
+                }
+            }
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            IIOMetadata metadata = writer.getDefaultImageMetadata(
+                    new ImageTypeSpecifier(image), param);
+            String format = metadata.getNativeMetadataFormatName();
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+            IIOMetadataNode control = new IIOMetadataNode("GraphicControlExtension");
+            control.setAttribute("disposalMethod", "doNotDispose");
+            control.setAttribute("userInputFlag", "FALSE");
+            control.setAttribute("transparentColorFlag", "FALSE");
+            control.setAttribute("delayTime", "4");
+            control.setAttribute("transparentColorIndex", "0");
+            root.appendChild(control);
+            metadata.setFromTree(format, root);
+            writer.writeToSequence(new IIOImage(image, null, metadata), param);
+        }
+        writer.endWriteSequence();
+        out.close();
+        writer.dispose();
+        return bytes.toByteArray();
+    }
+
+    private static ImageReader openReader(byte[] gif) throws IOException {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(gif));
+        reader.setInput(in);
+        return reader;
+    }
+
+    @Test
+    public void testAgainstImageIo() throws IOException {
+        int width = 160;
+        int height = 120;
+        byte[] gif = encodeAnimation(width, height, 5);
+        GifRenderer renderer = parse(gif);
+        assertEquals(5, renderer.getFrameCount());
+        assertEquals(40, renderer.getDelay(3));
+        ImageReader reader = openReader(gif);
+        for (int n = 0; n < 5; n++) {
+            int[] expected = reader.read(n).getRGB(0, 0, width, height, null, 0, width);
+            assertArrayEquals("frame " + n, expected, renderer.renderFrame(n));
+        }
+        reader.dispose();
+    }
+
+    // Plays a 320x240 animation of 30 frames, against javax.imageio
+    // decoding the same frames.
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkPlayback() throws IOException {
+        int frames = 30;
+        byte[] gif = encodeAnimation(320, 240, frames);
+        GifRenderer renderer = parse(gif);
+        ImageReader reader = openReader(gif);
+        int rounds = 10;
+        long render = 0, imageIo = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < rounds * frames; i++) renderer.renderFrame(i % frames);
+            render = System.nanoTime() - t0;
+            t0 = System.nanoTime();
+            for (int i = 0; i < frames; i++) reader.read(i);
+            imageIo = (System.nanoTime() - t0) * rounds;
+        }
+        reader.dispose();
+        System.out.printf("GIF 320x240 x %d frames (%d KB): GifRenderer %.3f ms/frame,"
+                + " ImageIO %.3f ms/frame%n", frames, gif.length / 1024,
+                render / (rounds * frames) / 1e6, imageIo / (rounds * frames) / 1e6);
+    }
+}
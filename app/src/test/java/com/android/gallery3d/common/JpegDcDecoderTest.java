@@ -0,0 +1,180 @@
+package com.android.gallery3d.common;
+
+import com.android.gallery3d.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Compares the DC-domain decode with a box-filtered full decode from
+// javax.imageio, on JPEGs encoded by javax.imageio.
+public class JpegDcDecoderTest {
+
+    private static BufferedImage makeImage(int width, int height, int type, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D g = image.createGraphics();
+        for (int i = 0; i < 40; i++) {
+            g.setColor(new Color(random.nextInt(0xffffff)));
+            g.fillOval(random.nextInt(width), random.nextInt(height),
+                    random.nextInt(width / 2 + 1) + 5, random.nextInt(height / 2 + 1) + 5);
+        }
+        g.setPaint(new GradientPaint(0, 0, new Color(255, 0, 0, 80),
+                width, height, new Color(0, 0, 255, 80)));
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image, boolean progressive) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (progressive) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        } else {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.9f);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageOutputStream out = ImageIO.createImageOutputStream(bytes);
+        writer.setOutput(out);
+        writer.write(null, new IIOImage(image, null, null), param);
+        out.close();
+        writer.dispose();
+        return bytes.toByteArray();
+    }
+
+    // PSNR of the decoded image against the reference averaged over
+    // scale x scale blocks.
+    private static double psnr(BufferedImage reference, JpegDcDecoder.Image image, int scale) {
+        boolean gray = reference.getType() == BufferedImage.TYPE_BYTE_GRAY;
+        int width = reference.getWidth();
+        int height = reference.getHeight();
+        double squaredError = 0;
+        int n = 0;
+        for (int y = 0; y < image.height; y++) {
+            for (int x = 0; x < image.width; x++) {
+                int r = 0, g = 0, b = 0, count = 0;
+                for (int yy = y * scale; yy < Math.min(height, (y + 1) * scale); yy++) {
+                    for (int xx = x * scale; xx < Math.min(width, (x + 1) * scale); xx++) {
+                        int p = gray ? reference.getRaster().getSample(xx, yy, 0) * 0x10101
+                                : reference.getRGB(xx, yy);
+                        r += (p >> 16) & 0xff;
+                        g += (p >> 8) & 0xff;
+                        b += p & 0xff;
+                        count++;
+                    }
+                }
+                int p = image.pixels[y * image.width + x];
+                double dr = ((p >> 16) & 0xff) - r / (double) count;
+                double dg = ((p >> 8) & 0xff) - g / (double) count;
+                double db = (p & 0xff) - b / (double) count;
+                squaredError += dr * dr + dg * dg + db * db;
+                n += 3;
+            }
+        }
+        return 10 * Math.log10(255 * 255 / (squaredError / n));
+    }
+
+    @Test
+    public void testAgainstFullDecode() throws IOException {
+        int[][] sizes = {{640, 480}, {333, 517}, {64, 64}, {1601, 1203}};
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY};
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            for (int type : types) {
+                for (boolean progressive : new boolean[] {false, true}) {
+                    String name = width + "x" + height + " type " + type
+                            + (progressive ? " progressive" : " baseline");
+                    byte[] jpeg = encode(makeImage(width, height, type, width), progressive);
+                    BufferedImage reference = ImageIO.read(new ByteArrayInputStream(jpeg));
+
+                    int minSide = Math.min(width, height);
+                    // Chroma edges dominate the error on the smallest image.
+                    double minPsnr = minSide < 256 ? 21 : 28;
+                    JpegDcDecoder.Image eighth = JpegDcDecoder.decode(
+                            new ByteArrayInputStream(jpeg), minSide / 8);
+                    assertNotNull(name, eighth);
+                    assertEquals(name, (width + 7) / 8, eighth.width);
+                    assertEquals(name, (height + 7) / 8, eighth.height);
+                    assertTrue(name, psnr(reference, eighth, 8) > minPsnr);
+
+                    JpegDcDecoder.Image quarter = JpegDcDecoder.decode(
+                            new ByteArrayInputStream(jpeg), minSide / 5);
+                    assertNotNull(name, quarter);
+                    assertEquals(name, (width + 3) / 4, quarter.width);
+                    assertEquals(name, (height + 3) / 4, quarter.height);
+                    assertTrue(name, psnr(reference, quarter, 4) > minPsnr);
+
+                    // Larger than 1/4 is left to the platform decoder.
+                    assertNull(name, JpegDcDecoder.decode(
+                            new ByteArrayInputStream(jpeg), minSide / 2));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBadInput() throws IOException {
+        assertNull(JpegDcDecoder.decode(
+                new ByteArrayInputStream(new byte[] {'G', 'I', 'F', '8'}), 1));
+        byte[] jpeg = encode(makeImage(256, 256, BufferedImage.TYPE_INT_RGB, 1), false);
+        byte[] truncated = new byte[jpeg.length / 2];
+        System.arraycopy(jpeg, 0, truncated, 0, truncated.length);
+        try {
+            JpegDcDecoder.decode(new ByteArrayInputStream(truncated), 16);
+        } catch (IOException e) {
+            // Either a partial image or an IOException is fine; it must
+            // not throw anything else.
+        }
+
+        JpegDcDecoder decoder = JpegDcDecoder.create(new ByteArrayInputStream(jpeg));
+        decoder.cancel();
+        assertNull(decoder.decode(16));
+    }
+
+    // A 12MP JPEG decoded to a microthumbnail-sized image: DC-only decode
+    // against a full javax.imageio decode with subsampling.
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkMicroThumbnail() throws IOException {
+        byte[] jpeg = encode(makeImage(4000, 3000, BufferedImage.TYPE_INT_RGB, 2), false);
+        for (int i = 0; i < 3; i++) {
+            JpegDcDecoder.decode(new ByteArrayInputStream(jpeg), 200);
+            ImageIO.read(new ByteArrayInputStream(jpeg));
+        }
+        int runs = 5;
+        long t0 = System.nanoTime();
+        JpegDcDecoder.Image image = null;
+        for (int i = 0; i < runs; i++) {
+            image = JpegDcDecoder.decode(new ByteArrayInputStream(jpeg), 200);
+        }
+        long dc = (System.nanoTime() - t0) / runs;
+        t0 = System.nanoTime();
+        for (int i = 0; i < runs; i++) ImageIO.read(new ByteArrayInputStream(jpeg));
+        long full = (System.nanoTime() - t0) / runs;
+        assertEquals(500, image.width);
+        System.out.printf("4000x3000 JPEG (%d KB): JpegDcDecoder 1/8 %.1f ms,"
+                + " ImageIO full decode %.1f ms%n", jpeg.length / 1024, dc / 1e6, full / 1e6);
+    }
+}
@@ -0,0 +1,158 @@
+package com.android.gallery3d.common;
+
+import com.android.gallery3d.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QoiCodecTest {
+
+    // Smooth gradients with some noise and flat areas, so that every op
+    // is used. Alpha varies only if translucent is set.
+    private static int[] makePixels(int width, int height, boolean translucent, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                if (x > width / 2 && y > height / 2) {
+                    pixels[i] = 0xff204060;
+                    continue;
+                }
+                int r = (x * 255 / width + random.nextInt(5)) & 0xff;
+                int g = (y * 255 / height + random.nextInt(3)) & 0xff;
+                int b = random.nextInt(16) == 0 ? random.nextInt(256) : (x + y) & 0xff;
+                int a = translucent ? (x * 4) & 0xff : 0xff;
+                pixels[i] = a << 24 | r << 16 | g << 8 | b;
+            }
+        }
+        return pixels;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        int[][] sizes = {{1, 1}, {7, 3}, {200, 200}, {640, 427}};
+        for (int[] size : sizes) {
+            for (boolean translucent : new boolean[] {false, true}) {
+                int[] pixels = makePixels(size[0], size[1], translucent, size[0]);
+                byte[] data = QoiCodec.encode(pixels, size[0], size[1]);
+                assertTrue(QoiCodec.isQoi(data, 0, data.length));
+                assertEquals(size[0], QoiCodec.getWidth(data, 0));
+                assertEquals(size[1], QoiCodec.getHeight(data, 0));
+                assertEquals(pixels.length, QoiCodec.getPixelCount(data, 0, data.length));
+
+                int[] decoded = new int[pixels.length];
+                assertTrue(QoiCodec.decode(data, 0, data.length, decoded));
+                assertArrayEquals(pixels, decoded);
+
+                // At an offset into a larger array.
+                byte[] shifted = new byte[data.length + 10];
+                System.arraycopy(data, 0, shifted, 5, data.length);
+                Arrays.fill(decoded, 0);
+                assertTrue(QoiCodec.decode(shifted, 5, data.length, decoded));
+                assertArrayEquals(pixels, decoded);
+            }
+        }
+    }
+
+    @Test
+    public void testStrips() {
+        // Long runs, so that runs cross the strip boundaries.
+        int width = 100;
+        int height = 90;
+        int[] pixels = makePixels(width, height, false, 1);
+        Arrays.fill(pixels, 1000, 2500, 0xff808080);
+        byte[] data = QoiCodec.encode(pixels, width, height);
+        for (int part : new int[] {1, 7, 61, 62, 63, 100, 1024, width * height}) {
+            QoiCodec.Decoder decoder = QoiCodec.Decoder.create(data, 0, data.length);
+            int[] strip = new int[part];
+            for (int i = 0; i < pixels.length; i += part) {
+                int n = Math.min(part, pixels.length - i);
+                assertTrue(decoder.decode(strip, n));
+                assertArrayEquals(Arrays.copyOfRange(pixels, i, i + n),
+                        Arrays.copyOf(strip, n));
+            }
+            assertFalse(decoder.decode(strip, 1));
+        }
+    }
+
+    @Test
+    public void testBadData() {
+        int[] pixels = makePixels(64, 64, true, 2);
+        byte[] data = QoiCodec.encode(pixels, 64, 64);
+        int[] decoded = new int[pixels.length];
+
+        // Sizes are checked before any pixels are allocated.
+        byte[] header = Arrays.copyOf(data, data.length);
+        header[4] = 0x7f;
+        assertEquals(-1, QoiCodec.getPixelCount(header, 0, header.length));
+        assertNull(QoiCodec.Decoder.create(header, 0, header.length));
+        header[4] = (byte) 0x80;
+        assertEquals(-1, QoiCodec.getPixelCount(header, 0, header.length));
+        assertEquals(-1, QoiCodec.getPixelCount(new byte[30], 0, 30));
+
+        for (int length = 0; length < data.length - 8; length += 97) {
+            assertFalse(QoiCodec.decode(data, 0, length, decoded));
+        }
+        assertFalse(QoiCodec.decode(data, 0, data.length, new int[pixels.length - 1]));
+    }
+
+    // A 640x480 thumbnail kept as QOI and as JPEG at the cache's quality:
+    // decode times, whole and in strips, against javax.imageio.
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkThumbnail() throws IOException {
+        int width = 640;
+        int height = 480;
+        int[] pixels = makePixels(width, height, false, 3);
+        byte[] qoi = QoiCodec.encode(pixels, width, height);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        byte[] jpeg = out.toByteArray();
+
+        int[] whole = new int[width * height];
+        int[] strip = new int[16 * 1024];
+        int runs = 200;
+        long qoiTime = 0, stripTime = 0, jpegTime = 0;
+        for (int round = 0; round < 2; round++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < runs; i++) QoiCodec.decode(qoi, 0, qoi.length, whole);
+            qoiTime = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                QoiCodec.Decoder decoder = QoiCodec.Decoder.create(qoi, 0, qoi.length);
+                int rows = strip.length / width;
+                for (int y = 0; y < height; y += rows) {
+                    decoder.decode(strip, Math.min(rows, height - y) * width);
+                }
+            }
+            stripTime = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            for (int i = 0; i < runs / 10; i++) ImageIO.read(new ByteArrayInputStream(jpeg));
+            jpegTime = (System.nanoTime() - t0) * 10;
+        }
+        System.out.printf("640x480: QOI %d KB, decode %.2f ms (strips %.2f ms);"
+                + " JPEG %d KB, ImageIO decode %.2f ms%n", qoi.length / 1024,
+                qoiTime / runs / 1e6, stripTime / runs / 1e6, jpeg.length / 1024,
+                jpegTime / runs / 1e6);
+    }
+}
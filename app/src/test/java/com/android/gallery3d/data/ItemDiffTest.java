@@ -0,0 +1,145 @@
+package com.android.gallery3d.data;
+
+import com.android.gallery3d.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ItemDiffTest {
+
+    private static long[] toArray(ArrayList<Long> list) {
+        long[] array = new long[list.size()];
+        for (int i = 0; i < array.length; i++) array[i] = list.get(i);
+        return array;
+    }
+
+    private static long[] sequence(int n) {
+        long[] items = new long[n];
+        for (int i = 0; i < n; i++) items[i] = i;
+        return items;
+    }
+
+    // Checks every new position against the old list, and that the counts
+    // add up.
+    private static void check(long[] oldItems, long[] newItems, ItemDiff diff) {
+        HashMap<Long, Integer> oldPositions = new HashMap<Long, Integer>();
+        for (int i = 0; i < oldItems.length; i++) oldPositions.put(oldItems[i], i);
+        int kept = 0;
+        for (int i = 0; i < newItems.length; i++) {
+            int from = diff.getOldPosition(i);
+            Integer expected = oldPositions.get(newItems[i]);
+            if (expected == null) {
+                assertEquals("position " + i, ItemDiff.NO_POSITION, from);
+            } else {
+                assertEquals("position " + i, expected.intValue(), from);
+                kept++;
+            }
+        }
+        assertEquals(newItems.length - kept, diff.getInsertedCount());
+        assertEquals(oldItems.length - kept, diff.getRemovedCount());
+    }
+
+    @Test
+    public void testSimpleEdits() {
+        long[] old = {1, 2, 3, 4, 5};
+        ItemDiff diff = ItemDiff.compute(old, old, 0);
+        check(old, old, diff);
+        assertEquals(0, diff.getMovedCount());
+
+        long[] inserted = {0, 1, 2, 9, 3, 4, 5};
+        diff = ItemDiff.compute(old, inserted, 10);
+        check(old, inserted, diff);
+        assertEquals(2, diff.getInsertedCount());
+
+        long[] removed = {1, 3, 5};
+        diff = ItemDiff.compute(old, removed, 10);
+        check(old, removed, diff);
+        assertEquals(2, diff.getRemovedCount());
+
+        long[] moved = {5, 1, 2, 3, 4};
+        diff = ItemDiff.compute(old, moved, 10);
+        check(old, moved, diff);
+        assertEquals(1, diff.getMovedCount());
+        assertEquals(0, diff.getInsertedCount());
+        assertEquals(0, diff.getRemovedCount());
+
+        long[] empty = {};
+        check(old, empty, ItemDiff.compute(old, empty, 10));
+        check(empty, old, ItemDiff.compute(empty, old, 10));
+        check(empty, empty, ItemDiff.compute(empty, empty, 0));
+    }
+
+    @Test
+    public void testTooManyEdits() {
+        long[] old = sequence(100);
+        long[] reversed = new long[100];
+        for (int i = 0; i < 100; i++) reversed[i] = 99 - i;
+        assertNull(ItemDiff.compute(old, reversed, 20));
+        assertNull(ItemDiff.compute(old, new long[0], 99));
+        assertNotNull(ItemDiff.compute(old, new long[0], 100));
+    }
+
+    @Test
+    public void testRandomEdits() {
+        Random random = new Random(1);
+        for (int round = 0; round < 300; round++) {
+            long[] old = sequence(random.nextInt(200));
+            ArrayList<Long> list = new ArrayList<Long>();
+            for (long item : old) list.add(item);
+            long next = old.length;
+            int edits = random.nextInt(20);
+            for (int e = 0; e < edits; e++) {
+                int op = random.nextInt(3);
+                if (op == 0 || list.isEmpty()) {
+                    list.add(random.nextInt(list.size() + 1), next++);
+                } else if (op == 1) {
+                    list.remove(random.nextInt(list.size()));
+                } else {
+                    Long item = list.remove(random.nextInt(list.size()));
+                    list.add(random.nextInt(list.size() + 1), item);
+                }
+            }
+            long[] newItems = toArray(list);
+            ItemDiff diff = ItemDiff.compute(old, newItems, 2 * edits);
+            assertNotNull(diff);
+            check(old, newItems, diff);
+        }
+    }
+
+    // A camera burst into a large album: the diff should cost about as much
+    // as the trimming scan, not the size of the album squared.
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkBurst() {
+        int n = 100000;
+        long[] old = sequence(n);
+        long[] newItems = new long[n + 50];
+        for (int i = 0; i < 50; i++) newItems[i] = n + i;
+        System.arraycopy(old, 0, newItems, 50, n);
+        // A few deletions in the middle as well.
+        long[] edited = new long[newItems.length - 3];
+        int k = 0;
+        for (int i = 0; i < newItems.length; i++) {
+            if (i != 5000 && i != 40000 && i != 70000) edited[k++] = newItems[i];
+        }
+
+        for (int i = 0; i < 20; i++) ItemDiff.compute(old, edited, 256);
+        int runs = 50;
+        long t0 = System.nanoTime();
+        ItemDiff diff = null;
+        for (int i = 0; i < runs; i++) diff = ItemDiff.compute(old, edited, 256);
+        long nanos = (System.nanoTime() - t0) / runs;
+        check(old, edited, diff);
+        assertEquals(50, diff.getInsertedCount());
+        assertEquals(3, diff.getRemovedCount());
+        System.out.printf("ItemDiff of %d items with 53 edits: %.2f ms%n", n, nanos / 1e6);
+    }
+}
@@ -0,0 +1,156 @@
+package com.android.gallery3d.data;
+
+import com.android.gallery3d.Benchmark;
+import com.android.gallery3d.data.BucketHelper.BucketEntry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class LibraryIndexStoreTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static LibraryIndex.Snapshot makeSnapshot(Random random, int n) {
+        int[] ids = new int[n];
+        byte[] mimeClasses = new byte[n];
+        long[] datesTaken = new long[n];
+        long[] datesModified = new long[n];
+        long[] sizes = new long[n];
+        int[] bucketIds = new int[n];
+        double[] latitudes = new double[n];
+        double[] longitudes = new double[n];
+        int[] widths = new int[n];
+        int[] heights = new int[n];
+        int id = 0;
+        for (int i = 0; i < n; i++) {
+            id += 1 + random.nextInt(3);
+            ids[i] = id;
+            mimeClasses[i] = (byte) random.nextInt(3);
+            datesTaken[i] = 1300000000000L + random.nextInt(Integer.MAX_VALUE);
+            datesModified[i] = datesTaken[i] / 1000;
+            sizes[i] = random.nextInt(8 << 20);
+            bucketIds[i] = random.nextInt(200);
+            latitudes[i] = random.nextDouble() * 180 - 90;
+            longitudes[i] = random.nextDouble() * 360 - 180;
+            widths[i] = 640 + random.nextInt(4000);
+            heights[i] = 480 + random.nextInt(3000);
+        }
+        return new LibraryIndex.Snapshot(n, ids, mimeClasses, datesTaken, datesModified,
+                sizes, bucketIds, latitudes, longitudes, widths, heights);
+    }
+
+    private static HashMap<Integer, BucketEntry[]> makeAlbums() {
+        HashMap<Integer, BucketEntry[]> albums = new HashMap<Integer, BucketEntry[]>();
+        BucketEntry camera = new BucketEntry(7, "Camera");
+        camera.dateTaken = 1400000000;
+        albums.put(1, new BucketEntry[] {camera, new BucketEntry(-3, "\u5199\u771f")});
+        albums.put(3, new BucketEntry[] {new BucketEntry(9, "")});
+        return albums;
+    }
+
+    private static void assertSameSnapshot(LibraryIndex.Snapshot a, LibraryIndex.Snapshot b) {
+        assertEquals(a.mSize, b.mSize);
+        for (int i = 0; i < a.mSize; i++) {
+            assertEquals(a.mIds[i], b.mIds[i]);
+            assertEquals(a.mMimeClasses[i], b.mMimeClasses[i]);
+            assertEquals(a.mDatesTaken[i], b.mDatesTaken[i]);
+            assertEquals(a.mDatesModified[i], b.mDatesModified[i]);
+            assertEquals(a.mSizes[i], b.mSizes[i]);
+            assertEquals(a.mBucketIds[i], b.mBucketIds[i]);
+            assertEquals(a.mLatitudes[i], b.mLatitudes[i], 0);
+            assertEquals(a.mLongitudes[i], b.mLongitudes[i], 0);
+            assertEquals(a.mWidths[i], b.mWidths[i]);
+            assertEquals(a.mHeights[i], b.mHeights[i]);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File file = new File(mFolder.getRoot(), "library_index");
+        LibraryIndexStore store = new LibraryIndexStore(file);
+        assertNull(store.read());
+
+        LibraryIndex.Snapshot snapshot = makeSnapshot(new Random(1), 1000);
+        store.write(snapshot, 1234567L, makeAlbums());
+        LibraryIndexStore.Content content = store.read();
+        assertNotNull(content);
+        assertEquals(1234567L, content.maxDateModified);
+        assertSameSnapshot(snapshot, content.snapshot);
+
+        assertEquals(2, content.albums.size());
+        BucketEntry[] images = content.albums.get(1);
+        assertEquals(2, images.length);
+        assertEquals(7, images[0].bucketId);
+        assertEquals("Camera", images[0].bucketName);
+        assertEquals(1400000000, images[0].dateTaken);
+        assertEquals("\u5199\u771f", images[1].bucketName);
+        assertEquals(9, content.albums.get(3)[0].bucketId);
+        assertEquals("", content.albums.get(3)[0].bucketName);
+
+        // An empty library is still a valid file.
+        store.write(makeSnapshot(new Random(2), 0), 0,
+                new HashMap<Integer, BucketEntry[]>());
+        content = store.read();
+        assertEquals(0, content.snapshot.size());
+        assertEquals(0, content.albums.size());
+    }
+
+    @Test
+    public void testBadFiles() throws IOException {
+        File file = new File(mFolder.getRoot(), "library_index");
+        LibraryIndexStore store = new LibraryIndexStore(file);
+        store.write(makeSnapshot(new Random(3), 100), 1, makeAlbums());
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() / 2);
+        raf.close();
+        assertNull(store.read());
+
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[64]);
+        out.close();
+        assertNull(store.read());
+    }
+
+    // What a cold start pays to get the library back: reading the saved
+    // snapshot of a 50k item library through the memory map.
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkRead() {
+        File file = new File(mFolder.getRoot(), "library_index");
+        LibraryIndexStore store = new LibraryIndexStore(file);
+        int n = 50000;
+        LibraryIndex.Snapshot snapshot = makeSnapshot(new Random(4), n);
+        store.write(snapshot, 0, makeAlbums());
+
+        for (int i = 0; i < 20; i++) store.read();
+        int runs = 50;
+        long t0 = System.nanoTime();
+        LibraryIndexStore.Content content = null;
+        for (int i = 0; i < runs; i++) content = store.read();
+        long nanos = (System.nanoTime() - t0) / runs;
+        assertSameSnapshot(snapshot, content.snapshot);
+
+        // The first grid of a bucket needs its rows in display order.
+        t0 = System.nanoTime();
+        content.snapshot.getBucketRows(7, true);
+        long bucketNanos = System.nanoTime() - t0;
+
+        System.out.printf("LibraryIndexStore.read() of %d rows (%d KB): %.2f ms;"
+                + " first getBucketRows(): %.2f ms%n", n, file.length() / 1024,
+                nanos / 1e6, bucketNanos / 1e6);
+    }
+}
@@ -0,0 +1,179 @@
+package com.android.gallery3d.data;
+
+import com.android.gallery3d.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SortedMergeTest {
+
+    // Items are {key, source, position}; sources are sorted by key.
+    private static final Comparator<int[]> BY_KEY = new Comparator<int[]>() {
+        @Override
+        public int compare(int[] a, int[] b) {
+            return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+        }
+    };
+
+    private static class ArraySource implements SortedMerge.Source<int[]> {
+        final int[][] mItems;
+        int mReads;
+
+        ArraySource(int source, int[] keys) {
+            Arrays.sort(keys);
+            mItems = new int[keys.length][];
+            for (int i = 0; i < keys.length; i++) {
+                mItems[i] = new int[] {keys[i], source, i};
+            }
+        }
+
+        @Override
+        public int[] get(int index) {
+            mReads++;
+            return index < mItems.length ? mItems[index] : null;
+        }
+    }
+
+    private static ArraySource[] makeSources(Random random, int[] sizes, int keyRange) {
+        ArraySource[] sources = new ArraySource[sizes.length];
+        for (int s = 0; s < sizes.length; s++) {
+            int[] keys = new int[sizes[s]];
+            for (int i = 0; i < keys.length; i++) keys[i] = random.nextInt(keyRange);
+            sources[s] = new ArraySource(s, keys);
+        }
+        return sources;
+    }
+
+    // The expected order: by key, then source, then position.
+    private static List<int[]> reference(ArraySource[] sources) {
+        List<int[]> all = new ArrayList<int[]>();
+        for (ArraySource source : sources) all.addAll(Arrays.asList(source.mItems));
+        java.util.Collections.sort(all, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                if (a[0] != b[0]) return a[0] < b[0] ? -1 : 1;
+                if (a[1] != b[1]) return a[1] < b[1] ? -1 : 1;
+                return a[2] - b[2];
+            }
+        });
+        return all;
+    }
+
+    private static void assertRange(List<int[]> expected, List<int[]> actual, int start,
+            int count) {
+        int end = Math.min(expected.size(), start + count);
+        assertEquals(Math.max(0, end - start), actual.size());
+        for (int i = start; i < end; i++) {
+            assertTrue("position " + i, expected.get(i) == actual.get(i - start));
+        }
+    }
+
+    @Test
+    public void testSequentialAndRandomAccess() {
+        Random random = new Random(1);
+        int[][] shapes = {{0}, {5}, {100, 0, 7}, {3000, 2500}, {4000, 10, 6000, 1}};
+        for (int[] sizes : shapes) {
+            // A small key range gives many ties across sources.
+            ArraySource[] sources = makeSources(random, sizes, 50);
+            List<int[]> expected = reference(sources);
+            SortedMerge<int[]> merge = new SortedMerge<int[]>(BY_KEY, sources);
+            for (int start = 0; start < expected.size() + 20; start += 37) {
+                assertRange(expected, merge.get(start, 37), start, 37);
+            }
+            for (int k = 0; k < 200; k++) {
+                if (k % 50 == 0) merge.reset();
+                int start = random.nextInt(expected.size() + 10);
+                int count = 1 + random.nextInt(100);
+                assertRange(expected, merge.get(start, count), start, count);
+            }
+        }
+    }
+
+    @Test
+    public void testDeepColdAccess() {
+        Random random = new Random(2);
+        ArraySource[] sources = makeSources(random, new int[] {60000, 50000}, 1 << 30);
+        List<int[]> expected = reference(sources);
+        for (int start : new int[] {2048, 50001, 109990, 110000, 200000}) {
+            SortedMerge<int[]> merge = new SortedMerge<int[]>(BY_KEY, sources);
+            assertRange(expected, merge.get(start, 64), start, 64);
+        }
+    }
+
+    @Test
+    public void testDeepAccessWithKeys() {
+        Random random = new Random(4);
+        final ArraySource[] sources = makeSources(random, new int[] {60000, 50000, 300},
+                1 << 20);
+        List<int[]> expected = reference(sources);
+        SortedMerge.KeyProvider keys = new SortedMerge.KeyProvider() {
+            @Override
+            public long[][] getKeys() {
+                long[][] keys = new long[sources.length][];
+                for (int s = 0; s < sources.length; s++) {
+                    keys[s] = new long[sources[s].mItems.length];
+                    for (int i = 0; i < keys[s].length; i++) keys[s][i] = sources[s].mItems[i][0];
+                }
+                return keys;
+            }
+        };
+        for (int start : new int[] {2048, 50001, 109990, 110200, 200000}) {
+            SortedMerge<int[]> merge = new SortedMerge<int[]>(BY_KEY, sources, keys);
+            for (ArraySource source : sources) source.mReads = 0;
+            assertRange(expected, merge.get(start, 64), start, 64);
+            // Only the items merged from the seek target are read.
+            int reads = 0;
+            for (ArraySource source : sources) reads += source.mReads;
+            assertTrue("reads " + reads, reads <= 32 + 64 + 2 * sources.length);
+        }
+    }
+
+    // Cold random access into two synthetic sources of 100k+ items in total,
+    // compared with merging from position 0 (what a seekless merge does).
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkColdRandomAccess() {
+        Random random = new Random(3);
+        ArraySource[] sources = makeSources(random, new int[] {80000, 40000}, 1 << 30);
+        int total = 120000;
+        int runs = 200;
+
+        long reads = 0;
+        long t0 = System.nanoTime();
+        for (int k = 0; k < runs; k++) {
+            SortedMerge<int[]> merge = new SortedMerge<int[]>(BY_KEY, sources);
+            for (ArraySource source : sources) source.mReads = 0;
+            merge.get(random.nextInt(total), 64);
+            for (ArraySource source : sources) reads += source.mReads;
+        }
+        long seekNanos = System.nanoTime() - t0;
+
+        long linearReads = 0;
+        t0 = System.nanoTime();
+        for (int k = 0; k < runs; k++) {
+            SortedMerge<int[]> merge = new SortedMerge<int[]>(BY_KEY, sources);
+            int start = random.nextInt(total);
+            for (int pos = 0; pos < start; pos += 1024) merge.get(pos, 1);
+            for (ArraySource source : sources) source.mReads = 0;
+            merge.get(start, 64);
+            linearReads += start;
+        }
+        long linearNanos = System.nanoTime() - t0;
+
+        System.out.printf("SortedMerge cold get(random, 64) over %d items: %.1f us, %d source"
+                + " reads; merging from 0: %.1f us, %d reads%n", total,
+                seekNanos / 1e3 / runs, reads / runs, linearNanos / 1e3 / runs,
+                linearReads / runs);
+        // O(k^2 log^2 n) reads rather than O(position).
+        assertTrue(reads / runs < 2000);
+    }
+}
@@ -0,0 +1,139 @@
+package com.android.gallery3d.exif;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExifIndexTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] encode(int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpg", out);
+        return out.toByteArray();
+    }
+
+    // A JPEG with the tags a camera typically writes, in IFD0, the EXIF
+    // and GPS IFDs and IFD1, written by ExifInterface. seed varies the
+    // values.
+    static byte[] makeJpeg(int seed) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Maker " + seed));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Model"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION, (short) (1 + seed % 8)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_EXPOSURE_TIME, new Rational(1, 100 + seed)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_F_NUMBER, new Rational(28, 10)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_FOCAL_LENGTH, new Rational(4300 + seed, 1000)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ISO_SPEED_RATINGS, 100 + seed));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_FLASH, (short) 16));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_WHITE_BALANCE, (short) 0));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_X_DIMENSION, 640));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_Y_DIMENSION, 480));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_USER_COMMENT,
+                new byte[] {'A', 'S', 'C', 'I', 'I', 0, 0, 0, 'h', 'i'}));
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME_ORIGINAL,
+                1500000000000L + seed * 1000L, TimeZone.getTimeZone("UTC"));
+        exif.addGpsTags(37.4 + seed / 100.0, -122.1 - seed / 100.0);
+        exif.setCompressedThumbnail(encode(160, 120));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(encode(640, 480), out);
+        return out.toByteArray();
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void testAllTagsMatchExifInterface() throws IOException {
+        for (int seed = 0; seed < 5; seed++) {
+            byte[] jpeg = makeJpeg(seed);
+            ExifInterface exif = new ExifInterface();
+            exif.readExif(jpeg);
+            List<ExifTag> expected = exif.getAllTags();
+
+            ExifIndex index = new ExifIndex();
+            assertTrue(index.load(write(jpeg)));
+            List<ExifTag> tags = index.getAllTags();
+            assertEquals(expected.size(), tags.size());
+            for (int i = 0; i < tags.size(); i++) {
+                assertEquals(expected.get(i), tags.get(i));
+                assertEquals(expected.get(i).getIfd(), tags.get(i).getIfd());
+            }
+        }
+    }
+
+    @Test
+    public void testGetters() throws IOException {
+        byte[] jpeg = makeJpeg(3);
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(jpeg);
+        ExifIndex index = new ExifIndex();
+        assertTrue(index.load(jpeg, 0, jpeg.length));
+
+        assertEquals("Maker 3", index.getString(ExifInterface.TAG_MAKE));
+        assertEquals(4, index.getInt(ExifInterface.TAG_ORIENTATION, 0));
+        assertEquals(103, index.getLong(ExifInterface.TAG_ISO_SPEED_RATINGS, 0, 0));
+        assertEquals(4.303, index.getRational(ExifInterface.TAG_FOCAL_LENGTH, 0, 0), 1e-9);
+        assertEquals(1, index.getNumerator(ExifInterface.TAG_EXPOSURE_TIME, 0));
+        assertEquals(103, index.getDenominator(ExifInterface.TAG_EXPOSURE_TIME, 0));
+        assertEquals(3, index.getComponentCount(ExifInterface.TAG_GPS_LATITUDE));
+        assertEquals(exif.getTag(ExifInterface.TAG_GPS_LATITUDE),
+                index.getTag(ExifInterface.TAG_GPS_LATITUDE));
+        assertEquals(ExifTag.TYPE_UNDEFINED, index.getDataType(ExifInterface.TAG_USER_COMMENT));
+
+        // Absent tags and wrong types give the defaults.
+        assertFalse(index.hasTag(ExifInterface.TAG_COPYRIGHT));
+        assertEquals(-1, index.getDataType(ExifInterface.TAG_COPYRIGHT));
+        assertNull(index.getTag(ExifInterface.TAG_COPYRIGHT));
+        assertEquals(7, index.getLong(ExifInterface.TAG_COPYRIGHT, 0, 7));
+        assertEquals(7, index.getLong(ExifInterface.TAG_FOCAL_LENGTH, 0, 7));
+        assertEquals(7, index.getLong(ExifInterface.TAG_ISO_SPEED_RATINGS, 1, 7));
+        assertNull(index.getString(ExifInterface.TAG_ORIENTATION));
+        assertEquals(0.5, index.getRational(ExifInterface.TAG_MAKE, 0, 0.5), 0);
+
+        byte[] thumbnail = exif.getThumbnailBytes();
+        int offset = index.getThumbnailOffset();
+        assertEquals(thumbnail.length, index.getThumbnailLength());
+        for (int i = 0; i < thumbnail.length; i++) {
+            assertEquals(thumbnail[i], jpeg[offset + i]);
+        }
+    }
+
+    @Test
+    public void testBadInput() throws IOException {
+        ExifIndex index = new ExifIndex();
+        assertFalse(index.load(encode(64, 64), 0, 600));
+        assertNull(index.getAllTags());
+
+        // Truncated headers keep what was indexed before the damage.
+        byte[] jpeg = makeJpeg(1);
+        for (int length = 0; length < 2000; length += 11) {
+            if (index.load(jpeg, 0, length)) {
+                index.getAllTags();
+                index.getThumbnailOffset();
+            }
+        }
+    }
+}
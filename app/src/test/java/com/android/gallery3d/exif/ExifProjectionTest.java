@@ -0,0 +1,180 @@
+package com.android.gallery3d.exif;
+
+import com.android.gallery3d.Benchmark;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExifProjectionTest {
+    // One tag from each IFD, and one that is never written.
+    private static final int[] TAGS = {
+            ExifInterface.TAG_FOCAL_LENGTH,
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_COPYRIGHT,
+            ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH,
+            ExifInterface.TAG_ISO_SPEED_RATINGS,
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File write(byte[] data) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void testMatchesIndex() throws IOException {
+        ExifProjection projection = new ExifProjection(TAGS);
+        assertEquals(TAGS.length, projection.getSlotCount());
+        ExifProjection.Result result = projection.newResult();
+        ExifIndex index = new ExifIndex();
+        // The same result is reused for every file.
+        for (int seed = 0; seed < 4; seed++) {
+            byte[] jpeg = ExifIndexTest.makeJpeg(seed);
+            assertTrue(projection.read(write(jpeg), result));
+            assertTrue(index.load(jpeg, 0, jpeg.length));
+            for (int slot = 0; slot < TAGS.length; slot++) {
+                int tag = TAGS[slot];
+                assertEquals(index.hasTag(tag), result.hasTag(slot));
+                assertEquals(index.getDataType(tag), result.getDataType(slot));
+                assertEquals(index.getComponentCount(tag), result.getComponentCount(slot));
+                assertEquals(index.getLong(tag, 0, -1), result.getLong(slot, 0, -1));
+                assertEquals(index.getRational(tag, 2, -1), result.getRational(slot, 2, -1), 0);
+                assertEquals(index.getString(tag), result.getString(slot));
+            }
+        }
+        assertFalse(result.hasTag(3));
+        assertEquals(-1, result.getValueOffset(3));
+    }
+
+    @Test
+    public void testZeroDenominator() throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_FOCAL_LENGTH, new Rational(5, 0)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(ExifIndexTest.makeJpeg(0), out);
+        byte[] jpeg = out.toByteArray();
+
+        ExifProjection projection = new ExifProjection(ExifInterface.TAG_FOCAL_LENGTH);
+        ExifProjection.Result result = projection.newResult();
+        assertTrue(projection.read(jpeg, 0, jpeg.length, result));
+        assertEquals(5, result.getNumerator(0, 0));
+        assertEquals(0, result.getDenominator(0, 0));
+        assertTrue(Double.isNaN(result.getRational(0, 0, Double.NaN)));
+    }
+
+    @Test
+    public void testBadInput() throws IOException {
+        ExifProjection projection = new ExifProjection(TAGS);
+        ExifProjection.Result result = projection.newResult();
+        byte[] jpeg = ExifIndexTest.makeJpeg(2);
+        for (int length = 0; length < 2000; length += 7) {
+            if (!projection.read(jpeg, 0, length, result)) {
+                for (int slot = 0; slot < TAGS.length; slot++) {
+                    assertFalse(result.hasTag(slot));
+                }
+            }
+        }
+        assertFalse(projection.read(write(new byte[] {1, 2, 3}), result));
+        assertNull(result.getString(1));
+
+        // A reused result keeps none of the last file's tags if a read fails.
+        assertTrue(projection.read(write(jpeg), result));
+        try {
+            projection.read(new File(mFolder.getRoot(), "missing"), result);
+            fail();
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        for (int slot = 0; slot < TAGS.length; slot++) {
+            assertFalse(result.hasTag(slot));
+        }
+    }
+
+    // Reads five tags, and all tags, from 50 files with the stream parser
+    // (ExifInterface.readExif), ExifIndex and ExifProjection.
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkRead() throws IOException {
+        int fileCount = 50;
+        File[] files = new File[fileCount];
+        for (int i = 0; i < fileCount; i++) files[i] = write(ExifIndexTest.makeJpeg(i));
+        int[] five = {
+                ExifInterface.TAG_FOCAL_LENGTH, ExifInterface.TAG_MAKE,
+                ExifInterface.TAG_ISO_SPEED_RATINGS, ExifInterface.TAG_EXPOSURE_TIME,
+                ExifInterface.TAG_GPS_LATITUDE,
+        };
+        ExifProjection projection = new ExifProjection(five);
+        ExifProjection.Result result = projection.newResult();
+        ExifIndex index = new ExifIndex();
+
+        int rounds = 20;
+        long parserFive = 0, projectionFive = 0, parserAll = 0, indexAll = 0;
+        long sink = 0;
+        for (int pass = 0; pass < 3; pass++) {
+            long t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (File file : files) {
+                    ExifInterface exif = new ExifInterface();
+                    exif.readExif(file.getPath());
+                    for (int tag : five) sink += exif.getTag(tag).getComponentCount();
+                }
+            }
+            parserFive = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (File file : files) {
+                    projection.read(file, result);
+                    for (int slot = 0; slot < five.length; slot++) {
+                        sink += result.getComponentCount(slot);
+                    }
+                }
+            }
+            projectionFive = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (File file : files) {
+                    ExifInterface exif = new ExifInterface();
+                    exif.readExif(file.getPath());
+                    sink += exif.getAllTags().size();
+                }
+            }
+            parserAll = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (File file : files) {
+                    index.load(file);
+                    sink += index.getAllTags().size();
+                }
+            }
+            indexAll = System.nanoTime() - t0;
+        }
+        assertTrue(sink > 0);
+        double n = rounds * fileCount * 1e3;
+        System.out.printf("EXIF per file, 5 tags: readExif %.1f us, ExifProjection %.1f us;"
+                + " all tags: readExif %.1f us, ExifIndex %.1f us%n",
+                parserFive / n, projectionFive / n, parserAll / n, indexAll / n);
+    }
+}
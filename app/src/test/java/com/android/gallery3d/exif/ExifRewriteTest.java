@@ -0,0 +1,175 @@
+package com.android.gallery3d.exif;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExifRewriteTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // A noisy JPEG, so the scan data spans many shift buffers.
+    private static byte[] encode(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+
+    private static Object fileKey(File file) throws IOException {
+        Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        assertNotNull(key);
+        return key;
+    }
+
+    private static List<ExifTag> tags(ExifInterface exif, int orientation, String description) {
+        List<ExifTag> tags = new ArrayList<ExifTag>();
+        tags.add(exif.buildTag(ExifInterface.TAG_ORIENTATION, (short) orientation));
+        if (description != null) {
+            tags.add(exif.buildTag(ExifInterface.TAG_IMAGE_DESCRIPTION, description));
+        }
+        return tags;
+    }
+
+    private static void assertTags(File file, int orientation, String description)
+            throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(file.getAbsolutePath());
+        assertEquals(Integer.valueOf(orientation),
+                exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        String value = exif.getTagStringValue(ExifInterface.TAG_IMAGE_DESCRIPTION);
+        // ASCII values are read back with their NUL terminator.
+        if (value != null && value.endsWith("\0")) {
+            value = value.substring(0, value.length() - 1);
+        }
+        assertEquals(description, value);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    // Returns the offset just past the APP1 segment that starts at offset.
+    private static int app1End(byte[] jpeg, int offset) {
+        assertEquals((byte) 0xFF, jpeg[offset]);
+        assertEquals((byte) 0xE1, jpeg[offset + 1]);
+        return offset + 2 + (((jpeg[offset + 2] & 0xFF) << 8) | (jpeg[offset + 3] & 0xFF));
+    }
+
+    private static void assertTail(byte[] expected, int from, byte[] actual, int actualFrom) {
+        assertEquals(expected.length - from, actual.length - actualFrom);
+        assertArrayEquals(Arrays.copyOfRange(expected, from, expected.length),
+                Arrays.copyOfRange(actual, actualFrom, actual.length));
+    }
+
+    @Test
+    public void testNoExif() throws Exception {
+        byte[] jpeg = encode(512, 512);
+        File file = write(jpeg);
+        Object key = fileKey(file);
+
+        ExifInterface exif = new ExifInterface();
+        exif.forceRewriteExif(file.getAbsolutePath(), tags(exif, 6, null));
+
+        assertTags(file, 6, null);
+        byte[] result = read(file);
+        // SOI, the new APP1, then everything that followed the SOI.
+        assertEquals((byte) 0xFF, result[0]);
+        assertEquals((byte) 0xD8, result[1]);
+        assertTail(jpeg, 2, result, app1End(result, 2));
+        assertEquals(key, fileKey(file));
+    }
+
+    @Test
+    public void testGrowIntoPadding() throws Exception {
+        File file = write(encode(512, 512));
+        ExifInterface exif = new ExifInterface();
+        exif.forceRewriteExif(file.getAbsolutePath(), tags(exif, 6, null));
+        byte[] before = read(file);
+        Object key = fileKey(file);
+
+        // The first rewrite reserved padding, so a longer header fits.
+        String description = repeat('a', 200);
+        exif = new ExifInterface();
+        exif.forceRewriteExif(file.getAbsolutePath(), tags(exif, 3, description));
+
+        assertTags(file, 3, description);
+        byte[] after = read(file);
+        assertEquals(before.length, after.length);
+        int end = app1End(before, 2);
+        assertEquals(end, app1End(after, 2));
+        assertTail(before, end, after, end);
+        assertEquals(key, fileKey(file));
+    }
+
+    @Test
+    public void testShift() throws Exception {
+        // An exif segment written without padding.
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION, (short) 1));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(encode(1024, 768), out);
+        byte[] jpeg = out.toByteArray();
+        assertTrue(jpeg.length > 4 * 64 * 1024);
+        File file = write(jpeg);
+        Object key = fileKey(file);
+        int oldEnd = app1End(jpeg, 2);
+
+        String description = repeat('b', 3000);
+        exif = new ExifInterface();
+        exif.forceRewriteExif(file.getAbsolutePath(), tags(exif, 8, description));
+
+        assertTags(file, 8, description);
+        byte[] result = read(file);
+        int newEnd = app1End(result, 2);
+        assertTrue(newEnd > oldEnd);
+        assertTail(jpeg, oldEnd, result, newEnd);
+        assertEquals(key, fileKey(file));
+
+        // The padding reserved by the shift takes the next small change.
+        exif = new ExifInterface();
+        exif.forceRewriteExif(file.getAbsolutePath(), tags(exif, 6, description + "c"));
+        assertTags(file, 6, description + "c");
+        assertEquals(result.length, read(file).length);
+    }
+}
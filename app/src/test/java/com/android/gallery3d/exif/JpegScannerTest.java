@@ -0,0 +1,140 @@
+package com.android.gallery3d.exif;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JpegScannerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] encode(int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpg", out);
+        return out.toByteArray();
+    }
+
+    // A 640x480 JPEG with an orientation and an EXIF thumbnail.
+    private static byte[] jpegWithExif(byte[] thumbnail) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION, (short) 6));
+        exif.setCompressedThumbnail(thumbnail);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(encode(640, 480), out);
+        return out.toByteArray();
+    }
+
+    // Inserts count APP2 segments of 64 KB right after the SOI.
+    private static byte[] withPadding(byte[] jpeg, int count) {
+        ByteBuffer out = ByteBuffer.allocate(jpeg.length + count * 65537);
+        out.put(jpeg, 0, 2);
+        for (int i = 0; i < count; i++) {
+            out.put((byte) 0xFF).put((byte) 0xE2).putShort((short) 65535);
+            out.position(out.position() + 65533);
+        }
+        out.put(jpeg, 2, jpeg.length - 2);
+        return out.array();
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    // Hands out at most 100 bytes per read, like a pipe.
+    private static InputStream trickle(byte[] data) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 100));
+            }
+        };
+    }
+
+    private static void assertInfo(byte[] thumbnail, JpegScanner.Info info) {
+        assertNotNull(info);
+        assertEquals(640, info.width);
+        assertEquals(480, info.height);
+        assertEquals(3, info.components);
+        assertEquals(0xC0, info.sofMarker);
+        assertEquals(6, info.orientation);
+        assertArrayEquals(thumbnail, info.getThumbnailBytes());
+    }
+
+    @Test
+    public void testSources() throws IOException {
+        byte[] thumbnail = encode(160, 120);
+        byte[] jpeg = jpegWithExif(thumbnail);
+        File file = write(jpeg);
+
+        assertInfo(thumbnail, JpegScanner.scan(jpeg, 0, jpeg.length));
+        assertInfo(thumbnail, JpegScanner.scan(file));
+        assertInfo(thumbnail, JpegScanner.scan(trickle(jpeg)));
+
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            fis.getChannel().position(123);
+            assertInfo(thumbnail, JpegScanner.scan(fis.getFD()));
+            assertEquals(123, fis.getChannel().position());
+        } finally {
+            fis.close();
+        }
+    }
+
+    @Test
+    public void testHeaderIsBounded() throws IOException {
+        byte[] thumbnail = encode(160, 120);
+        byte[] jpeg = jpegWithExif(thumbnail);
+
+        // Only the segments up to the frame header are read.
+        ByteBuffer header = JpegScanner.readHeader(new ByteArrayInputStream(jpeg));
+        assertTrue(header.remaining() < jpeg.length);
+        assertInfo(thumbnail, JpegScanner.scan(header));
+        assertNull(JpegScanner.scan(
+                ByteBuffer.wrap(jpeg, 0, header.remaining() - 1).slice()));
+
+        // Segments that fit in MAX_HEADER_SIZE are skipped over.
+        byte[] padded = withPadding(jpeg, 2);
+        assertInfo(thumbnail, JpegScanner.scan(trickle(padded)));
+
+        // Beyond it the scan gives up rather than reading on.
+        padded = withPadding(jpeg, 4);
+        header = JpegScanner.readHeader(new ByteArrayInputStream(padded));
+        assertEquals(JpegScanner.MAX_HEADER_SIZE, header.remaining());
+        assertNull(JpegScanner.scan(write(padded)));
+    }
+
+    @Test
+    public void testBadInput() throws IOException {
+        byte[] jpeg = jpegWithExif(encode(160, 120));
+        int headerSize = JpegScanner.readHeader(new ByteArrayInputStream(jpeg)).remaining();
+        for (int n = 0; n < headerSize; n += 13) {
+            byte[] truncated = new byte[n];
+            System.arraycopy(jpeg, 0, truncated, 0, n);
+            assertNull(JpegScanner.scan(new ByteArrayInputStream(truncated)));
+        }
+        assertNull(JpegScanner.scan(new ByteArrayInputStream("GIF89a".getBytes("US-ASCII"))));
+    }
+}
@@ -0,0 +1,112 @@
+package com.android.gallery3d.util;
+
+import com.android.gallery3d.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompactBitSetTest {
+
+    private static int[] expected(TreeSet<Long> set) {
+        int[] result = new int[set.size()];
+        int i = 0;
+        for (long value : set) result[i++] = (int) value;
+        return result;
+    }
+
+    // Values are kept in the reference set as unsigned longs, which is the
+    // order of toArray().
+    private static void check(TreeSet<Long> reference, CompactBitSet set) {
+        assertEquals(reference.size(), set.size());
+        assertEquals(reference.isEmpty(), set.isEmpty());
+        assertArrayEquals(expected(reference), set.toArray());
+    }
+
+    @Test
+    public void testRandomOperations() {
+        Random random = new Random(1);
+        CompactBitSet set = new CompactBitSet();
+        TreeSet<Long> reference = new TreeSet<Long>();
+        for (int round = 0; round < 20; round++) {
+            // Mix sparse values, negative values and dense runs, so
+            // containers switch between arrays and bitmaps both ways.
+            int base = random.nextInt(8) << 16;
+            for (int i = 0; i < 20000; i++) {
+                int value;
+                switch (random.nextInt(3)) {
+                    case 0: value = random.nextInt(); break;
+                    case 1: value = base + random.nextInt(9000); break;
+                    default: value = -1 - random.nextInt(100); break;
+                }
+                long key = value & 0xffffffffL;
+                if (random.nextInt(4) == 0) {
+                    assertEquals(reference.remove(key), set.remove(value));
+                } else {
+                    assertEquals(reference.add(key), set.add(value));
+                }
+            }
+            check(reference, set);
+            for (int i = 0; i < 1000; i++) {
+                int value = base + random.nextInt(9000);
+                assertEquals(reference.contains(value & 0xffffffffL), set.contains(value));
+            }
+            // Drain most of the dense run to convert its bitmap back.
+            for (int v = base; v < base + 8800; v++) {
+                assertEquals(reference.remove(v & 0xffffffffL), set.remove(v));
+            }
+            check(reference, set);
+        }
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(0));
+        assertEquals(0, set.toArray().length);
+    }
+
+    // Selecting 20k media ids, as select-all does in a large album.
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkSelection() {
+        int n = 20000;
+        int[] ids = new int[n];
+        Random random = new Random(2);
+        int id = 100000;
+        for (int i = 0; i < n; i++) {
+            id += 1 + random.nextInt(3);
+            ids[i] = id;
+        }
+        // Alternate the two in several trials and keep the best of each, so
+        // JIT warm-up and GC do not decide the result.
+        int runs = 50;
+        long compact = Long.MAX_VALUE;
+        long hash = Long.MAX_VALUE;
+        CompactBitSet set = null;
+        for (int trial = 0; trial < 10; trial++) {
+            long t0 = System.nanoTime();
+            for (int k = 0; k < runs; k++) {
+                set = new CompactBitSet();
+                for (int value : ids) set.add(value);
+                for (int value : ids) set.contains(value);
+            }
+            compact = Math.min(compact, (System.nanoTime() - t0) / runs);
+            t0 = System.nanoTime();
+            for (int k = 0; k < runs; k++) {
+                HashSet<Integer> hashSet = new HashSet<Integer>();
+                for (int value : ids) hashSet.add(value);
+                for (int value : ids) hashSet.contains(value);
+            }
+            hash = Math.min(hash, (System.nanoTime() - t0) / runs);
+        }
+        assertEquals(n, set.size());
+        System.out.printf("20k ids add + contains: CompactBitSet %.2f ms, HashSet<Integer>"
+                + " %.2f ms%n", compact / 1e6, hash / 1e6);
+    }
+}